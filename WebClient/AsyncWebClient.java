@@ -0,0 +1,533 @@
+/**
+ * AsyncWebClient Class
+ *
+ * Non-blocking HTTP/HTTPS client built on NIO socket channels.
+ * A small, fixed number of selector threads drive all connections,
+ * so many requests can be in flight without a thread per request.
+ * HTTPS is handled with an SSLEngine on top of the channel.
+ *
+ * Host names are resolved on a separate resolver thread, so get() never
+ * blocks. Each exchange has a deadline, moved forward whenever the
+ * server sends bytes: an exchange that does not connect, finish its
+ * handshake or receive anything for the time-out fails with a
+ * SocketTimeoutException. The selector threads wait in select() no
+ * longer than the earliest deadline of their exchanges.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.*;
+import javax.net.ssl.*;
+
+public class AsyncWebClient {
+
+    private static final Logger logger = Logger.getLogger("WebClient"); // global logger
+
+    private static final int BUFFER_SIZE = 16 * 1024; // initial size of plain-text read buffers
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int DEFAULT_TIMEOUT = 30000; // milli-seconds
+
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final SSLContext sslContext;
+    private final long timeout; // nano-seconds an exchange may go without progress
+    private final ExecutorService resolver; // host name lookups, which may block
+
+    /**
+     * Creates a client driven by two selector threads.
+     */
+    public AsyncWebClient() {
+        this(2);
+    }
+
+    /**
+     * Creates a client driven by the given number of selector threads,
+     * with a time-out of 30 seconds.
+     *
+     * @param selectorThreads Number of selector threads, at least 1
+     * @throws IllegalArgumentException If selectorThreads is less than 1
+     */
+    public AsyncWebClient(int selectorThreads) {
+        this(selectorThreads, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Creates a client driven by the given number of selector threads.
+     *
+     * @param selectorThreads Number of selector threads, at least 1
+     * @param timeout         Time in milli-seconds a request may wait to connect, finish
+     *                        its handshake or receive more of the response
+     * @throws IllegalArgumentException If selectorThreads or timeout is less than 1
+     */
+    public AsyncWebClient(int selectorThreads, int timeout) {
+        if (selectorThreads < 1)
+            throw new IllegalArgumentException("At least one selector thread is required");
+        if (timeout < 1)
+            throw new IllegalArgumentException("The time-out must be positive");
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+        resolver = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "AsyncWebClient-resolver");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            sslContext = ClientTls.getContext();
+            loops = new EventLoop[selectorThreads];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(i);
+                loops[i].start();
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not initialize client", e);
+        }
+    }
+
+    /**
+     * Starts downloading the object specified by the parameter url.
+     * The call returns immediately; the returned future completes
+     * once the whole response has been received.
+     *
+     * @param url URL of the object to be downloaded. It is a fully qualified URL.
+     * @return A future holding the server response
+     */
+    public CompletableFuture<Response> get(String url) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        try {
+            String[] urlComponents = WebClient.parseURL(url);
+            Exchange exchange = new Exchange(urlComponents[0], urlComponents[1],
+                    Integer.parseInt(urlComponents[2]), urlComponents[3], future);
+            EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+            resolver.execute(() -> {
+                try {
+                    exchange.resolve();
+                    loop.submit(exchange);
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Stops the selector threads. Requests still in flight fail.
+     */
+    public void close() {
+        resolver.shutdownNow();
+        for (EventLoop loop : loops)
+            loop.shutdown();
+    }
+
+    /**
+     * A complete HTTP response: status code, raw header block and body.
+     */
+    public static class Response {
+        private final int statusCode;
+        private final String headers;
+        private final byte[] body;
+
+        Response(int statusCode, String headers, byte[] body) {
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /**
+         * Returns the status code of the response, or -1 if the status line could not be parsed
+         */
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * Returns the status line and header lines, terminated by an empty line
+         */
+        public String getHeaders() {
+            return headers;
+        }
+
+        /**
+         * Returns the response body
+         */
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    // one selector and the thread that drives it
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Exchange> pending = new ConcurrentLinkedQueue<>();
+        private volatile boolean shutdown = false;
+        private boolean expiring = false; // exchanges are open, and checked at nextExpiry
+        private long nextExpiry; // no open exchange has an earlier deadline (nano-time)
+
+        EventLoop(int id) throws IOException {
+            super("AsyncWebClient-" + id);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void submit(Exchange exchange) {
+            pending.add(exchange);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            shutdown = true;
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (!shutdown) {
+                try {
+                    long wait = 0; // no deadline, wait for a request
+                    if (expiring) {
+                        long left = nextExpiry - System.nanoTime();
+                        if (left <= 0)
+                            left = expire();
+                        wait = left < 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(left) + 1;
+                    }
+                    selector.select(wait);
+
+                    Exchange exchange;
+                    while ((exchange = pending.poll()) != null) {
+                        exchange.open(selector);
+                        if (!expiring) {
+                            expiring = true;
+                            nextExpiry = exchange.deadline;
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ((Exchange) key.attachment()).handle(key);
+                    }
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Selector failure", e);
+                }
+            }
+
+            // fail whatever is left
+            for (SelectionKey key : selector.keys())
+                ((Exchange) key.attachment()).fail(new IOException("Client closed"));
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ok, ignore
+            }
+        }
+
+        // fails the exchanges past their deadline, returns the nano-seconds until the next deadline, -1 if none is open
+        private long expire() {
+            long now = System.nanoTime();
+            long next = -1;
+            for (SelectionKey key : selector.keys()) {
+                if (!key.isValid())
+                    continue; // closed, deregistered by the next select
+                Exchange exchange = (Exchange) key.attachment();
+                long left = exchange.deadline - now;
+                if (left <= 0)
+                    exchange.fail(new SocketTimeoutException("No progress from " + exchange.hostname + " within "
+                            + TimeUnit.NANOSECONDS.toMillis(timeout) + " ms"));
+                else if (next < 0 || left < next)
+                    next = left;
+            }
+            expiring = next >= 0;
+            nextExpiry = now + next;
+            return next;
+        }
+    }
+
+    // state of a single request/response exchange
+    private class Exchange {
+        private final String hostname;
+        private final int port;
+        private InetSocketAddress address; // set by resolve()
+        private final CompletableFuture<Response> future;
+        private final ByteBuffer request;
+        private final SSLEngine engine; // null for plain HTTP
+
+        private SocketChannel channel;
+        private ByteBuffer netIn;  // encrypted bytes read from the channel
+        private ByteBuffer netOut; // encrypted bytes waiting to be written
+        private ByteBuffer appIn;  // decrypted (or plain) bytes read from the channel
+        private final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        private int headerEnd = -1;
+        private long contentLength = -1;
+        private boolean closed = false; // server sent close_notify
+        private long deadline; // nano-time the exchange fails unless the server sends more, selector thread only
+
+        Exchange(String protocol, String hostname, int port, String pathname, CompletableFuture<Response> future)
+                throws IOException {
+            this.hostname = hostname;
+            this.port = port;
+            this.future = future;
+
+            String getRequest = "GET " + pathname + " HTTP/1.1\r\n" +
+                    "Host: " + hostname + "\r\n" +
+                    "Connection: close\r\n\r\n";
+            request = ByteBuffer.wrap(getRequest.getBytes("US-ASCII"));
+
+            if (protocol.equalsIgnoreCase("https")) {
+                engine = sslContext.createSSLEngine(hostname, port);
+                engine.setUseClientMode(true);
+                SSLParameters params = engine.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                engine.setSSLParameters(params);
+
+                SSLSession session = engine.getSession();
+                netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+                netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+                appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+            } else if (protocol.equalsIgnoreCase("http")) {
+                engine = null;
+                appIn = ByteBuffer.allocate(BUFFER_SIZE);
+            } else {
+                throw new IllegalArgumentException("Unsupported protocol: " + protocol);
+            }
+        }
+
+        // looks up the host, on a resolver thread as the lookup may block
+        void resolve() throws UnknownHostException {
+            address = new InetSocketAddress(DnsCache.getDefault().resolve(hostname), port);
+        }
+
+        // called on the selector thread
+        void open(Selector selector) {
+            deadline = System.nanoTime() + timeout;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (channel.connect(address)) {
+                    SelectionKey key = channel.register(selector, 0, this);
+                    connected(key);
+                } else {
+                    channel.register(selector, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        void handle(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    if (!channel.finishConnect())
+                        return;
+                    deadline = System.nanoTime() + timeout;
+                    connected(key);
+                    return;
+                }
+
+                boolean eof = false;
+                if (key.isReadable()) {
+                    ByteBuffer target = (engine != null) ? netIn : appIn;
+                    int n = channel.read(target);
+                    eof = n == -1;
+                    if (n > 0)
+                        deadline = System.nanoTime() + timeout;
+                }
+                progress(key, eof);
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        private void connected(SelectionKey key) throws IOException {
+            if (engine != null)
+                engine.beginHandshake();
+            progress(key, false);
+        }
+
+        private void progress(SelectionKey key, boolean eof) throws IOException {
+            boolean blocked = (engine != null) ? pumpTls() : pumpPlain();
+
+            if (eof || closed) {
+                if (engine != null && !closed) {
+                    try {
+                        engine.closeInbound();
+                    } catch (SSLException e) {
+                        // server closed without close_notify, the body is still complete
+                    }
+                }
+                complete();
+                return;
+            }
+            if (isComplete()) {
+                complete();
+                return;
+            }
+            key.interestOps(blocked ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        // returns true if there are bytes waiting for the channel to become writable
+        private boolean pumpPlain() throws IOException {
+            if (request.hasRemaining())
+                channel.write(request);
+            drainAppIn();
+            return request.hasRemaining();
+        }
+
+        // drives the TLS engine as far as it can go without blocking
+        // returns true if there are bytes waiting for the channel to become writable
+        private boolean pumpTls() throws IOException {
+            while (true) {
+                // flush pending handshake/application records first
+                netOut.flip();
+                channel.write(netOut);
+                boolean pendingWrite = netOut.hasRemaining();
+                netOut.compact();
+                if (pendingWrite)
+                    return true;
+
+                SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null)
+                        task.run();
+                    continue;
+                }
+
+                boolean handshaking = hs != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                        && hs != SSLEngineResult.HandshakeStatus.FINISHED;
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP || (!handshaking && request.hasRemaining())) {
+                    SSLEngineResult result = engine.wrap(handshaking ? EMPTY : request, netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+                        netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                    else if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                        return false;
+                    continue;
+                }
+
+                netIn.flip();
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                netIn.compact();
+                switch (result.getStatus()) {
+                    case BUFFER_OVERFLOW:
+                        if (appIn.position() > 0)
+                            drainAppIn();
+                        else
+                            appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                        continue;
+                    case BUFFER_UNDERFLOW:
+                        if (!netIn.hasRemaining())
+                            netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                        return false; // wait for more bytes from the network
+                    case CLOSED:
+                        drainAppIn();
+                        closed = true;
+                        return false;
+                    default:
+                        drainAppIn();
+                        if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                                && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
+                            return false;
+                }
+            }
+        }
+
+        // moves whatever has been read (and decrypted) to the response
+        private void drainAppIn() {
+            appIn.flip();
+            response.write(appIn.array(), appIn.arrayOffset() + appIn.position(), appIn.remaining());
+            appIn.clear();
+        }
+
+        // a response is complete once Content-Length body bytes follow the headers
+        private boolean isComplete() {
+            if (headerEnd < 0) {
+                byte[] bytes = response.toByteArray();
+                for (int i = 3; i < bytes.length; i++) {
+                    if (bytes[i - 3] == '\r' && bytes[i - 2] == '\n' && bytes[i - 1] == '\r' && bytes[i] == '\n') {
+                        headerEnd = i + 1;
+                        contentLength = parseContentLength(new String(bytes, 0, headerEnd, StandardCharsets.US_ASCII));
+                        break;
+                    }
+                }
+            }
+            return headerEnd >= 0 && contentLength >= 0 && response.size() - headerEnd >= contentLength;
+        }
+
+        private void complete() {
+            close();
+            byte[] bytes = response.toByteArray();
+            isComplete();
+            if (headerEnd < 0) {
+                future.completeExceptionally(new IOException("Incomplete response from " + hostname));
+                return;
+            }
+
+            String headers = new String(bytes, 0, headerEnd, StandardCharsets.US_ASCII);
+            int bodyLength = bytes.length - headerEnd;
+            if (contentLength >= 0)
+                bodyLength = (int) Math.min(bodyLength, contentLength);
+            future.complete(new Response(parseStatusCode(headers), headers,
+                    Arrays.copyOfRange(bytes, headerEnd, headerEnd + bodyLength)));
+        }
+
+        void fail(Throwable t) {
+            close();
+            future.completeExceptionally(t);
+        }
+
+        private void close() {
+            try {
+                if (channel != null)
+                    channel.close(); // also cancels the selection key
+            } catch (IOException e) {
+                // Ok, ignore
+            }
+        }
+    }
+
+    // returns a buffer holding the contents of buffer with room for at least size more bytes
+    private static ByteBuffer enlarge(ByteBuffer buffer, int size) {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.position() + Math.max(size, buffer.capacity()));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    // status code from the status line, -1 if malformed
+    static int parseStatusCode(String headers) {
+        String[] statusParts = headers.split("\r\n", 2)[0].split(" ");
+        try {
+            return statusParts.length > 1 ? Integer.parseInt(statusParts[1]) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // value of the Content-Length header, -1 if absent
+    static long parseContentLength(String headers) {
+        for (String line : headers.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                try {
+                    return Long.parseLong(line.substring(colon + 1).trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+}
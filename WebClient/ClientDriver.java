@@ -40,19 +40,60 @@ public class ClientDriver {
 		// set the parameters
 		String url = params.getOrDefault("-u", args[0]); // object url
 		Level logLevel = Level.parse(params.getOrDefault("-v", "all").toUpperCase()); // log levels: all, info, off
+		int asyncThreads = Integer.parseInt(params.getOrDefault("-a", "0")); // selector threads for the non-blocking client, 0 means blocking client
+		String cacheDir = params.get("-c"); // directory of the response cache, no caching if not set
+		long cacheBudget = Long.parseLong(params.getOrDefault("-b", "67108864")); // disk budget of the response cache in bytes
 
 		// set log level
 		setLogLevel(logLevel);
 
-		WebClient client = new WebClient();
 		System.out.printf("downloading %s...\n", url);
-		client.getObject(url);
+		if (asyncThreads > 0)
+			getObjectAsync(url, asyncThreads);
+		else if (cacheDir != null)
+			new WebClient(openCache(cacheDir, cacheBudget)).getObject(url);
+		else
+			new WebClient().getObject(url);
 		System.out.println("download completed.");
 
 		// get rid of any lingering threads/timers
 		System.exit(0);
 	}
 
+	// download the object with the non-blocking client and save it like WebClient does
+	private static void getObjectAsync(String url, int selectorThreads) {
+		AsyncWebClient client = new AsyncWebClient(selectorThreads);
+		try {
+			AsyncWebClient.Response response = client.get(url).join();
+			System.out.println("Server response headers:");
+			System.out.println(response.getHeaders());
+
+			if (response.getStatusCode() == 200) {
+				String pathname = WebClient.parseURL(url)[3];
+				try (FileOutputStream out = new FileOutputStream(pathname.substring(pathname.lastIndexOf('/') + 1))) {
+					out.write(response.getBody());
+				}
+			} else {
+				System.out.println("Server returned a non-OK status: " + response.getHeaders().split("\r\n")[0]);
+			}
+		} catch (Exception e) {
+			System.out.println("Error downloading object: " + e.getMessage());
+		} finally {
+			client.close();
+		}
+	}
+
+	// open the response cache, an eighth of the disk budget is kept in memory
+	private static HttpCache openCache(String cacheDir, long cacheBudget) {
+		try {
+			return new HttpCache(new File(cacheDir), cacheBudget / 8, cacheBudget);
+		} catch (IOException e) {
+			System.out.println("cannot open cache directory " + cacheDir + ": " + e.getMessage());
+			System.exit(0);
+			return null;
+		}
+	}
+
 	// parse command line arguments
 	private static HashMap<String, String> parseCommandLine(String[] args) {
 		HashMap<String, String> params = new HashMap<String, String>();
@@ -0,0 +1,173 @@
+/**
+ * ClientEvents Class
+ *
+ * JDK Flight Recorder events of WebClient: the TCP connection, the TLS
+ * handshake and the wait for the first byte of the response. Recorded
+ * with e.g. -XX:StartFlightRecording=filename=client.jfr and summarized
+ * by WebServer's JfrSummary. A disabled event is not allocated, the begin
+ * methods return null after checking its event type.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import javax.net.ssl.SSLSession;
+import jdk.jfr.*;
+
+final class ClientEvents {
+
+    // looked up once, so a disabled event is not even allocated
+    private static final EventType CONNECT = EventType.getEventType(Connect.class);
+    private static final EventType TLS_HANDSHAKE = EventType.getEventType(TlsHandshake.class);
+    private static final EventType FIRST_BYTE = EventType.getEventType(FirstByte.class);
+
+    private ClientEvents() {
+    }
+
+    @Name("webclient.Connect")
+    @Label("Connect")
+    @Category({ "WebClient", "HTTP" })
+    @Description("Host name resolved and TCP connection established")
+    @StackTrace(false)
+    static class Connect extends Event {
+        @Label("Host")
+        String host;
+
+        @Label("Port")
+        int port;
+
+        @Label("Address")
+        String address;
+    }
+
+    @Name("webclient.TlsHandshake")
+    @Label("TLS Handshake")
+    @Category({ "WebClient", "HTTP" })
+    @StackTrace(false)
+    static class TlsHandshake extends Event {
+        @Label("Host")
+        String host;
+
+        @Label("Protocol")
+        String protocol;
+
+        @Label("Cipher Suite")
+        String cipherSuite;
+
+        @Label("Resumed")
+        @Description("The session was created by an earlier handshake")
+        boolean resumed;
+    }
+
+    @Name("webclient.FirstByte")
+    @Label("First Byte")
+    @Category({ "WebClient", "HTTP" })
+    @Description("From sending the request to the first byte of the response")
+    @StackTrace(false)
+    static class FirstByte extends Event {
+        @Label("Host")
+        String host;
+
+        @Label("Path")
+        String path;
+    }
+
+    /**
+     * Begins a connect event, if enabled.
+     *
+     * @return The event, or null if no recording has it enabled
+     */
+    static Connect beginConnect() {
+        if (!CONNECT.isEnabled())
+            return null;
+        Connect event = new Connect();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Begins a TLS handshake event, if enabled.
+     *
+     * @return The event, or null if no recording has it enabled
+     */
+    static TlsHandshake beginHandshake() {
+        if (!TLS_HANDSHAKE.isEnabled())
+            return null;
+        TlsHandshake event = new TlsHandshake();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Begins a first byte event, if enabled.
+     *
+     * @return The event, or null if no recording has it enabled
+     */
+    static FirstByte beginFirstByte() {
+        if (!FIRST_BYTE.isEnabled())
+            return null;
+        FirstByte event = new FirstByte();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Commits a connect event, if enabled.
+     *
+     * @param event   The event, begun before the host name was resolved, or null
+     * @param host    The host name
+     * @param port    The port
+     * @param address The address connected to
+     */
+    static void connected(Connect event, String host, int port, String address) {
+        if (event == null)
+            return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.host = host;
+            event.port = port;
+            event.address = address;
+            event.commit();
+        }
+    }
+
+    /**
+     * Commits a TLS handshake event, if enabled.
+     *
+     * @param event     The event, begun before the handshake, or null
+     * @param host      The host name
+     * @param session   The negotiated session
+     * @param startedAt Start of the handshake, in milli-seconds since the epoch
+     */
+    static void handshakeDone(TlsHandshake event, String host, SSLSession session, long startedAt) {
+        if (event == null)
+            return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.host = host;
+            event.protocol = session.getProtocol();
+            event.cipherSuite = session.getCipherSuite();
+            event.resumed = session.getCreationTime() < startedAt;
+            event.commit();
+        }
+    }
+
+    /**
+     * Commits a first byte event, if enabled.
+     *
+     * @param event The event, begun when the request was sent, or null
+     * @param host  The host name
+     * @param path  The path of the object
+     */
+    static void firstByte(FirstByte event, String host, String path) {
+        if (event == null)
+            return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.host = host;
+            event.path = path;
+            event.commit();
+        }
+    }
+}
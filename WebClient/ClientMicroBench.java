@@ -0,0 +1,115 @@
+/**
+ * ClientMicroBench Class
+ *
+ * Micro-benchmarks of the per-request helpers of the web client:
+ * URL parsing, request encoding, response header parsing and cache
+ * lookups, as WebClient and AsyncWebClient do them. Each benchmark is
+ * warmed up, then timed over several measurement rounds; results are
+ * reported as JSON (ns/op per round), like MicroBench of the web server.
+ *
+ * Command line arguments (all optional):
+ * 		-n	operations per round, default 200000
+ * 		-r	measurement rounds, default 5
+ * 		-o	output file for the JSON report, default standard output
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class ClientMicroBench {
+
+    private static volatile long sink; // keeps results alive so the JIT cannot drop the work
+
+    // a benchmarked operation
+    private interface Op {
+        Object run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> params = new HashMap<String, String>();
+        for (int i = 0; (i + 1) < args.length; i += 2)
+            params.put(args[i], args[i + 1]);
+
+        int ops = Integer.parseInt(params.getOrDefault("-n", "200000"));
+        int rounds = Integer.parseInt(params.getOrDefault("-r", "5"));
+        String output = params.get("-o");
+
+        String url = "http://localhost:2025/docs/index.html";
+        String headers = "HTTP/1.1 200 OK\r\n" +
+                "Date: Mon, 19 Oct 2026 04:28:35 UTC\r\n" +
+                "Server: MySimpleWebServer\r\n" +
+                "Connection: keep-alive\r\n" +
+                "Last-Modified: Mon, 19 Oct 2026 04:28:32 UTC\r\n" +
+                "ETag: \"5f3a-1c\"\r\n" +
+                "Cache-Control: max-age=3600\r\n" +
+                "Content-Length: 13\r\n" +
+                "Content-Type: text/html; charset=utf-8\r\n\r\n";
+
+        // a cache holding the object, in a directory removed afterwards
+        File dir = Files.createTempDirectory("clientbench").toFile();
+        File body = new File(dir, "body");
+        Files.write(body.toPath(), "<html></html>".getBytes(StandardCharsets.US_ASCII));
+        HttpCache cache = new HttpCache(new File(dir, "cache"), 1 << 20, 1 << 20);
+        cache.store(url, headers, body);
+        HttpCache.Entry cached = cache.lookup(url);
+
+        LinkedHashMap<String, Op> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("WebClient.parseURL", () -> WebClient.parseURL(url));
+        benchmarks.put("WebClient.buildGetRequest", () -> WebClient.buildGetRequest("/docs/index.html", "localhost", null));
+        benchmarks.put("WebClient.buildGetRequest.conditional",
+                () -> WebClient.buildGetRequest("/docs/index.html", "localhost", cached));
+        benchmarks.put("AsyncWebClient.parseStatusCode", () -> AsyncWebClient.parseStatusCode(headers));
+        benchmarks.put("AsyncWebClient.parseContentLength", () -> AsyncWebClient.parseContentLength(headers));
+        benchmarks.put("HttpCache.lookup.hit", () -> cache.lookup(url));
+        benchmarks.put("HttpCache.lookup.miss", () -> cache.lookup("http://localhost:2025/missing.html"));
+
+        StringBuilder sb = new StringBuilder("{\n  \"ops_per_round\": " + ops + ",\n  \"benchmarks\": [\n");
+        String sep = "";
+        for (Map.Entry<String, Op> benchmark : benchmarks.entrySet()) {
+            Op op = benchmark.getValue();
+            measure(op, ops); // warm up
+
+            double[] nsPerOp = new double[rounds];
+            for (int r = 0; r < rounds; r++)
+                nsPerOp[r] = measure(op, ops);
+            Arrays.sort(nsPerOp);
+
+            sb.append(sep).append(String.format(Locale.ROOT,
+                    "    {\"name\": \"%s\", \"ns_per_op_median\": %.1f, \"ns_per_op_min\": %.1f, \"ns_per_op_max\": %.1f}",
+                    benchmark.getKey(), nsPerOp[rounds / 2], nsPerOp[0], nsPerOp[rounds - 1]));
+            sep = ",\n";
+        }
+        sb.append("\n  ]\n}\n");
+        delete(dir);
+
+        if (output != null)
+            Files.write(Paths.get(output), sb.toString().getBytes(StandardCharsets.UTF_8));
+        else
+            System.out.print(sb);
+    }
+
+    // runs the operation ops times, returns the mean time per operation in nano-seconds
+    private static double measure(Op op, int ops) throws Exception {
+        long hash = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ops; i++)
+            hash += Objects.hashCode(op.run());
+        long elapsed = System.nanoTime() - start;
+        sink += hash;
+        return (double) elapsed / ops;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * ClientTls Class
+ *
+ * Holds the SSLContext shared by WebClient and AsyncWebClient.
+ * Using a single context lets the JSSE client session cache resume
+ * earlier sessions (session IDs for TLS 1.2, PSK tickets for TLS 1.3)
+ * instead of doing a full handshake on every connection.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+public class ClientTls {
+
+    private static final int SESSION_CACHE_SIZE = 256; // sessions
+    private static final int SESSION_TIMEOUT = 3600; // seconds
+
+    private static SSLContext context;
+
+    /**
+     * Returns the shared context, creating it with the default trust store on first use.
+     *
+     * @return The shared SSLContext
+     */
+    public static synchronized SSLContext getContext() {
+        if (context == null) {
+            try {
+                context = newContext(null);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Could not initialize TLS", e);
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Replaces the shared context with one that trusts the certificates in the given key store.
+     * Cached sessions of the previous context are dropped.
+     *
+     * @param trustStore Path of a PKCS12 or JKS key store
+     * @param password   Password of the key store
+     * @throws IOException              If the key store cannot be read
+     * @throws GeneralSecurityException If the key store cannot be loaded
+     */
+    public static synchronized void useTrustStore(String trustStore, String password)
+            throws IOException, GeneralSecurityException {
+        context = newContext(loadTrustManagers(trustStore, password));
+    }
+
+    /**
+     * Creates a context with its own, empty, session cache.
+     * Used to measure full handshakes against resumed ones.
+     *
+     * @param trustStore Path of a PKCS12 or JKS key store, or null for the default trust store
+     * @param password   Password of the key store
+     * @return A new SSLContext
+     * @throws IOException              If the key store cannot be read
+     * @throws GeneralSecurityException If the key store cannot be loaded
+     */
+    static SSLContext newContext(String trustStore, String password) throws IOException, GeneralSecurityException {
+        return newContext(trustStore == null ? null : loadTrustManagers(trustStore, password));
+    }
+
+    private static SSLContext newContext(TrustManagerFactory tmf) throws GeneralSecurityException {
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, tmf == null ? null : tmf.getTrustManagers(), null);
+
+        SSLSessionContext sessions = ctx.getClientSessionContext();
+        sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(SESSION_TIMEOUT);
+        return ctx;
+    }
+
+    private static TrustManagerFactory loadTrustManagers(String trustStore, String password)
+            throws IOException, GeneralSecurityException {
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (FileInputStream in = new FileInputStream(trustStore)) {
+            ks.load(in, password.toCharArray());
+        }
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(ks);
+        return tmf;
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * DnsCache Class
+ *
+ * In-process cache of hostname lookups shared by the web clients.
+ * Successful lookups are kept for a fixed time-to-live and failed
+ * lookups are remembered for a shorter time, so that repeated requests
+ * to the same (or to a missing) host do not pay a resolver round trip.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class DnsCache {
+
+    private static final long DEFAULT_TTL = 60000; // milli-seconds
+    private static final long DEFAULT_NEGATIVE_TTL = 10000; // milli-seconds
+    private static final int MAX_ENTRIES = 1024;
+
+    private static final DnsCache shared = new DnsCache(DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+
+    private final long ttl;
+    private final long negativeTtl;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // a cached lookup result, either an address or the failure
+    private static class Entry {
+        final InetAddress address;
+        final UnknownHostException failure;
+        final long expires;
+
+        Entry(InetAddress address, UnknownHostException failure, long expires) {
+            this.address = address;
+            this.failure = failure;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ttl         Time-to-live of successful lookups in milli-seconds
+     * @param negativeTtl Time-to-live of failed lookups in milli-seconds
+     */
+    public DnsCache(long ttl, long negativeTtl) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+    }
+
+    /**
+     * Returns the cache shared by WebClient and AsyncWebClient
+     */
+    public static DnsCache getDefault() {
+        return shared;
+    }
+
+    /**
+     * Resolves the hostname, using a cached result if it has not expired.
+     *
+     * @param hostname The hostname to be resolved
+     * @return The address of the host
+     * @throws UnknownHostException If the host could not be resolved, now or
+     *                              within the negative time-to-live
+     */
+    public InetAddress resolve(String hostname) throws UnknownHostException {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(hostname);
+
+        if (entry == null || entry.expires <= now) {
+            try {
+                entry = new Entry(InetAddress.getByName(hostname), null, now + ttl);
+            } catch (UnknownHostException e) {
+                entry = new Entry(null, e, now + negativeTtl);
+            }
+
+            // keep the table bounded, expired entries go first
+            if (entries.size() >= MAX_ENTRIES) {
+                entries.values().removeIf(e -> e.expires <= now);
+                if (entries.size() >= MAX_ENTRIES)
+                    entries.clear();
+            }
+            entries.put(hostname, entry);
+        }
+
+        if (entry.failure != null)
+            throw entry.failure;
+        return entry.address;
+    }
+
+    /**
+     * Removes all cached lookups.
+     */
+    public void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,366 @@
+/**
+ * HttpCache Class
+ *
+ * Client-side HTTP cache used by WebClient.
+ * Every cached response has its body on disk together with a small
+ * metadata file holding its validators (ETag, Last-Modified) and
+ * freshness lifetime (Cache-Control max-age, or Expires). A 304 response
+ * renews the lifetime, with new values if it carries them, so a
+ * revalidated entry stays fresh as long as it did before. Recently used bodies are
+ * also kept in memory. Both tiers are evicted in LRU order once they
+ * exceed their size budget.
+ *
+ * Only 200 responses are cached, and only if they can be reused later:
+ * they must either be fresh for some time or carry a validator.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.logging.*;
+
+public class HttpCache {
+
+    private static final Logger logger = Logger.getLogger("WebClient"); // global logger
+
+    private static final String BODY_SUFFIX = ".body";
+    private static final String META_SUFFIX = ".meta";
+
+    private final File directory;
+    private final long memoryBudget;
+    private final long diskBudget;
+
+    // all cached entries, least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // bodies held in memory, least recently used first
+    private final LinkedHashMap<String, byte[]> bodies = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskUsed = 0;
+    private long memoryUsed = 0;
+
+    /**
+     * A cached response: validators, freshness and where its body lives.
+     */
+    public static class Entry {
+        private final String url;
+        private final String key;
+        private String etag;
+        private String lastModified;
+        private long expires; // absolute time in milli-seconds
+        private long lifetime; // milli-seconds the response is fresh for, renewed by a 304
+        private final long length;
+
+        private Entry(String url, String key, String etag, String lastModified, long expires, long lifetime,
+                long length) {
+            this.url = url;
+            this.key = key;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = expires;
+            this.lifetime = lifetime;
+            this.length = length;
+        }
+
+        /**
+         * Returns true if the entry can be used without asking the server
+         */
+        public boolean isFresh() {
+            return System.currentTimeMillis() < expires;
+        }
+
+        /**
+         * Returns the entity tag of the response, or null
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * Returns the Last-Modified date of the response, or null
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * Opens (or creates) a cache in the given directory and indexes the
+     * responses already stored there.
+     *
+     * @param directory    Directory holding the cached responses
+     * @param memoryBudget Maximum number of body bytes kept in memory
+     * @param diskBudget   Maximum number of body bytes kept on disk
+     * @throws IOException If the directory cannot be created
+     */
+    public HttpCache(File directory, long memoryBudget, long diskBudget) throws IOException {
+        this.directory = directory;
+        this.memoryBudget = memoryBudget;
+        this.diskBudget = diskBudget;
+        Files.createDirectories(directory.toPath());
+        loadIndex();
+    }
+
+    /**
+     * Returns the cached response for the url, or null if there is none.
+     *
+     * @param url The fully qualified URL of the object
+     * @return The cached entry, or null
+     */
+    public synchronized Entry lookup(String url) {
+        return entries.get(key(url));
+    }
+
+    /**
+     * Stores a downloaded 200 response if it is cacheable.
+     *
+     * @param url     The fully qualified URL of the object
+     * @param headers The response headers
+     * @param body    The downloaded body
+     */
+    public synchronized void store(String url, String headers, File body) {
+        Map<String, String> fields = parseHeaders(headers);
+        String cacheControl = fields.getOrDefault("cache-control", "").toLowerCase();
+        if (cacheControl.contains("no-store"))
+            return;
+
+        long lifetime = Math.max(0, parseLifetime(fields));
+        String etag = fields.get("etag");
+        String lastModified = fields.get("last-modified");
+        if (lifetime <= 0 && etag == null && lastModified == null)
+            return; // could never be reused
+        if (body.length() > diskBudget)
+            return;
+
+        String key = key(url);
+        try {
+            remove(key);
+            Files.copy(body.toPath(), bodyFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Entry entry = new Entry(url, key, etag, lastModified, System.currentTimeMillis() + lifetime, lifetime,
+                    body.length());
+            writeMeta(entry);
+            entries.put(key, entry);
+            diskUsed += entry.length;
+
+            if (entry.length <= memoryBudget / 4)
+                cacheInMemory(key, Files.readAllBytes(body.toPath()));
+            evict();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not cache " + url, e);
+            remove(key);
+        }
+    }
+
+    /**
+     * Updates a cached response after the server answered 304 Not Modified.
+     * The entry is fresh again for its lifetime, replaced by the one of
+     * the 304 if it has Cache-Control max-age or no-cache, or Expires.
+     *
+     * @param entry   The entry that was revalidated
+     * @param headers The headers of the 304 response
+     */
+    public synchronized void revalidated(Entry entry, String headers) {
+        Map<String, String> fields = parseHeaders(headers);
+        long lifetime = parseLifetime(fields);
+        if (lifetime >= 0)
+            entry.lifetime = lifetime;
+
+        entry.expires = System.currentTimeMillis() + entry.lifetime;
+        if (fields.containsKey("etag"))
+            entry.etag = fields.get("etag");
+        if (fields.containsKey("last-modified"))
+            entry.lastModified = fields.get("last-modified");
+
+        try {
+            writeMeta(entry);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not update cache entry for " + entry.url, e);
+        }
+    }
+
+    /**
+     * Writes the body of a cached response to the given file.
+     *
+     * @param entry  The cached entry
+     * @param target The file to be written
+     * @throws IOException If the body cannot be copied
+     */
+    public synchronized void writeBody(Entry entry, File target) throws IOException {
+        byte[] body = bodies.get(entry.key);
+        if (body != null) {
+            Files.write(target.toPath(), body);
+        } else {
+            Files.copy(bodyFile(entry.key).toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if (entry.length <= memoryBudget / 4)
+                cacheInMemory(entry.key, Files.readAllBytes(target.toPath()));
+        }
+        bodyFile(entry.key).setLastModified(System.currentTimeMillis()); // recency survives restarts
+    }
+
+    private void cacheInMemory(String key, byte[] body) {
+        byte[] old = bodies.put(key, body);
+        memoryUsed += body.length - (old == null ? 0 : old.length);
+
+        Iterator<Map.Entry<String, byte[]>> lru = bodies.entrySet().iterator();
+        while (memoryUsed > memoryBudget && lru.hasNext()) {
+            memoryUsed -= lru.next().getValue().length;
+            lru.remove();
+        }
+    }
+
+    // drop least recently used entries until the disk budget is met
+    private void evict() {
+        Iterator<Entry> lru = entries.values().iterator();
+        while (diskUsed > diskBudget && lru.hasNext()) {
+            Entry entry = lru.next();
+            lru.remove();
+            discard(entry);
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null)
+            discard(entry);
+    }
+
+    private void discard(Entry entry) {
+        diskUsed -= entry.length;
+        byte[] body = bodies.remove(entry.key);
+        if (body != null)
+            memoryUsed -= body.length;
+        bodyFile(entry.key).delete();
+        metaFile(entry.key).delete();
+    }
+
+    // rebuild the index from the metadata files, oldest access first
+    private void loadIndex() {
+        File[] metas = directory.listFiles((dir, name) -> name.endsWith(META_SUFFIX));
+        if (metas == null)
+            return;
+
+        List<Entry> loaded = new ArrayList<>();
+        for (File meta : metas) {
+            String key = meta.getName().substring(0, meta.getName().length() - META_SUFFIX.length());
+            Properties props = new Properties();
+            try (InputStream in = new FileInputStream(meta)) {
+                props.load(in);
+                File body = bodyFile(key);
+                if (!body.exists()) {
+                    meta.delete();
+                    continue;
+                }
+                loaded.add(new Entry(props.getProperty("url"), key, props.getProperty("etag"),
+                        props.getProperty("last-modified"), Long.parseLong(props.getProperty("expires", "0")),
+                        Long.parseLong(props.getProperty("lifetime", "0")), body.length()));
+            } catch (IOException | NumberFormatException e) {
+                meta.delete();
+            }
+        }
+
+        loaded.sort(Comparator.comparingLong(e -> bodyFile(e.key).lastModified()));
+        for (Entry entry : loaded) {
+            entries.put(entry.key, entry);
+            diskUsed += entry.length;
+        }
+        evict();
+    }
+
+    private void writeMeta(Entry entry) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("url", entry.url);
+        props.setProperty("expires", Long.toString(entry.expires));
+        props.setProperty("lifetime", Long.toString(entry.lifetime));
+        if (entry.etag != null)
+            props.setProperty("etag", entry.etag);
+        if (entry.lastModified != null)
+            props.setProperty("last-modified", entry.lastModified);
+        try (OutputStream out = new FileOutputStream(metaFile(entry.key))) {
+            props.store(out, null);
+        }
+    }
+
+    private File bodyFile(String key) {
+        return new File(directory, key + BODY_SUFFIX);
+    }
+
+    private File metaFile(String key) {
+        return new File(directory, key + META_SUFFIX);
+    }
+
+    // file-system safe name for a url
+    private static String key(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 16; i++)
+                hex.append(String.format("%02x", digest[i]));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // header fields by lower-case name, status line excluded
+    private static Map<String, String> parseHeaders(String headers) {
+        Map<String, String> fields = new HashMap<>();
+        String[] lines = headers.split("\r\n");
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0)
+                fields.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+        }
+        return fields;
+    }
+
+    // freshness lifetime in milli-seconds from Cache-Control, or from Expires relative to Date, -1 if given by neither
+    private static long parseLifetime(Map<String, String> fields) {
+        String cacheControl = fields.getOrDefault("cache-control", "").toLowerCase();
+        if (cacheControl.contains("no-cache"))
+            return 0;
+        if (cacheControl.contains("max-age="))
+            return parseMaxAge(cacheControl) * 1000;
+        String expires = fields.get("expires");
+        if (expires == null)
+            return -1;
+        long expiresAt = parseDate(expires);
+        if (expiresAt < 0)
+            return 0; // an invalid date means already expired
+        long date = parseDate(fields.getOrDefault("date", ""));
+        return Math.max(0, expiresAt - (date < 0 ? System.currentTimeMillis() : date));
+    }
+
+    // an HTTP date in milli-seconds, -1 if it cannot be parsed
+    private static long parseDate(String date) {
+        try {
+            return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    // max-age directive in seconds, 0 if absent
+    private static long parseMaxAge(String cacheControl) {
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim();
+            if (directive.startsWith("max-age=")) {
+                try {
+                    return Math.max(0, Long.parseLong(directive.substring("max-age=".length()).trim()));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+}
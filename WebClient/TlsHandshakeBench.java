@@ -0,0 +1,123 @@
+/**
+ * TlsHandshakeBench Class
+ *
+ * Measures TLS handshake time for full handshakes versus resumed sessions
+ * against a local TLS test server.
+ *
+ * The server certificate is read from a key store, which is also used as
+ * the client trust store. A self-signed one can be generated with:
+ * 		keytool -genkeypair -alias server -keyalg EC -dname CN=localhost
+ * 		        -keystore server.p12 -storepass changeit
+ *
+ * Command line arguments:
+ * 		-k key store (required)
+ * 		-w key store password, default changeit
+ * 		-n number of handshakes per run, default 200
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.*;
+import javax.net.ssl.*;
+
+public class TlsHandshakeBench {
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> params = new HashMap<String, String>();
+        for (int i = 0; (i + 1) < args.length; i += 2)
+            params.put(args[i], args[i + 1]);
+
+        String keyStore = params.get("-k");
+        String password = params.getOrDefault("-w", "changeit");
+        int count = Integer.parseInt(params.getOrDefault("-n", "200"));
+        if (keyStore == null) {
+            System.out.println("incorrect usage, key store is required (-k)");
+            System.exit(0);
+        }
+
+        SSLServerSocket server = startServer(keyStore, password);
+        int port = server.getLocalPort();
+
+        // warm up the JIT before taking measurements
+        for (int i = 0; i < count; i++)
+            handshake(ClientTls.newContext(keyStore, password), "TLSv1.3", port);
+
+        for (String protocol : new String[] { "TLSv1.2", "TLSv1.3" }) {
+            // every connection uses a fresh context: always a full handshake
+            double[] full = new double[count];
+            for (int i = 0; i < count; i++)
+                full[i] = handshake(ClientTls.newContext(keyStore, password), protocol, port);
+
+            // one context for all connections: the first handshake primes the session cache
+            SSLContext shared = ClientTls.newContext(keyStore, password);
+            handshake(shared, protocol, port);
+            double[] resumed = new double[count];
+            for (int i = 0; i < count; i++)
+                resumed[i] = handshake(shared, protocol, port);
+
+            report(protocol + " full", full);
+            report(protocol + " resumed", resumed);
+        }
+
+        server.close();
+    }
+
+    // a server that completes the handshake, sends one byte and waits for the client to close
+    private static SSLServerSocket startServer(String keyStore, String password) throws Exception {
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (FileInputStream in = new FileInputStream(keyStore)) {
+            ks.load(in, password.toCharArray());
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, password.toCharArray());
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), null, null);
+
+        SSLServerSocket server = (SSLServerSocket) ctx.getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try (SSLSocket socket = (SSLSocket) server.accept()) {
+                    socket.startHandshake();
+                    socket.getOutputStream().write(1); // lets the client pick up TLS 1.3 session tickets
+                    socket.getOutputStream().flush();
+                    socket.getInputStream().read(); // wait for the client to close
+                } catch (IOException e) {
+                    // client went away or server closed
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    // returns the handshake time in micro-seconds
+    private static double handshake(SSLContext ctx, String protocol, int port) throws IOException {
+        Socket plainSocket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try (SSLSocket socket = (SSLSocket) ctx.getSocketFactory().createSocket(plainSocket, "localhost", port, true)) {
+            socket.setEnabledProtocols(new String[] { protocol });
+            long start = System.nanoTime();
+            socket.startHandshake();
+            long elapsed = System.nanoTime() - start;
+            socket.getInputStream().read();
+            return elapsed / 1000.0;
+        }
+    }
+
+    private static void report(String label, double[] samples) {
+        double[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        double sum = 0;
+        for (double s : sorted)
+            sum += s;
+        System.out.printf("%-16s mean %8.1f us   p50 %8.1f us   p99 %8.1f us%n", label,
+                sum / sorted.length, sorted[sorted.length / 2], sorted[(int) (sorted.length * 0.99)]);
+    }
+}
@@ -17,6 +17,8 @@ public class WebClient {
 
     private static final Logger logger = Logger.getLogger("WebClient"); // global logger
 
+    private HttpCache cache; // null if responses are not cached
+
     /**
      * Default no-arg constructor
      */
@@ -24,6 +26,17 @@ public class WebClient {
         // nothing to do!
     }
 
+    /**
+     * Constructor for a client that caches responses.
+     * Fresh cached objects are served without contacting the server,
+     * stale ones are revalidated with a conditional request.
+     *
+     * @param cache The cache used for downloaded objects
+     */
+    public WebClient(HttpCache cache) {
+        this.cache = cache;
+    }
+
     /**
      * Downloads the object specified by the parameter url.
      *
@@ -37,6 +50,14 @@ public class WebClient {
         int port = Integer.parseInt(urlComponents[2]);
         String pathname = urlComponents[3];
 
+        // Serve fresh objects straight from the cache
+        HttpCache.Entry cached = (cache != null) ? cache.lookup(url) : null;
+        if (cached != null && cached.isFresh()) {
+            System.out.println("Serving fresh object from cache.");
+            saveCachedObject(cached, pathname);
+            return;
+        }
+
         Socket socket = null;
         try {
             // Establish a TCP connection to the server
@@ -49,12 +70,22 @@ public class WebClient {
                     System.out.println("Regular (HTTP) connection established.");
                 }
                 // Proceed with sending a GET request and handling the response
-                String response = sendGetRequest(socket, pathname, hostname);
+                String response = sendGetRequest(socket, pathname, hostname, cached);
                 System.out.println("Server response headers:");
                 System.out.println(response);
 
+                if (cached != null && response.split("\r\n", 2)[0].contains(" 304 ")) {
+                    // Our copy is still valid
+                    System.out.println("Object not modified, serving from cache.");
+                    cache.revalidated(cached, response);
+                    saveCachedObject(cached, pathname);
+                    return;
+                }
+
                 // Check if the response status is OK and handle the response
-                handleServerResponse(response, socket, pathname);
+                // only a complete body is cached
+                if (handleServerResponse(response, socket, pathname) && cache != null)
+                    cache.store(url, response, localFile(pathname));
             } else {
                 // Handle the case where the connection could not be established
                 System.out.println("Failed to establish a connection.");
@@ -79,7 +110,7 @@ public class WebClient {
      * @param url The URL to be parsed.
      * @return An array containing the protocol, hostname, port, and pathname.
      */
-    private String[] parseURL(String url) {
+    static String[] parseURL(String url) {
         String protocol = url.substring(0, url.indexOf("://"));
         url = url.substring(url.indexOf("://") + 3);
 
@@ -121,6 +152,9 @@ public class WebClient {
 
     /**
      * Establishes a TCP connection to the server based on the protocol.
+     * The hostname is resolved through the shared DnsCache and HTTPS
+     * connections use the shared ClientTls context, so that repeated
+     * connections to the same server can resume the TLS session.
      *
      * @param protocol The protocol (HTTP or HTTPS).
      * @param hostname The hostname of the server.
@@ -133,12 +167,23 @@ public class WebClient {
         try {
             if (protocol.equalsIgnoreCase("http")) {
                 // Regular TCP connection
-                socket = new Socket(hostname, port);
+                socket = connect(hostname, port);
             } else if (protocol.equalsIgnoreCase("https")) {
-                // Secure TCP connection
-                SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-                SSLSocket sslSocket = (SSLSocket) factory.createSocket(hostname, port);
-                socket = sslSocket; // Assign the SSLSocket to the Socket variable
+                // Secure TCP connection, layered over a plain socket so the cached address is used
+                // while the session is still looked up by hostname and port
+                Socket plainSocket = connect(hostname, port);
+                try {
+                    SSLSocketFactory factory = ClientTls.getContext().getSocketFactory();
+                    SSLSocket sslSocket = (SSLSocket) factory.createSocket(plainSocket, hostname, port, true);
+                    long startedAt = System.currentTimeMillis();
+                    ClientEvents.TlsHandshake event = ClientEvents.beginHandshake();
+                    sslSocket.startHandshake();
+                    ClientEvents.handshakeDone(event, hostname, sslSocket.getSession(), startedAt);
+                    socket = sslSocket; // Assign the SSLSocket to the Socket variable
+                } catch (Exception e) {
+                    plainSocket.close(); // the connection is of no use without TLS
+                    throw e;
+                }
             }
         } catch (Exception e) {
             System.out.println("Error establishing connection: " + e.getMessage());
@@ -147,6 +192,14 @@ public class WebClient {
         return socket;
     }
 
+    // TCP connection to the cached address of the host
+    private static Socket connect(String hostname, int port) throws IOException {
+        ClientEvents.Connect event = ClientEvents.beginConnect();
+        Socket socket = new Socket(DnsCache.getDefault().resolve(hostname), port);
+        ClientEvents.connected(event, hostname, port, socket.getInetAddress().getHostAddress());
+        return socket;
+    }
+
     /**
      * Sends a GET request for the specified object and reads the server response
      * headers.
@@ -154,16 +207,16 @@ public class WebClient {
      * @param socket   The socket connected to the server.
      * @param pathname The pathname of the object to request.
      * @param hostname the hostname of the server.
+     * @param cached   The cached copy of the object to be revalidated, or null.
      * @return The server response as a string.
      */
-    private String sendGetRequest(Socket socket, String pathname, String hostname) {
+    private String sendGetRequest(Socket socket, String pathname, String hostname, HttpCache.Entry cached) {
         StringBuilder responseHeaders = new StringBuilder();
         try {
-            // Send GET request
+            // Send GET request, conditional if we hold a cached copy
             OutputStream outputStream = socket.getOutputStream();
-            String getRequest = "GET " + pathname + " HTTP/1.1\r\n" +
-                    "Host: " + hostname + "\r\n" +
-                    "Connection: close\r\n\r\n";
+            String getRequest = buildGetRequest(pathname, hostname, cached);
+            ClientEvents.FirstByte event = ClientEvents.beginFirstByte();
             outputStream.write(getRequest.getBytes("US-ASCII"));
 
             outputStream.flush();
@@ -174,6 +227,8 @@ public class WebClient {
             InputStream inputStream = socket.getInputStream();
             int b;
             while ((b = inputStream.read()) != -1) {
+                if (responseHeaders.length() == 0)
+                    ClientEvents.firstByte(event, hostname, pathname);
                 responseHeaders.append((char) b);
                 if (responseHeaders.toString().endsWith("\r\n\r\n")) {
                     break; // End of headers
@@ -185,6 +240,26 @@ public class WebClient {
         return responseHeaders.toString();
     }
 
+    /**
+     * Builds a GET request, conditional if a cached copy is revalidated.
+     *
+     * @param pathname The pathname of the object to request.
+     * @param hostname the hostname of the server.
+     * @param cached   The cached copy of the object to be revalidated, or null.
+     * @return The request, ending with the empty line.
+     */
+    static String buildGetRequest(String pathname, String hostname, HttpCache.Entry cached) {
+        String conditions = "";
+        if (cached != null && cached.getETag() != null)
+            conditions += "If-None-Match: " + cached.getETag() + "\r\n";
+        if (cached != null && cached.getLastModified() != null)
+            conditions += "If-Modified-Since: " + cached.getLastModified() + "\r\n";
+        return "GET " + pathname + " HTTP/1.1\r\n" +
+                "Host: " + hostname + "\r\n" +
+                conditions +
+                "Connection: close\r\n\r\n";
+    }
+
     /**
      * Checks if the server response status is OK (200) and handles the response
      * body.
@@ -192,32 +267,67 @@ public class WebClient {
      * @param responseHeaders The server response headers as a string.
      * @param socket          The socket connected to the server.
      * @param pathname        The pathname of the object to request.
+     * @return true if the status is OK and the whole body was received,
+     *         Content-Length bytes of it if the server declared its length.
      */
-    private void handleServerResponse(String responseHeaders, Socket socket, String pathname) {
+    private boolean handleServerResponse(String responseHeaders, Socket socket, String pathname) {
         if (responseHeaders.contains("200 OK")) {
             // Response status is OK, proceed to handle the response body
+            long contentLength = AsyncWebClient.parseContentLength(responseHeaders); // -1 if up to the end of the connection
+            long received = 0;
             try {
                 // Create a local file with the object name
-                File file = new File(pathname.substring(pathname.lastIndexOf('/') + 1));
+                File file = localFile(pathname);
                 FileOutputStream fileOutputStream = new FileOutputStream(file);
 
                 // Read the response body from the socket and write to the local file
                 InputStream inputStream = socket.getInputStream();
                 byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
+                while (contentLength < 0 || received < contentLength) {
+                    int length = contentLength < 0 ? buffer.length
+                            : (int) Math.min(buffer.length, contentLength - received);
+                    int bytesRead = inputStream.read(buffer, 0, length);
+                    if (bytesRead == -1)
+                        break;
                     fileOutputStream.write(buffer, 0, bytesRead);
+                    received += bytesRead;
                 }
 
                 fileOutputStream.close();
                 // System.out.println("File downloaded successfully: " + file.getName());
             } catch (IOException e) {
                 System.out.println("Error handling server response: " + e.getMessage());
+                return false;
             }
+            if (contentLength >= 0 && received < contentLength) {
+                System.out.println("Incomplete response: received " + received + " of " + contentLength + " bytes");
+                return false;
+            }
+            return true;
         } else {
             // Server returned a non-OK status
             System.out.println("Server returned a non-OK status: " + responseHeaders.split("\r\n")[0]);
+            return false;
+        }
+    }
+
+    /**
+     * Copies a cached object to the local file named after the object.
+     *
+     * @param cached   The cached copy of the object.
+     * @param pathname The pathname of the object.
+     */
+    private void saveCachedObject(HttpCache.Entry cached, String pathname) {
+        try {
+            cache.writeBody(cached, localFile(pathname));
+        } catch (IOException e) {
+            System.out.println("Error reading cached object: " + e.getMessage());
         }
     }
 
+    // local file named after the object
+    private static File localFile(String pathname) {
+        return new File(pathname.substring(pathname.lastIndexOf('/') + 1));
+    }
+
 }
@@ -0,0 +1,296 @@
+/**
+ * AccessLog Class
+ *
+ * Asynchronous access log of the web server in Common Log Format.
+ *
+ * Worker threads hand each completed request to a bounded, lock-free
+ * ring buffer (multi-producer, single-consumer) and return immediately.
+ * A dedicated writer thread drains the buffer in batches, formats the
+ * entries and appends them to the log file, flushing at most once per
+ * flush interval. An idle writer parks until a worker hands it an entry
+ * or the next flush is due. The file is rotated when it grows past a size limit.
+ *
+ * When the buffer is full, entries are either dropped (and counted)
+ * or the worker waits for room, depending on the configured policy.
+ * Entries of a batch that cannot be written are dropped and counted too.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.*;
+
+public class AccessLog {
+
+    private static final Logger logger = Logger.getLogger("WebServer");
+
+    private static final DateTimeFormatter CLF_DATE =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ROOT);
+    private static final int BATCH_SIZE = 256; // entries formatted per write
+
+    private final File file;
+    private final long flushInterval; // milli-seconds
+    private final long maxFileSize; // bytes
+    private final int maxFiles;
+    private final boolean blockWhenFull;
+
+    // ring buffer
+    private final Entry[] entries;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // next slot claimed by producers
+    private long head = 0; // next slot read by the writer, writer thread only
+
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writerThread;
+    private volatile boolean writerParked = false; // set by the writer before it parks on an empty buffer
+    private volatile boolean closed = false;
+
+    private Writer writer;
+    private long fileSize;
+
+    // a completed request, formatted by the writer thread
+    private static class Entry {
+        final String host;
+        final long time;
+        final String requestLine;
+        final int status;
+        final long bytes;
+
+        Entry(String host, long time, String requestLine, int status, long bytes) {
+            this.host = host;
+            this.time = time;
+            this.requestLine = requestLine;
+            this.status = status;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param file          The log file, appended to if it exists
+     * @param capacity      Number of entries the buffer holds, rounded up to a power of two
+     * @param flushInterval Maximum time an entry waits in the writer before being flushed, in milli-seconds
+     * @param maxFileSize   Size in bytes after which the log file is rotated
+     * @param maxFiles      Number of rotated files kept (file.1 ... file.n)
+     * @param blockWhenFull true to make workers wait when the buffer is full, false to drop entries
+     * @throws IOException If the log file cannot be opened
+     */
+    public AccessLog(File file, int capacity, long flushInterval, long maxFileSize, int maxFiles,
+            boolean blockWhenFull) throws IOException {
+        this.file = file;
+        this.flushInterval = flushInterval;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        this.blockWhenFull = blockWhenFull;
+
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        entries = new Entry[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        mask = size - 1;
+
+        open();
+        writerThread = new Thread(this::drain, "AccessLog");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Constructor with defaults: 64K entries, 1 second flush interval,
+     * 64 MB files, 5 rotated files, and dropping entries when full.
+     *
+     * @param file The log file, appended to if it exists
+     * @throws IOException If the log file cannot be opened
+     */
+    public AccessLog(File file) throws IOException {
+        this(file, 65536, 1000, 64L << 20, 5, false);
+    }
+
+    /**
+     * Records a completed request.
+     *
+     * @param host        Address of the client
+     * @param requestLine The request line as received
+     * @param status      Status code of the response
+     * @param bytes       Number of bytes sent
+     */
+    public void log(String host, String requestLine, int status, long bytes) {
+        Entry entry = new Entry(host, System.currentTimeMillis(), requestLine, status, bytes);
+        while (!offer(entry)) {
+            if (!blockWhenFull || closed) {
+                dropped.increment();
+                return;
+            }
+            LockSupport.parkNanos(10_000);
+        }
+        if (writerParked)
+            LockSupport.unpark(writerThread);
+    }
+
+    /**
+     * Returns the number of entries dropped because the buffer was full
+     * or they could not be written
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes out all buffered entries and closes the log file.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            // Ok, ignore
+        }
+    }
+
+    // lock-free enqueue, false if the buffer is full
+    private boolean offer(Entry entry) {
+        long t = tail.get();
+        while (true) {
+            int index = (int) t & mask;
+            long diff = sequences.get(index) - t;
+            if (diff == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    entries[index] = entry;
+                    sequences.set(index, t + 1); // publish
+                    return true;
+                }
+                t = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                t = tail.get();
+            }
+        }
+    }
+
+    // true if the writer has nothing to dequeue
+    private boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+
+    // dequeue by the writer thread, null if empty
+    private Entry poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1)
+            return null;
+        Entry entry = entries[index];
+        entries[index] = null;
+        sequences.set(index, head + entries.length); // hand the slot back to the producers
+        head++;
+        return entry;
+    }
+
+    // main loop of the writer thread
+    private void drain() {
+        StringBuilder batch = new StringBuilder();
+        long lastFlush = System.currentTimeMillis();
+        boolean dirty = false;
+
+        while (true) {
+            boolean stopping = closed;
+
+            int n = 0;
+            Entry entry;
+            while (n < BATCH_SIZE && (entry = poll()) != null) {
+                format(entry, batch);
+                n++;
+            }
+
+            long now = System.currentTimeMillis();
+            try {
+                if (n > 0) {
+                    try {
+                        write(batch.toString());
+                        dirty = true;
+                    } catch (IOException e) {
+                        dropped.add(n); // not written, and not retried
+                        throw e;
+                    } finally {
+                        batch.setLength(0);
+                    }
+                }
+
+                if (dirty && (now - lastFlush >= flushInterval || stopping)) {
+                    writer.flush();
+                    lastFlush = now;
+                    dirty = false;
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Error writing access log", e);
+            }
+
+            if (n == 0) {
+                if (stopping)
+                    break;
+                // park until log() sees the flag and unparks, or the pending entries are due to be flushed
+                long wait = dirty ? lastFlush + flushInterval - now : flushInterval;
+                writerParked = true;
+                if (isEmpty() && !closed)
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Math.max(1, wait)));
+                writerParked = false;
+            }
+        }
+
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error closing access log", e);
+        }
+    }
+
+    // host - - [date] "request" status bytes
+    private static void format(Entry entry, StringBuilder sb) {
+        sb.append(entry.host).append(" - - [")
+                .append(CLF_DATE.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(entry.time), ZoneId.systemDefault())))
+                .append("] \"").append(entry.requestLine).append("\" ")
+                .append(entry.status).append(' ')
+                .append(entry.bytes > 0 ? Long.toString(entry.bytes) : "-").append('\n');
+    }
+
+    private void write(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (fileSize > 0 && fileSize + bytes.length > maxFileSize)
+            rotate();
+        writer.write(text);
+        fileSize += bytes.length;
+    }
+
+    // access.log -> access.log.1 -> ... -> access.log.n, the oldest is deleted
+    private void rotate() throws IOException {
+        writer.close();
+        new File(file.getPath() + "." + maxFiles).delete();
+        for (int i = maxFiles - 1; i >= 1; i--)
+            new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+        if (maxFiles > 0)
+            file.renameTo(new File(file.getPath() + ".1"));
+        else
+            file.delete();
+        open();
+    }
+
+    private void open() throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8),
+                64 * 1024);
+        fileSize = file.length();
+    }
+}
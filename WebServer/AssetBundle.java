@@ -0,0 +1,320 @@
+/**
+ * AssetBundle Class
+ *
+ * A root directory packed into one file by BundlePacker, served from a
+ * memory mapping of the file. Opening a bundle maps it and checks its
+ * header, nothing more, so a server starts at once whatever the number
+ * of files; a request is answered from the mapping, without opening,
+ * stat-ing or reading a file. The pages of the mapping are read in by
+ * the kernel on first use and shared by all connections.
+ *
+ * Layout of a bundle, all numbers big-endian:
+ *
+ * 		header		magic "WSB1", version, number of entries, number of
+ * 					slots (a power of two), time packed (milli-seconds)
+ * 		slots		an open-addressing hash table of SLOT_SIZE records,
+ * 					probed linearly from the path hash:
+ * 						path hash (FNV-1a 64, 0 marks an empty slot)
+ * 						path offset, length
+ * 						header block offset, length
+ * 						body offset, length
+ * 						gzip header block offset, length (0 if none)
+ * 						gzip body offset, length
+ * 		data		paths, header blocks and bodies
+ *
+ * A path is the normalized, percent-decoded request path, e.g. /docs/a b.html,
+ * a directory is packed under its own path with the content of its
+ * index.html, as PathResolver resolves it. A header block holds the
+ * Last-Modified, Content-Length and Content-Type lines of the response and
+ * ends with the empty line; the headers common to all responses are
+ * added by the server. Offsets are ints, a bundle is at most 2 GiB.
+ *
+ * A bundle is never changed in place: BundlePacker writes a new file and
+ * renames it over the old one, so a running server keeps its mapping of
+ * the old bundle until it is reloaded.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AssetBundle {
+
+    static final int MAGIC = 0x57534231; // "WSB1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    static final int SLOT_SIZE = 48;
+    static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * The outcome of looking up a request target, with the response of a
+     * found entry.
+     */
+    public class Entry {
+        private final PathResolver.Status status;
+        private final int slot; // offset of the entry's slot, -1 unless found
+
+        private Entry(PathResolver.Status status, int slot) {
+            this.status = status;
+            this.slot = slot;
+        }
+
+        public PathResolver.Status getStatus() {
+            return status;
+        }
+
+        /**
+         * Returns the path the entry was packed under
+         */
+        public String getPath() {
+            return new String(bytes(8), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Returns true if the entry has a gzip encoded variant
+         */
+        public boolean hasGzip() {
+            return map.getInt(slot + 32) != 0;
+        }
+
+        /**
+         * Returns the length of the body
+         *
+         * @param gzip The gzip encoded variant, if the entry has one
+         */
+        public int getLength(boolean gzip) {
+            return map.getInt(slot + (variant(gzip) ? 44 : 28));
+        }
+
+        /**
+         * Returns the header block of the response, ending with the empty line
+         *
+         * @param gzip The gzip encoded variant, if the entry has one
+         */
+        public ByteBuffer getHeaders(boolean gzip) {
+            return map.slice(map.getInt(slot + (variant(gzip) ? 32 : 16)), map.getInt(slot + (variant(gzip) ? 36 : 20)));
+        }
+
+        /**
+         * Returns the body of the response, a slice of the mapping
+         *
+         * @param gzip The gzip encoded variant, if the entry has one
+         */
+        public ByteBuffer getBody(boolean gzip) {
+            return map.slice(map.getInt(slot + (variant(gzip) ? 40 : 24)), getLength(gzip));
+        }
+
+        /**
+         * Returns the fields of the header block as lower case name and
+         * value pairs, for HTTP/2
+         *
+         * @param gzip The gzip encoded variant, if the entry has one
+         */
+        public List<String[]> getHeaderFields(boolean gzip) {
+            List<String[]> fields = new ArrayList<>();
+            ByteBuffer headers = getHeaders(gzip);
+            byte[] bytes = new byte[headers.remaining()];
+            headers.get(bytes);
+            for (String line : new String(bytes, StandardCharsets.US_ASCII).split("\r\n")) {
+                int colon = line.indexOf(':');
+                if (colon > 0)
+                    fields.add(new String[] { line.substring(0, colon).toLowerCase(), line.substring(colon + 1).trim() });
+            }
+            return fields;
+        }
+
+        /**
+         * Returns a stream of the body
+         *
+         * @param gzip The gzip encoded variant, if the entry has one
+         */
+        public InputStream openBody(boolean gzip) {
+            ByteBuffer body = getBody(gzip);
+            return new InputStream() {
+                public int read() {
+                    return body.hasRemaining() ? body.get() & 0xff : -1;
+                }
+
+                public int read(byte[] b, int off, int len) {
+                    if (len == 0)
+                        return 0;
+                    if (!body.hasRemaining())
+                        return -1;
+                    int n = Math.min(len, body.remaining());
+                    body.get(b, off, n);
+                    return n;
+                }
+
+                public int available() {
+                    return body.remaining();
+                }
+            };
+        }
+
+        private boolean variant(boolean gzip) {
+            return gzip && hasGzip();
+        }
+
+        // bytes at the offset and length stored at a position of the slot
+        private byte[] bytes(int position) {
+            byte[] bytes = new byte[map.getInt(slot + position + 4)];
+            map.get(map.getInt(slot + position), bytes);
+            return bytes;
+        }
+    }
+
+    private final ByteBuffer map; // read-only, only absolute gets are used so it is shared by all threads
+    private final int entries;
+    private final int mask; // slots - 1
+    private final long packedAt;
+
+    private final Entry notFound = new Entry(PathResolver.Status.NOT_FOUND, -1);
+    private final Entry forbidden = new Entry(PathResolver.Status.FORBIDDEN, -1);
+    private final Entry badRequest = new Entry(PathResolver.Status.BAD_REQUEST, -1);
+
+    private AssetBundle(ByteBuffer map) throws IOException {
+        this.map = map;
+        if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC)
+            throw new IOException("Not an asset bundle");
+        if (map.getInt(4) != VERSION)
+            throw new IOException("Unsupported asset bundle version " + map.getInt(4));
+        entries = map.getInt(8);
+        int slots = map.getInt(12);
+        packedAt = map.getLong(16);
+        if (slots <= 0 || Integer.bitCount(slots) != 1 || entries < 0 || entries >= slots
+                || HEADER_SIZE + (long) slots * SLOT_SIZE > map.capacity())
+            throw new IOException("Malformed asset bundle");
+        mask = slots - 1;
+    }
+
+    /**
+     * Maps a bundle.
+     *
+     * @param file The bundle file
+     * @return The bundle
+     *
+     * @throws IOException If the file cannot be mapped or is not a bundle
+     */
+    public static AssetBundle open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Asset bundle larger than 2 GiB");
+            // the mapping stays valid after the channel is closed
+            return new AssetBundle(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Returns the number of paths in the bundle
+     */
+    public int size() {
+        return entries;
+    }
+
+    /**
+     * Returns the time the bundle was packed, in milli-seconds
+     */
+    public long getPackedAt() {
+        return packedAt;
+    }
+
+    /**
+     * Looks up a request target, the way PathResolver resolves it on the file system.
+     *
+     * @param target The request target of the request line, e.g. /docs/a%20b.html?x=1
+     * @return The entry, never null
+     */
+    public Entry lookup(String target) {
+        String path = PathResolver.decode(target);
+        if (path == null)
+            return badRequest;
+        String normalized = normalize(path);
+        if (normalized == null)
+            return forbidden;
+        byte[] key = normalized.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(key);
+        for (int i = (int) hash & mask;; i = (i + 1) & mask) {
+            int slot = HEADER_SIZE + i * SLOT_SIZE;
+            long slotHash = map.getLong(slot);
+            if (slotHash == 0)
+                return notFound;
+            if (slotHash == hash && map.getInt(slot + 12) == key.length && matches(map.getInt(slot + 8), key))
+                return new Entry(PathResolver.Status.FOUND, slot);
+        }
+    }
+
+    private boolean matches(int offset, byte[] key) {
+        for (int i = 0; i < key.length; i++)
+            if (map.get(offset + i) != key[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Normalizes a decoded request path to the form it is packed under:
+     * no empty or "." segments, ".." applied, no trailing slash.
+     *
+     * @param path The decoded path, starting with /
+     * @return The normalized path, null if it climbs above the root
+     */
+    static String normalize(String path) {
+        ArrayList<String> segments = new ArrayList<>();
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || segment.equals("."))
+                continue;
+            if (segment.equals("..")) {
+                if (segments.isEmpty())
+                    return null;
+                segments.remove(segments.size() - 1);
+            } else {
+                segments.add(segment);
+            }
+        }
+        return "/" + String.join("/", segments);
+    }
+
+    /**
+     * Returns the hash of a packed path, never 0
+     *
+     * @param key The normalized path in UTF-8
+     */
+    static long hash(byte[] key) {
+        long hash = FNV_OFFSET;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Returns true if an Accept-Encoding header value accepts gzip.
+     *
+     * @param acceptEncoding The header value, null if the request had none
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            if (!parts[0].trim().equalsIgnoreCase("gzip"))
+                continue;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=") && param.substring(2).matches("0(\\.0*)?"))
+                    return false; // refused
+            }
+            return true;
+        }
+        return false;
+    }
+}
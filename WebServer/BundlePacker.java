@@ -0,0 +1,268 @@
+/**
+ * BundlePacker Class
+ *
+ * Packs a root directory into an AssetBundle, served by WebServer with
+ * "-B bundle". Every regular file under the root is packed under its
+ * request path, and every directory with an index.html under the path of
+ * the directory, sharing the data of the index. The Last-Modified,
+ * Content-Length and Content-Type headers are computed here, once, and
+ * files that gzip well also get a precompressed variant, sent to
+ * clients that accept gzip. Symbolic links leaving the root are skipped,
+ * as PathResolver refuses them.
+ *
+ * The bundle is written to a temporary file next to it and renamed over
+ * the old bundle, so a server reloading never maps a partial bundle.
+ *
+ * Command line arguments:
+ * 		-r	root directory, required
+ * 		-o	bundle file, required
+ * 		-mt	mime.types file extending the built-in types
+ * 		-z	precompress with gzip: on, off, default on
+ * 		-zm	smallest file in bytes that is compressed, default 256
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+public class BundlePacker {
+
+    private static final long MAX_COMPRESSED = 8L << 20; // larger files are not compressed (bytes)
+    private static final double MIN_SAVING = 0.1; // a variant must be this much smaller to be kept
+
+    private final MimeTypes mimeTypes;
+    private final boolean compress;
+    private final long compressMinSize;
+
+    // sizes of the last bundle packed
+    private int fileCount;
+    private int gzipCount;
+    private long bundleSize;
+
+    // a file to be packed, the paths it is served under, and where its data went
+    private static class Packed {
+        final Path file;
+        final List<String> paths = new ArrayList<>();
+        int headerOffset, headerLength, bodyOffset, bodyLength;
+        int gzipHeaderOffset, gzipHeaderLength, gzipOffset, gzipLength;
+
+        Packed(Path file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param mimeTypes       The MIME type table the Content-Type headers are taken from
+     * @param compress        Adds gzip variants if true
+     * @param compressMinSize Files smaller than this many bytes are not compressed
+     */
+    public BundlePacker(MimeTypes mimeTypes, boolean compress, long compressMinSize) {
+        this.mimeTypes = mimeTypes;
+        this.compress = compress;
+        this.compressMinSize = compressMinSize;
+    }
+
+    public static void main(String[] args) throws IOException {
+        HashMap<String, String> params = new HashMap<String, String>();
+        for (int i = 0; (i + 1) < args.length; i += 2)
+            params.put(args[i], args[i + 1]);
+        String root = params.get("-r");
+        String output = params.get("-o");
+        if (root == null || output == null) {
+            System.out.println("incorrect usage, -r root and -o bundle are required");
+            System.exit(1);
+        }
+        MimeTypes mimeTypes = params.containsKey("-mt") ? MimeTypes.load(new File(params.get("-mt")))
+                : MimeTypes.getDefault();
+        BundlePacker packer = new BundlePacker(mimeTypes, params.getOrDefault("-z", "on").equals("on"),
+                Long.parseLong(params.getOrDefault("-zm", "256")));
+
+        long start = System.nanoTime();
+        packer.pack(Paths.get(root), Paths.get(output));
+        System.out.printf(Locale.ROOT, "packed %d files (%d with gzip) into %s, %d bytes, in %.1f s%n",
+                packer.fileCount, packer.gzipCount, output, packer.bundleSize, (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Packs a root directory.
+     *
+     * @param root   The root directory
+     * @param bundle The bundle file, replaced if it exists
+     *
+     * @throws IOException If a file cannot be read, the bundle cannot be written or exceeds 2 GiB
+     */
+    public void pack(Path root, Path bundle) throws IOException {
+        List<Packed> files = collect(root);
+        int entries = 0;
+        for (Packed packed : files)
+            entries += packed.paths.size();
+        int slots = Integer.highestOneBit(Math.max(2, entries * 2 - 1)) << 1; // at most half full
+
+        Path temp = bundle.resolveSibling(bundle.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // the data first, after room for the header and slots
+            out.position(AssetBundle.HEADER_SIZE + (long) slots * AssetBundle.SLOT_SIZE);
+            gzipCount = 0;
+            for (Packed packed : files)
+                writeData(out, packed);
+
+            // then the paths, and the slots pointing at them
+            ByteBuffer table = ByteBuffer.allocate(AssetBundle.HEADER_SIZE + slots * AssetBundle.SLOT_SIZE);
+            table.putInt(AssetBundle.MAGIC).putInt(AssetBundle.VERSION).putInt(entries).putInt(slots)
+                    .putLong(System.currentTimeMillis());
+            for (Packed packed : files) {
+                for (String path : packed.paths) {
+                    byte[] key = path.getBytes(StandardCharsets.UTF_8);
+                    int pathOffset = write(out, ByteBuffer.wrap(key));
+                    long hash = AssetBundle.hash(key);
+                    int i = (int) hash & (slots - 1);
+                    while (table.getLong(AssetBundle.HEADER_SIZE + i * AssetBundle.SLOT_SIZE) != 0)
+                        i = (i + 1) & (slots - 1);
+                    table.position(AssetBundle.HEADER_SIZE + i * AssetBundle.SLOT_SIZE);
+                    table.putLong(hash).putInt(pathOffset).putInt(key.length)
+                            .putInt(packed.headerOffset).putInt(packed.headerLength)
+                            .putInt(packed.bodyOffset).putInt(packed.bodyLength)
+                            .putInt(packed.gzipHeaderOffset).putInt(packed.gzipHeaderLength)
+                            .putInt(packed.gzipOffset).putInt(packed.gzipLength);
+                }
+            }
+            table.clear();
+            while (table.hasRemaining())
+                out.write(table, table.position());
+            out.force(true);
+            bundleSize = out.size();
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, bundle, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        fileCount = files.size();
+    }
+
+    // the regular files under the root, with the paths each is served under
+    private List<Packed> collect(Path root) throws IOException {
+        Path realRoot = root.toRealPath();
+        Map<Path, Packed> files = new TreeMap<>();
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                new SimpleFileVisitor<Path>() {
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                        if (!dir.toRealPath().startsWith(realRoot))
+                            return FileVisitResult.SKIP_SUBTREE;
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        if (attrs.isRegularFile() && file.toRealPath().startsWith(realRoot)) {
+                            Packed packed = new Packed(file);
+                            packed.paths.add(requestPath(root.relativize(file)));
+                            files.put(file, packed);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        return FileVisitResult.CONTINUE; // e.g. a dangling link
+                    }
+                });
+        // directories are served with their index
+        for (Packed packed : files.values())
+            if (packed.file.getFileName().toString().equals(PathResolver.INDEX_FILE))
+                packed.paths.add(requestPath(root.relativize(packed.file.getParent())));
+        return new ArrayList<>(files.values());
+    }
+
+    // the normalized request path of a path relative to the root
+    private static String requestPath(Path relative) {
+        StringJoiner path = new StringJoiner("/", "/", "");
+        for (Path segment : relative)
+            if (!segment.toString().isEmpty())
+                path.add(segment.toString());
+        return path.toString();
+    }
+
+    // writes the header blocks and bodies of a file
+    private void writeData(FileChannel out, Packed packed) throws IOException {
+        File file = packed.file.toFile();
+        long length = file.length();
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("File larger than 2 GiB: " + file);
+
+        byte[] gzip = null;
+        if (compress && length >= compressMinSize && length <= MAX_COMPRESSED) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) length / 2);
+            try (GZIPOutputStream zip = new GZIPOutputStream(compressed) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION); // compressed once, served many times
+                }
+            }) {
+                Files.copy(packed.file, zip);
+            }
+            if (compressed.size() <= length * (1 - MIN_SAVING))
+                gzip = compressed.toByteArray();
+        }
+
+        String common = "Last-Modified: " + ServerUtils.getLastModified(file) + "\r\n";
+        byte[] contentType = mimeTypes.getContentTypeHeader(file.getName()); // line end included
+        String vary = gzip != null ? "Vary: Accept-Encoding\r\n" : "";
+
+        byte[] headers = headerBlock(common + "Content-Length: " + length + "\r\n", contentType, vary);
+        packed.headerOffset = write(out, ByteBuffer.wrap(headers));
+        packed.headerLength = headers.length;
+        packed.bodyOffset = offset(out);
+        packed.bodyLength = (int) length;
+        try (FileChannel in = FileChannel.open(packed.file, StandardOpenOption.READ)) {
+            long done = 0;
+            while (done < length)
+                done += in.transferTo(done, length - done, out);
+        }
+        offset(out);
+
+        if (gzip != null) {
+            headers = headerBlock(common + "Content-Length: " + gzip.length + "\r\n", contentType,
+                    "Content-Encoding: gzip\r\n" + vary);
+            packed.gzipHeaderOffset = write(out, ByteBuffer.wrap(headers));
+            packed.gzipHeaderLength = headers.length;
+            packed.gzipOffset = write(out, ByteBuffer.wrap(gzip));
+            packed.gzipLength = gzip.length;
+            gzipCount++;
+        }
+    }
+
+    private static byte[] headerBlock(String head, byte[] contentType, String tail) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+        block.writeBytes(head.getBytes(StandardCharsets.US_ASCII));
+        block.writeBytes(contentType);
+        block.writeBytes((tail + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        return block.toByteArray();
+    }
+
+    // appends bytes, returns their offset
+    private static int write(FileChannel out, ByteBuffer bytes) throws IOException {
+        int offset = offset(out);
+        while (bytes.hasRemaining())
+            out.write(bytes);
+        offset(out);
+        return offset;
+    }
+
+    // the current end of the bundle, which must stay addressable with an int
+    private static int offset(FileChannel out) throws IOException {
+        long position = out.position();
+        if (position > Integer.MAX_VALUE)
+            throw new IOException("Asset bundle larger than 2 GiB, pack fewer or smaller files");
+        return (int) position;
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * DeadlineManager Class
+ *
+ * Enforces the deadlines of all connections of a WebServer from a single
+ * thread, instead of a timer or a socket time-out per connection.
+ * A connection is always in one phase with its own deadline:
+ *
+ * 		HEADER_READ		the request line and headers must arrive in time,
+ * 						however slowly their bytes trickle in
+ * 		BODY_WRITE		the response must make progress, every write
+ * 						moves the deadline
+ * 		KEEP_ALIVE_IDLE	a persistent connection may wait this long for
+ * 						its next request
+ *
+ * When a deadline passes, the manager takes the connection to CLOSING and
+ * tells it which phase expired; a connection that has not closed itself
+ * within CLOSING's grace time is told again, to close at once.
+ *
+ * Deadlines are kept in a hashed timer wheel of WHEEL_SIZE slots of TICK
+ * milli-seconds; one further away than a turn of the wheel stays filed
+ * for more turns. Moving a deadline later, as progress and most phase
+ * changes do, only writes the new time: the wheel finds the deadline
+ * extended when its slot comes up and files it again. Only a deadline
+ * brought forward is filed at once.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.*;
+
+public class DeadlineManager extends Thread {
+
+    private static final Logger logger = Logger.getLogger("WebServer");
+
+    // phases
+    static final int NONE = 0; // no deadline
+    static final int HEADER_READ = 1;
+    static final int BODY_WRITE = 2;
+    static final int KEEP_ALIVE_IDLE = 3;
+    static final int CLOSING = 4;
+    static final int DONE = 5; // closed, never armed again
+    private static final String[] PHASE_NAMES = { "none", "header_read", "body_write", "keep_alive_idle", "closing",
+            "done" };
+
+    private static final long TICK = 100; // milli-seconds per slot
+    private static final int WHEEL_SIZE = 512; // slots, a turn of the wheel is 51.2 s
+
+    /**
+     * A connection whose deadlines are managed.
+     */
+    interface Connection {
+        /**
+         * Called on the manager's thread when a deadline has passed; must not block.
+         *
+         * @param phase The phase that expired, CLOSING if the connection did not close in time
+         */
+        void expired(int phase);
+    }
+
+    /**
+     * The deadline of one connection.
+     */
+    final class Deadline {
+        private final Connection connection;
+        private final AtomicInteger phase = new AtomicInteger(NONE);
+        private volatile long expiresAt; // nano-seconds
+        private volatile int expiredPhase = NONE;
+        private long filedTick = -1; // tick of the slot the deadline is filed in, -1 if none, guarded by the manager
+        private int notifyPhase; // phase passed to the connection, manager thread only
+
+        private Deadline(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Starts a phase, its deadline counting from now.
+         *
+         * @param newPhase HEADER_READ, BODY_WRITE, KEEP_ALIVE_IDLE or NONE
+         * @return false if the connection has expired or is closed
+         */
+        boolean arm(int newPhase) {
+            long timeout = timeouts[newPhase];
+            while (true) {
+                int current = phase.get();
+                if (current == CLOSING || current == DONE)
+                    return false;
+                expiresAt = System.nanoTime() + timeout;
+                if (phase.compareAndSet(current, newPhase))
+                    break;
+            }
+            if (newPhase != NONE && timeout > 0)
+                file(this);
+            return true;
+        }
+
+        /**
+         * Moves the deadline of a response making progress to a full time-out from now.
+         */
+        void extend() {
+            if (phase.get() == BODY_WRITE)
+                expiresAt = System.nanoTime() + timeouts[BODY_WRITE];
+        }
+
+        /**
+         * Returns the current phase
+         */
+        int getPhase() {
+            return phase.get();
+        }
+
+        /**
+         * Returns the phase that expired, NONE if none has
+         */
+        int getExpiredPhase() {
+            return expiredPhase;
+        }
+
+        /**
+         * Ends all deadlines of a closed connection.
+         */
+        void close() {
+            phase.set(DONE);
+        }
+    }
+
+    private final long[] timeouts = new long[DONE + 1]; // nano-seconds per phase, 0 for none
+    private final long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK);
+    private final long start = System.nanoTime();
+    private final List<List<Deadline>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private long currentTick = 0; // ticks up to here have been processed, guarded by this
+    private volatile boolean shutdown = false;
+
+    /**
+     * Constructor
+     *
+     * @param headerRead    Time a request's line and headers may take to arrive, 0 for no limit
+     * @param bodyWrite     Time a response may make no progress, 0 for no limit
+     * @param keepAliveIdle Time a persistent connection may wait for the next request, 0 for no limit
+     * @param closeGrace    Time an expired connection is given to close, e.g. to send 408
+     *                      (all in milli-seconds)
+     */
+    public DeadlineManager(long headerRead, long bodyWrite, long keepAliveIdle, long closeGrace) {
+        super("deadline-manager");
+        setDaemon(true);
+        timeouts[HEADER_READ] = TimeUnit.MILLISECONDS.toNanos(headerRead);
+        timeouts[BODY_WRITE] = TimeUnit.MILLISECONDS.toNanos(bodyWrite);
+        timeouts[KEEP_ALIVE_IDLE] = TimeUnit.MILLISECONDS.toNanos(keepAliveIdle);
+        timeouts[CLOSING] = TimeUnit.MILLISECONDS.toNanos(Math.max(TICK, closeGrace));
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            wheel.add(new ArrayList<>());
+    }
+
+    /**
+     * Returns the name of a phase, e.g. for metrics
+     */
+    static String phaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    /**
+     * Registers a connection, with no deadline until one is armed.
+     *
+     * @param connection The connection told about its expired deadlines
+     * @return The deadline of the connection
+     */
+    Deadline register(Connection connection) {
+        return new Deadline(connection);
+    }
+
+    /**
+     * Stops the manager, deadlines are no longer enforced.
+     */
+    public void shutdown() {
+        shutdown = true;
+        LockSupport.unpark(this);
+    }
+
+    // files a deadline in the slot of its time, unless it is filed in an earlier slot already
+    private synchronized void file(Deadline deadline) {
+        long tick = Math.max(currentTick + 1, (deadline.expiresAt - start + tickNanos - 1) / tickNanos);
+        if (deadline.filedTick >= 0 && deadline.filedTick <= tick)
+            return; // looked at again when that slot comes up
+        deadline.filedTick = tick;
+        wheel.get((int) (tick % WHEEL_SIZE)).add(deadline);
+    }
+
+    public void run() {
+        List<Deadline> expired = new ArrayList<>();
+        while (!shutdown) {
+            long now = System.nanoTime();
+            long tick = (now - start) / tickNanos;
+            synchronized (this) {
+                while (currentTick < tick)
+                    advance(++currentTick, now, expired);
+            }
+            for (Deadline deadline : expired) {
+                try {
+                    deadline.connection.expired(deadline.notifyPhase);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Error closing an expired connection", e);
+                }
+            }
+            expired.clear();
+            LockSupport.parkNanos(this, start + (tick + 1) * tickNanos - System.nanoTime());
+        }
+    }
+
+    // processes the deadlines of one slot, with the lock held
+    private void advance(long tick, long now, List<Deadline> expired) {
+        List<Deadline> slot = wheel.get((int) (tick % WHEEL_SIZE));
+        List<Deadline> pending = new ArrayList<>();
+        for (Deadline deadline : slot) {
+            if (deadline.filedTick > tick && deadline.filedTick % WHEEL_SIZE == tick % WHEEL_SIZE) {
+                pending.add(deadline); // a later turn of the wheel
+                continue;
+            }
+            if (deadline.filedTick != tick)
+                continue; // filed again, in an earlier slot
+            deadline.filedTick = -1;
+            int phase = deadline.phase.get();
+            if (phase == NONE || phase == DONE)
+                continue;
+            if (now - deadline.expiresAt < 0) {
+                fileLater(deadline, tick, pending);
+                continue;
+            }
+            if (phase == CLOSING) {
+                if (deadline.phase.compareAndSet(CLOSING, DONE)) {
+                    deadline.notifyPhase = CLOSING; // to close at once
+                    expired.add(deadline);
+                }
+            } else if (deadline.phase.compareAndSet(phase, CLOSING)) {
+                deadline.expiresAt = now + timeouts[CLOSING];
+                deadline.expiredPhase = phase;
+                deadline.notifyPhase = phase;
+                expired.add(deadline);
+                fileLater(deadline, tick, pending);
+            }
+        }
+        slot.clear();
+        slot.addAll(pending);
+    }
+
+    // files a deadline after the slot being processed
+    private void fileLater(Deadline deadline, long tick, List<Deadline> slot) {
+        long later = Math.max(tick + 1, (deadline.expiresAt - start + tickNanos - 1) / tickNanos);
+        deadline.filedTick = later;
+        if (later % WHEEL_SIZE == tick % WHEEL_SIZE)
+            slot.add(deadline);
+        else
+            wheel.get((int) (later % WHEEL_SIZE)).add(deadline);
+    }
+}
@@ -0,0 +1,457 @@
+/**
+ * Hpack Class
+ *
+ * HPACK header compression of HTTP/2 (RFC 7541), used by Http2Connection
+ * and the HTTP/2 mode of the load generator.
+ *
+ * A Decoder and an Encoder each keep their own dynamic table, so one of
+ * each is needed per connection, and a table must only be used by one
+ * thread, in the order the header blocks are sent or received. Header
+ * names and values are ISO-8859-1 strings, so their length equals their
+ * size in octets. String literals are decoded with the Huffman code of
+ * the RFC and encoded with it whenever that is shorter.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class Hpack {
+
+    private static final int ENTRY_OVERHEAD = 32; // octets counted per table entry besides name and value
+
+    // static table of the RFC, index 1 is the first entry
+    private static final String[][] STATIC_TABLE = {
+            { ":authority", "" },
+            { ":method", "GET" },
+            { ":method", "POST" },
+            { ":path", "/" },
+            { ":path", "/index.html" },
+            { ":scheme", "http" },
+            { ":scheme", "https" },
+            { ":status", "200" },
+            { ":status", "204" },
+            { ":status", "206" },
+            { ":status", "304" },
+            { ":status", "400" },
+            { ":status", "404" },
+            { ":status", "500" },
+            { "accept-charset", "" },
+            { "accept-encoding", "gzip, deflate" },
+            { "accept-language", "" },
+            { "accept-ranges", "" },
+            { "accept", "" },
+            { "access-control-allow-origin", "" },
+            { "age", "" },
+            { "allow", "" },
+            { "authorization", "" },
+            { "cache-control", "" },
+            { "content-disposition", "" },
+            { "content-encoding", "" },
+            { "content-language", "" },
+            { "content-length", "" },
+            { "content-location", "" },
+            { "content-range", "" },
+            { "content-type", "" },
+            { "cookie", "" },
+            { "date", "" },
+            { "etag", "" },
+            { "expect", "" },
+            { "expires", "" },
+            { "from", "" },
+            { "host", "" },
+            { "if-match", "" },
+            { "if-modified-since", "" },
+            { "if-none-match", "" },
+            { "if-range", "" },
+            { "if-unmodified-since", "" },
+            { "last-modified", "" },
+            { "link", "" },
+            { "location", "" },
+            { "max-forwards", "" },
+            { "proxy-authenticate", "" },
+            { "proxy-authorization", "" },
+            { "range", "" },
+            { "referer", "" },
+            { "refresh", "" },
+            { "retry-after", "" },
+            { "server", "" },
+            { "set-cookie", "" },
+            { "strict-transport-security", "" },
+            { "transfer-encoding", "" },
+            { "user-agent", "" },
+            { "vary", "" },
+            { "via", "" },
+            { "www-authenticate", "" },
+    };
+
+    // static table lookups of the encoder: full entries and names, to the lowest index
+    private static final Map<String, Integer> STATIC_ENTRIES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+    // Huffman code of the RFC, right-aligned codes and their lengths in bits per octet value
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+    };
+
+    // decoding tree: node n has its children at 2n and 2n + 1,
+    // a child >= 0 is the next node, a negative child -(v + 1) the decoded octet v
+    private static final int[] HUFFMAN_TREE;
+
+    static {
+        for (int i = STATIC_TABLE.length; i > 0; i--) {
+            STATIC_ENTRIES.put(STATIC_TABLE[i - 1][0] + '\0' + STATIC_TABLE[i - 1][1], i);
+            STATIC_NAMES.put(STATIC_TABLE[i - 1][0], i);
+        }
+
+        int[] tree = new int[2 * 256];
+        int nodes = 1;
+        for (int v = 0; v < 256; v++) {
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[v] - 1; bit > 0; bit--) {
+                int child = 2 * node + ((HUFFMAN_CODES[v] >>> bit) & 1);
+                if (tree[child] == 0)
+                    tree[child] = nodes++;
+                node = tree[child];
+            }
+            tree[2 * node + (HUFFMAN_CODES[v] & 1)] = -(v + 1);
+        }
+        HUFFMAN_TREE = tree;
+    }
+
+    /**
+     * Decodes the header blocks received on a connection.
+     */
+    public static class Decoder {
+        private final DynamicTable table;
+        private final int maxTableSize; // the limit announced to the peer
+
+        /**
+         * Constructor
+         *
+         * @param maxTableSize Size of the dynamic table announced to the peer in
+         *                     SETTINGS_HEADER_TABLE_SIZE, 4096 by default
+         */
+        public Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.table = new DynamicTable(maxTableSize);
+        }
+
+        /**
+         * Decodes a complete header block.
+         *
+         * @param block  Buffer holding the block
+         * @param offset Start of the block in the buffer
+         * @param length Length of the block
+         * @return The header fields in order, each as a { name, value } pair
+         *
+         * @throws IOException If the block is malformed, a compression error of the connection
+         */
+        public List<String[]> decode(byte[] block, int offset, int length) throws IOException {
+            List<String[]> headers = new ArrayList<>();
+            int[] pos = { offset };
+            int end = offset + length;
+            while (pos[0] < end) {
+                int b = block[pos[0]] & 0xff;
+                if ((b & 0x80) != 0) {
+                    // indexed field
+                    headers.add(entry(readInt(block, pos, end, 7)));
+                } else if ((b & 0xe0) == 0x20) {
+                    // dynamic table size update
+                    int size = readInt(block, pos, end, 5);
+                    if (size > maxTableSize)
+                        throw new IOException("HPACK table size update over the limit: " + size);
+                    table.setMaxSize(size);
+                } else {
+                    // literal field, with incremental indexing, without indexing or never indexed
+                    boolean indexed = (b & 0xc0) == 0x40;
+                    int index = readInt(block, pos, end, indexed ? 6 : 4);
+                    String name = index == 0 ? readString(block, pos, end) : entry(index)[0];
+                    String value = readString(block, pos, end);
+                    String[] field = { name, value };
+                    if (indexed)
+                        table.add(field);
+                    headers.add(field);
+                }
+            }
+            return headers;
+        }
+
+        private String[] entry(int index) throws IOException {
+            if (index > 0 && index <= STATIC_TABLE.length)
+                return STATIC_TABLE[index - 1];
+            String[] field = table.get(index - STATIC_TABLE.length);
+            if (field == null)
+                throw new IOException("HPACK index out of range: " + index);
+            return field;
+        }
+    }
+
+    /**
+     * Encodes the header blocks sent on a connection.
+     */
+    public static class Encoder {
+        private final DynamicTable table = new DynamicTable(4096);
+        private int pendingSizeUpdate = -1; // announced in the next block, -1 if none
+
+        /**
+         * Applies the peer's SETTINGS_HEADER_TABLE_SIZE. The encoder uses at
+         * most 4096 octets, the default, even if the peer allows more.
+         *
+         * @param size The size announced by the peer
+         */
+        public void setMaxTableSize(int size) {
+            size = Math.min(size, 4096);
+            if (size != table.maxSize) {
+                table.setMaxSize(size);
+                pendingSizeUpdate = size;
+            }
+        }
+
+        /**
+         * Appends a header field to the block being built. Fields sent
+         * repeatedly should be indexed, so later blocks refer to them with
+         * a single octet; fields that change with every block should not.
+         *
+         * @param out   The block being built
+         * @param name  Header name, in lower case
+         * @param value Header value
+         * @param index Whether the field is added to the dynamic table
+         */
+        public void encode(ByteArrayOutputStream out, String name, String value, boolean index) {
+            if (pendingSizeUpdate >= 0) {
+                writeInt(out, 0x20, 5, pendingSizeUpdate);
+                pendingSizeUpdate = -1;
+            }
+
+            Integer match = STATIC_ENTRIES.get(name + '\0' + value);
+            int dynamic = table.indexOf(name, value);
+            if (match == null && dynamic > 0)
+                match = STATIC_TABLE.length + dynamic;
+            if (match != null) {
+                writeInt(out, 0x80, 7, match);
+                return;
+            }
+
+            Integer nameIndex = STATIC_NAMES.get(name);
+            if (nameIndex == null && (dynamic = table.indexOf(name, null)) > 0)
+                nameIndex = STATIC_TABLE.length + dynamic;
+            if (index)
+                writeInt(out, 0x40, 6, nameIndex == null ? 0 : nameIndex);
+            else
+                writeInt(out, 0x00, 4, nameIndex == null ? 0 : nameIndex);
+            if (nameIndex == null)
+                writeString(out, name);
+            writeString(out, value);
+            if (index)
+                table.add(new String[] { name, value });
+        }
+    }
+
+    // dynamic table, the most recent entry has index 1
+    private static class DynamicTable {
+        private final ArrayDeque<String[]> entries = new ArrayDeque<>();
+        private int size = 0;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        String[] get(int index) {
+            if (index < 1 || index > entries.size())
+                return null;
+            Iterator<String[]> it = entries.iterator();
+            String[] field = null;
+            while (index-- > 0)
+                field = it.next();
+            return field;
+        }
+
+        // index of the entry with the name and value, or only the name if value is null; 0 if none
+        int indexOf(String name, String value) {
+            int index = 1;
+            for (String[] field : entries) {
+                if (field[0].equals(name) && (value == null || field[1].equals(value)))
+                    return index;
+                index++;
+            }
+            return 0;
+        }
+
+        void add(String[] field) {
+            int fieldSize = field[0].length() + field[1].length() + ENTRY_OVERHEAD;
+            evict(maxSize - fieldSize);
+            if (fieldSize <= maxSize) {
+                entries.addFirst(field);
+                size += fieldSize;
+            }
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        private void evict(int limit) {
+            while (size > Math.max(0, limit) && !entries.isEmpty()) {
+                String[] field = entries.removeLast();
+                size -= field[0].length() + field[1].length() + ENTRY_OVERHEAD;
+            }
+        }
+    }
+
+    // integer with an N-bit prefix, the first octet carries the given flag bits
+    private static void writeInt(ByteArrayOutputStream out, int flags, int prefix, int value) {
+        int max = (1 << prefix) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readInt(byte[] block, int[] pos, int end, int prefix) throws IOException {
+        int max = (1 << prefix) - 1;
+        int value = block[pos[0]++] & max;
+        if (value < max)
+            return value;
+        for (int shift = 0; shift < 28; shift += 7) {
+            if (pos[0] >= end)
+                throw new IOException("HPACK integer truncated");
+            int b = block[pos[0]++] & 0xff;
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("HPACK integer too large");
+    }
+
+    // string literal, Huffman encoded if that is shorter
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] raw = s.getBytes(StandardCharsets.ISO_8859_1);
+        long bits = 0;
+        for (byte b : raw)
+            bits += HUFFMAN_LENGTHS[b & 0xff];
+        int huffmanLength = (int) ((bits + 7) / 8);
+        if (huffmanLength >= raw.length) {
+            writeInt(out, 0x00, 7, raw.length);
+            out.write(raw, 0, raw.length);
+            return;
+        }
+
+        writeInt(out, 0x80, 7, huffmanLength);
+        long buffer = 0; // pending bits, right-aligned
+        int count = 0;
+        for (byte b : raw) {
+            int length = HUFFMAN_LENGTHS[b & 0xff];
+            buffer = (buffer << length) | HUFFMAN_CODES[b & 0xff];
+            count += length;
+            while (count >= 8) {
+                count -= 8;
+                out.write((int) (buffer >>> count));
+            }
+        }
+        if (count > 0) // padded with the most significant bits of EOS, all ones
+            out.write((int) ((buffer << (8 - count)) | (0xff >>> count)));
+    }
+
+    private static String readString(byte[] block, int[] pos, int end) throws IOException {
+        if (pos[0] >= end)
+            throw new IOException("HPACK string truncated");
+        boolean huffman = (block[pos[0]] & 0x80) != 0;
+        int length = readInt(block, pos, end, 7);
+        if (length > end - pos[0])
+            throw new IOException("HPACK string truncated");
+        int start = pos[0];
+        pos[0] += length;
+        if (!huffman)
+            return new String(block, start, length, StandardCharsets.ISO_8859_1);
+
+        StringBuilder sb = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int pending = 0; // bits read since the last complete octet
+        boolean ones = true; // whether those bits are all ones
+        for (int i = start; i < start + length; i++) {
+            int b = block[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                int child = HUFFMAN_TREE[2 * node + one];
+                pending++;
+                ones &= one == 1;
+                if (child < 0) {
+                    sb.append((char) -(child + 1));
+                    node = 0;
+                    pending = 0;
+                    ones = true;
+                } else if (child == 0) {
+                    throw new IOException("HPACK Huffman code invalid"); // EOS or beyond
+                } else {
+                    node = child;
+                }
+            }
+        }
+        if (pending > 7 || !ones)
+            throw new IOException("HPACK Huffman padding invalid");
+        return sb.toString();
+    }
+}
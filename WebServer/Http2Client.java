@@ -0,0 +1,295 @@
+/**
+ * Http2Client Class
+ *
+ * Minimal HTTP/2 client over clear text with prior knowledge, used by
+ * the load generator to send many concurrent requests over a single
+ * connection. Any number of threads may call fetch() at the same time;
+ * each request gets its own stream and a reader thread completes the
+ * streams as their frames arrive. Response bodies are counted, not kept,
+ * and their flow control windows are given back as they are received.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+
+class Http2Client {
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY_FLAG = 0x20;
+
+    private static final int STREAM_WINDOW = 1 << 24; // initial window of each stream
+    private static final int CONNECTION_WINDOW = Integer.MAX_VALUE;
+
+    /**
+     * A completed response.
+     */
+    static class Response {
+        int status;
+        long bytes; // header block and body
+        private boolean done;
+        private IOException error;
+    }
+
+    private final String authority;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Hpack.Encoder encoder = new Hpack.Encoder(); // guarded by out
+    private final Hpack.Decoder decoder = new Hpack.Decoder(4096); // used by the reader only
+    private final Map<Integer, Response> streams = new HashMap<>(); // guarded by this
+    private int nextStreamId = 1; // guarded by out
+    private IOException failure; // guarded by this, set once the connection is unusable
+
+    /**
+     * Constructor, connects and sends the connection preface.
+     *
+     * @param host Server host
+     * @param port Server port
+     *
+     * @throws IOException If the connection cannot be established
+     */
+    Http2Client(String host, int port) throws IOException {
+        authority = host + ":" + port;
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port));
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+
+        byte[] settings = new byte[12];
+        settings[1] = 0x2; // SETTINGS_ENABLE_PUSH 0
+        settings[7] = 0x4; // SETTINGS_INITIAL_WINDOW_SIZE
+        writeInt32(settings, 8, STREAM_WINDOW);
+        byte[] increment = new byte[4];
+        writeInt32(increment, 0, CONNECTION_WINDOW - 65535);
+        synchronized (out) {
+            out.write(Http2Connection.PREFACE);
+            writeFrame(SETTINGS, 0, 0, settings, settings.length);
+            writeFrame(WINDOW_UPDATE, 0, 0, increment, 4);
+            out.flush();
+        }
+
+        Thread reader = new Thread(this::read, "h2-client-" + socket.getLocalPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a request on a new stream and waits for the complete response.
+     *
+     * @param method The request method
+     * @param path   The request target
+     * @return The response
+     *
+     * @throws IOException If the connection fails or the stream is reset
+     */
+    Response fetch(String method, String path) throws IOException {
+        Response response = new Response();
+        synchronized (out) {
+            int streamId = nextStreamId;
+            nextStreamId += 2;
+            synchronized (this) {
+                if (failure != null)
+                    throw failure;
+                streams.put(streamId, response);
+            }
+            ByteArrayOutputStream block = new ByteArrayOutputStream(64);
+            encoder.encode(block, ":method", method, true);
+            encoder.encode(block, ":scheme", "http", true);
+            encoder.encode(block, ":authority", authority, true);
+            encoder.encode(block, ":path", path, false);
+            writeFrame(HEADERS, END_STREAM | END_HEADERS, streamId, block.toByteArray(), block.size());
+            out.flush();
+        }
+
+        synchronized (response) {
+            try {
+                while (!response.done)
+                    response.wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (response.error != null)
+            throw response.error;
+        return response;
+    }
+
+    /**
+     * Closes the connection, requests in progress fail.
+     */
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ok, ignore
+        }
+    }
+
+    // reads the frames of all streams until the connection closes
+    private void read() {
+        byte[] header = new byte[9];
+        byte[] payload = new byte[16384];
+        byte[] increment = new byte[4];
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        boolean blockEndsStream = false;
+        try {
+            while (true) {
+                in.readFully(header);
+                int length = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | (header[2] & 0xff);
+                int type = header[3] & 0xff;
+                int flags = header[4] & 0xff;
+                int streamId = readInt31(header, 5);
+                if (length > payload.length)
+                    throw new IOException("frame of " + length + " octets");
+                in.readFully(payload, 0, length);
+
+                switch (type) {
+                case HEADERS:
+                case CONTINUATION:
+                    int offset = 0;
+                    int end = length;
+                    if (type == HEADERS) {
+                        block.reset();
+                        blockEndsStream = (flags & END_STREAM) != 0;
+                        if ((flags & PADDED) != 0) {
+                            offset = 1;
+                            end -= payload[0] & 0xff;
+                        }
+                        if ((flags & PRIORITY_FLAG) != 0)
+                            offset += 5;
+                    }
+                    block.write(payload, offset, end - offset);
+                    if ((flags & END_HEADERS) != 0) {
+                        List<String[]> fields = decoder.decode(block.toByteArray(), 0, block.size());
+                        synchronized (this) {
+                            Response response = streams.get(streamId);
+                            if (response != null) {
+                                for (String[] field : fields)
+                                    if (field[0].equals(":status"))
+                                        response.status = Integer.parseInt(field[1]);
+                                response.bytes += block.size();
+                            }
+                        }
+                        if (blockEndsStream)
+                            complete(streamId, null);
+                    }
+                    break;
+                case DATA:
+                    synchronized (this) {
+                        Response response = streams.get(streamId);
+                        if (response != null)
+                            response.bytes += length;
+                    }
+                    if (length > 0) {
+                        // give the window back at once, for the connection and the stream
+                        writeInt32(increment, 0, length);
+                        synchronized (out) {
+                            writeFrame(WINDOW_UPDATE, 0, 0, increment, 4);
+                            if ((flags & END_STREAM) == 0)
+                                writeFrame(WINDOW_UPDATE, 0, streamId, increment, 4);
+                            out.flush();
+                        }
+                    }
+                    if ((flags & END_STREAM) != 0)
+                        complete(streamId, null);
+                    break;
+                case RST_STREAM:
+                    complete(streamId, new IOException("stream " + streamId + " reset, error " + readInt31(payload, 0)));
+                    break;
+                case SETTINGS:
+                    if ((flags & ACK) == 0) {
+                        synchronized (out) {
+                            writeFrame(SETTINGS, ACK, 0, payload, 0);
+                            out.flush();
+                        }
+                    }
+                    break;
+                case PING:
+                    if ((flags & ACK) == 0) {
+                        synchronized (out) {
+                            writeFrame(PING, ACK, 0, payload, 8);
+                            out.flush();
+                        }
+                    }
+                    break;
+                case GOAWAY:
+                    // streams above the last one processed by the server will not be answered
+                    int last = readInt31(payload, 0);
+                    synchronized (this) {
+                        failure = new IOException("GOAWAY received, error " + readInt31(payload, 4));
+                        for (Map.Entry<Integer, Response> e : new ArrayList<>(streams.entrySet()))
+                            if (e.getKey() > last)
+                                complete(e.getKey(), failure);
+                    }
+                    break;
+                default:
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                if (failure == null)
+                    failure = e instanceof EOFException ? new EOFException("connection closed") : e;
+                for (Integer streamId : new ArrayList<>(streams.keySet()))
+                    complete(streamId, failure);
+            }
+        }
+    }
+
+    private void complete(int streamId, IOException error) {
+        Response response;
+        synchronized (this) {
+            response = streams.remove(streamId);
+        }
+        if (response != null) {
+            synchronized (response) {
+                response.error = error;
+                response.done = true;
+                response.notify();
+            }
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int length) throws IOException {
+        byte[] header = new byte[9];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        writeInt32(header, 5, streamId);
+        out.write(header);
+        out.write(payload, 0, length);
+    }
+
+    private static int readInt31(byte[] b, int offset) {
+        return (b[offset] & 0x7f) << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8
+                | (b[offset + 3] & 0xff);
+    }
+
+    private static void writeInt32(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,895 @@
+/**
+ * Http2Connection Class
+ *
+ * Serves a connection speaking HTTP/2 over clear text (h2c), entered
+ * either with the connection preface (prior knowledge) or by upgrading
+ * an HTTP/1.1 request, which is then answered on stream 1.
+ *
+ * The thread of the connection reads the frames and resolves each
+ * request as its headers arrive. The responses are sent by a writer
+ * thread that interleaves the open streams round-robin, one frame at a
+ * time, within the flow control windows granted by the client, so a
+ * large file does not hold up the small ones requested with it.
+ *
+ * Files are looked up with the server's PathResolver and MimeTypes, or in
+ * its AssetBundle, and the responses carry the same headers as over HTTP/1.1. Server push
+ * and priorities are not used, request bodies are read and discarded.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+class Http2Connection {
+
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    // frame types
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    // frame flags
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY_FLAG = 0x20;
+
+    // error codes
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+
+    // settings
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int FRAME_SIZE = 16384; // largest frame received and sent
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final long MAX_WINDOW = Integer.MAX_VALUE;
+    private static final int MAX_STREAMS = 100; // concurrent streams per connection
+    private static final int MAX_HEADER_BLOCK = 65536; // octets of a compressed request header block
+
+    // a request and the state of its response
+    private static class Stream {
+        final int id;
+        final String requestLine;
+        final long requestAt;
+        final ServerEvents.ResponseSent event = ServerEvents.beginResponseSent(); // null unless recorded
+        int status;
+        List<String[]> headers; // of the response, :status first
+        InputStream body; // null if the response has none
+        long remaining; // body octets not yet sent, written by the writer only
+        long window; // send window, negative after the client shrinks it
+        long bytesSent;
+        long firstByteAt;
+        boolean headersSent; // written by the writer only
+        boolean scheduled; // queued for the writer or being written, false while waiting for window
+        boolean reset; // cancelled
+
+        Stream(int id, String requestLine) {
+            this.id = id;
+            this.requestLine = requestLine;
+            this.requestAt = System.nanoTime();
+        }
+    }
+
+    // a connection error, answered with GOAWAY
+    private static class ConnectionError extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        ConnectionError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final PathResolver resolver;
+    private AssetBundle bundle; // served instead of the root directory if set
+    private final MimeTypes mimeTypes;
+    private final ServerMetrics metrics;
+    private final AccessLog accessLog; // null if requests are not logged
+    private final int idleTimeout; // milli-seconds without open streams before the connection is closed
+    private RateLimiter rateLimiter; // charged for every stream after the first, null for no per-client limit
+    private boolean firstStream = true; // the first request was charged by the acceptor, reading thread only
+
+    private final Hpack.Decoder decoder = new Hpack.Decoder(4096); // used by the reading thread only
+    private final Hpack.Encoder encoder = new Hpack.Encoder(); // used by the writer only
+    private final byte[] frameHeader = new byte[9]; // guarded by out
+    private boolean outputClosed = false; // guarded by out
+
+    // stream state, guarded by this
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    private final ArrayDeque<Stream> pending = new ArrayDeque<>(); // streams the writer works through
+    private long connectionWindow = DEFAULT_WINDOW;
+    private long initialWindow = DEFAULT_WINDOW;
+    private int lastStreamId = 0; // highest stream accepted
+    private boolean goingAway = false; // no new streams are accepted
+    private boolean goAwaySent = false;
+    private boolean closed = false;
+    private volatile int peerTableSize = 4096;
+
+    /**
+     * Constructor
+     *
+     * @param socket      The client connection
+     * @param in          Input of the connection, positioned after the connection preface or the upgraded request
+     * @param out         Output of the connection, with nothing left buffered
+     * @param resolver    Resolver of the server's root directory, null if a bundle is served
+     * @param mimeTypes   The MIME type table
+     * @param metrics     Metrics of the server
+     * @param accessLog   The access log, null if requests are not logged
+     * @param idleTimeout Time in milli-seconds without open streams before the connection is closed
+     */
+    Http2Connection(Socket socket, InputStream in, OutputStream out, PathResolver resolver, MimeTypes mimeTypes,
+            ServerMetrics metrics, AccessLog accessLog, int idleTimeout) {
+        this.socket = socket;
+        this.in = new DataInputStream(in);
+        this.out = new BufferedOutputStream(out, 4 * FRAME_SIZE);
+        this.resolver = resolver;
+        this.mimeTypes = mimeTypes;
+        this.metrics = metrics;
+        this.accessLog = accessLog;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Serves files from a packed bundle instead of the root directory.
+     *
+     * @param bundle The bundle, null to serve the root directory
+     */
+    void setBundle(AssetBundle bundle) {
+        this.bundle = bundle;
+    }
+
+    /**
+     * Applies the per-client rate limit to every stream after the first,
+     * a client over its rate is answered with 429 on the stream.
+     *
+     * @param rateLimiter The rate limiter of the server, null for no limit
+     */
+    void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Serves the connection once the client's connection preface has been read.
+     *
+     * @throws IOException If the connection fails
+     */
+    void serve() throws IOException {
+        serve(null, null, null, null, false);
+    }
+
+    /**
+     * Serves the connection after an HTTP/1.1 request was upgraded with a
+     * 101 response. The client's connection preface has not been read yet.
+     *
+     * @param settings    The decoded HTTP2-Settings header of the request
+     * @param method      Method of the upgraded request
+     * @param target      Request target of the upgraded request
+     * @param requestLine Request line of the upgraded request, for the logs
+     * @param gzip        The upgraded request accepts a gzip encoded response
+     *
+     * @throws IOException If the connection fails
+     */
+    void serveUpgrade(byte[] settings, String method, String target, String requestLine, boolean gzip)
+            throws IOException {
+        serve(settings, method, target, requestLine, gzip);
+    }
+
+    /**
+     * Stops accepting streams: the client is told with GOAWAY, and the
+     * connection is closed once the open streams are complete.
+     */
+    synchronized void drain() {
+        goingAway = true;
+        notifyAll();
+    }
+
+    private void serve(byte[] settings, String method, String target, String requestLine, boolean gzip)
+            throws IOException {
+        Thread writer = new Thread(this::write, Thread.currentThread().getName() + "-h2");
+        try {
+            socket.setSoTimeout(idleTimeout);
+            writeSettings();
+            flush();
+            if (settings != null) {
+                applySettings(settings, 0, settings.length);
+                open(1, method, target, requestLine, gzip);
+            }
+            writer.start();
+            if (settings != null)
+                readPreface();
+            readFrames();
+        } catch (ConnectionError e) {
+            ServerLog.log("HTTP/2 connection error: " + e.getMessage());
+            goAway(e.code, e.getMessage());
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            if (!writer.isAlive())
+                discardAll();
+        }
+    }
+
+    private void readPreface() throws IOException {
+        byte[] preface = new byte[PREFACE.length];
+        in.readFully(preface);
+        if (!Arrays.equals(preface, PREFACE))
+            throw new ConnectionError(PROTOCOL_ERROR, "invalid connection preface");
+    }
+
+    // reads and handles frames until the client closes the connection
+    @SuppressWarnings("fallthrough") // HEADERS continues as the first CONTINUATION of its block
+    private void readFrames() throws IOException {
+        byte[] header = new byte[9];
+        byte[] payload = new byte[FRAME_SIZE];
+        ByteArrayOutputStream block = null; // header block in progress
+        int blockStream = 0;
+        boolean blockEndsStream = false;
+
+        while (true) {
+            int first;
+            try {
+                first = in.read();
+            } catch (SocketTimeoutException e) {
+                synchronized (this) {
+                    if (!streams.isEmpty())
+                        continue; // the client is receiving
+                }
+                goAway(NO_ERROR, "idle");
+                return;
+            }
+            if (first == -1)
+                return;
+            header[0] = (byte) first;
+            in.readFully(header, 1, 8);
+            int length = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | (header[2] & 0xff);
+            int type = header[3] & 0xff;
+            int flags = header[4] & 0xff;
+            int streamId = readInt31(header, 5);
+            if (length > FRAME_SIZE)
+                throw new ConnectionError(FRAME_SIZE_ERROR, "frame of " + length + " octets");
+            in.readFully(payload, 0, length);
+
+            if (block != null && (type != CONTINUATION || streamId != blockStream))
+                throw new ConnectionError(PROTOCOL_ERROR, "header block interrupted");
+
+            switch (type) {
+            case HEADERS:
+                if (streamId == 0)
+                    throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream 0");
+                int offset = 0;
+                int end = length;
+                if ((flags & PADDED) != 0 && length > 0) {
+                    offset = 1;
+                    end -= payload[0] & 0xff;
+                }
+                if ((flags & PRIORITY_FLAG) != 0)
+                    offset += 5;
+                if (offset > end)
+                    throw new ConnectionError(PROTOCOL_ERROR, "invalid padding");
+                block = new ByteArrayOutputStream(end - offset);
+                block.write(payload, offset, end - offset);
+                blockStream = streamId;
+                blockEndsStream = (flags & END_STREAM) != 0;
+                // fall through: the HEADERS frame may also end the block
+            case CONTINUATION:
+                if (block == null)
+                    throw new ConnectionError(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+                if (type == CONTINUATION)
+                    block.write(payload, 0, length);
+                if (block.size() > MAX_HEADER_BLOCK)
+                    throw new ConnectionError(ENHANCE_YOUR_CALM, "header block too large");
+                if ((flags & END_HEADERS) != 0) {
+                    headers(blockStream, block.toByteArray(), blockEndsStream);
+                    block = null;
+                }
+                break;
+            case DATA:
+                data(streamId, flags, length);
+                break;
+            case PRIORITY:
+                if (streamId == 0)
+                    throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                break; // priorities are not used
+            case RST_STREAM:
+                if (streamId == 0)
+                    throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+                if (length != 4)
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM of " + length + " octets");
+                synchronized (this) {
+                    Stream stream = streams.get(streamId);
+                    if (stream != null)
+                        cancel(stream);
+                }
+                break;
+            case SETTINGS:
+                if (streamId != 0)
+                    throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+                if ((flags & ACK) != 0) {
+                    if (length != 0)
+                        throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+                } else {
+                    if (length % 6 != 0)
+                        throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS of " + length + " octets");
+                    applySettings(payload, 0, length);
+                    writeFrame(SETTINGS, ACK, 0, payload, 0, 0);
+                    flush();
+                }
+                break;
+            case PING:
+                if (streamId != 0)
+                    throw new ConnectionError(PROTOCOL_ERROR, "PING on stream " + streamId);
+                if (length != 8)
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "PING of " + length + " octets");
+                if ((flags & ACK) == 0) {
+                    writeFrame(PING, ACK, 0, payload, 0, 8);
+                    flush();
+                }
+                break;
+            case GOAWAY:
+                drain(); // the client opens no more streams, finish the open ones
+                break;
+            case WINDOW_UPDATE:
+                if (length != 4)
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " octets");
+                windowUpdate(streamId, readInt31(payload, 0));
+                break;
+            case PUSH_PROMISE:
+                throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE from client");
+            default:
+                break; // unknown frame types are ignored
+            }
+        }
+    }
+
+    // a complete request header block
+    private void headers(int streamId, byte[] block, boolean endStream) throws IOException {
+        ServerEvents.RequestParsed parsed = ServerEvents.beginRequestParsed();
+        List<String[]> fields;
+        try {
+            fields = decoder.decode(block, 0, block.length); // always, to keep the table in step
+        } catch (IOException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+
+        synchronized (this) {
+            if (streamId <= lastStreamId) {
+                if (streams.containsKey(streamId))
+                    return; // trailers of a request body, not used
+                throw new ConnectionError(STREAM_CLOSED, "HEADERS on closed stream " + streamId);
+            }
+        }
+        if (streamId % 2 == 0)
+            throw new ConnectionError(PROTOCOL_ERROR, "even stream " + streamId + " from client");
+
+        String method = null;
+        String path = null;
+        boolean gzip = false;
+        for (String[] field : fields) {
+            if (field[0].equals(":method"))
+                method = field[1];
+            else if (field[0].equals(":path"))
+                path = field[1];
+            else if (field[0].equals("accept-encoding"))
+                gzip = AssetBundle.acceptsGzip(field[1]);
+        }
+        if (method == null || path == null) {
+            synchronized (this) {
+                lastStreamId = streamId;
+            }
+            reset(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        String requestLine = method + " " + path + " HTTP/2.0";
+        ServerEvents.requestParsed(parsed, requestLine);
+        open(streamId, method, path, requestLine, gzip);
+    }
+
+    // accepts a new stream and prepares its response for the writer
+    private void open(int streamId, String method, String target, String requestLine, boolean gzip)
+            throws IOException {
+        synchronized (this) {
+            if (goingAway)
+                return; // ignored, the client may retry it on a new connection
+            lastStreamId = streamId;
+            if (streams.size() >= MAX_STREAMS)
+                streamId = -streamId;
+        }
+        if (streamId < 0) {
+            reset(-streamId, REFUSED_STREAM);
+            return;
+        }
+
+        ServerLog.log("Request " + requestLine);
+        Stream stream = new Stream(streamId, requestLine);
+        prepare(stream, method, target, gzip);
+        synchronized (this) {
+            stream.window = initialWindow;
+            stream.scheduled = true;
+            streams.put(streamId, stream);
+            pending.add(stream);
+            notifyAll();
+        }
+    }
+
+    // resolves the request, as WorkerThread.handleRequest does over HTTP/1.1
+    private void prepare(Stream stream, String method, String target, boolean gzip) {
+        boolean head = method.equals("HEAD"); // answered from the metadata, the file is not opened
+        boolean admitted = firstStream;
+        firstStream = false;
+        if (!admitted && rateLimiter != null && !rateLimiter.tryAcquire(socket.getInetAddress())) {
+            respond(stream, 429, null, 0, null);
+            stream.headers.add(new String[] { "retry-after", "1" });
+        } else if (method.equals("OPTIONS")) {
+            respond(stream, 200, null, 0, null);
+            stream.headers.add(new String[] { "allow", WorkerThread.ALLOWED_METHODS });
+        } else if (!method.equals("GET") && !head) {
+            int status = WorkerThread.methodNotServed(method);
+            respond(stream, status, null, 0, null);
+            if (status == 405)
+                stream.headers.add(new String[] { "allow", WorkerThread.ALLOWED_METHODS });
+        } else if (target.equals(WorkerThread.METRICS_PATH)) {
+            byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            respond(stream, 200, head ? null : new ByteArrayInputStream(body), body.length, null);
+            stream.headers.add(new String[] { "content-type", "text/plain; version=0.0.4; charset=utf-8" });
+        } else if (bundle != null) {
+            ServerEvents.FileResolved resolved = ServerEvents.beginFileResolved();
+            AssetBundle.Entry entry = bundle.lookup(target);
+            ServerEvents.fileResolved(resolved, target, entry);
+            switch (entry.getStatus()) {
+            case FOUND:
+                // the precomputed headers replace content-length
+                respond(stream, 200, head ? null : entry.openBody(gzip), entry.getLength(gzip), null);
+                stream.headers.remove(stream.headers.size() - 1);
+                stream.headers.addAll(entry.getHeaderFields(gzip));
+                break;
+            case FORBIDDEN:
+                respond(stream, 403, null, 0, null);
+                break;
+            case BAD_REQUEST:
+                respond(stream, 400, null, 0, null);
+                break;
+            default:
+                respond(stream, 404, null, 0, null);
+            }
+        } else {
+            ServerEvents.FileResolved resolved = ServerEvents.beginFileResolved();
+            PathResolver.Resolution resolution = resolver.resolve(target);
+            ServerEvents.fileResolved(resolved, target, resolution);
+            switch (resolution.getStatus()) {
+            case FOUND:
+                File file = resolution.getFile();
+                long length = file.length();
+                try {
+                    respond(stream, 200, head ? null : new FileInputStream(file), length, file);
+                } catch (FileNotFoundException e) {
+                    respond(stream, 404, null, 0, null); // removed since it was resolved
+                }
+                break;
+            case FORBIDDEN:
+                respond(stream, 403, null, 0, null);
+                break;
+            case BAD_REQUEST:
+                respond(stream, 400, null, 0, null);
+                break;
+            default:
+                respond(stream, 404, null, 0, null);
+            }
+        }
+    }
+
+    private void respond(Stream stream, int status, InputStream body, long length, File file) {
+        List<String[]> headers = new ArrayList<>();
+        headers.add(new String[] { ":status", String.valueOf(status) });
+        headers.add(new String[] { "date", ServerUtils.getCurrentDate() });
+        headers.add(new String[] { "server", WorkerThread.SERVER_NAME });
+        if (file != null)
+            headers.add(new String[] { "last-modified", ServerUtils.getLastModified(file) });
+        headers.add(new String[] { "content-length", String.valueOf(length) });
+        if (file != null)
+            headers.add(new String[] { "content-type", mimeTypes.getContentTypeValue(file.getName()) });
+        stream.status = status;
+        stream.headers = headers;
+        stream.body = body;
+        stream.remaining = body == null ? 0 : length;
+    }
+
+    // a DATA frame of a request body, discarded; its window is given back at once
+    private void data(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0)
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0");
+        boolean open;
+        synchronized (this) {
+            if (streamId > lastStreamId)
+                throw new ConnectionError(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            open = streams.containsKey(streamId);
+        }
+        if (length > 0) {
+            writeWindowUpdate(0, length);
+            if (open && (flags & END_STREAM) == 0)
+                writeWindowUpdate(streamId, length);
+            flush();
+        }
+    }
+
+    private void windowUpdate(int streamId, int increment) throws IOException {
+        if (streamId == 0) {
+            if (increment == 0)
+                throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+            synchronized (this) {
+                if (connectionWindow + increment > MAX_WINDOW)
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "connection window overflow");
+                connectionWindow += increment;
+                notifyAll();
+            }
+            return;
+        }
+
+        synchronized (this) {
+            Stream stream = streams.get(streamId);
+            if (stream == null)
+                return; // closed meanwhile
+            if (increment > 0 && stream.window + increment <= MAX_WINDOW) {
+                stream.window += increment;
+                schedule(stream);
+                return;
+            }
+            cancel(stream);
+        }
+        reset(streamId, increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+    }
+
+    // settings of the client, from a SETTINGS frame or the HTTP2-Settings header of an upgrade
+    private void applySettings(byte[] settings, int offset, int length) throws IOException {
+        if (length % 6 != 0)
+            throw new ConnectionError(FRAME_SIZE_ERROR, "settings of " + length + " octets");
+        for (int i = offset; i < offset + length; i += 6) {
+            int id = (settings[i] & 0xff) << 8 | (settings[i + 1] & 0xff);
+            long value = readInt31(settings, i + 2) | (settings[i + 2] & 0x80L) << 24;
+            switch (id) {
+            case SETTINGS_HEADER_TABLE_SIZE:
+                peerTableSize = (int) Math.min(value, Integer.MAX_VALUE);
+                break;
+            case SETTINGS_ENABLE_PUSH:
+                if (value > 1)
+                    throw new ConnectionError(PROTOCOL_ERROR, "invalid SETTINGS_ENABLE_PUSH");
+                break;
+            case SETTINGS_INITIAL_WINDOW_SIZE:
+                if (value > MAX_WINDOW)
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                synchronized (this) {
+                    long delta = value - initialWindow;
+                    initialWindow = value;
+                    for (Stream stream : streams.values()) {
+                        stream.window += delta;
+                        if (stream.window > MAX_WINDOW)
+                            throw new ConnectionError(FLOW_CONTROL_ERROR, "stream window overflow");
+                        schedule(stream);
+                    }
+                    notifyAll();
+                }
+                break;
+            case SETTINGS_MAX_FRAME_SIZE:
+                if (value < FRAME_SIZE || value > 0xffffff)
+                    throw new ConnectionError(PROTOCOL_ERROR, "invalid SETTINGS_MAX_FRAME_SIZE");
+                break; // frames are never larger than the default
+            default:
+                break; // SETTINGS_MAX_CONCURRENT_STREAMS, SETTINGS_MAX_HEADER_LIST_SIZE and unknown ones
+            }
+        }
+    }
+
+    // queues a stream that was waiting for window, with the lock held
+    private void schedule(Stream stream) {
+        if (!stream.scheduled && stream.window > 0) {
+            stream.scheduled = true;
+            pending.add(stream);
+            notifyAll();
+        }
+    }
+
+    // marks a stream as cancelled, the writer drops it; with the lock held
+    private void cancel(Stream stream) {
+        stream.reset = true;
+        if (!stream.scheduled) {
+            stream.scheduled = true;
+            pending.add(stream);
+            notifyAll();
+        }
+    }
+
+    /*
+     * The writer thread: sends the responses of the open streams, a frame
+     * at a time and round-robin, and the GOAWAY frame when draining.
+     * The output is flushed whenever there is nothing more to send.
+     */
+    private void write() {
+        byte[] chunk = new byte[FRAME_SIZE];
+        boolean unflushed = false;
+        try {
+            while (true) {
+                Stream stream = null;
+                int length = 0;
+                boolean last = false;
+                int goAwayStream = -1;
+                boolean shutdown = false;
+                synchronized (this) {
+                    if (closed)
+                        break;
+                    if (goingAway && !goAwaySent) {
+                        goAwaySent = true;
+                        goAwayStream = lastStreamId;
+                    } else if ((stream = nextReady()) != null) {
+                        if (stream.headersSent) {
+                            length = (int) Math.min(Math.min(stream.remaining, FRAME_SIZE),
+                                    Math.min(stream.window, connectionWindow));
+                            stream.remaining -= length;
+                            stream.window -= length;
+                            connectionWindow -= length;
+                            last = stream.remaining == 0;
+                        }
+                    } else if (!unflushed) {
+                        if (goingAway && streams.isEmpty())
+                            shutdown = true;
+                        else {
+                            wait();
+                            continue;
+                        }
+                    }
+                }
+
+                if (goAwayStream >= 0) {
+                    writeGoAway(goAwayStream, NO_ERROR, "shutting down");
+                    unflushed = true;
+                } else if (stream != null) {
+                    if (!stream.headersSent)
+                        sendHeaders(stream);
+                    else
+                        sendData(stream, chunk, length, last);
+                    unflushed = true;
+                } else if (shutdown) {
+                    // the client closes the connection once it has read everything
+                    synchronized (out) {
+                        out.flush();
+                        outputClosed = true;
+                        socket.shutdownOutput();
+                    }
+                    break;
+                } else {
+                    flush();
+                    unflushed = false;
+                }
+            }
+        } catch (IOException e) {
+            // connection closed
+        } catch (InterruptedException e) {
+            // Ok, stop
+        } finally {
+            discardAll();
+        }
+    }
+
+    // the next stream with something to send, removed from the queue; with the lock held
+    private Stream nextReady() {
+        for (int n = pending.size(); n > 0; n--) {
+            Stream stream = pending.poll();
+            if (stream.reset) {
+                discard(stream);
+            } else if (!stream.headersSent) {
+                return stream;
+            } else if (stream.window <= 0) {
+                stream.scheduled = false; // until the client opens the window
+            } else if (connectionWindow > 0) {
+                return stream;
+            } else {
+                pending.add(stream);
+            }
+        }
+        return null;
+    }
+
+    private void sendHeaders(Stream stream) throws IOException {
+        encoder.setMaxTableSize(peerTableSize);
+        ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+        for (String[] field : stream.headers) {
+            // fields that change with every response are not worth a table entry
+            boolean index = !field[0].equals("content-length") && !field[0].equals("last-modified");
+            encoder.encode(block, field[0], field[1], index);
+        }
+        byte[] bytes = block.toByteArray();
+        int flags = stream.remaining == 0 ? END_STREAM : 0;
+        synchronized (out) {
+            int type = HEADERS;
+            int offset = 0;
+            do {
+                int length = Math.min(FRAME_SIZE, bytes.length - offset);
+                boolean lastFrame = offset + length == bytes.length;
+                writeFrame(type, (type == HEADERS ? flags : 0) | (lastFrame ? END_HEADERS : 0), stream.id, bytes,
+                        offset, length);
+                offset += length;
+                type = CONTINUATION;
+            } while (offset < bytes.length);
+        }
+        stream.headersSent = true;
+        stream.firstByteAt = System.nanoTime();
+        stream.bytesSent += bytes.length;
+        if (flags == END_STREAM)
+            complete(stream);
+        else
+            requeue(stream);
+    }
+
+    private void sendData(Stream stream, byte[] chunk, int length, boolean last) throws IOException {
+        int n;
+        try {
+            n = stream.body.readNBytes(chunk, 0, length);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < length) {
+            // the file shrank or could not be read
+            synchronized (this) {
+                cancel(stream);
+            }
+            reset(stream.id, INTERNAL_ERROR);
+            return;
+        }
+        writeFrame(DATA, last ? END_STREAM : 0, stream.id, chunk, 0, length);
+        stream.bytesSent += length;
+        if (last)
+            complete(stream);
+        else
+            requeue(stream);
+    }
+
+    // puts a stream back in the queue after one of its frames was sent
+    private synchronized void requeue(Stream stream) {
+        if (stream.reset)
+            discard(stream);
+        else if (stream.window > 0)
+            pending.add(stream);
+        else
+            stream.scheduled = false;
+    }
+
+    // a response sent completely
+    private void complete(Stream stream) {
+        synchronized (this) {
+            discard(stream);
+        }
+        metrics.recordResponse(stream.status, stream.bytesSent, stream.firstByteAt - stream.requestAt,
+                System.nanoTime() - stream.requestAt);
+        ServerEvents.responseSent(stream.event, stream.requestLine, ServerEvents.PROTOCOL_HTTP2, stream.status,
+                stream.bytesSent, stream.firstByteAt - stream.requestAt);
+        if (accessLog != null)
+            accessLog.log(socket.getInetAddress().getHostAddress(), stream.requestLine, stream.status,
+                    stream.bytesSent);
+    }
+
+    // closes a stream, with the lock held
+    private void discard(Stream stream) {
+        streams.remove(stream.id);
+        if (stream.body != null) {
+            try {
+                stream.body.close();
+            } catch (IOException e) {
+                // Ok, ignore
+            }
+        }
+    }
+
+    private synchronized void discardAll() {
+        closed = true;
+        for (Stream stream : new ArrayList<>(streams.values()))
+            discard(stream);
+        pending.clear();
+    }
+
+    private void writeSettings() throws IOException {
+        byte[] payload = new byte[6];
+        payload[1] = SETTINGS_MAX_CONCURRENT_STREAMS;
+        writeInt32(payload, 2, MAX_STREAMS);
+        writeFrame(SETTINGS, 0, 0, payload, 0, payload.length);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        writeInt32(payload, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    private void reset(int streamId, int error) throws IOException {
+        byte[] payload = new byte[4];
+        writeInt32(payload, 0, error);
+        writeFrame(RST_STREAM, 0, streamId, payload, 0, 4);
+        flush();
+    }
+
+    // ends the connection from the reading thread
+    private void goAway(int error, String reason) throws IOException {
+        int last;
+        synchronized (this) {
+            goingAway = true;
+            goAwaySent = true;
+            last = lastStreamId;
+        }
+        writeGoAway(last, error, reason);
+        flush();
+    }
+
+    private void writeGoAway(int lastStream, int error, String reason) throws IOException {
+        byte[] debug = reason.getBytes(StandardCharsets.US_ASCII);
+        byte[] payload = new byte[8 + debug.length];
+        writeInt32(payload, 0, lastStream);
+        writeInt32(payload, 4, error);
+        System.arraycopy(debug, 0, payload, 8, debug.length);
+        writeFrame(GOAWAY, 0, 0, payload, 0, payload.length);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException {
+        synchronized (out) {
+            if (outputClosed)
+                return;
+            frameHeader[0] = (byte) (length >>> 16);
+            frameHeader[1] = (byte) (length >>> 8);
+            frameHeader[2] = (byte) length;
+            frameHeader[3] = (byte) type;
+            frameHeader[4] = (byte) flags;
+            writeInt32(frameHeader, 5, streamId);
+            out.write(frameHeader, 0, frameHeader.length);
+            out.write(payload, offset, length);
+        }
+    }
+
+    private void flush() throws IOException {
+        synchronized (out) {
+            if (!outputClosed)
+                out.flush();
+        }
+    }
+
+    private static int readInt31(byte[] b, int offset) {
+        return (b[offset] & 0x7f) << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8
+                | (b[offset + 3] & 0xff);
+    }
+
+    private static void writeInt32(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+}
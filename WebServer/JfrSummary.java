@@ -0,0 +1,153 @@
+/**
+ * JfrSummary Class
+ *
+ * Summarizes the custom events of a flight recording (see ServerEvents,
+ * WebClient's ClientEvents and StopWaitFtp's FtpEvents) as JSON: per
+ * event type the count and the percentiles of the duration and of every
+ * other time span, e.g. the time to first byte of a response, so a
+ * request's latency can be broken down into its phases. Data amounts
+ * are summed. Events are further grouped by the value of the grouping
+ * fields they have, by default the status, protocol, host and whether a
+ * segment was retransmitted; acked segments that were never
+ * retransmitted give the round-trip time free of retransmission
+ * ambiguity (Karn's rule).
+ *
+ * Command line arguments:
+ * 		recording	the .jfr file, required, the first argument
+ * 		-g	comma separated grouping fields, default status,protocol,host,retransmitted
+ * 		-o	output file for the JSON report, default standard output
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import jdk.jfr.EventType;
+import jdk.jfr.ValueDescriptor;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class JfrSummary {
+
+    private static final String[] NAMESPACES = { "webserver.", "webclient.", "stopandwait." };
+    private static final String TIMESPAN = "jdk.jfr.Timespan";
+    private static final String DATA_AMOUNT = "jdk.jfr.DataAmount";
+
+    // the events of one type, or of one group of a type
+    private static class Summary {
+        long count;
+        final LatencyHistogram duration = new LatencyHistogram(); // micro-seconds
+        final TreeMap<String, LatencyHistogram> timespans = new TreeMap<>(); // micro-seconds
+        final TreeMap<String, Long> amounts = new TreeMap<>();
+
+        void add(RecordedEvent event, EventType type) {
+            count++;
+            duration.record(event.getDuration().toNanos() / 1000);
+            for (ValueDescriptor field : type.getFields()) {
+                if (field.getName().equals("duration"))
+                    continue; // the event's own, recorded above
+                if (TIMESPAN.equals(field.getContentType())) {
+                    Duration value = event.getDuration(field.getName());
+                    timespans.computeIfAbsent(field.getName(), name -> new LatencyHistogram())
+                            .record(value.toNanos() / 1000);
+                } else if (DATA_AMOUNT.equals(field.getContentType())) {
+                    amounts.merge(field.getName(), event.getLong(field.getName()), Long::sum);
+                }
+            }
+        }
+
+        void appendJson(StringBuilder sb, String indent) {
+            sb.append("{\"count\": ").append(count).append(",\n");
+            sb.append(indent).append("  \"duration_us\": ");
+            appendPercentiles(sb, duration);
+            for (Map.Entry<String, LatencyHistogram> e : timespans.entrySet()) {
+                sb.append(",\n").append(indent).append("  \"").append(e.getKey()).append("_us\": ");
+                appendPercentiles(sb, e.getValue());
+            }
+            for (Map.Entry<String, Long> e : amounts.entrySet())
+                sb.append(",\n").append(indent).append("  \"").append(e.getKey()).append("_total\": ").append(e.getValue());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("incorrect usage, recording file name is required");
+            System.exit(1);
+        }
+        HashMap<String, String> params = new HashMap<String, String>();
+        for (int i = 1; (i + 1) < args.length; i += 2)
+            params.put(args[i], args[i + 1]);
+        List<String> groupFields = Arrays.asList(params.getOrDefault("-g", "status,protocol,host,retransmitted").split(","));
+        String output = params.get("-o");
+
+        // event type -> summary of all its events, and group field=value -> summary of the group
+        TreeMap<String, Summary> types = new TreeMap<>();
+        TreeMap<String, TreeMap<String, Summary>> groups = new TreeMap<>();
+        try (RecordingFile recording = new RecordingFile(Paths.get(args[0]))) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                EventType type = event.getEventType();
+                if (!isCustom(type.getName()))
+                    continue;
+                types.computeIfAbsent(type.getName(), name -> new Summary()).add(event, type);
+                for (String field : groupFields) {
+                    if (!event.hasField(field))
+                        continue;
+                    String key = field + "=" + event.getValue(field);
+                    groups.computeIfAbsent(type.getName(), name -> new TreeMap<>())
+                            .computeIfAbsent(key, name -> new Summary()).add(event, type);
+                }
+            }
+        }
+
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append("  \"recording\": \"").append(Paths.get(args[0]).getFileName()).append("\",\n");
+        sb.append("  \"events\": {");
+        String sep = "\n";
+        for (Map.Entry<String, Summary> type : types.entrySet()) {
+            sb.append(sep).append("    \"").append(type.getKey()).append("\": ");
+            type.getValue().appendJson(sb, "    ");
+            TreeMap<String, Summary> typeGroups = groups.get(type.getKey());
+            if (typeGroups != null) {
+                sb.append(",\n      \"groups\": {");
+                String groupSep = "\n";
+                for (Map.Entry<String, Summary> group : typeGroups.entrySet()) {
+                    sb.append(groupSep).append("        \"").append(group.getKey()).append("\": ");
+                    group.getValue().appendJson(sb, "        ");
+                    sb.append("}");
+                    groupSep = ",\n";
+                }
+                sb.append("\n      }");
+            }
+            sb.append("}");
+            sep = ",\n";
+        }
+        sb.append("\n  }\n}\n");
+
+        if (output != null)
+            Files.write(Paths.get(output), sb.toString().getBytes(StandardCharsets.UTF_8));
+        else
+            System.out.print(sb);
+    }
+
+    private static boolean isCustom(String name) {
+        for (String namespace : NAMESPACES)
+            if (name.startsWith(namespace))
+                return true;
+        return false;
+    }
+
+    private static void appendPercentiles(StringBuilder sb, LatencyHistogram histogram) {
+        long count = histogram.getCount();
+        sb.append(String.format(Locale.ROOT, "{\"mean\": %.1f, ", count == 0 ? 0.0 : (double) histogram.getSum() / count));
+        sb.append("\"p50\": ").append(histogram.getValueAtQuantile(0.5)).append(", ");
+        sb.append("\"p90\": ").append(histogram.getValueAtQuantile(0.9)).append(", ");
+        sb.append("\"p99\": ").append(histogram.getValueAtQuantile(0.99)).append(", ");
+        sb.append("\"max\": ").append(histogram.getValueAtQuantile(1.0)).append("}");
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * LatencyHistogram Class
+ *
+ * A lock-free, HDR-style latency histogram.
+ * Values are recorded in log-linear buckets: every power of two is split
+ * into 32 linear sub-buckets, which bounds the relative error of any
+ * reported value to about 3% across the whole range of a long.
+ * Recording is a single atomic increment, so many threads can record
+ * concurrently without locking.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // per power of two
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Records a value.
+     *
+     * @param value The value to be recorded, negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    /**
+     * Records a value, correcting for coordinated omission: when a value is
+     * larger than the expected interval between samples, the samples that
+     * would have been taken during the stall are recorded as well, with
+     * linearly decreasing values.
+     *
+     * @param value            The value to be recorded
+     * @param expectedInterval The expected interval between samples, 0 for no correction
+     */
+    public void recordWithExpectedInterval(long value, long expectedInterval) {
+        record(value);
+        if (expectedInterval <= 0)
+            return;
+        for (long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval)
+            record(missing);
+    }
+
+    /**
+     * Returns the number of recorded values
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the sum of all recorded values
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the value at the given quantile, that is the highest value
+     * equivalent to the smallest recorded value with at least that fraction
+     * of values at or below it.
+     *
+     * @param quantile The quantile, between 0 and 1
+     * @return The value at the quantile, 0 if nothing has been recorded
+     */
+    public long getValueAtQuantile(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= target)
+                return highestValueOf(i);
+        }
+        return highestValueOf(BUCKETS - 1);
+    }
+
+    /**
+     * Adds all values recorded in another histogram to this one.
+     *
+     * @param other The histogram to be added
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0)
+                counts.addAndGet(i, c);
+        }
+        count.add(other.getCount());
+        sum.add(other.getSum());
+    }
+
+    // bucket holding the value
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    // largest value that falls in the bucket
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        long lowest = (long) (SUB_BUCKETS + sub) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * LineInputStream Class
+ *
+ * Buffered input stream of a connection that can also read text lines,
+ * so the HTTP/1.1 request head and any binary data that follows it, an
+ * HTTP/2 connection after an upgrade, are read from the same buffer.
+ * Lines are scanned for in the buffer itself and decoded as UTF-8.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+public class LineInputStream extends BufferedInputStream {
+
+    /**
+     * Constructor
+     *
+     * @param in The underlying input stream
+     */
+    public LineInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * Reads a line terminated by a line feed, optionally preceded by a
+     * carriage return.
+     *
+     * @return The line without its end, null at the end of the stream
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    public synchronized String readLine() throws IOException {
+        ByteArrayOutputStream partial = null; // a line longer than the buffered bytes
+        while (true) {
+            if (pos >= count) {
+                int b = super.read(); // refills the buffer
+                if (b == -1)
+                    return partial == null ? null : decode(partial.toByteArray(), 0, partial.size());
+                pos--;
+            }
+            for (int i = pos; i < count; i++) {
+                if (buf[i] == '\n') {
+                    int start = pos;
+                    pos = i + 1;
+                    if (partial == null)
+                        return decode(buf, start, i);
+                    partial.write(buf, start, i - start);
+                    return decode(partial.toByteArray(), 0, partial.size());
+                }
+            }
+            if (partial == null)
+                partial = new ByteArrayOutputStream(2 * (count - pos));
+            partial.write(buf, pos, count - pos);
+            pos = count;
+        }
+    }
+
+    // bytes [start, end) without a trailing carriage return
+    private static String decode(byte[] bytes, int start, int end) {
+        if (end > start && bytes[end - 1] == '\r')
+            end--;
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,461 @@
+/**
+ * LoadGenerator Class
+ *
+ * HTTP load generator for WebServer.
+ * Fetches a weighted mix of file sizes from a local server and reports
+ * throughput and latency percentiles as JSON.
+ *
+ * Two modes are supported:
+ * 		closed	each of the -c connections sends its next request as soon
+ * 				as the previous response is complete
+ * 		open	requests are scheduled at a fixed rate (-R) regardless of
+ * 				how fast the server answers; latency is measured from the
+ * 				scheduled start, so it is free of coordinated omission
+ *
+ * In closed mode, coordinated omission can be corrected after the fact
+ * by giving the expected interval between requests of a connection (-i).
+ *
+ * With HTTP/2 (-P h2) the -c concurrent requests are multiplexed, -s of
+ * them share each connection as separate streams; comparing, e.g.,
+ * "-P h2 -c 64 -s 64" with "-k on -c 64" shows the cost of one
+ * connection per outstanding request.
+ *
+ * Command line arguments (all optional):
+ * 		-e	host of an external server, by default a WebServer is started in-process
+ * 		-A	acceptor threads of the in-process server, default 1
+ * 		-p	server port, default 2025
+ * 		-r	root directory of the server, the test files are created in <root>/load
+ * 		-m	mode: closed, open, default closed
+ * 		-c	concurrency (connections), default 16
+ * 		-R	request rate per second in open mode, default 1000
+ * 		-i	expected interval in micro-seconds for closed mode correction, default 0 (off)
+ * 		-d	measured duration in seconds, default 10
+ * 		-w	warm-up duration in seconds, default 2
+ * 		-k	keep-alive: on, off, default off
+ * 		-M	request method: GET, HEAD, default GET
+ * 		-P	protocol: http1, h2 (h2c with prior knowledge), default http1
+ * 		-s	concurrent streams per connection with h2, default 16
+ * 		-x	file size mix as size:weight,..., default 1024:80,65536:15,1048576:5
+ * 		-B	serve the root packed into an asset bundle: on, off, default off
+ * 		-o	output file for the JSON report, default standard output
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoadGenerator {
+
+    private final String host;
+    private final int port;
+    private final boolean openLoop;
+    private final int concurrency;
+    private final double rate;
+    private final long expectedInterval; // micro-seconds
+    private final long duration; // nano-seconds
+    private final long warmup; // nano-seconds
+    private final boolean keepAlive;
+    private final String[] paths; // one entry per unit of weight
+    private String method = "GET";
+    private boolean bundled = false; // the in-process server serves an asset bundle, for the report
+    private int streamsPerConnection = 0; // 0 for HTTP/1.1, otherwise requests sharing an HTTP/2 connection
+    private Http2Client[] http2Clients; // shared connections, replaced when they fail
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private final ConcurrentHashMap<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+    private final AtomicLong nextSlot = new AtomicLong();
+
+    private long start;
+    private long measureStart;
+    private long end;
+
+    LoadGenerator(String host, int port, boolean openLoop, int concurrency, double rate, long expectedInterval,
+            long durationSeconds, long warmupSeconds, boolean keepAlive, String[] paths) {
+        this.host = host;
+        this.port = port;
+        this.openLoop = openLoop;
+        this.concurrency = concurrency;
+        this.rate = rate;
+        this.expectedInterval = expectedInterval;
+        this.duration = durationSeconds * 1_000_000_000L;
+        this.warmup = warmupSeconds * 1_000_000_000L;
+        this.keepAlive = keepAlive;
+        this.paths = paths;
+    }
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> params = new HashMap<String, String>();
+        for (int i = 0; (i + 1) < args.length; i += 2)
+            params.put(args[i], args[i + 1]);
+
+        String external = params.get("-e");
+        int port = Integer.parseInt(params.getOrDefault("-p", "2025"));
+        String root = params.get("-r");
+        boolean openLoop = params.getOrDefault("-m", "closed").equals("open");
+        int concurrency = Integer.parseInt(params.getOrDefault("-c", "16"));
+        double rate = Double.parseDouble(params.getOrDefault("-R", "1000"));
+        long expectedInterval = Long.parseLong(params.getOrDefault("-i", "0"));
+        long durationSeconds = Long.parseLong(params.getOrDefault("-d", "10"));
+        long warmupSeconds = Long.parseLong(params.getOrDefault("-w", "2"));
+        boolean keepAlive = params.getOrDefault("-k", "off").equals("on");
+        String mix = params.getOrDefault("-x", "1024:80,65536:15,1048576:5");
+        String output = params.get("-o");
+        int acceptors = Integer.parseInt(params.getOrDefault("-A", "1"));
+        String method = params.getOrDefault("-M", "GET");
+        boolean http2 = params.getOrDefault("-P", "http1").equals("h2");
+        int streams = Integer.parseInt(params.getOrDefault("-s", "16"));
+        boolean bundled = params.getOrDefault("-B", "off").equals("on");
+
+        Path rootDir = (root != null) ? Paths.get(root) : Files.createTempDirectory("loadgen");
+        String[] paths = createFiles(rootDir, mix);
+
+        WebServer server = null;
+        if (external == null) {
+            ServerLog.setEnabled(false);
+            server = new WebServer(port, rootDir.toString(), 0);
+            server.setAcceptors(acceptors, 0);
+            if (bundled) {
+                // packed without gzip variants, the test files are random
+                Path bundle = Files.createTempFile("loadgen", ".wsb");
+                bundle.toFile().deleteOnExit();
+                new BundlePacker(MimeTypes.getDefault(), false, 0).pack(rootDir, bundle);
+                server.setBundle(AssetBundle.open(bundle.toFile()));
+            }
+            server.start();
+            Thread.sleep(500);
+        }
+
+        LoadGenerator generator = new LoadGenerator(external != null ? external : "localhost", port, openLoop,
+                concurrency, rate, expectedInterval, durationSeconds, warmupSeconds, keepAlive, paths);
+        generator.method = method;
+        generator.bundled = bundled && external == null;
+        if (http2)
+            generator.setHttp2(streams);
+        generator.run();
+
+        String report = generator.toJson(mix);
+        if (output != null)
+            Files.write(Paths.get(output), report.getBytes(StandardCharsets.UTF_8));
+        else
+            System.out.print(report);
+
+        if (server != null)
+            server.shutdown();
+        System.exit(0);
+    }
+
+    // writes one file per size under <root>/load, returns request paths weighted by the mix
+    static String[] createFiles(Path root, String mix) throws IOException {
+        Files.createDirectories(root.resolve("load"));
+        List<String> weighted = new ArrayList<>();
+        for (String item : mix.split(",")) {
+            String[] sizeWeight = item.trim().split(":");
+            int size = Integer.parseInt(sizeWeight[0]);
+            int weight = sizeWeight.length > 1 ? Integer.parseInt(sizeWeight[1]) : 1;
+
+            Path file = root.resolve("load").resolve(size + ".bin");
+            if (!Files.exists(file) || Files.size(file) != size) {
+                byte[] content = new byte[size];
+                new Random(size).nextBytes(content);
+                Files.write(file, content);
+            }
+            for (int i = 0; i < weight; i++)
+                weighted.add("/load/" + size + ".bin");
+        }
+        return weighted.toArray(new String[0]);
+    }
+
+    // multiplexes the concurrent requests over HTTP/2 connections, streams of them per connection
+    void setHttp2(int streams) {
+        streamsPerConnection = Math.max(1, streams);
+        http2Clients = new Http2Client[(concurrency + streamsPerConnection - 1) / streamsPerConnection];
+    }
+
+    void run() throws InterruptedException {
+        start = System.nanoTime();
+        measureStart = start + warmup;
+        end = measureStart + duration;
+
+        Thread[] workers = new Thread[concurrency];
+        for (int i = 0; i < workers.length; i++) {
+            int index = i;
+            workers[i] = new Thread(() -> {
+                if (streamsPerConnection > 0)
+                    workHttp2(index / streamsPerConnection);
+                else
+                    work();
+            }, "load-" + i);
+            workers[i].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        if (http2Clients != null)
+            for (Http2Client client : http2Clients)
+                if (client != null)
+                    client.close();
+    }
+
+    // one connection's request loop
+    private void work() {
+        long slotNanos = (long) (1e9 / rate);
+        Connection connection = null;
+
+        while (true) {
+            long intended;
+            if (openLoop) {
+                intended = start + nextSlot.getAndIncrement() * slotNanos;
+                if (intended >= end)
+                    break;
+                long wait;
+                while ((wait = intended - System.nanoTime()) > 0)
+                    LockSupport.parkNanos(wait);
+            } else {
+                intended = System.nanoTime();
+                if (intended >= end)
+                    break;
+            }
+
+            String path = paths[ThreadLocalRandom.current().nextInt(paths.length)];
+            try {
+                if (connection == null) {
+                    connection = new Connection();
+                    if (intended >= measureStart)
+                        connections.increment();
+                }
+                boolean serverClosed = connection.fetch(path);
+                int status = connection.status;
+                long size = connection.responseBytes;
+                if (!keepAlive || serverClosed) {
+                    connection.close();
+                    connection = null;
+                }
+
+                long done = System.nanoTime();
+                if (intended >= measureStart) {
+                    latency.recordWithExpectedInterval((done - intended) / 1000, openLoop ? 0 : expectedInterval);
+                    completed.increment();
+                    bytes.add(size);
+                    statuses.computeIfAbsent(status, code -> new LongAdder()).increment();
+                }
+            } catch (IOException e) {
+                if (intended >= measureStart)
+                    errors.increment();
+                if (connection != null)
+                    connection.close();
+                connection = null;
+            }
+        }
+
+        if (connection != null)
+            connection.close();
+    }
+
+    // one stream's request loop, on the HTTP/2 connection shared with other streams
+    private void workHttp2(int shared) {
+        long slotNanos = (long) (1e9 / rate);
+
+        while (true) {
+            long intended;
+            if (openLoop) {
+                intended = start + nextSlot.getAndIncrement() * slotNanos;
+                if (intended >= end)
+                    break;
+                long wait;
+                while ((wait = intended - System.nanoTime()) > 0)
+                    LockSupport.parkNanos(wait);
+            } else {
+                intended = System.nanoTime();
+                if (intended >= end)
+                    break;
+            }
+
+            String path = paths[ThreadLocalRandom.current().nextInt(paths.length)];
+            Http2Client client = null;
+            try {
+                client = http2Client(shared, intended >= measureStart);
+                Http2Client.Response response = client.fetch(method, path);
+
+                long done = System.nanoTime();
+                if (intended >= measureStart) {
+                    latency.recordWithExpectedInterval((done - intended) / 1000, openLoop ? 0 : expectedInterval);
+                    completed.increment();
+                    bytes.add(response.bytes);
+                    statuses.computeIfAbsent(response.status, code -> new LongAdder()).increment();
+                }
+            } catch (IOException e) {
+                if (intended >= measureStart)
+                    errors.increment();
+                if (client != null)
+                    replaceHttp2Client(shared, client);
+            }
+        }
+    }
+
+    // the shared connection, opened by the first stream that needs it
+    private Http2Client http2Client(int shared, boolean measured) throws IOException {
+        synchronized (http2Clients) {
+            if (http2Clients[shared] == null) {
+                http2Clients[shared] = new Http2Client(host, port);
+                if (measured)
+                    connections.increment();
+            }
+            return http2Clients[shared];
+        }
+    }
+
+    // drops a failed connection, unless another stream already replaced it
+    private void replaceHttp2Client(int shared, Http2Client failed) {
+        synchronized (http2Clients) {
+            if (http2Clients[shared] == failed)
+                http2Clients[shared] = null;
+        }
+        failed.close();
+    }
+
+    // a client connection, possibly reused for several requests
+    private class Connection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] buffer = new byte[64 * 1024];
+        int status; // of the last response
+        long responseBytes; // of the last response, headers included
+
+        Connection() throws IOException {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port));
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            out = socket.getOutputStream();
+        }
+
+        // sends a request and reads the whole response, returns true if the server closes the connection
+        boolean fetch(String path) throws IOException {
+            String request = method + " " + path + " HTTP/1.1\r\n" +
+                    "Host: " + host + "\r\n" +
+                    "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+            out.write(request.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            // headers
+            StringBuilder headers = new StringBuilder();
+            int b;
+            while ((b = in.read()) != -1) {
+                headers.append((char) b);
+                int n = headers.length();
+                if (n >= 4 && headers.charAt(n - 1) == '\n' && headers.charAt(n - 2) == '\r'
+                        && headers.charAt(n - 3) == '\n' && headers.charAt(n - 4) == '\r')
+                    break;
+            }
+            if (b == -1)
+                throw new EOFException("connection closed before response headers");
+
+            String[] lines = headers.toString().split("\r\n");
+            String[] statusParts = lines[0].split(" ");
+            int status = statusParts.length > 1 ? Integer.parseInt(statusParts[1]) : 0;
+            long contentLength = -1;
+            boolean close = !lines[0].startsWith("HTTP/1.1");
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon < 0)
+                    continue;
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length"))
+                    contentLength = Long.parseLong(value);
+                else if (name.equalsIgnoreCase("Connection"))
+                    close = value.equalsIgnoreCase("close");
+            }
+
+            // body, none for HEAD whatever its Content-Length
+            long received = 0;
+            if (method.equals("HEAD"))
+                contentLength = 0;
+            if (contentLength >= 0) {
+                while (received < contentLength) {
+                    int n = in.read(buffer, 0, (int) Math.min(buffer.length, contentLength - received));
+                    if (n == -1)
+                        throw new EOFException("connection closed before end of body");
+                    received += n;
+                }
+            } else {
+                int n;
+                while ((n = in.read(buffer)) != -1)
+                    received += n;
+                close = true;
+            }
+
+            this.status = status;
+            this.responseBytes = headers.length() + received;
+            return close;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ok, ignore
+            }
+        }
+    }
+
+    // machine-readable report
+    String toJson(String mix) {
+        double seconds = duration / 1e9;
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"mode\": \"").append(openLoop ? "open" : "closed").append("\",\n");
+        sb.append("  \"concurrency\": ").append(concurrency).append(",\n");
+        if (openLoop)
+            sb.append("  \"target_rate\": ").append(rate).append(",\n");
+        sb.append("  \"method\": \"").append(method).append("\",\n");
+        sb.append("  \"protocol\": \"").append(streamsPerConnection > 0 ? "h2" : "http1").append("\",\n");
+        if (streamsPerConnection > 0)
+            sb.append("  \"streams_per_connection\": ").append(streamsPerConnection).append(",\n");
+        else
+            sb.append("  \"keep_alive\": ").append(keepAlive).append(",\n");
+        sb.append("  \"size_mix\": \"").append(mix).append("\",\n");
+        sb.append("  \"bundled\": ").append(bundled).append(",\n");
+        sb.append("  \"duration_s\": ").append(seconds).append(",\n");
+        sb.append("  \"coordinated_omission_corrected\": ").append(openLoop || expectedInterval > 0).append(",\n");
+        sb.append("  \"requests\": ").append(completed.sum()).append(",\n");
+        sb.append("  \"errors\": ").append(errors.sum()).append(",\n");
+        sb.append("  \"connections\": ").append(connections.sum()).append(",\n");
+        sb.append("  \"status\": {");
+        String sep = "";
+        for (Map.Entry<Integer, LongAdder> e : new TreeMap<>(statuses).entrySet()) {
+            sb.append(sep).append('"').append(e.getKey()).append("\": ").append(e.getValue().sum());
+            sep = ", ";
+        }
+        sb.append("},\n");
+        sb.append(String.format(Locale.ROOT, "  \"throughput_rps\": %.1f,%n", completed.sum() / seconds));
+        sb.append(String.format(Locale.ROOT, "  \"throughput_bytes_per_s\": %.1f,%n", bytes.sum() / seconds));
+        sb.append(String.format(Locale.ROOT, "  \"connections_per_s\": %.1f,%n", connections.sum() / seconds));
+        long count = latency.getCount();
+        sb.append("  \"latency_us\": {");
+        sb.append(String.format(Locale.ROOT, "\"mean\": %.1f, ", count == 0 ? 0.0 : (double) latency.getSum() / count));
+        sb.append("\"p50\": ").append(latency.getValueAtQuantile(0.5)).append(", ");
+        sb.append("\"p90\": ").append(latency.getValueAtQuantile(0.9)).append(", ");
+        sb.append("\"p99\": ").append(latency.getValueAtQuantile(0.99)).append(", ");
+        sb.append("\"p999\": ").append(latency.getValueAtQuantile(0.999)).append(", ");
+        sb.append("\"max\": ").append(latency.getValueAtQuantile(1.0)).append("}\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+}
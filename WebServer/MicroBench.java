@@ -0,0 +1,130 @@
+/**
+ * MicroBench Class
+ *
+ * Micro-benchmarks of the per-request helpers of the web server:
+ * the ServerUtils header helpers, request line parsing and response
+ * header encoding, request path resolution and the admission control checks done per accepted
+ * connection. Each benchmark is warmed up, then timed over several
+ * measurement rounds; results are reported as JSON (ns/op per round).
+ *
+ * Command line arguments (all optional):
+ * 		-n	operations per round, default 200000
+ * 		-r	measurement rounds, default 5
+ * 		-o	output file for the JSON report, default standard output
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class MicroBench {
+
+    private static volatile long sink; // keeps results alive so the JIT cannot drop the work
+
+    // a benchmarked operation
+    private interface Op {
+        Object run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> params = new HashMap<String, String>();
+        for (int i = 0; (i + 1) < args.length; i += 2)
+            params.put(args[i], args[i + 1]);
+
+        int ops = Integer.parseInt(params.getOrDefault("-n", "200000"));
+        int rounds = Integer.parseInt(params.getOrDefault("-r", "5"));
+        String output = params.get("-o");
+        ServerLog.setEnabled(false); // the header helpers log every line they write
+
+        File dir = Files.createTempDirectory("microbench").toFile();
+        dir.deleteOnExit();
+        File file = new File(dir, "index.html");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "<html></html>".getBytes(StandardCharsets.US_ASCII));
+
+        LinkedHashMap<String, Op> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("ServerUtils.getCurrentDate", ServerUtils::getCurrentDate);
+        benchmarks.put("ServerUtils.getLastModified", () -> ServerUtils.getLastModified(file));
+        benchmarks.put("ServerUtils.getContentLength", () -> ServerUtils.getContentLength(file));
+        benchmarks.put("ServerUtils.getContentType", () -> ServerUtils.getContentType(file));
+        benchmarks.put("Files.probeContentType", () -> Files.probeContentType(file.toPath()));
+        MimeTypes mimeTypes = MimeTypes.getDefault();
+        benchmarks.put("MimeTypes.getContentTypeHeader", () -> mimeTypes.getContentTypeHeader(file.getName()));
+        benchmarks.put("request.parse", () -> parseRequestLine("GET /index.html HTTP/1.1"));
+        benchmarks.put("response.encodeHeaders", () -> encodeHeaders(file, mimeTypes));
+
+        PathResolver uncached = new PathResolver(file.getParent());
+        PathResolver cached = new PathResolver(file.getParent(), 1000);
+        String target = "/" + file.getName();
+        benchmarks.put("PathResolver.resolve.uncached", () -> uncached.resolve(target));
+        benchmarks.put("PathResolver.resolve.cached", () -> cached.resolve(target));
+        benchmarks.put("PathResolver.resolve.cachedMissing", () -> cached.resolve("/missing.html"));
+
+        RateLimiter limiter = new RateLimiter(1e9, 1000);
+        InetAddress[] clients = new InetAddress[1024];
+        for (int i = 0; i < clients.length; i++)
+            clients[i] = InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i >> 8), (byte) i });
+        int[] next = { 0 };
+        benchmarks.put("RateLimiter.tryAcquire.oneClient", () -> limiter.tryAcquire(clients[0]));
+        benchmarks.put("RateLimiter.tryAcquire.1024Clients",
+                () -> limiter.tryAcquire(clients[next[0]++ & (clients.length - 1)]));
+
+        StringBuilder sb = new StringBuilder("{\n  \"ops_per_round\": " + ops + ",\n  \"benchmarks\": [\n");
+        String sep = "";
+        for (Map.Entry<String, Op> benchmark : benchmarks.entrySet()) {
+            Op op = benchmark.getValue();
+            measure(op, ops); // warm up
+
+            double[] nsPerOp = new double[rounds];
+            for (int r = 0; r < rounds; r++)
+                nsPerOp[r] = measure(op, ops);
+            Arrays.sort(nsPerOp);
+
+            sb.append(sep).append(String.format(Locale.ROOT,
+                    "    {\"name\": \"%s\", \"ns_per_op_median\": %.1f, \"ns_per_op_min\": %.1f, \"ns_per_op_max\": %.1f}",
+                    benchmark.getKey(), nsPerOp[rounds / 2], nsPerOp[0], nsPerOp[rounds - 1]));
+            sep = ",\n";
+        }
+        sb.append("\n  ]\n}\n");
+
+        if (output != null)
+            Files.write(Paths.get(output), sb.toString().getBytes(StandardCharsets.UTF_8));
+        else
+            System.out.print(sb);
+    }
+
+    // runs the operation ops times, returns the mean time per operation in nano-seconds
+    private static double measure(Op op, int ops) throws Exception {
+        long hash = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ops; i++)
+            hash += Objects.hashCode(op.run());
+        long elapsed = System.nanoTime() - start;
+        sink += hash;
+        return (double) elapsed / ops;
+    }
+
+    // request line handling of WorkerThread, up to the method
+    private static Object parseRequestLine(String requestLine) {
+        String[] requestParts = WorkerThread.parseRequestLine(requestLine);
+        if (requestParts == null || !WorkerThread.isServedVersion(requestParts[2]))
+            return null;
+        return requestParts[0];
+    }
+
+    // status line and headers of a 200 response to a persistent connection, encoded by WorkerThread
+    private static Object encodeHeaders(File file, MimeTypes mimeTypes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        WorkerThread.writeStatusAndHeaders(out, 200, "OK", true);
+        WorkerThread.writeFileHeaders(out, file, mimeTypes);
+        out.writeBytes("\r\n");
+        return bytes.size();
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * MimeTypes Class
+ *
+ * Maps file name extensions to MIME types, replacing the per-request
+ * Files.probeContentType call. The table holds a set of common types,
+ * optionally extended or overridden by a mime.types file (lines of a
+ * type followed by its extensions, # starts a comment).
+ *
+ * The table is built once and never changes: an open-addressing hash
+ * table with linear probing, looked up with the extension of the file
+ * name in place (case-insensitively, without creating substrings).
+ * Every entry also holds its complete, pre-encoded Content-Type header
+ * line; text types get a charset parameter.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+public class MimeTypes {
+
+    private static final String DEFAULT_TYPE = "application/octet-stream";
+    private static final String CHARSET = "utf-8";
+
+    private static final String[] BUILT_IN = {
+            "text/html html htm",
+            "text/css css",
+            "text/plain txt text log",
+            "text/csv csv",
+            "text/markdown md",
+            "text/xml xml",
+            "application/javascript js mjs",
+            "application/json json map",
+            "application/xhtml+xml xhtml",
+            "application/pdf pdf",
+            "application/zip zip",
+            "application/gzip gz",
+            "application/x-tar tar",
+            "application/x-bzip2 bz2",
+            "application/x-7z-compressed 7z",
+            "application/wasm wasm",
+            "application/octet-stream bin exe dll iso",
+            "image/png png",
+            "image/jpeg jpg jpeg",
+            "image/gif gif",
+            "image/svg+xml svg",
+            "image/x-icon ico",
+            "image/webp webp",
+            "image/avif avif",
+            "image/bmp bmp",
+            "image/tiff tif tiff",
+            "font/woff woff",
+            "font/woff2 woff2",
+            "font/ttf ttf",
+            "font/otf otf",
+            "audio/mpeg mp3",
+            "audio/wav wav",
+            "audio/ogg ogg oga",
+            "video/mp4 mp4 m4v",
+            "video/webm webm",
+            "video/quicktime mov",
+            "video/mpeg mpeg mpg",
+    };
+
+    private static final MimeTypes DEFAULT = new MimeTypes(parse(Arrays.asList(BUILT_IN), new HashMap<>()));
+
+    // hash table, a null key marks a free slot
+    private final String[] extensions;
+    private final String[] types;
+    private final String[] values;
+    private final byte[][] headers;
+    private final int mask;
+    private final byte[] defaultHeader;
+
+    private MimeTypes(Map<String, String> table) {
+        int capacity = Integer.highestOneBit(Math.max(4, table.size() * 2) - 1) << 1; // load factor <= 0.5
+        extensions = new String[capacity];
+        types = new String[capacity];
+        values = new String[capacity];
+        headers = new byte[capacity][];
+        mask = capacity - 1;
+        for (Map.Entry<String, String> e : table.entrySet()) {
+            String extension = e.getKey();
+            int i = hash(extension, 0, extension.length()) & mask;
+            while (extensions[i] != null)
+                i = (i + 1) & mask;
+            extensions[i] = extension;
+            types[i] = e.getValue();
+            values[i] = headerValue(e.getValue());
+            headers[i] = encodeHeader(values[i]);
+        }
+        defaultHeader = encodeHeader(DEFAULT_TYPE);
+    }
+
+    /**
+     * Returns the table of built-in types
+     */
+    public static MimeTypes getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the built-in types extended by the types of a mime.types file.
+     * Extensions in the file override the built-in ones.
+     *
+     * @param file A file in the mime.types format
+     * @return The combined table
+     *
+     * @throws IOException If the file cannot be read
+     */
+    public static MimeTypes load(File file) throws IOException {
+        Map<String, String> table = parse(Arrays.asList(BUILT_IN), new HashMap<>());
+        return new MimeTypes(parse(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8), table));
+    }
+
+    /**
+     * Returns the MIME type of a file
+     *
+     * @param fileName Name or path of the file
+     * @return The MIME type, application/octet-stream if the extension is unknown
+     */
+    public String getContentType(String fileName) {
+        int i = indexOf(fileName);
+        return i < 0 ? DEFAULT_TYPE : types[i];
+    }
+
+    /**
+     * Returns the value of the Content-Type header of a file, with the
+     * charset of text types, e.g. for HTTP/2 responses
+     *
+     * @param fileName Name or path of the file
+     * @return The header value
+     */
+    public String getContentTypeValue(String fileName) {
+        int i = indexOf(fileName);
+        return i < 0 ? DEFAULT_TYPE : values[i];
+    }
+
+    /**
+     * Returns the complete Content-Type header line of a file, including
+     * the line end. The array is shared and must not be modified.
+     *
+     * @param fileName Name or path of the file
+     * @return The encoded header line
+     */
+    public byte[] getContentTypeHeader(String fileName) {
+        int i = indexOf(fileName);
+        return i < 0 ? defaultHeader : headers[i];
+    }
+
+    // slot of the file's extension, -1 if unknown
+    private int indexOf(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0 || dot < fileName.lastIndexOf('/'))
+            return -1;
+        int start = dot + 1;
+        int length = fileName.length() - start;
+        int i = hash(fileName, start, fileName.length()) & mask;
+        String extension;
+        while ((extension = extensions[i]) != null) {
+            if (extension.length() == length && fileName.regionMatches(true, start, extension, 0, length))
+                return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    // case-insensitive hash of s[start, end), spread over the low bits
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z')
+                c += 'a' - 'A';
+            h = 31 * h + c;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static String headerValue(String type) {
+        return isText(type) ? type + "; charset=" + CHARSET : type;
+    }
+
+    private static byte[] encodeHeader(String value) {
+        return ("Content-Type: " + value + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static boolean isText(String type) {
+        return type.startsWith("text/") || type.equals("application/javascript") || type.equals("application/json")
+                || type.equals("application/xhtml+xml");
+    }
+
+    // adds the entries of mime.types lines to the table
+    private static Map<String, String> parse(List<String> lines, Map<String, String> table) {
+        for (String line : lines) {
+            int comment = line.indexOf('#');
+            if (comment >= 0)
+                line = line.substring(0, comment);
+            String[] fields = line.trim().split("\\s+");
+            for (int i = 1; i < fields.length; i++)
+                table.put(fields[i].toLowerCase(Locale.ROOT), fields[0].toLowerCase(Locale.ROOT));
+        }
+        return table;
+    }
+}
@@ -0,0 +1,292 @@
+/**
+ * PathResolver Class
+ *
+ * Maps request targets to files under the server's root directory.
+ * A target is stripped of its query, percent-decoded as UTF-8 and
+ * normalized; targets that would leave the root, directly with ".." or
+ * through a symbolic link, are refused. A directory resolves to its
+ * index.html.
+ *
+ * Resolutions, including those of files that do not exist, can be kept
+ * in a bounded cache keyed by the normalized path, so repeated requests
+ * need no file system calls whatever their query or spelling.
+ * The cache is kept current by a WatchService on the root and all its
+ * sub-directories: a change in a directory drops the cached resolutions
+ * below the changed entry. Changes are seen with a short delay, and
+ * changes behind symbolic links pointing outside the root are not seen.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.*;
+
+public class PathResolver {
+
+    private static final Logger logger = Logger.getLogger("WebServer"); // global logger
+    static final String INDEX_FILE = "index.html";
+
+    /**
+     * Outcome of resolving a request target.
+     */
+    public enum Status {
+        FOUND, NOT_FOUND, FORBIDDEN, BAD_REQUEST
+    }
+
+    /**
+     * A resolved request target.
+     */
+    public static class Resolution {
+        private final Status status;
+        private final Path candidate; // normalized path the target names, null if refused
+        private final File file; // the file to be served, null unless found
+
+        private Resolution(Status status, Path candidate, File file) {
+            this.status = status;
+            this.candidate = candidate;
+            this.file = file;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public File getFile() {
+            return file;
+        }
+    }
+
+    private static final Resolution FORBIDDEN = new Resolution(Status.FORBIDDEN, null, null);
+    private static final Resolution BAD_REQUEST = new Resolution(Status.BAD_REQUEST, null, null);
+
+    private final Path root;
+    private final Path realRoot;
+    private final int maxEntries; // 0 for no cache
+    private final ConcurrentHashMap<String, Resolution> cache = new ConcurrentHashMap<>(); // by normalized path
+    private volatile boolean closed = false;
+    private volatile long generation = 0; // incremented on every change seen, written by the watch thread only
+    private WatchService watcher;
+
+    /**
+     * Constructor of a resolver without a cache
+     *
+     * @param root The root directory
+     *
+     * @throws IOException If the root directory does not exist
+     */
+    public PathResolver(String root) throws IOException {
+        this(root, 0);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param root       The root directory
+     * @param maxEntries Maximum number of cached resolutions, 0 for no cache
+     *
+     * @throws IOException If the root directory does not exist or cannot be watched
+     */
+    public PathResolver(String root, int maxEntries) throws IOException {
+        this.root = Paths.get(root).toAbsolutePath().normalize();
+        this.realRoot = this.root.toRealPath();
+        this.maxEntries = maxEntries;
+        if (maxEntries > 0) {
+            watcher = FileSystems.getDefault().newWatchService();
+            registerTree(this.root);
+            Thread t = new Thread(this::watch, "PathResolver-watch");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Resolves a request target.
+     *
+     * @param target The request target of the request line, e.g. /docs/a%20b.html?x=1
+     * @return The resolution, never null
+     */
+    public Resolution resolve(String target) {
+        String path = decode(target);
+        if (path == null)
+            return BAD_REQUEST;
+        path = normalize(path);
+        if (path == null)
+            return FORBIDDEN;
+        if (maxEntries == 0 || closed)
+            return lookup(path);
+
+        Resolution resolution = cache.get(path);
+        if (resolution == null) {
+            long before = generation;
+            resolution = lookup(path);
+            // not cached if a change may have happened during the lookup
+            if (resolution.candidate != null && generation == before) {
+                if (cache.size() >= maxEntries)
+                    evict();
+                cache.put(path, resolution);
+                // the watch thread may have dropped the entries of a change between the check and the put
+                if (generation != before)
+                    cache.remove(path, resolution);
+            }
+        }
+        return resolution;
+    }
+
+    /**
+     * Returns the number of cached resolutions
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Stops watching the root directory and drops the cache,
+     * later resolutions go to the file system.
+     */
+    public void close() {
+        closed = true;
+        cache.clear();
+        try {
+            if (watcher != null)
+                watcher.close();
+        } catch (IOException e) {
+            // Ok, ignore
+        }
+    }
+
+    // resolves a normalized path on the file system
+    private Resolution lookup(String path) {
+        Path candidate;
+        try {
+            candidate = root.resolve(path.substring(1));
+        } catch (InvalidPathException e) {
+            return BAD_REQUEST;
+        }
+
+        try {
+            Path file = candidate;
+            if (Files.isDirectory(file))
+                file = file.resolve(INDEX_FILE);
+            if (!Files.isRegularFile(file))
+                return new Resolution(Status.NOT_FOUND, candidate, null);
+            if (!file.toRealPath().startsWith(realRoot))
+                return FORBIDDEN; // a link out of the root
+            return new Resolution(Status.FOUND, candidate, file.toFile());
+        } catch (IOException e) {
+            return new Resolution(Status.NOT_FOUND, candidate, null);
+        }
+    }
+
+    // path of the target without query and fragment, percent-decoded; null if malformed
+    static String decode(String target) {
+        int end = target.length();
+        int query = target.indexOf('?');
+        if (query >= 0)
+            end = query;
+        int fragment = target.indexOf('#');
+        if (fragment >= 0 && fragment < end)
+            end = fragment;
+        if (end == 0 || target.charAt(0) != '/')
+            return null;
+
+        String path = target.substring(0, end);
+        if (path.indexOf('%') < 0)
+            return path;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(path.length());
+        int i = 0;
+        while (i < path.length()) {
+            int percent = path.indexOf('%', i);
+            if (percent < 0)
+                percent = path.length();
+            bytes.writeBytes(path.substring(i, percent).getBytes(StandardCharsets.UTF_8));
+            if (percent == path.length())
+                break;
+            if (percent + 2 >= path.length())
+                return null;
+            int hi = Character.digit(path.charAt(percent + 1), 16);
+            int lo = Character.digit(path.charAt(percent + 2), 16);
+            if (hi < 0 || lo < 0 || (hi | lo) == 0)
+                return null; // malformed or NUL
+            bytes.write(hi << 4 | lo);
+            i = percent + 3;
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    // the decoded path without empty and "." segments and with ".." applied, e.g. /a/b; null if it climbs above the root
+    static String normalize(String path) {
+        if (path.indexOf("//") < 0 && path.indexOf("/.") < 0 && (path.length() == 1 || !path.endsWith("/")))
+            return path; // already normalized, the common case
+
+        StringBuilder normalized = new StringBuilder(path.length());
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || segment.equals("."))
+                continue;
+            if (segment.equals("..")) {
+                if (normalized.length() == 0)
+                    return null;
+                normalized.setLength(normalized.lastIndexOf("/"));
+            } else {
+                normalized.append('/').append(segment);
+            }
+        }
+        return normalized.length() == 0 ? "/" : normalized.toString();
+    }
+
+    // makes room by dropping about a tenth of the cache
+    private void evict() {
+        int toRemove = Math.max(1, maxEntries / 10);
+        Iterator<String> it = cache.keySet().iterator();
+        while (toRemove-- > 0 && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    // watches the root and all directories below it
+    private void registerTree(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // drops the cached resolutions affected by file system changes
+    private void watch() {
+        try {
+            while (!closed) {
+                WatchKey key = watcher.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    generation++;
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        cache.clear();
+                        continue;
+                    }
+                    Path changed = dir.resolve((Path) event.context());
+                    // entries below the changed entry, and index lookups of its directory
+                    cache.values().removeIf(r -> r.candidate.startsWith(changed) || r.candidate.equals(dir));
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed))
+                        registerTree(changed);
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Stopped watching " + root + ", path cache disabled", e);
+            close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * RateLimiter Class
+ *
+ * Per-client token bucket, implemented with the generic cell rate
+ * algorithm (GCRA): each client has a single "theoretical arrival time"
+ * that a permitted request moves forward by one emission interval.
+ * A request is refused if that would put the client more than the burst
+ * ahead of the current time.
+ *
+ * Clients are kept in a ConcurrentHashMap, so lookups do not lock and
+ * updates are a compare-and-set on the client's own cell. Clients whose
+ * bucket has refilled completely hold no state worth keeping and are
+ * removed by a periodic sweep, which bounds the table to active clients.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RateLimiter {
+
+    private static final long SWEEP_INTERVAL = 1_000_000_000L; // nano-seconds
+
+    private final long emissionInterval; // nano-seconds per permit
+    private final long burstTolerance; // nano-seconds a client may run ahead
+    private final ConcurrentHashMap<InetAddress, AtomicLong> clients = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL);
+
+    /**
+     * Constructor
+     *
+     * @param ratePerSecond Sustained permits per second and client
+     * @param burst         Permits a client may take at once after being idle, at least 1
+     */
+    public RateLimiter(double ratePerSecond, int burst) {
+        this.emissionInterval = (long) (1e9 / ratePerSecond);
+        this.burstTolerance = emissionInterval * (Math.max(1, burst) - 1);
+    }
+
+    /**
+     * Takes a permit for the client if one is available.
+     *
+     * @param client Address of the client
+     * @return true if the request is permitted, false if the client is over its rate
+     */
+    public boolean tryAcquire(InetAddress client) {
+        long now = System.nanoTime();
+        sweep(now);
+
+        AtomicLong tat = clients.get(client);
+        if (tat == null) {
+            tat = clients.computeIfAbsent(client, c -> new AtomicLong(now));
+        }
+        while (true) {
+            long current = tat.get();
+            long next = Math.max(current, now) + emissionInterval;
+            if (next - now > burstTolerance + emissionInterval)
+                return false;
+            if (tat.compareAndSet(current, next))
+                return true;
+        }
+    }
+
+    /**
+     * Returns the number of clients currently tracked
+     */
+    public int size() {
+        return clients.size();
+    }
+
+    // drops clients whose bucket is full again, at most once per interval and by one thread;
+    // a request racing with the removal of its client costs at most one extra permit
+    private void sweep(long now) {
+        long due = nextSweep.get();
+        if (now - due < 0 || !nextSweep.compareAndSet(due, now + SWEEP_INTERVAL))
+            return;
+        clients.values().removeIf(tat -> tat.get() - now <= 0);
+    }
+}
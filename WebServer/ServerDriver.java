@@ -13,6 +13,8 @@
 
 
 import java.io.*;
+import java.nio.file.NoSuchFileException;
+import java.security.GeneralSecurityException;
 import java.util.*;
 import java.util.logging.*;
 
@@ -21,6 +23,7 @@ public class ServerDriver {
 
 	private static final Logger logger = Logger.getLogger("WebServer"); // global logger
 	private static final int TERM_WAIT_TIME = 10000; // wait for server process to terminate (milli-seconds)
+	private static final BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
     
 	public static void main(String[] args) {
         // parse command line args
@@ -28,33 +31,84 @@ public class ServerDriver {
         
         // set the parameters
         int serverPort = Integer.parseInt( params.getOrDefault("-p", "2025") ); // server port number
-        int conTimeout = Integer.parseInt( params.getOrDefault("-t", "0") ); // idle connection timeout in milli-seconds, 0 means infinity
         String rootDir = params.getOrDefault("-r", System.getProperty("user.dir")); // root directory of the web server, default is current directory
         Level logLevel = Level.parse( params.getOrDefault("-v", "all").toUpperCase() ); // log levels: all, info, off
+        String keyStore = params.get("-k"); // key store with the server certificate, serves HTTPS if set
+        boolean requestLog = params.getOrDefault("-l", "on").equals("on"); // per-request console output: on, off
+        String accessLogFile = params.get("-a"); // access log file, no access log if not set
+        boolean accessLogBlock = params.getOrDefault("-ap", "drop").equals("block"); // when the access log buffer is full: drop, block
+        long accessLogFlush = Long.parseLong( params.getOrDefault("-af", "1000") ); // access log flush interval in milli-seconds
+        int acceptors = Integer.parseInt( params.getOrDefault("-A", "1") ); // acceptor threads, each with its own listening socket
+        long drainTime = Long.parseLong( params.getOrDefault("-dt", String.valueOf(TERM_WAIT_TIME)) ); // time given to responses in progress on shutdown/reload in milli-seconds
 
         // standard output
         setLogLevel(logLevel);
+        ServerLog.setEnabled(requestLog);
 
         System.out.println("log level is set to " + logLevel);
         System.out.println("starting the server on port " + serverPort);
         System.out.println("root directory set to " + rootDir);
-        WebServer server = new WebServer(serverPort, rootDir, conTimeout);
+        if (params.containsKey("-B"))
+            System.out.println("serving asset bundle " + params.get("-B"));
+        if (keyStore != null)
+            System.out.println("serving HTTPS with key store " + keyStore);
+        System.out.println("accepting on " + acceptors + " acceptor thread(s)");
+        WebServer server = null;
+        try {
+            server = createServer(params, rootDir);
+        } catch (IOException e) {
+            System.out.println(e.getMessage()); // names the file that could not be loaded
+            System.exit(1);
+        } catch (NumberFormatException e) {
+            System.out.println("invalid number in the command line: " + e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.out.println("cannot create the server: " + e);
+            System.exit(1);
+        }
         
+        AccessLog accessLog = null;
+        if (accessLogFile != null) {
+            System.out.println("access log written to " + accessLogFile);
+            accessLog = openAccessLog(accessLogFile, accessLogFlush, accessLogBlock);
+            server.setAccessLog(accessLog);
+        }
+
         // start the server
         server.start();
-        System.out.println("server started, type \"quit\" to stop");
+        System.out.println("server started, type \"quit\" to stop, \"reload [root]\" to reload");
         System.out.println(".....................................");
 
-        // wait for quit command
-        waitForQuit(server);
+        // wait for commands, a reload replaces the server without closing the listening socket
+        List<Thread> draining = new ArrayList<>();
+        String command;
+        while ((command = waitForCommand(server)) != null && command.startsWith("reload")) {
+            String newRoot = command.substring("reload".length()).trim();
+            if (!newRoot.isEmpty())
+                rootDir = newRoot;
+            try {
+                WebServer next = createServer(params, rootDir);
+                next.takeOver(server);
+                next.start();
+                draining.add(drainInBackground(server, drainTime));
+                server = next;
+                System.out.println("server reloaded, root directory set to " + rootDir);
+            } catch (Exception e) {
+                System.out.println("reload failed, keeping the running server: " + e.getMessage());
+            }
+        }
 
         try {
-            // shutdown the server
+            // shutdown the server, letting responses in progress complete
             System.out.println();
             System.out.println("server is shutting down...");
-            server.shutdown();
-            server.join(TERM_WAIT_TIME);
-            System.out.println("server stopped");
+            boolean drained = server.drain(drainTime);
+            server.join(drainTime);
+            for (Thread t : draining)
+                t.join();
+            if (accessLog != null)
+                accessLog.close();
+            System.out.println(drained ? "server stopped" : "server stopped, connections still open were closed");
         } catch (InterruptedException e) {
             // Ok, ignore
             System.out.println("server did not shutdown properly");
@@ -64,20 +118,113 @@ public class ServerDriver {
 	}
 
 
-    // wait until user types "quit" or server terminates
-    private static void waitForQuit(Thread server) {
-        BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+    // create a server with the settings of the command line, a file that cannot be loaded is named in the IOException
+    private static WebServer createServer(HashMap<String, String> params, String rootDir) throws Exception {
+        int serverPort = Integer.parseInt( params.getOrDefault("-p", "2025") ); // server port number
+        int conTimeout = Integer.parseInt( params.getOrDefault("-t", "0") ); // keep-alive idle timeout in milli-seconds, 0 means the default of 5 s
+        long headerTimeout = Long.parseLong( params.getOrDefault("-ht", "10000") ); // time for a request line and headers to arrive in milli-seconds, 0 means no limit
+        long writeTimeout = Long.parseLong( params.getOrDefault("-wt", "30000") ); // time a response may make no progress in milli-seconds, 0 means no limit
+        String keyStore = params.get("-k"); // key store with the server certificate, serves HTTPS if set
+        String keyStorePassword = params.getOrDefault("-w", "changeit"); // key store password
+        int acceptors = Integer.parseInt( params.getOrDefault("-A", "1") ); // acceptor threads, each with its own listening socket
+        int workers = Integer.parseInt( params.getOrDefault("-W", "0") ); // worker threads per acceptor, 0 means a thread per connection
+        int backlog = Integer.parseInt( params.getOrDefault("-b", "0") ); // listen backlog, 0 means system default
+        boolean tcpNoDelay = params.getOrDefault("-nd", "on").equals("on"); // TCP_NODELAY on accepted connections: on, off
+        int receiveBuffer = Integer.parseInt( params.getOrDefault("-rb", "0") ); // socket receive buffer in bytes, 0 means system default
+        int sendBuffer = Integer.parseInt( params.getOrDefault("-sb", "0") ); // socket send buffer in bytes, 0 means system default
+        int maxConnections = Integer.parseInt( params.getOrDefault("-mc", "0") ); // maximum open connections, 0 means no limit
+        double clientRate = Double.parseDouble( params.getOrDefault("-rl", "0") ); // requests per second per client IP, 0 means no limit
+        int clientBurst = Integer.parseInt( params.getOrDefault("-rlb", "10") ); // requests a client IP may make at once
+        long bandwidth = Long.parseLong( params.getOrDefault("-bw", "0") ); // bytes per second per connection for large files, 0 means no limit
+        long bandwidthMinSize = Long.parseLong( params.getOrDefault("-bwm", "1048576") ); // smallest file in bytes that is throttled
+        int pathCache = Integer.parseInt( params.getOrDefault("-pc", "10000") ); // cached request paths, 0 means no cache
+        String mimeTypesFile = params.get("-mt"); // mime.types file extending the built-in types, read again on reload
+        boolean http2 = params.getOrDefault("-h2", "on").equals("on"); // HTTP/2 over clear text (h2c): on, off
+        String bundleFile = params.get("-B"); // asset bundle packed by BundlePacker, served instead of the root directory, mapped again on reload
+
+        WebServer server;
+        if (keyStore == null) {
+            server = new WebServer(serverPort, rootDir, conTimeout);
+        } else {
+            // the key store is read again on every reload, picking up a renewed certificate
+            ServerTls tls;
+            try {
+                tls = new ServerTls(keyStore, keyStorePassword);
+            } catch (IOException | GeneralSecurityException e) {
+                throw new IOException("cannot load key store " + keyStore + ": " + reason(e), e);
+            }
+            server = new WebServer(serverPort, rootDir, conTimeout, tls);
+        }
+        server.setAcceptors(acceptors, workers);
+        server.setSocketOptions(backlog, tcpNoDelay, receiveBuffer, sendBuffer);
+        server.setAdmissionControl(maxConnections, clientRate > 0 ? new RateLimiter(clientRate, clientBurst) : null);
+        server.setBandwidthLimit(bandwidth, bandwidthMinSize);
+        server.setDeadlines(headerTimeout, writeTimeout);
+        server.setPathCache(pathCache);
+        if (mimeTypesFile != null) {
+            try {
+                server.setMimeTypes(MimeTypes.load(new File(mimeTypesFile)));
+            } catch (IOException e) {
+                throw new IOException("cannot load mime types " + mimeTypesFile + ": " + reason(e), e);
+            }
+        }
+        server.setHttp2(http2);
+        if (bundleFile != null) {
+            try {
+                server.setBundle(AssetBundle.open(new File(bundleFile)));
+            } catch (IOException e) {
+                throw new IOException("cannot load asset bundle " + bundleFile + ": " + reason(e), e);
+            }
+        }
+        return server;
+    }
+
+    // the reason a file could not be loaded
+    private static String reason(Exception e) {
+        return e instanceof NoSuchFileException ? "no such file" : e.getMessage();
+    }
+
+    // drain a replaced server on its own thread
+    private static Thread drainInBackground(WebServer server, long drainTime) {
+        Thread t = new Thread(() -> {
+            try {
+                server.drain(drainTime);
+            } catch (InterruptedException e) {
+                // Ok, ignore
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    // wait until user types "quit" or "reload", returns null if the server terminates
+    private static String waitForCommand(Thread server) {
         try {
             while (server.isAlive()) {
                 // to avoid blocking on input
-                if (console.ready()) 
-                    if (console.readLine().equals("quit")) break;
+                if (console.ready()) {
+                    String line = console.readLine();
+                    if (line.equals("quit") || line.startsWith("reload"))
+                        return line;
+                }
             }
         } catch (IOException e) {
             // Ok, ignore
         }
+        return null;
     }    
 
+    // open the access log with default buffer and rotation settings, exit if the file is not writable
+    private static AccessLog openAccessLog(String fileName, long flushInterval, boolean blockWhenFull) {
+        try {
+            return new AccessLog(new File(fileName), 65536, flushInterval, 64L << 20, 5, blockWhenFull);
+        } catch (IOException e) {
+            System.out.println("cannot open access log " + fileName + ": " + e.getMessage());
+            System.exit(0);
+            return null;
+        }
+    }
+
 	// parse command line arguments
 	private static HashMap<String, String> parseCommandLine(String[] args) {
 		HashMap<String, String> params = new HashMap<String, String>();
@@ -0,0 +1,211 @@
+/**
+ * ServerEvents Class
+ *
+ * JDK Flight Recorder events of WebServer, one per phase of a request:
+ * the request parsed, the file resolved and the response sent. They are
+ * recorded with the rest of a flight recording, e.g.
+ *
+ *      java -XX:StartFlightRecording=filename=server.jfr ServerDriver ...
+ *
+ * and summarized by JfrSummary. Events are only built and committed while
+ * a recording has them enabled; otherwise the begin methods return null
+ * after checking the event type, so they are always compiled in.
+ * Durations use the JFR clock.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import jdk.jfr.*;
+
+final class ServerEvents {
+
+    static final String PROTOCOL_HTTP1 = "HTTP/1.1";
+    static final String PROTOCOL_HTTP2 = "HTTP/2.0";
+
+    // looked up once, so a disabled event is not even allocated
+    private static final EventType REQUEST_PARSED = EventType.getEventType(RequestParsed.class);
+    private static final EventType FILE_RESOLVED = EventType.getEventType(FileResolved.class);
+    private static final EventType RESPONSE_SENT = EventType.getEventType(ResponseSent.class);
+
+    private ServerEvents() {
+    }
+
+    @Name("webserver.RequestParsed")
+    @Label("Request Parsed")
+    @Category({ "WebServer", "HTTP" })
+    @Description("Headers read and parsed, from reading the request line or the start of the HTTP/2 header block")
+    @StackTrace(false)
+    static class RequestParsed extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Target")
+        String target;
+
+        @Label("Protocol")
+        String protocol;
+    }
+
+    @Name("webserver.FileResolved")
+    @Label("File Resolved")
+    @Category({ "WebServer", "HTTP" })
+    @Description("Request target mapped to a file under the root directory")
+    @StackTrace(false)
+    static class FileResolved extends Event {
+        @Label("Target")
+        String target;
+
+        @Label("Status")
+        String status;
+
+        @Label("Path")
+        String path;
+    }
+
+    @Name("webserver.ResponseSent")
+    @Label("Response Sent")
+    @Category({ "WebServer", "HTTP" })
+    @Description("Response sent completely, from reading the request line or opening the HTTP/2 stream")
+    @StackTrace(false)
+    static class ResponseSent extends Event {
+        @Label("Request")
+        String requestLine;
+
+        @Label("Protocol")
+        String protocol;
+
+        @Label("Status")
+        int status;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Time to First Byte")
+        @Timespan(Timespan.NANOSECONDS)
+        long timeToFirstByte;
+    }
+
+    /**
+     * Begins a request parsed event, if enabled.
+     *
+     * @return The event, or null if no recording has it enabled
+     */
+    static RequestParsed beginRequestParsed() {
+        if (!REQUEST_PARSED.isEnabled())
+            return null;
+        RequestParsed event = new RequestParsed();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Begins a file resolved event, if enabled.
+     *
+     * @return The event, or null if no recording has it enabled
+     */
+    static FileResolved beginFileResolved() {
+        if (!FILE_RESOLVED.isEnabled())
+            return null;
+        FileResolved event = new FileResolved();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Begins a response sent event, if enabled.
+     *
+     * @return The event, or null if no recording has it enabled
+     */
+    static ResponseSent beginResponseSent() {
+        if (!RESPONSE_SENT.isEnabled())
+            return null;
+        ResponseSent event = new ResponseSent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Commits a request parsed event, if enabled.
+     *
+     * @param event       The event, begun when the request arrived, or null
+     * @param requestLine The request line, or its HTTP/2 equivalent
+     */
+    static void requestParsed(RequestParsed event, String requestLine) {
+        if (event == null)
+            return;
+        event.end();
+        if (event.shouldCommit()) {
+            String[] parts = requestLine.split(" ", 3);
+            event.method = parts[0];
+            event.target = parts.length > 1 ? parts[1] : null;
+            event.protocol = parts.length > 2 ? parts[2] : null;
+            event.commit();
+        }
+    }
+
+    /**
+     * Commits a file resolved event, if enabled.
+     *
+     * @param event      The event, begun before the lookup, or null
+     * @param target     The request target
+     * @param resolution The result of the lookup
+     */
+    static void fileResolved(FileResolved event, String target, PathResolver.Resolution resolution) {
+        if (event == null)
+            return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.target = target;
+            event.status = resolution.getStatus().name();
+            event.path = resolution.getFile() == null ? null : resolution.getFile().getPath();
+            event.commit();
+        }
+    }
+
+    /**
+     * Commits a file resolved event for a lookup in an asset bundle, if enabled.
+     *
+     * @param event  The event, begun before the lookup, or null
+     * @param target The request target
+     * @param entry  The result of the lookup
+     */
+    static void fileResolved(FileResolved event, String target, AssetBundle.Entry entry) {
+        if (event == null)
+            return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.target = target;
+            event.status = entry.getStatus().name();
+            event.path = entry.getStatus() == PathResolver.Status.FOUND ? "bundle:" + entry.getPath() : null;
+            event.commit();
+        }
+    }
+
+    /**
+     * Commits a response sent event, if enabled.
+     *
+     * @param event           The event, begun when the request arrived, or null
+     * @param requestLine     The request line, or its HTTP/2 equivalent
+     * @param protocol        PROTOCOL_HTTP1 or PROTOCOL_HTTP2
+     * @param status          The status code
+     * @param bytes           The bytes sent
+     * @param timeToFirstByte The time from the request to the response headers, in nano-seconds
+     */
+    static void responseSent(ResponseSent event, String requestLine, String protocol, int status, long bytes,
+            long timeToFirstByte) {
+        if (event == null)
+            return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.requestLine = requestLine;
+            event.protocol = protocol;
+            event.status = status;
+            event.bytes = bytes;
+            event.timeToFirstByte = timeToFirstByte;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * ServerLog Class
+ *
+ * Per-request console output of the web server.
+ * Worker threads only enqueue lines; a single daemon thread prints them,
+ * so workers never wait on the System.out lock. When the queue is full
+ * lines are dropped rather than slowing down request handling.
+ * The output can be turned off entirely.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class ServerLog {
+
+    private static final int QUEUE_CAPACITY = 8192; // lines
+
+    private static volatile boolean enabled = true;
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    static {
+        Thread printer = new Thread(() -> {
+            try {
+                while (true)
+                    System.out.println(queue.take());
+            } catch (InterruptedException e) {
+                // Ok, exit
+            }
+        }, "ServerLog");
+        printer.setDaemon(true);
+        printer.start();
+    }
+
+    /**
+     * Turns per-request console output on or off.
+     *
+     * @param on true to print request and response lines
+     */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * Returns true if per-request console output is on
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues a line for printing, it is dropped if output is off or the queue is full.
+     *
+     * @param line The line to be printed
+     */
+    public static void log(String line) {
+        if (enabled)
+            queue.offer(line);
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * ServerMetrics Class
+ *
+ * Counters and latency histograms of a WebServer.
+ * All counters are striped (LongAdder) and histograms are lock-free,
+ * so worker threads never contend on a lock while recording.
+ * The metrics are served at /metrics in the Prometheus text format.
+ *
+ * Latencies are recorded in micro-seconds and exported in seconds.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ServerMetrics {
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final ConcurrentHashMap<Integer, LongAdder> requestsByStatus = new ConcurrentHashMap<>();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder connectionsRejected = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> reapedByReason = new ConcurrentHashMap<>();
+    private volatile AccessLog accessLog; // its dropped entries are exported, null if requests are not logged
+
+    private final LatencyHistogram acceptQueueWait = new LatencyHistogram();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    private final LatencyHistogram responseTime = new LatencyHistogram();
+
+    /**
+     * Records an accepted connection that is now active.
+     */
+    public void connectionOpened() {
+        connectionsAccepted.increment();
+        activeConnections.increment();
+    }
+
+    /**
+     * Records that an active connection has been closed.
+     */
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * Records a connection turned away by admission control before a worker was started.
+     *
+     * @param statusCode HTTP status code of the rejection
+     */
+    public void recordRejected(int statusCode) {
+        requestsByStatus.computeIfAbsent(statusCode, code -> new LongAdder()).increment();
+        connectionsRejected.increment();
+    }
+
+    /**
+     * Records a connection closed by the deadline manager.
+     *
+     * @param reason The deadline that passed, e.g. header_read
+     */
+    public void recordReaped(String reason) {
+        reapedByReason.computeIfAbsent(reason, r -> new LongAdder()).increment();
+    }
+
+    /**
+     * Returns the number of connections closed for a passed deadline
+     *
+     * @param reason The deadline, e.g. header_read
+     */
+    public long getReaped(String reason) {
+        LongAdder count = reapedByReason.get(reason);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Sets the access log whose dropped entries are exported with the other counters.
+     *
+     * @param accessLog The access log of the server, null if requests are not logged
+     */
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    /**
+     * Records the time a connection waited between accept and the start of its worker.
+     *
+     * @param nanos Wait time in nano-seconds
+     */
+    public void recordAcceptQueueWait(long nanos) {
+        acceptQueueWait.record(nanos / 1000);
+    }
+
+    /**
+     * Records a completed response.
+     *
+     * @param statusCode HTTP status code of the response
+     * @param bytes      Number of bytes sent, headers included
+     * @param ttfbNanos  Time from reading the request to sending the headers, in nano-seconds
+     * @param totalNanos Time from reading the request to sending the last byte, in nano-seconds
+     */
+    public void recordResponse(int statusCode, long bytes, long ttfbNanos, long totalNanos) {
+        requestsByStatus.computeIfAbsent(statusCode, code -> new LongAdder()).increment();
+        bytesSent.add(bytes);
+        timeToFirstByte.record(ttfbNanos / 1000);
+        responseTime.record(totalNanos / 1000);
+    }
+
+    /**
+     * Returns the metrics in the Prometheus text exposition format
+     *
+     * @return String 	The metrics as a string
+     */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("# HELP webserver_requests_total Responses sent, by status code.\n");
+        sb.append("# TYPE webserver_requests_total counter\n");
+        for (Map.Entry<Integer, LongAdder> e : new TreeMap<>(requestsByStatus).entrySet())
+            sb.append("webserver_requests_total{code=\"").append(e.getKey()).append("\"} ")
+                    .append(e.getValue().sum()).append('\n');
+
+        counter(sb, "webserver_sent_bytes_total", "Bytes sent, headers included.", bytesSent.sum());
+        counter(sb, "webserver_connections_total", "Connections accepted.", connectionsAccepted.sum());
+        counter(sb, "webserver_rejected_connections_total", "Connections rejected by admission control.",
+                connectionsRejected.sum());
+        AccessLog log = accessLog;
+        counter(sb, "webserver_access_log_dropped_total",
+                "Access log entries dropped, the buffer was full or the write failed.",
+                log == null ? 0 : log.getDropped());
+
+        sb.append("# HELP webserver_reaped_connections_total Connections closed for a passed deadline, by deadline.\n");
+        sb.append("# TYPE webserver_reaped_connections_total counter\n");
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(reapedByReason).entrySet())
+            sb.append("webserver_reaped_connections_total{reason=\"").append(e.getKey()).append("\"} ")
+                    .append(e.getValue().sum()).append('\n');
+
+        sb.append("# HELP webserver_active_connections Connections currently open.\n");
+        sb.append("# TYPE webserver_active_connections gauge\n");
+        sb.append("webserver_active_connections ").append(activeConnections.sum()).append('\n');
+
+        summary(sb, "webserver_accept_queue_wait_seconds", "Time between accept and worker start.", acceptQueueWait);
+        summary(sb, "webserver_time_to_first_byte_seconds", "Time from request to response headers.", timeToFirstByte);
+        summary(sb, "webserver_response_time_seconds", "Time from request to last response byte.", responseTime);
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String help, LatencyHistogram histogram) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        for (double q : QUANTILES)
+            sb.append(name).append("{quantile=\"").append(q).append("\"} ")
+                    .append(seconds(histogram.getValueAtQuantile(q))).append('\n');
+        sb.append(name).append("_sum ").append(seconds(histogram.getSum())).append('\n');
+        sb.append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * ServerTls Class
+ *
+ * TLS termination for the web server.
+ * Holds one SSLContext loaded from a key store and configured for
+ * session reuse: a server-side session cache for TLS 1.2 session IDs
+ * and stateless session tickets for resumption. Only HTTP/1.1 is
+ * offered through ALPN.
+ *
+ * Accepted plain sockets are wrapped with wrap() for the blocking
+ * worker threads.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.*;
+
+public class ServerTls {
+
+    private static final int SESSION_CACHE_SIZE = 10000; // sessions
+    private static final int SESSION_TIMEOUT = 3600; // seconds
+    private static final String[] APPLICATION_PROTOCOLS = { "http/1.1" };
+
+    private final SSLSocketFactory socketFactory;
+
+    /**
+     * Constructor
+     *
+     * @param keyStore Path of a PKCS12 or JKS key store holding the server key and certificate
+     * @param password Password of the key store and of the key
+     * @throws IOException              If the key store cannot be read
+     * @throws GeneralSecurityException If the key store or key cannot be loaded
+     */
+    public ServerTls(String keyStore, String password) throws IOException, GeneralSecurityException {
+        // stateless tickets let clients resume without a server-side cache entry
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null)
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (FileInputStream in = new FileInputStream(keyStore)) {
+            ks.load(in, password.toCharArray());
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, password.toCharArray());
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(SESSION_TIMEOUT);
+
+        socketFactory = context.getSocketFactory();
+    }
+
+    /**
+     * Wraps an accepted connection in a server-mode SSLSocket.
+     * The handshake runs on first use of the socket, that is in the
+     * worker thread rather than in the accepting thread.
+     *
+     * @param socket An accepted plain socket
+     * @return The TLS socket layered over the given socket
+     * @throws IOException If the socket cannot be wrapped
+     */
+    public SSLSocket wrap(Socket socket) throws IOException {
+        // handshake flights are several small records, don't let Nagle hold them back
+        socket.setTcpNoDelay(true);
+        SSLSocket sslSocket = (SSLSocket) socketFactory.createSocket(socket, null, true);
+        sslSocket.setUseClientMode(false);
+        sslSocket.setSSLParameters(parameters(sslSocket.getSSLParameters()));
+        return sslSocket;
+    }
+
+    private static SSLParameters parameters(SSLParameters params) {
+        params.setApplicationProtocols(APPLICATION_PROTOCOLS);
+        params.setUseCipherSuitesOrder(true);
+        return params;
+    }
+}
@@ -31,14 +31,15 @@ public class ServerUtils {
 
 	
 	/**
-	 * Returns the content type of the file object
+	 * Returns the content type of the file object,
+	 * looked up by extension in the built-in MimeTypes table
 	 * 
 	 * @param object The File object to be probed for its type
 	 * @return String Type of the object
 	 * 
 	 */
 	public static String getContentType(File object) throws IOException { 
-		return Files.probeContentType(object.toPath());	
+		return MimeTypes.getDefault().getContentType(object.getName());	
 	}
 
 
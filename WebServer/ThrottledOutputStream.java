@@ -0,0 +1,75 @@
+/**
+ * ThrottledOutputStream Class
+ *
+ * Limits the rate at which bytes are written to the underlying stream.
+ * Writes take tokens from a byte bucket that refills at the given rate;
+ * when the bucket is empty the writing thread parks until enough tokens
+ * are available. Large writes are split so that no single write exceeds
+ * the burst size.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+public class ThrottledOutputStream extends FilterOutputStream {
+
+    private final long bytesPerSecond;
+    private final long burst;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Constructor
+     *
+     * @param out            The underlying output stream
+     * @param bytesPerSecond Sustained rate in bytes per second
+     * @param burst          Bytes that may be written at once, at least 1
+     */
+    public ThrottledOutputStream(OutputStream out, long bytesPerSecond, long burst) {
+        super(out);
+        this.bytesPerSecond = bytesPerSecond;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public void write(int b) throws IOException {
+        acquire(1);
+        out.write(b);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int chunk = (int) Math.min(len, burst);
+            acquire(chunk);
+            out.write(b, off, chunk);
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    // waits until n tokens are available and takes them
+    private void acquire(long n) throws IOException {
+        while (true) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefill) * (bytesPerSecond / 1e9));
+            lastRefill = now;
+            if (tokens >= n) {
+                tokens -= n;
+                return;
+            }
+            // flush what is buffered before waiting, so the peer sees a steady stream
+            out.flush();
+            LockSupport.parkNanos((long) ((n - tokens) * 1e9 / bytesPerSecond) + 1);
+            if (Thread.interrupted())
+                throw new InterruptedIOException("throttled write interrupted");
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * TlsServerBench Class
+ *
+ * Measures HTTPS serving by WebServer: connection (handshake) rate for
+ * a tiny object, and bulk throughput for a large object, each with full
+ * handshakes and with resumed sessions. Plain HTTP is measured too as
+ * the baseline.
+ *
+ * The server certificate is read from a key store, which is also used as
+ * the client trust store. A self-signed one can be generated with:
+ * 		keytool -genkeypair -alias server -keyalg EC -dname CN=localhost
+ * 		        -keystore server.p12 -storepass changeit
+ *
+ * Command line arguments:
+ * 		-k key store (required)
+ * 		-w key store password, default changeit
+ * 		-p server port, default 2026
+ * 		-n number of connections per run, default 500
+ * 		-s size of the large object in bytes, default 16777216
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.*;
+import java.security.KeyStore;
+import java.util.*;
+import javax.net.ssl.*;
+
+public class TlsServerBench {
+
+    private static final String SMALL_OBJECT = "/small.txt";
+    private static final String LARGE_OBJECT = "/large.bin";
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> params = new HashMap<String, String>();
+        for (int i = 0; (i + 1) < args.length; i += 2)
+            params.put(args[i], args[i + 1]);
+
+        String keyStore = params.get("-k");
+        String password = params.getOrDefault("-w", "changeit");
+        int port = Integer.parseInt(params.getOrDefault("-p", "2026"));
+        int count = Integer.parseInt(params.getOrDefault("-n", "500"));
+        int largeSize = Integer.parseInt(params.getOrDefault("-s", "16777216"));
+        if (keyStore == null) {
+            System.out.println("incorrect usage, key store is required (-k)");
+            System.exit(0);
+        }
+
+        // objects to be served
+        Path root = Files.createTempDirectory("tlsbench");
+        Files.write(root.resolve(SMALL_OBJECT.substring(1)), "hello\n".getBytes());
+        byte[] large = new byte[largeSize];
+        new Random(1).nextBytes(large);
+        Files.write(root.resolve(LARGE_OBJECT.substring(1)), large);
+
+        // keep the per-request console output of the server out of the report
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        WebServer plainServer = new WebServer(port, root.toString(), 0);
+        WebServer tlsServer = new WebServer(port + 1, root.toString(), 0, new ServerTls(keyStore, password));
+        plainServer.start();
+        tlsServer.start();
+        Thread.sleep(500);
+
+        TrustManagerFactory trust = trustManagers(keyStore, password);
+        SSLContext shared = clientContext(trust);
+        Client plain = () -> new Socket(InetAddress.getLoopbackAddress(), port);
+        Client full = () -> handshake(clientContext(trust), port + 1); // fresh session cache every time
+        Client resumed = () -> handshake(shared, port + 1);
+
+        // warm up
+        run(plain, SMALL_OBJECT, count);
+        run(full, SMALL_OBJECT, count);
+
+        int largeCount = Math.max(1, count / 50);
+        console.printf("%-10s %14s %16s%n", "", "conn/s (small)", "MB/s (large)");
+        report(console, "http", count, run(plain, SMALL_OBJECT, count), largeCount, run(plain, LARGE_OBJECT, largeCount), largeSize);
+        report(console, "https", count, run(full, SMALL_OBJECT, count), largeCount, run(full, LARGE_OBJECT, largeCount), largeSize);
+        report(console, "resumed", count, run(resumed, SMALL_OBJECT, count), largeCount, run(resumed, LARGE_OBJECT, largeCount), largeSize);
+
+        plainServer.shutdown();
+        tlsServer.shutdown();
+        System.exit(0);
+    }
+
+    // opens a connection to the server
+    private interface Client {
+        Socket connect() throws Exception;
+    }
+
+    private static TrustManagerFactory trustManagers(String keyStore, String password) throws Exception {
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (FileInputStream in = new FileInputStream(keyStore)) {
+            ks.load(in, password.toCharArray());
+        }
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(ks);
+        return tmf;
+    }
+
+    private static SSLContext clientContext(TrustManagerFactory tmf) throws Exception {
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, tmf.getTrustManagers(), null);
+        return ctx;
+    }
+
+    private static Socket handshake(SSLContext ctx, int port) throws IOException {
+        Socket plainSocket = new Socket(InetAddress.getLoopbackAddress(), port);
+        plainSocket.setTcpNoDelay(true);
+        return ctx.getSocketFactory().createSocket(plainSocket, "localhost", port, true);
+    }
+
+    // fetches the object count times, one connection per request, and returns the elapsed time in seconds
+    private static double run(Client client, String object, int count) throws Exception {
+        byte[] request = ("GET " + object + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes("US-ASCII");
+        byte[] buffer = new byte[64 * 1024];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            try (Socket socket = client.connect()) {
+                socket.getOutputStream().write(request);
+                socket.getOutputStream().flush();
+                InputStream in = socket.getInputStream();
+                int n, received = 0;
+                while ((n = in.read(buffer)) != -1)
+                    received += n; // discard the response
+                if (received == 0)
+                    throw new IOException("empty response for " + object);
+            }
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    private static void report(PrintStream out, String label, int smallCount, double smallSeconds,
+            int largeCount, double largeSeconds, int largeSize) {
+        out.printf("%-10s %14.0f %16.1f%n", label, smallCount / smallSeconds,
+                largeCount * (double) largeSize / (1 << 20) / largeSeconds);
+    }
+}
@@ -3,29 +3,85 @@
  * WebServer Class
  * 
  * Implements a multi-threaded web server
- * supporting non-persistent connections.
+ * supporting persistent connections.
+ *
+ * Connections are accepted by one or more acceptor threads, each handing
+ * its connections to its own group of worker threads. With several
+ * acceptors, every acceptor gets its own listening socket on the same
+ * port (SO_REUSEPORT) so the kernel spreads new connections over them.
+ *
+ * The server can be stopped gracefully with drain(), and replaced without
+ * closing its listening sockets: a new instance takes them over with
+ * takeOver() while the old one drains.
  * @author 	Quenten Welch
  * @version	2024
  *
  */
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.logging.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WebServer extends Thread {
     // global logger object, configures in the driver class
     private static final Logger logger = Logger.getLogger("WebServer");
+    private static final long CLOSE_GRACE = 1000; // time an expired connection is given to send its 408 (milli-seconds)
+
+    // responses of connections turned away by admission control, encoded once
+    private static final byte[] TOO_MANY_REQUESTS = rejection("429 Too Many Requests");
+    private static final byte[] SERVICE_UNAVAILABLE = rejection("503 Service Unavailable");
 
-    private boolean shutdown = false; // shutdown flag
+    private volatile boolean shutdown = false; // shutdown flag
+    private volatile boolean draining = false;
+    private volatile boolean handedOff = false; // listeners passed on to another instance
     private int port;
-    private String root;
+    private volatile String root;
     private int timeout;
-    private ServerSocket serverSocket;
+    private ServerTls tls; // null for plain HTTP
+    private ServerMetrics metrics = new ServerMetrics();
+    private AccessLog accessLog; // null if requests are not logged
+
+    // listener settings, see the setters
+    private int acceptorCount = 1;
+    private int workersPerAcceptor = 0; // 0 for a thread per connection
+    private int backlog = 0; // 0 for the system default
+    private boolean tcpNoDelay = true; // persistent connections would otherwise stall on Nagle and delayed ACKs
+    private int receiveBufferSize = 0; // 0 for the system default
+    private int sendBufferSize = 0; // 0 for the system default
+
+    // admission control, see the setters
+    private int maxConnections = 0; // 0 for no limit
+    private RateLimiter rateLimiter; // null for no per-client limit
+    private long bandwidthLimit = 0; // bytes per second per connection, 0 for no limit
+    private long throttleMinSize = 0;
+    private final AtomicInteger openConnections = new AtomicInteger();
+
+    // connection deadlines, see setDeadlines()
+    private long headerReadTimeout = 10000; // milli-seconds, 0 for no limit
+    private long bodyWriteTimeout = 30000; // milli-seconds, 0 for no limit
+    private DeadlineManager deadlines; // null until the server is started
+
+    private final List<Acceptor> acceptors = new CopyOnWriteArrayList<>();
+    private int pathCacheSize = 10000; // 0 for no cache
+    private MimeTypes mimeTypes = MimeTypes.getDefault();
+    private boolean http2 = true; // h2c with prior knowledge or by upgrade
+    private volatile PathResolver resolver; // null if the root directory is not usable
+    private volatile AssetBundle bundle; // served instead of the root directory if set
+    private List<ServerSocketChannel> inheritedListeners; // taken over from a previous instance
+    private final Set<WorkerThread> connections = ConcurrentHashMap.newKeySet();
+    private volatile int localPort = -1;
 
     /**
      * Constructor to initialize the web server
@@ -41,6 +97,20 @@ public class WebServer extends Thread {
         this.timeout = timeout;
     }
 
+    /**
+     * Constructor to initialize a web server serving HTTPS
+     * 
+     * @param port    Server port at which the web server listens > 1024
+     * @param root    Server's root file directory
+     * @param timeout Idle connection timeout in milli-seconds
+     * @param tls     TLS configuration used to wrap accepted connections
+     * 
+     */
+    public WebServer(int port, String root, int timeout, ServerTls tls) {
+        this(port, root, timeout);
+        this.tls = tls;
+    }
+
     /**
      * Main method in the web server thread.
      * The web server remains in listening mode
@@ -49,47 +119,469 @@ public class WebServer extends Thread {
      * 
      */
     public void run() {
+        metrics.setAccessLog(accessLog);
+        if (bundle == null)
+            resolver = newResolver(root);
+        deadlines = new DeadlineManager(headerReadTimeout, bodyWriteTimeout,
+                timeout > 0 ? timeout : WorkerThread.KEEP_ALIVE_TIMEOUT, CLOSE_GRACE);
+        deadlines.start();
         try {
-            serverSocket = new ServerSocket(port);
-            serverSocket.setSoTimeout(timeout);
+            try {
+                bind();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not listen on port: " + port, e);
+                return;
+            }
 
+            for (Acceptor acceptor : acceptors)
+                acceptor.start();
+            for (Acceptor acceptor : acceptors)
+                acceptor.join();
+        } catch (InterruptedException e) {
+            // Ok, stop waiting
+        } finally {
+            for (Acceptor acceptor : acceptors)
+                acceptor.close(!handedOff);
+            if (resolver != null)
+                resolver.close();
+        }
+    }
+
+    private PathResolver newResolver(String root) {
+        try {
+            return new PathResolver(root, pathCacheSize);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Cannot serve root directory: " + root, e);
+            return null;
+        }
+    }
+
+    // opens the listening sockets, one per acceptor if SO_REUSEPORT is available
+    private void bind() throws IOException {
+        if (inheritedListeners != null && !inheritedListeners.isEmpty()) {
+            for (ServerSocketChannel channel : inheritedListeners)
+                acceptors.add(new Acceptor(acceptors.size(), channel));
+            localPort = ((InetSocketAddress) inheritedListeners.get(0).getLocalAddress()).getPort();
+            return;
+        }
+
+        ServerSocketChannel shared = null;
+        for (int i = 0; i < acceptorCount; i++) {
+            ServerSocketChannel channel = shared;
+            if (channel == null) {
+                channel = ServerSocketChannel.open();
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                if (acceptorCount > 1) {
+                    if (channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                        channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    } else {
+                        logger.warning("SO_REUSEPORT not supported, acceptors share one listening socket");
+                        shared = channel;
+                    }
+                }
+                if (receiveBufferSize > 0) // set before listening so the window scale can be negotiated
+                    channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+                channel.bind(new InetSocketAddress(localPort > 0 ? localPort : port), backlog);
+                localPort = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+            }
+            acceptors.add(new Acceptor(i, channel));
+        }
+    }
+
+    /**
+     * Accepts connections from one listening socket and runs them
+     * on its own group of worker threads.
+     */
+    private class Acceptor extends Thread {
+        private final ServerSocketChannel channel;
+        private final ExecutorService workers;
+        private final Selector selector;
+
+        Acceptor(int id, ServerSocketChannel channel) {
+            super("acceptor-" + id);
+            this.channel = channel;
+            ThreadFactory factory = new ThreadFactory() {
+                private int count = 0;
+
+                public synchronized Thread newThread(Runnable r) {
+                    return new Thread(r, "worker-" + id + "-" + count++);
+                }
+            };
+            this.workers = (workersPerAcceptor > 0) ? Executors.newFixedThreadPool(workersPerAcceptor, factory)
+                    : Executors.newCachedThreadPool(factory);
+            Selector s = null;
+            try {
+                s = Selector.open();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not open selector", e);
+            }
+            this.selector = s;
+        }
+
+        // waits on a selector rather than in accept(), so the acceptor can be
+        // stopped without closing the listening socket
+        public void run() {
+            try {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException | RuntimeException e) {
+                if (!shutdown)
+                    logger.log(Level.SEVERE, "Could not listen on port: " + port, e);
+                return;
+            }
             while (!shutdown) {
                 try {
-                    Socket clientSocket = serverSocket.accept();
-                    // Create a new thread for each connection and start it
-                    WorkerThread worker = new WorkerThread(clientSocket, root, timeout);
-                    worker.start();
-                } catch (SocketTimeoutException e) {
-                    // logger.log(Level.SEVERE, "Socket timeout", e);
-                } catch (IOException e) {
-                    logger.log(Level.SEVERE, "Error accepting client connection", e);
+                    selector.select();
+                    selector.selectedKeys().clear();
+                    SocketChannel client;
+                    while (!shutdown && (client = channel.accept()) != null)
+                        accept(client);
+                } catch (ClosedChannelException e) {
+                    break; // shut down
+                } catch (IOException | RejectedExecutionException e) {
+                    if (!shutdown)
+                        logger.log(Level.SEVERE, "Error accepting client connection", e);
                 }
             }
-        } catch (IOException e) {
-            logger.log(Level.SEVERE, "Could not listen on port: " + port, e);
-        } finally {
+        }
+
+        // hands an accepted connection to a worker, unless admission control turns it away
+        private void accept(SocketChannel client) throws IOException {
+            int rejectStatus = admit(client);
+            if (rejectStatus != 0) {
+                reject(client, rejectStatus);
+                return;
+            }
             try {
-                if (serverSocket != null) {
-                    serverSocket.close();
+                client.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+                if (sendBufferSize > 0)
+                    client.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+                Socket clientSocket = client.socket();
+                if (tls != null) {
+                    clientSocket = tls.wrap(clientSocket);
+                }
+                WorkerThread worker = new WorkerThread(clientSocket, root, timeout, metrics, accessLog);
+                worker.setBandwidthLimit(bandwidthLimit, throttleMinSize);
+                worker.setPathResolver(resolver);
+                worker.setBundle(bundle);
+                worker.setMimeTypes(mimeTypes);
+                worker.setHttp2(http2);
+                worker.setRateLimiter(rateLimiter);
+                worker.setDeadlines(deadlines);
+                connections.add(worker);
+                try {
+                    workers.execute(() -> {
+                        try {
+                            worker.run();
+                        } finally {
+                            connectionDone(worker);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    connections.remove(worker);
+                    worker.discard();
+                    throw e;
                 }
+            } catch (IOException | RejectedExecutionException e) {
+                openConnections.decrementAndGet();
+                client.close();
+                throw e;
+            }
+        }
+
+        // stops accepting, the listening socket is closed unless it is passed on
+        void close(boolean closeChannel) {
+            selector.wakeup();
+            try {
+                if (closeChannel)
+                    channel.close();
+                if (Thread.currentThread() != this)
+                    join();
+                selector.close();
             } catch (IOException e) {
                 logger.log(Level.SEVERE, "Could not close server socket", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            workers.shutdown();
+        }
+    }
+
+    private void connectionDone(WorkerThread worker) {
+        connections.remove(worker);
+        openConnections.decrementAndGet();
+        if (draining) {
+            synchronized (connections) {
+                connections.notifyAll();
+            }
+        }
+    }
+
+    // 0 if the connection may be served, otherwise the status it is rejected with
+    private int admit(SocketChannel client) throws IOException {
+        if (rateLimiter != null
+                && !rateLimiter.tryAcquire(((InetSocketAddress) client.getRemoteAddress()).getAddress()))
+            return 429;
+        if (openConnections.incrementAndGet() > maxConnections && maxConnections > 0) {
+            openConnections.decrementAndGet();
+            return 503;
+        }
+        return 0;
+    }
+
+    // answers and closes a rejected connection without involving a worker
+    private void reject(SocketChannel client, int statusCode) {
+        metrics.recordRejected(statusCode);
+        try {
+            if (tls == null) {
+                // non-blocking, the socket buffer of a new connection has room for the response
+                client.configureBlocking(false);
+                client.write(ByteBuffer.wrap(statusCode == 429 ? TOO_MANY_REQUESTS : SERVICE_UNAVAILABLE));
+                client.read(ByteBuffer.allocate(1024)); // consume the request if already there, avoids a reset
+            }
+        } catch (IOException e) {
+            // Ok, the client is turned away anyway
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // Ok, ignore
             }
         }
     }
 
+    private static byte[] rejection(String status) {
+        return ("HTTP/1.1 " + status + "\r\n" +
+                "Server: MySimpleWebServer\r\n" +
+                "Connection: close\r\n" +
+                "Retry-After: 1\r\n" +
+                "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Sets the number of acceptor threads, each with its own listening
+     * socket and worker group. Must be called before the server is started.
+     * 
+     * @param acceptors          Number of acceptor threads, at least 1
+     * @param workersPerAcceptor Worker threads per acceptor, 0 for a thread per connection
+     */
+    public void setAcceptors(int acceptors, int workersPerAcceptor) {
+        this.acceptorCount = Math.max(1, acceptors);
+        this.workersPerAcceptor = workersPerAcceptor;
+    }
+
+    /**
+     * Sets the options of the listening and accepted sockets.
+     * Must be called before the server is started.
+     * 
+     * @param backlog           Maximum number of pending connections per listening socket, 0 for the system default
+     * @param tcpNoDelay        Disables Nagle's algorithm on accepted connections if true
+     * @param receiveBufferSize Socket receive buffer size in bytes, 0 for the system default
+     * @param sendBufferSize    Socket send buffer size in bytes, 0 for the system default
+     */
+    public void setSocketOptions(int backlog, boolean tcpNoDelay, int receiveBufferSize, int sendBufferSize) {
+        this.backlog = backlog;
+        this.tcpNoDelay = tcpNoDelay;
+        this.receiveBufferSize = receiveBufferSize;
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * Sets admission control of new connections. Connections over the
+     * limit are answered with 503, clients over their rate with 429, both
+     * directly by the acceptor. The rate limit is also charged for every
+     * later request of a persistent connection, and for every HTTP/2
+     * stream, answered with 429 by the worker. Must be called before the
+     * server is started.
+     * 
+     * @param maxConnections Maximum number of open connections, 0 for no limit
+     * @param rateLimiter    Per-client request rate limit, or null for none
+     */
+    public void setAdmissionControl(int maxConnections, RateLimiter rateLimiter) {
+        this.maxConnections = maxConnections;
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Sets the deadlines of slow clients: the time a request's line and
+     * headers may take to arrive, however slowly they trickle in, and the
+     * time a response may make no progress because the client does not
+     * read it. A late request is answered with 408, a stalled response is
+     * closed. Persistent connections wait for their next request for the
+     * idle timeout of the constructor. Must be called before the server is
+     * started.
+     * 
+     * @param headerRead Time in milli-seconds, 0 for no limit
+     * @param bodyWrite  Time in milli-seconds, 0 for no limit
+     */
+    public void setDeadlines(long headerRead, long bodyWrite) {
+        this.headerReadTimeout = headerRead;
+        this.bodyWriteTimeout = bodyWrite;
+    }
+
+    /**
+     * Limits the rate at which each connection is sent large files.
+     * Must be called before the server is started.
+     * 
+     * @param bytesPerSecond Maximum rate per connection, 0 for no limit
+     * @param minSize        Files smaller than this many bytes are not throttled
+     */
+    public void setBandwidthLimit(long bytesPerSecond, long minSize) {
+        this.bandwidthLimit = bytesPerSecond;
+        this.throttleMinSize = minSize;
+    }
+
+    /**
+     * Returns the port the server listens on, -1 until it is listening
+     */
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    /**
+     * Sets the access log completed requests are written to.
+     * Must be called before the server is started.
+     * 
+     * @param accessLog The access log, or null to turn logging off
+     */
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    /**
+     * Returns the metrics collected by this server, also served at /metrics
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Changes the root directory, e.g. to deploy new content.
+     * Connections accepted from now on serve the new root.
+     * 
+     * @param root The new root directory
+     */
+    public void setRoot(String root) {
+        PathResolver previous = resolver;
+        this.resolver = newResolver(root);
+        this.root = root;
+        if (previous != null)
+            previous.close();
+    }
+
+    /**
+     * Serves GET and HEAD from an asset bundle packed by BundlePacker
+     * instead of the root directory, which is then not used. The bundle's
+     * headers, Content-Type included, were fixed when it was packed.
+     * Must be called before the server is started; a new bundle is served
+     * by a reloaded server.
+     * 
+     * @param bundle The mapped bundle
+     */
+    public void setBundle(AssetBundle bundle) {
+        this.bundle = bundle;
+    }
+
+    /**
+     * Sets the table the Content-Type of files is looked up in.
+     * Must be called before the server is started.
+     * 
+     * @param mimeTypes The MIME type table
+     */
+    public void setMimeTypes(MimeTypes mimeTypes) {
+        this.mimeTypes = mimeTypes;
+    }
+
+    /**
+     * Enables or disables HTTP/2 over clear text (h2c), both with prior
+     * knowledge and by upgrading HTTP/1.1 requests. Enabled by default.
+     * Must be called before the server is started.
+     * 
+     * @param enabled Whether HTTP/2 connections are accepted
+     */
+    public void setHttp2(boolean enabled) {
+        this.http2 = enabled;
+    }
+
+    /**
+     * Sets the size of the cache of resolved request paths.
+     * Must be called before the server is started.
+     * 
+     * @param entries Maximum number of cached paths, 0 for no cache
+     */
+    public void setPathCache(int entries) {
+        this.pathCacheSize = entries;
+    }
+
+    /**
+     * Makes this server take over the listening sockets, metrics and
+     * access log of a running server, which stops accepting. Pending
+     * connections stay queued on the sockets and are accepted by this
+     * server once it is started; the previous server should then be
+     * drained. Must be called before this server is started.
+     * 
+     * @param previous The running server to be replaced
+     */
+    public void takeOver(WebServer previous) {
+        this.inheritedListeners = previous.handOff();
+        this.metrics = previous.metrics;
+        if (this.accessLog == null)
+            this.accessLog = previous.accessLog;
+    }
+
+    // stops accepting and returns the listening sockets, still open
+    private List<ServerSocketChannel> handOff() {
+        handedOff = true;
+        shutdown = true;
+        Set<ServerSocketChannel> channels = new LinkedHashSet<>();
+        for (Acceptor acceptor : acceptors) {
+            acceptor.close(false);
+            channels.add(acceptor.channel);
+        }
+        return new ArrayList<>(channels);
+    }
+
     /**
      * Signals the web server to shutdown.
+     * New connections are no longer accepted, connections in progress
+     * are left to complete.
      *
      */
     public void shutdown() {
         shutdown = true;
-        try {
-            if (serverSocket != null) {
-                serverSocket.close();
-            }
-        } catch (IOException e) {
-            logger.log(Level.SEVERE, "Error closing server socket during shutdown", e);
+        for (Acceptor acceptor : acceptors)
+            acceptor.close(!handedOff);
+    }
+
+    /**
+     * Stops the web server gracefully: stops accepting, closes idle
+     * persistent connections and lets responses in progress complete,
+     * closing each connection after its response. Connections still open
+     * at the deadline are closed.
+     *
+     * @param timeout Maximum time to wait for responses in progress, in milli-seconds
+     * @return true if all connections completed before the deadline
+     *
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public boolean drain(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        draining = true;
+        shutdown(); // no connections are added once the acceptors have stopped
+
+        for (WorkerThread connection : connections)
+            connection.drain();
+        synchronized (connections) {
+            long remaining;
+            while (!connections.isEmpty() && (remaining = deadline - System.nanoTime()) > 0)
+                TimeUnit.NANOSECONDS.timedWait(connections, remaining);
         }
+
+        boolean completed = connections.isEmpty();
+        for (WorkerThread connection : connections)
+            connection.abort();
+        if (deadlines != null)
+            deadlines.shutdown();
+        return completed;
     }
 }
@@ -1,6 +1,8 @@
-
 /**
- * Worker Thread is utilized by WebServer class
+ * Worker Thread is utilized by WebServer class,
+ * run on the worker group of the acceptor that accepted the connection.
+ * A connection that starts with the HTTP/2 connection preface, or whose
+ * request asks for an upgrade to h2c, is handed to Http2Connection.
  * @author 	Quenten Welch
  * @version	2024
  *
@@ -8,133 +10,798 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLSocket;
+
+class WorkerThread implements Runnable, DeadlineManager.Connection {
+    static final String METRICS_PATH = "/metrics";
+    static final String SERVER_NAME = "MySimpleWebServer";
+    static final String ALLOWED_METHODS = "GET, HEAD, OPTIONS";
+    // methods defined by HTTP that are not served, answered with 405 rather than 501
+    private static final Set<String> OTHER_METHODS = Set.of("POST", "PUT", "DELETE", "PATCH", "CONNECT", "TRACE");
+    private static final String HTTP2_PREFACE_LINE = "PRI * HTTP/2.0";
+    static final int KEEP_ALIVE_TIMEOUT = 5000; // default idle time before a persistent connection is closed (milli-seconds)
+
+    // connection states, a connection is only closed by drain() while idle
+    private static final int BUSY = 0;
+    private static final int IDLE = 1;
+    private static final int CLOSED = 2;
 
-class WorkerThread extends Thread {
     private Socket clientSocket;
     private String rootDirectory;
-    private int timeout;
+    private int timeout; // idle time of a persistent connection in milli-seconds, 0 for the default
+    private DeadlineManager.Deadline deadline; // null if deadlines are not enforced
+    private ServerMetrics metrics;
+    private AccessLog accessLog; // null if requests are not logged
+    private PathResolver resolver; // shared by the server, created on first use if not set
+    private AssetBundle bundle; // served instead of the root directory if set
+    private byte[] copyBuffer; // bundled bodies are copied out of the mapping through it
+    private MimeTypes mimeTypes = MimeTypes.getDefault();
+    private long bandwidthLimit = 0; // bytes per second for large files, 0 for unlimited
+    private long throttleMinSize = 0; // smallest file that is throttled
+    private boolean http2Enabled = true;
+    private RateLimiter rateLimiter; // charged for every request after the first, null for no per-client limit
+    private volatile Http2Connection http2; // set once the connection speaks HTTP/2
+    private String requestLine;
+    private boolean keepAlive; // of the current response
+    private boolean headRequest; // the current response is sent without its body
+    private String upgrade; // Upgrade header of the current request, null if none
+    private String http2Settings; // HTTP2-Settings header of the current request, null if none
+    private boolean acceptGzip; // the current request accepts a gzip encoded response
+    private boolean badContentLength; // the current request has a Content-Length that is not a length
+    private volatile boolean draining = false;
+    private final AtomicInteger state = new AtomicInteger(BUSY);
+
+    // timestamps in nano-seconds, used for the latency metrics
+    private long acceptedAt;
+    private long requestAt;
+    private long firstByteAt;
+
+    // flight recorder events of the current request, null unless recorded, see ServerEvents
+    private ServerEvents.RequestParsed parsedEvent;
+    private ServerEvents.ResponseSent responseEvent;
 
     public WorkerThread(Socket clientSocket, String rootDirectory, int timeout) {
+        this(clientSocket, rootDirectory, timeout, new ServerMetrics());
+    }
+
+    public WorkerThread(Socket clientSocket, String rootDirectory, int timeout, ServerMetrics metrics) {
+        this(clientSocket, rootDirectory, timeout, metrics, null);
+    }
+
+    public WorkerThread(Socket clientSocket, String rootDirectory, int timeout, ServerMetrics metrics,
+            AccessLog accessLog) {
         this.clientSocket = clientSocket;
         this.rootDirectory = rootDirectory;
-        System.out.println(
+        this.timeout = timeout;
+        this.metrics = metrics;
+        this.accessLog = accessLog;
+        this.acceptedAt = System.nanoTime();
+        metrics.connectionOpened();
+        ServerLog.log(
                 "Client connected: " + clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort());
 
     }
 
+    /**
+     * Sets the resolver mapping request targets to files, shared with
+     * other connections of the server.
+     *
+     * @param resolver Resolver of the root directory
+     */
+    void setPathResolver(PathResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Serves files from a packed bundle instead of the root directory,
+     * shared with other connections of the server.
+     *
+     * @param bundle The bundle, null to serve the root directory
+     */
+    void setBundle(AssetBundle bundle) {
+        this.bundle = bundle;
+    }
+
+    /**
+     * Enforces the header read, body write and keep-alive idle deadlines
+     * of the connection, see DeadlineManager. Without a manager, requests
+     * may take any time.
+     *
+     * @param deadlines The deadline manager of the server
+     */
+    void setDeadlines(DeadlineManager deadlines) {
+        this.deadline = deadlines.register(this);
+    }
+
+    /**
+     * Sets the table the Content-Type of files is looked up in.
+     *
+     * @param mimeTypes The MIME type table
+     */
+    void setMimeTypes(MimeTypes mimeTypes) {
+        this.mimeTypes = mimeTypes;
+    }
+
+    /**
+     * Limits the rate at which large files are sent.
+     *
+     * @param bytesPerSecond Maximum rate of the response body, 0 for unlimited
+     * @param minSize        Files smaller than this many bytes are not throttled
+     */
+    void setBandwidthLimit(long bytesPerSecond, long minSize) {
+        this.bandwidthLimit = bytesPerSecond;
+        this.throttleMinSize = minSize;
+    }
+
+    /**
+     * Enables or disables HTTP/2 over clear text, both with prior knowledge
+     * and by upgrading HTTP/1.1 requests. Enabled by default.
+     *
+     * @param enabled Whether HTTP/2 connections are accepted
+     */
+    void setHttp2(boolean enabled) {
+        this.http2Enabled = enabled;
+    }
+
+    /**
+     * Applies the per-client rate limit to every request of the connection.
+     * The first request is charged by the acceptor when it admits the
+     * connection, the later ones of a persistent connection here; a client
+     * over its rate is answered with 429 and the connection is closed.
+     *
+     * @param rateLimiter The rate limiter of the server, null for no limit
+     */
+    void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
     /**
      * Main method in the worker thread.
-     * Reads and parses the client's HTTP request, checks if the requested file
+     * Reads and parses the client's HTTP requests, checks if the requested file
      * exists,
      * and sends an appropriate HTTP response back to the client.
+     * The connection is kept open for further requests unless the client
+     * asks to close it or the server is draining.
      */
     public void run() {
+        metrics.recordAcceptQueueWait(System.nanoTime() - acceptedAt);
         try {
-            // Get input and output streams for the socket
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
+            // Get input and output streams for the socket, both watched by the deadlines
+            LineInputStream in = new LineInputStream(new DeadlineInputStream(clientSocket.getInputStream()));
+            BufferedOutputStream buffered = new BufferedOutputStream(new DeadlineOutputStream(clientSocket.getOutputStream()));
 
-            // Read the request from the client
-            String requestLine = in.readLine();
             try {
-                if (requestLine != null && !requestLine.isEmpty()) {
-                    // Parse the request
-                    System.out.println("Request " + requestLine);
-                    String[] requestParts = requestLine.split(" ");
-                    if (requestParts.length == 3 && requestParts[0].equals("GET")
-                            && requestParts[2].equals("HTTP/1.1")) {
-                        // Get the requested path
-                        String requestedPath = requestParts[1];
-                        if (requestedPath.equals("/")) {
-                            requestedPath = "/index.html"; // Default to index.html if no path is specified
-                        }
+                boolean first = true;
+                while (true) {
+                    if (!first) {
+                        // wait for the next request on the persistent connection
+                        // checked after going idle, so a concurrent drain() either sees
+                        // the idle state or is seen here
+                        if (!state.compareAndSet(BUSY, IDLE) || draining)
+                            break;
+                    }
+                    // a request that has started to arrive is read under the header deadline,
+                    // otherwise the connection waits under the idle deadline for its first byte
+                    if (!arm(first || in.available() > 0 ? DeadlineManager.HEADER_READ : DeadlineManager.KEEP_ALIVE_IDLE))
+                        break;
 
-                        // Construct the file path
-                        String filePath = rootDirectory + requestedPath;
+                    // Read the request from the client
+                    try {
+                        requestLine = in.readLine();
+                    } catch (SocketTimeoutException e) {
+                        // the request line did not arrive in time, or the connection expired while idle
+                        if (!headerTimedOut() || (!first && !state.compareAndSet(IDLE, BUSY)))
+                            break;
+                        requestLine = "-";
+                        startRequest();
+                        keepAlive = false;
+                        sendResponse(new DataOutputStream(buffered), 408, "Request Timeout", null);
+                        break;
+                    }
+                    if (!first) {
+                        if (!state.compareAndSet(IDLE, BUSY))
+                            break; // closed while idle
+                    }
+                    startRequest();
+                    if (requestLine == null || requestLine.isEmpty())
+                        break;
+                    if (first && http2Enabled && requestLine.equals(HTTP2_PREFACE_LINE)) {
+                        // HTTP/2 with prior knowledge, the rest of the preface follows
+                        if ("".equals(in.readLine()) && "SM".equals(in.readLine()) && "".equals(in.readLine()))
+                            serveHttp2(in, buffered, null);
+                        break;
+                    }
+                    boolean admitted = first; // the first request was charged when the connection was accepted
+                    first = false;
 
-                        // Check if the file exists
-                        File file = new File(filePath);
-                        if (file.exists() && !file.isDirectory()) {
-                            // File exists, send OK response with file content
-                            sendResponse(out, 200, "OK", file);
+                    // a fresh counter per response, for the metrics and access log
+                    DataOutputStream out = new DataOutputStream(buffered);
+                    try {
+                        keepAlive = readHeaders(in) && !draining;
+                        ServerEvents.requestParsed(parsedEvent, requestLine);
+                        // from now on the response has to make progress
+                        if (!arm(DeadlineManager.BODY_WRITE))
+                            throw new SocketTimeoutException("Request header deadline passed");
+                        if (badContentLength) {
+                            // the body cannot be skipped, so the connection cannot be kept
+                            keepAlive = false;
+                            sendResponse(out, 400, "Bad Request", null);
+                        } else if (!admitted && rateLimiter != null
+                                && !rateLimiter.tryAcquire(clientSocket.getInetAddress())) {
+                            keepAlive = false;
+                            sendTooManyRequests(out);
+                        } else if (upgradeToHttp2(in, buffered)) {
+                            break;
                         } else {
-                            // File not found, send 404 response
-                            sendResponse(out, 404, "Not Found", null);
+                            handleRequest(out);
                         }
-                    } else {
-                        // Bad request, send 400 response
-                        sendResponse(out, 400, "Bad Request", null);
+                    } catch (SocketTimeoutException e) {
+                        // Request timeout, send 408 response
+                        keepAlive = false;
+                        sendResponse(out, 408, "Request Timeout", null);
                     }
+                    if (!keepAlive)
+                        break;
                 }
             } catch (SocketTimeoutException e) {
-                // Request timeout, send 408 response
-                sendResponse(out, 408, "Request Timeout", null);
+                // idle persistent connection, close it
             }
 
-            // Close the streams and socket
+            // Close the streams and socket, the buffered response is flushed first
+            buffered.close();
             in.close();
-            out.close();
             clientSocket.close();
         } catch (IOException e) {
-            System.err.println("Error handling client request: " + e.getMessage());
+            if (state.get() != CLOSED)
+                System.err.println("Error handling client request: " + e.getMessage());
+        } finally {
+            state.set(CLOSED);
+            if (deadline != null)
+                deadline.close();
+            metrics.connectionClosed();
         }
     }
 
+    // notes a request line read, for the metrics and flight recorder events; an idle keep-alive wait is not counted
+    private void startRequest() {
+        requestAt = System.nanoTime();
+        parsedEvent = ServerEvents.beginRequestParsed();
+        responseEvent = ServerEvents.beginResponseSent();
+    }
+
+    // starts a phase of the connection's deadline, false if the connection has expired
+    private boolean arm(int phase) {
+        return deadline == null || deadline.arm(phase);
+    }
+
+    private boolean headerTimedOut() {
+        return deadline != null && deadline.getExpiredPhase() == DeadlineManager.HEADER_READ;
+    }
+
+    /**
+     * Called by the deadline manager when a deadline of the connection has
+     * passed. A request that is late is woken up by the end of its input
+     * and answered with 408 by the worker; over TLS, and for idle or
+     * stalled connections, the connection is closed.
+     *
+     * @param phase The phase that expired
+     */
+    public void expired(int phase) {
+        if (phase != DeadlineManager.CLOSING)
+            metrics.recordReaped(DeadlineManager.phaseName(phase));
+        if (phase == DeadlineManager.HEADER_READ && !(clientSocket instanceof SSLSocket)) {
+            try {
+                clientSocket.shutdownInput();
+            } catch (IOException e) {
+                abort();
+            }
+        } else if (phase == DeadlineManager.KEEP_ALIVE_IDLE) {
+            if (state.compareAndSet(IDLE, CLOSED))
+                closeSocket();
+        } else {
+            abort(); // a stalled response, or a connection that did not close in time
+        }
+    }
+
+    /**
+     * Asks the connection to close: immediately if it is waiting for a
+     * request, otherwise once the response in progress has been sent.
+     */
+    void drain() {
+        draining = true;
+        Http2Connection connection = http2;
+        if (connection != null)
+            connection.drain();
+        else if (state.compareAndSet(IDLE, CLOSED))
+            closeSocket();
+    }
+
+    /**
+     * Closes the connection, even in the middle of a response.
+     */
+    void abort() {
+        state.set(CLOSED);
+        closeSocket();
+    }
+
+    /**
+     * Undoes the construction of a worker that is never run, e.g. because
+     * the executor rejected it: the connection leaves the active
+     * connections and its deadline is ended. The socket is left to the caller.
+     */
+    void discard() {
+        state.set(CLOSED);
+        if (deadline != null)
+            deadline.close();
+        metrics.connectionClosed();
+    }
+
+    private void closeSocket() {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            // Ok, ignore
+        }
+    }
+
+    // reads the header lines, returns false if the client asked to close the connection
+    private boolean readHeaders(LineInputStream in) throws IOException {
+        boolean persistent = requestLine.endsWith(" HTTP/1.1");
+        long contentLength = -1;
+        badContentLength = false;
+        upgrade = null;
+        http2Settings = null;
+        acceptGzip = false;
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon < 0)
+                continue;
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Connection"))
+                persistent = !value.equalsIgnoreCase("close");
+            else if (name.equalsIgnoreCase("Content-Length")) {
+                // a repeated header must agree, or the end of the body is ambiguous
+                long length = parseLength(value);
+                badContentLength |= length < 0 || (contentLength >= 0 && length != contentLength);
+                contentLength = length;
+            }
+            else if (name.equalsIgnoreCase("Transfer-Encoding"))
+                persistent = false; // the end of the body, and the next request, cannot be found
+            else if (name.equalsIgnoreCase("Upgrade"))
+                upgrade = value;
+            else if (name.equalsIgnoreCase("HTTP2-Settings"))
+                http2Settings = value;
+            else if (name.equalsIgnoreCase("Accept-Encoding"))
+                acceptGzip = AssetBundle.acceptsGzip(value);
+        }
+        if (badContentLength)
+            return false;
+        if (contentLength > 0)
+            in.skipNBytes(contentLength); // request bodies are not used, EOFException if the body is cut short
+        return persistent && line != null;
+    }
+
+    // the value of a Content-Length header, -1 if it is not a length
+    private static long parseLength(String value) {
+        try {
+            long length = Long.parseLong(value);
+            return length < 0 ? -1 : length;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // parses the request line and sends the response
+    private void handleRequest(DataOutputStream out) throws IOException {
+        // Parse the request
+        ServerLog.log("Request " + requestLine);
+        String[] requestParts = parseRequestLine(requestLine);
+        headRequest = false;
+        if (requestParts == null) {
+            // Bad request, send 400 response
+            keepAlive = false;
+            sendResponse(out, 400, "Bad Request", null);
+        } else if (!isServedVersion(requestParts[2])) {
+            keepAlive = false;
+            sendResponse(out, 505, "HTTP Version Not Supported", null);
+        } else if (requestParts[0].equals("OPTIONS")) {
+            // The same methods for the whole server (*) and every path
+            sendAllow(out, 200, "OK");
+        } else if (!requestParts[0].equals("GET") && !requestParts[0].equals("HEAD")) {
+            if (OTHER_METHODS.contains(requestParts[0]))
+                sendAllow(out, 405, "Method Not Allowed");
+            else
+                sendResponse(out, 501, "Not Implemented", null);
+        } else {
+            // GET, or HEAD answered from the file's metadata without opening it
+            headRequest = requestParts[0].equals("HEAD");
+            String requestedPath = requestParts[1];
+
+            if (requestedPath.equals(METRICS_PATH)) {
+                // Built-in metrics endpoint
+                sendMetrics(out);
+            } else if (bundle != null) {
+                // Looked up in the mapped bundle, no file is touched
+                AssetBundle.Entry entry = lookup(requestedPath);
+                switch (entry.getStatus()) {
+                case FOUND:
+                    sendBundled(out, entry);
+                    break;
+                case FORBIDDEN:
+                    sendResponse(out, 403, "Forbidden", null);
+                    break;
+                case BAD_REQUEST:
+                    sendResponse(out, 400, "Bad Request", null);
+                    break;
+                default:
+                    sendResponse(out, 404, "Not Found", null);
+                }
+            } else {
+                // Resolve the path under the root directory, directories default to index.html
+                PathResolver.Resolution resolution = resolve(requestedPath);
+                switch (resolution.getStatus()) {
+                case FOUND:
+                    // File exists, send OK response with file content
+                    sendResponse(out, 200, "OK", resolution.getFile());
+                    break;
+                case FORBIDDEN:
+                    // Path outside the root directory, send 403 response
+                    sendResponse(out, 403, "Forbidden", null);
+                    break;
+                case BAD_REQUEST:
+                    // Malformed path, send 400 response
+                    sendResponse(out, 400, "Bad Request", null);
+                    break;
+                default:
+                    // File not found, send 404 response
+                    sendResponse(out, 404, "Not Found", null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits a request line into its method, target and version.
+     *
+     * @param requestLine The request line, without its line end
+     * @return The three parts, null if the line is malformed
+     */
+    static String[] parseRequestLine(String requestLine) {
+        String[] requestParts = requestLine.split(" ");
+        if (requestParts.length != 3 || !requestParts[2].startsWith("HTTP/"))
+            return null;
+        return requestParts;
+    }
+
+    /**
+     * Returns true if requests of an HTTP version are served, HTTP/1.1 and HTTP/1.0.
+     *
+     * @param version The version of the request line, e.g. HTTP/1.1
+     */
+    static boolean isServedVersion(String version) {
+        return version.equals("HTTP/1.1") || version.equals("HTTP/1.0");
+    }
+
+    /**
+     * Returns the status of a request whose method is not served:
+     * 405 for the other methods of HTTP, 501 for unknown ones.
+     *
+     * @param method The request method
+     * @return The status code
+     */
+    static int methodNotServed(String method) {
+        return OTHER_METHODS.contains(method) ? 405 : 501;
+    }
+
+    // switches to HTTP/2 if the request asks for h2c, returns true once the HTTP/2 connection is done
+    private boolean upgradeToHttp2(LineInputStream in, OutputStream out) throws IOException {
+        if (!http2Enabled || upgrade == null || http2Settings == null || draining
+                || !requestLine.endsWith(" HTTP/1.1"))
+            return false;
+        boolean h2c = false;
+        for (String protocol : upgrade.split(","))
+            h2c |= protocol.trim().equalsIgnoreCase("h2c");
+        byte[] settings;
+        try {
+            settings = Base64.getUrlDecoder().decode(http2Settings);
+        } catch (IllegalArgumentException e) {
+            return false; // served over HTTP/1.1
+        }
+        if (!h2c || settings.length % 6 != 0)
+            return false;
+
+        out.write("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+                .getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        serveHttp2(in, out, settings);
+        return true;
+    }
+
+    // serves the rest of the connection over HTTP/2, the request of an upgrade on stream 1
+    private void serveHttp2(LineInputStream in, OutputStream out, byte[] upgradeSettings) throws IOException {
+        out.flush();
+        if (!arm(DeadlineManager.NONE))
+            return; // expired while upgrading
+        Http2Connection connection = new Http2Connection(clientSocket, in, clientSocket.getOutputStream(),
+                bundle != null ? null : resolver(), mimeTypes, metrics, accessLog,
+                timeout > 0 ? timeout : KEEP_ALIVE_TIMEOUT);
+        connection.setBundle(bundle);
+        connection.setRateLimiter(rateLimiter);
+        http2 = connection;
+        if (draining)
+            connection.drain(); // checked after publishing, see drain()
+        if (upgradeSettings == null) {
+            connection.serve();
+        } else {
+            String[] requestParts = requestLine.split(" ");
+            connection.serveUpgrade(upgradeSettings, requestParts[0], requestParts[1], requestLine, acceptGzip);
+        }
+    }
+
+    private PathResolver resolver() throws IOException {
+        if (resolver == null)
+            resolver = new PathResolver(rootDirectory);
+        return resolver;
+    }
+
+    private PathResolver.Resolution resolve(String target) throws IOException {
+        ServerEvents.FileResolved event = ServerEvents.beginFileResolved();
+        PathResolver.Resolution resolution = resolver().resolve(target);
+        ServerEvents.fileResolved(event, target, resolution);
+        return resolution;
+    }
+
     /**
      * Sends an HTTP response to the client with the specified status code, status
      * message, and file content (if applicable).
-     * 
+     *
      * @param out           DataOutputStream to send the response to the client.
      * @param statusCode    HTTP status code of the response.
      * @param statusMessage HTTP status message of the response.
      * @param file          File object representing the file to be sent in the
      *                      response, or null if no file content is to be sent.
-     * 
+     *
      * @throws IOException If an I/O error occurs while sending the response.
      */
     private void sendResponse(DataOutputStream out, int statusCode, String statusMessage, File file)
             throws IOException {
+        sendStatusAndHeaders(out, statusCode, statusMessage);
+
+        if (file != null) {
+            writeFileHeaders(out, file, mimeTypes);
+            out.writeBytes("\r\n"); // Empty line to separate headers from content
+            firstByte(out);
+            if (headRequest) {
+                responseDone(out, statusCode);
+                return;
+            }
+
+            // Send the file content, throttled if it is large
+            OutputStream body = out;
+            if (bandwidthLimit > 0 && file.length() >= throttleMinSize)
+                body = new ThrottledOutputStream(out, bandwidthLimit, Math.max(8192, bandwidthLimit / 10));
+            FileInputStream fileIn = new FileInputStream(file);
+            byte[] buffer = new byte[1024];
+            int bytesRead;
+            while ((bytesRead = fileIn.read(buffer)) != -1) {
+                body.write(buffer, 0, bytesRead);
+            }
+            fileIn.close();
+        } else {
+            // End headers for error response
+            out.writeBytes("Content-Length: 0\r\n");
+            out.writeBytes("\r\n");
+            firstByte(out);
+        }
+        responseDone(out, statusCode);
+    }
+
+    private AssetBundle.Entry lookup(String target) {
+        ServerEvents.FileResolved event = ServerEvents.beginFileResolved();
+        AssetBundle.Entry entry = bundle.lookup(target);
+        ServerEvents.fileResolved(event, target, entry);
+        return entry;
+    }
+
+    /**
+     * Sends a file of the bundle, with its precomputed headers, gzip
+     * encoded if the client accepts it and the bundle has the variant.
+     *
+     * @param out   DataOutputStream to send the response to the client.
+     * @param entry The entry of the file in the bundle.
+     *
+     * @throws IOException If an I/O error occurs while sending the response.
+     */
+    private void sendBundled(DataOutputStream out, AssetBundle.Entry entry) throws IOException {
+        sendStatusAndHeaders(out, 200, "OK");
+        if (copyBuffer == null)
+            copyBuffer = new byte[16384];
+        ByteBuffer headers = entry.getHeaders(acceptGzip);
+        if (ServerLog.isEnabled())
+            ServerLog.log(StandardCharsets.US_ASCII.decode(headers.duplicate()).toString().trim());
+        copy(headers, out);
+        firstByte(out);
+        if (!headRequest) {
+            // Send the body from the mapping, throttled if it is large
+            OutputStream body = out;
+            int length = entry.getLength(acceptGzip);
+            if (bandwidthLimit > 0 && length >= throttleMinSize)
+                body = new ThrottledOutputStream(out, bandwidthLimit, Math.max(8192, bandwidthLimit / 10));
+            copy(entry.getBody(acceptGzip), body);
+        }
+        responseDone(out, 200);
+    }
+
+    private void copy(ByteBuffer from, OutputStream to) throws IOException {
+        while (from.hasRemaining()) {
+            int n = Math.min(copyBuffer.length, from.remaining());
+            from.get(copyBuffer, 0, n);
+            to.write(copyBuffer, 0, n);
+        }
+    }
+
+    /**
+     * Sends the server metrics in the Prometheus text format.
+     *
+     * @param out DataOutputStream to send the response to the client.
+     *
+     * @throws IOException If an I/O error occurs while sending the response.
+     */
+    private void sendMetrics(DataOutputStream out) throws IOException {
+        byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+
+        sendStatusAndHeaders(out, 200, "OK");
+        out.writeBytes("Content-Length: " + body.length + "\r\n");
+        out.writeBytes("Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n");
+        out.writeBytes("\r\n");
+        firstByte(out);
+        if (!headRequest)
+            out.write(body);
+        responseDone(out, 200);
+    }
+
+    /**
+     * Sends a response without content listing the methods served, the
+     * answer to OPTIONS and to the methods that are not allowed.
+     *
+     * @param out           DataOutputStream to send the response to the client.
+     * @param statusCode    HTTP status code of the response.
+     * @param statusMessage HTTP status message of the response.
+     *
+     * @throws IOException If an I/O error occurs while sending the response.
+     */
+    private void sendAllow(DataOutputStream out, int statusCode, String statusMessage) throws IOException {
+        sendStatusAndHeaders(out, statusCode, statusMessage);
+        ServerLog.log("Allow: " + ALLOWED_METHODS);
+        out.writeBytes("Allow: " + ALLOWED_METHODS + "\r\n");
+        out.writeBytes("Content-Length: 0\r\n");
+        out.writeBytes("\r\n");
+        firstByte(out);
+        responseDone(out, statusCode);
+    }
+
+    // 429 to a client over its rate, as the acceptor answers it
+    private void sendTooManyRequests(DataOutputStream out) throws IOException {
+        sendStatusAndHeaders(out, 429, "Too Many Requests");
+        ServerLog.log("Retry-After: 1");
+        out.writeBytes("Retry-After: 1\r\n");
+        out.writeBytes("Content-Length: 0\r\n");
+        out.writeBytes("\r\n");
+        firstByte(out);
+        responseDone(out, 429);
+    }
+
+    private void sendStatusAndHeaders(DataOutputStream out, int statusCode, String statusMessage) throws IOException {
+        writeStatusAndHeaders(out, statusCode, statusMessage, keepAlive);
+    }
+
+    /**
+     * Writes the status line and the headers common to all responses.
+     *
+     * @param out           The output stream of the response
+     * @param statusCode    The status code of the response
+     * @param statusMessage The reason phrase of the status line
+     * @param keepAlive     True if the connection is kept open after the response
+     *
+     * @throws IOException If an I/O error occurs while writing
+     */
+    static void writeStatusAndHeaders(DataOutputStream out, int statusCode, String statusMessage, boolean keepAlive)
+            throws IOException {
         // Status line
         String statusLine = "HTTP/1.1 " + statusCode + " " + statusMessage;
-        System.out.println(statusLine);
+        ServerLog.log(statusLine);
         out.writeBytes(statusLine + "\r\n");
 
         // Header lines
         String[] headers = {
                 "Date: " + ServerUtils.getCurrentDate(),
-                "Server: MySimpleWebServer",
-                "Connection: close"
+                "Server: " + SERVER_NAME,
+                keepAlive ? "Connection: keep-alive" : "Connection: close"
         };
         for (String header : headers) {
-            System.out.println(header);
+            ServerLog.log(header);
             out.writeBytes(header + "\r\n");
         }
+    }
 
-        if (file != null) {
-            // Additional headers for successful response
-            String[] fileHeaders = {
-                    "Last-Modified: " + ServerUtils.getLastModified(file),
-                    "Content-Length: " + ServerUtils.getContentLength(file),
-                    "Content-Type: " + ServerUtils.getContentType(file)
-            };
-            for (String header : fileHeaders) {
-                System.out.println(header);
-                out.writeBytes(header + "\r\n");
-            }
-            out.writeBytes("\r\n"); // Empty line to separate headers from content
+    /**
+     * Writes the Last-Modified, Content-Length and Content-Type headers of
+     * a file sent as the response body, without the empty line.
+     *
+     * @param out       The output stream of the response
+     * @param file      The file sent
+     * @param mimeTypes The table the Content-Type is looked up in
+     *
+     * @throws IOException If an I/O error occurs while writing
+     */
+    static void writeFileHeaders(DataOutputStream out, File file, MimeTypes mimeTypes) throws IOException {
+        String[] fileHeaders = {
+                "Last-Modified: " + ServerUtils.getLastModified(file),
+                "Content-Length: " + ServerUtils.getContentLength(file)
+        };
+        for (String header : fileHeaders) {
+            ServerLog.log(header);
+            out.writeBytes(header + "\r\n");
+        }
+        byte[] contentType = mimeTypes.getContentTypeHeader(file.getName()); // pre-encoded, line end included
+        if (ServerLog.isEnabled())
+            ServerLog.log(new String(contentType, StandardCharsets.US_ASCII).trim());
+        out.write(contentType);
+    }
 
-            // Send the file content
-            FileInputStream fileIn = new FileInputStream(file);
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            while ((bytesRead = fileIn.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
+    // pushes the response headers out and notes the time
+    private void firstByte(DataOutputStream out) throws IOException {
+        out.flush();
+        firstByteAt = System.nanoTime();
+    }
+
+    private void responseDone(DataOutputStream out, int statusCode) throws IOException {
+        out.flush();
+        long now = System.nanoTime();
+        metrics.recordResponse(statusCode, out.size(), firstByteAt - requestAt, now - requestAt);
+        ServerEvents.responseSent(responseEvent, requestLine, ServerEvents.PROTOCOL_HTTP1, statusCode, out.size(),
+                firstByteAt - requestAt);
+        if (accessLog != null)
+            accessLog.log(clientSocket.getInetAddress().getHostAddress(), requestLine, statusCode, out.size());
+    }
+
+    // input of the connection, a request that starts to arrive on an idle connection is put under the header deadline
+    private class DeadlineInputStream extends FilterInputStream {
+        DeadlineInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (deadline != null) {
+                if (n == -1 && headerTimedOut())
+                    throw new SocketTimeoutException("Request header deadline passed"); // input shut down by expired()
+                if (n > 0 && deadline.getPhase() == DeadlineManager.KEEP_ALIVE_IDLE
+                        && !deadline.arm(DeadlineManager.HEADER_READ))
+                    throw new SocketTimeoutException("Keep-alive deadline passed");
             }
-            fileIn.close();
-        } else {
-            // End headers for error response
-            out.writeBytes("\r\n");
+            return n;
+        }
+    }
+
+    // output of the connection, every write of a response moves its deadline
+    private class DeadlineOutputStream extends FilterOutputStream {
+        DeadlineOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (deadline != null)
+                deadline.extend();
         }
     }
 }
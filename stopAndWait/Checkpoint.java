@@ -0,0 +1,121 @@
+/**
+ * Checkpoint Class
+ *
+ * Receiver-side state of a resumable StopWaitFtp transfer. The file is
+ * received into <name>.part and the number of contiguous bytes known to
+ * be on disk is recorded in <name>.part.ckpt, together with the length
+ * and version of the sender's file. A later transfer of the same file
+ * version continues after the recorded bytes; once the transfer has
+ * completed, the part file is renamed to the file name.
+ *
+ * A checkpoint is written to a temporary file and moved over the old
+ * one, so a crash leaves either the old or the new checkpoint. The part
+ * file is synced before its checkpoint is written.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.nio.file.*;
+
+public class Checkpoint {
+
+	private static final int MAGIC = 0x53574350; // "SWCP"
+
+	private final File file;
+	private final File partFile;
+	private final File checkpointFile;
+	private final long fileLength;
+	private final int version;
+
+	/**
+	 * Constructor
+	 *
+	 * @param file       The file being received
+	 * @param fileLength Length of the sender's file
+	 * @param version    Version of the sender's file, see StopWaitFtp
+	 */
+	public Checkpoint(File file, long fileLength, int version) {
+		this.file = file;
+		this.partFile = new File(file.getPath() + ".part");
+		this.checkpointFile = new File(file.getPath() + ".part.ckpt");
+		this.fileLength = fileLength;
+		this.version = version;
+	}
+
+	/**
+	 * Returns the part file the content is received into
+	 */
+	public File getPartFile() {
+		return partFile;
+	}
+
+	/**
+	 * Returns the number of bytes a transfer can resume after, a multiple
+	 * of the segment payload size, and cuts the part file to that length.
+	 * A part file without a matching checkpoint is discarded.
+	 *
+	 * @return The number of bytes already received
+	 *
+	 * @throws IOException If the part file cannot be cut
+	 */
+	public long resume() throws IOException {
+		long offset = 0;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile))) {
+			if (in.readInt() == MAGIC && in.readLong() == fileLength && in.readInt() == version)
+				offset = in.readLong();
+		} catch (IOException e) {
+			// no usable checkpoint, start over
+		}
+		offset = Math.min(offset, partFile.length());
+		offset -= offset % FtpSegment.MAX_PAYLOAD_SIZE;
+		try (RandomAccessFile part = new RandomAccessFile(partFile, "rw")) {
+			part.setLength(offset);
+		}
+		return offset;
+	}
+
+	/**
+	 * Records the number of contiguous bytes in the part file.
+	 *
+	 * @param partOut The output stream of the part file, flushed
+	 * @param offset  The number of bytes written to it
+	 *
+	 * @throws IOException If the checkpoint cannot be written
+	 */
+	public void save(FileOutputStream partOut, long offset) throws IOException {
+		partOut.getFD().sync();
+		File temp = new File(checkpointFile.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(temp)) {
+			DataOutputStream data = new DataOutputStream(out);
+			data.writeInt(MAGIC);
+			data.writeLong(fileLength);
+			data.writeInt(version);
+			data.writeLong(offset);
+			data.flush();
+			out.getFD().sync();
+		}
+		Files.move(temp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Renames the part file to the file name and removes the checkpoint.
+	 *
+	 * @throws IOException If the part file cannot be renamed
+	 */
+	public void complete() throws IOException {
+		Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		checkpointFile.delete();
+	}
+
+	/**
+	 * Removes the part file and the checkpoint, e.g. after a corrupted transfer.
+	 */
+	public void discard() {
+		partFile.delete();
+		checkpointFile.delete();
+	}
+}
@@ -0,0 +1,268 @@
+/**
+ * Compression Class
+ *
+ * Streaming compression of the content StopWaitFtp sends over UDP.
+ *
+ * The content is cut into blocks of BLOCK_SIZE bytes and every block is
+ * deflated on its own into a frame; the frames are concatenated and the
+ * resulting byte stream is packed into segment payloads without regard
+ * to frame boundaries, so the receiver decodes the frames as segments
+ * arrive, in order. A frame is one of:
+ *
+ * 		STORED		int length, bytes					the block as is
+ * 		DEFLATED	int length, int compressed, bytes	the block, deflated
+ * 		END												no more frames
+ *
+ * Incompressible data is not worth the time to deflate it: the encoder
+ * first deflates a sample of every block at the fastest level and stores
+ * the block as is if the sample does not shrink by at least MIN_SAVING.
+ * A block that does not shrink once deflated is stored as well.
+ *
+ * The encoder pads the stream with zeros to a multiple of a given unit,
+ * so every segment is full (as FEC requires); the zeros read as END.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class Compression {
+
+	public static final int DEFLATE = 1; // codec id in the handshake
+
+	private static final int END = 0;
+	private static final int STORED = 1;
+	private static final int DEFLATED = 2;
+
+	public static final int BLOCK_SIZE = 1 << 16; // bytes of content per frame
+	private static final int MAX_HEADER_SIZE = 9; // bytes
+	private static final int SAMPLE_SIZE = 4096; // bytes of a block deflated to decide whether to deflate it
+	private static final double MIN_SAVING = 0.1; // fraction of the sample deflating has to save
+
+	/**
+	 * Input stream of the frames of the content read from another stream.
+	 */
+	public static class Encoder extends InputStream {
+		private final InputStream in;
+		private final int padding;
+		private final Deflater deflater;
+		private final Deflater sampler = new Deflater(Deflater.BEST_SPEED);
+		private final byte[] block = new byte[BLOCK_SIZE];
+		private final byte[] frame = new byte[MAX_HEADER_SIZE + BLOCK_SIZE];
+		private int position = 0; // next byte of the frame to read
+		private int limit = 0; // end of the frame
+		private long length = 0; // bytes of frames read
+		private boolean eof = false;
+		private long storedBlocks = 0;
+		private long deflatedBlocks = 0;
+
+		/**
+		 * Constructor
+		 *
+		 * @param in      The content
+		 * @param level   The deflate level, 1 (fastest) to 9 (smallest)
+		 * @param padding The length of the stream is padded to a multiple of this
+		 */
+		public Encoder(InputStream in, int level, int padding) {
+			this.in = in;
+			this.padding = padding;
+			this.deflater = new Deflater(level);
+		}
+
+		/**
+		 * Returns the number of blocks stored as is
+		 */
+		public long getStoredBlocks() {
+			return storedBlocks;
+		}
+
+		/**
+		 * Returns the number of blocks deflated
+		 */
+		public long getDeflatedBlocks() {
+			return deflatedBlocks;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (position == limit && !nextFrame())
+				return -1;
+			int n = Math.min(len, limit - position);
+			System.arraycopy(frame, position, b, off, n);
+			position += n;
+			length += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			deflater.end();
+			sampler.end();
+			in.close();
+		}
+
+		// encodes the next block, or the padding after the last one, false at the end of the stream
+		private boolean nextFrame() throws IOException {
+			position = 0;
+			limit = 0;
+			int n = eof ? 0 : in.readNBytes(block, 0, BLOCK_SIZE);
+			if (n == 0) {
+				eof = true;
+				limit = (int) ((padding - length % padding) % padding); // zeros
+				Arrays.fill(frame, 0, limit, (byte) 0);
+				return limit > 0;
+			}
+
+			int compressed = shrinks(n) ? deflate(deflater, n, frame, MAX_HEADER_SIZE, n) : n;
+			if (compressed < n) {
+				frame[0] = DEFLATED;
+				writeInt(frame, 1, n);
+				writeInt(frame, 5, compressed);
+				limit = MAX_HEADER_SIZE + compressed;
+				deflatedBlocks++;
+			} else {
+				frame[0] = STORED;
+				writeInt(frame, 1, n);
+				System.arraycopy(block, 0, frame, 5, n);
+				limit = 5 + n;
+				storedBlocks++;
+			}
+			return true;
+		}
+
+		// true if a sample of the first n bytes of the block compresses
+		private boolean shrinks(int n) {
+			int sample = Math.min(n, SAMPLE_SIZE);
+			int compressed = deflate(sampler, sample, frame, 0, sample);
+			return compressed <= sample * (1 - MIN_SAVING);
+		}
+
+		// deflates the first n bytes of the block into out[off, off + max), max if it does not fit
+		private int deflate(Deflater deflater, int n, byte[] out, int off, int max) {
+			deflater.reset();
+			deflater.setInput(block, 0, n);
+			deflater.finish();
+			int length = 0;
+			while (!deflater.finished() && length < max)
+				length += deflater.deflate(out, off + length, max - length);
+			return deflater.finished() ? length : max;
+		}
+	}
+
+	/**
+	 * Output stream taking the frames and writing the content they carry to
+	 * another stream, one whole block per write.
+	 */
+	public static class Decoder extends OutputStream {
+		private final OutputStream out;
+		private final Inflater inflater = new Inflater();
+		private final byte[] block = new byte[BLOCK_SIZE + 1]; // room to see the end of the deflated data
+		private final byte[] pending = new byte[MAX_HEADER_SIZE + BLOCK_SIZE + 1024]; // frame bytes not decoded yet
+		private int count = 0;
+		private boolean ended = false;
+
+		/**
+		 * Constructor
+		 *
+		 * @param out Output stream of the content
+		 */
+		public Decoder(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0 && !ended) {
+				int n = Math.min(len, pending.length - count);
+				System.arraycopy(b, off, pending, count, n);
+				count += n;
+				off += n;
+				len -= n;
+				decodeFrames();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			inflater.end();
+		}
+
+		// decodes the complete frames at the start of pending
+		private void decodeFrames() throws IOException {
+			int start = 0;
+			while (start < count && !ended) {
+				int type = pending[start];
+				if (type == END) {
+					ended = true;
+					break;
+				}
+				if (count - start < 5 || (type == DEFLATED && count - start < MAX_HEADER_SIZE))
+					break;
+				int length = readInt(pending, start + 1);
+				int compressed = type == DEFLATED ? readInt(pending, start + 5) : length;
+				int header = type == DEFLATED ? MAX_HEADER_SIZE : 5;
+				if ((type != STORED && type != DEFLATED) || length <= 0 || length > BLOCK_SIZE || compressed <= 0
+						|| compressed > length)
+					throw new IOException("Malformed compressed frame");
+				if (count - start < header + compressed)
+					break;
+
+				if (type == STORED) {
+					out.write(pending, start + header, length);
+				} else {
+					inflate(start + header, compressed, length);
+					out.write(block, 0, length);
+				}
+				start += header + compressed;
+			}
+			System.arraycopy(pending, start, pending, 0, count - start);
+			count -= start;
+		}
+
+		private void inflate(int off, int compressed, int length) throws IOException {
+			inflater.reset();
+			inflater.setInput(pending, off, compressed);
+			try {
+				int n = 0;
+				int r;
+				while (!inflater.finished() && n < block.length && (r = inflater.inflate(block, n, block.length - n)) > 0)
+					n += r;
+				if (n != length || !inflater.finished())
+					throw new IOException("Malformed compressed frame");
+			} catch (DataFormatException e) {
+				throw new IOException("Malformed compressed frame", e);
+			}
+		}
+	}
+
+	private static void writeInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+
+	private static int readInt(byte[] b, int offset) {
+		return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8
+				| (b[offset + 3] & 0xff);
+	}
+}
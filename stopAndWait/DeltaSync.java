@@ -0,0 +1,353 @@
+/**
+ * DeltaSync Class
+ *
+ * Rsync-style delta encoding for StopWaitFtp: updates a file the
+ * receiver already has by sending only what changed.
+ *
+ * The receiver splits its copy (the basis) into blocks and sends a
+ * signature per block: a weak rolling checksum and the MD5 of the block.
+ * The sender slides a window of the block size over its file one byte at
+ * a time, updating the weak checksum of the window in constant time, and
+ * checks the MD5 only if the weak checksum is one of the basis blocks'.
+ * The delta it produces is a sequence of operations:
+ *
+ * 		COPY	int index, int count	copy count basis blocks starting at block index
+ * 		LITERAL	int length, bytes		insert the bytes
+ * 		END		long length, int crc	length and CRC32C of the file, checked by the receiver
+ *
+ * Blocks are matched at any offset, so insertions and deletions only cost
+ * the blocks they touch. Only full basis blocks are matched.
+ *
+ * The receiver applies the delta before its last answer on the control
+ * connection, so the sender only reports success for an updated file:
+ * with checksums, the answer to the file checksum is false if the delta
+ * does not reproduce the file; without, the sender asks with a byte once
+ * the content is acknowledged and is answered with a boolean.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+public class DeltaSync {
+
+	private static final int COPY = 'C';
+	private static final int LITERAL = 'L';
+	private static final int END = 'E';
+
+	private static final int MIN_BLOCK_SIZE = 1024; // bytes
+	private static final int MAX_BLOCK_SIZE = 1 << 16; // bytes
+	private static final int STRONG_SIZE = 16; // bytes of an MD5
+	private static final int BUFFER_SIZE = 1 << 20; // bytes
+	private static final int FILTER_BITS = 20; // log2 of the bits of the weak checksum filter
+
+	/**
+	 * Block signatures of a basis file.
+	 */
+	public static class Signatures {
+		private final int blockSize;
+		private final int count;
+		private final byte[] strong; // MD5 of block i at i * STRONG_SIZE
+		private final long[] index; // weak checksum << 32 | block, sorted
+		private final long[] filter = new long[1 << FILTER_BITS >> 6]; // bit set for the weak checksums present
+
+		private Signatures(int blockSize, int[] weak, byte[] strong) {
+			this.blockSize = blockSize;
+			this.count = weak.length;
+			this.strong = strong;
+			this.index = new long[count];
+			for (int i = 0; i < count; i++) {
+				index[i] = (long) weak[i] << 32 | i;
+				int bit = filterBit(weak[i]);
+				filter[bit >>> 6] |= 1L << bit;
+			}
+			Arrays.sort(index);
+		}
+
+		// most windows match no block, the filter rejects them with a single lookup
+		private static int filterBit(int weak) {
+			return (weak * 0x9e3779b9) >>> (32 - FILTER_BITS);
+		}
+
+		/**
+		 * Returns the size of the signatures on the control connection, in bytes
+		 */
+		public long size() {
+			return 4 + (long) count * (4 + STRONG_SIZE);
+		}
+
+		// a block with the weak checksum and the content of bytes[offset, offset + blockSize), -1 if none
+		private int find(int weak, byte[] bytes, int offset, MessageDigest md5) {
+			int bit = filterBit(weak);
+			if ((filter[bit >>> 6] & 1L << bit) == 0)
+				return -1;
+			long key = (long) weak << 32;
+			int i = Arrays.binarySearch(index, key);
+			if (i < 0)
+				i = -i - 1;
+			byte[] digest = null;
+			for (; i < index.length && (index[i] >>> 32) == (key >>> 32); i++) {
+				int block = (int) index[i];
+				if (digest == null) {
+					md5.update(bytes, offset, blockSize);
+					digest = md5.digest();
+				}
+				if (Arrays.equals(digest, 0, STRONG_SIZE, strong, block * STRONG_SIZE, (block + 1) * STRONG_SIZE))
+					return block;
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the block size for a basis file, about the square root of its length
+	 */
+	public static int blockSize(long basisLength) {
+		int size = ((int) Math.sqrt(basisLength) + MIN_BLOCK_SIZE - 1) & -MIN_BLOCK_SIZE;
+		return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+	}
+
+	/**
+	 * Writes the signatures of the full blocks of a basis file.
+	 *
+	 * @param basis     The receiver's copy of the file
+	 * @param blockSize The block size
+	 * @param out       The control connection
+	 *
+	 * @throws IOException If an I/O error occurs
+	 */
+	public static void writeSignatures(File basis, int blockSize, DataOutputStream out) throws IOException {
+		MessageDigest md5 = md5();
+		long count = basis.length() / blockSize;
+		byte[] block = new byte[blockSize];
+		try (InputStream in = new BufferedInputStream(new FileInputStream(basis), BUFFER_SIZE)) {
+			out.writeInt((int) count);
+			for (long i = 0; i < count; i++) {
+				if (in.readNBytes(block, 0, blockSize) < blockSize)
+					throw new EOFException("Basis file changed");
+				out.writeInt(weakChecksum(block, 0, blockSize));
+				out.write(md5.digest(block));
+			}
+		}
+	}
+
+	/**
+	 * Reads the signatures of a basis file.
+	 *
+	 * @param in        The control connection
+	 * @param blockSize The block size
+	 * @return The signatures
+	 *
+	 * @throws IOException If an I/O error occurs or the signatures are malformed
+	 */
+	public static Signatures readSignatures(DataInputStream in, int blockSize) throws IOException {
+		if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE)
+			throw new IOException("Invalid block size " + blockSize);
+		int count = in.readInt();
+		if (count < 0 || count > Integer.MAX_VALUE / STRONG_SIZE)
+			throw new IOException("Malformed signatures");
+		int[] weak = new int[count];
+		byte[] strong = new byte[count * STRONG_SIZE];
+		for (int i = 0; i < count; i++) {
+			weak[i] = in.readInt();
+			in.readFully(strong, i * STRONG_SIZE, STRONG_SIZE);
+		}
+		return new Signatures(blockSize, weak, strong);
+	}
+
+	/**
+	 * Writes the delta that turns the basis into a file.
+	 *
+	 * @param file       The new version of the file
+	 * @param signatures Signatures of the basis
+	 * @param deltaOut   The delta
+	 * @return The number of literal bytes in the delta
+	 *
+	 * @throws IOException If an I/O error occurs
+	 */
+	public static long encode(File file, Signatures signatures, OutputStream deltaOut) throws IOException {
+		int blockSize = signatures.blockSize;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(deltaOut, 1 << 16));
+		MessageDigest md5 = md5();
+		CRC32C crc = new CRC32C();
+		long length = 0;
+		long literalBytes = 0;
+
+		byte[] buffer = new byte[Math.max(BUFFER_SIZE, 4 * blockSize)];
+		int filled = 0;
+		int start = 0; // of the window
+		int literal = 0; // pending literal bytes are [literal, start)
+		int copyBlock = 0; // pending run of copied blocks
+		int copyCount = 0;
+		int a = 0; // rolling checksum of the window, valid if rolling
+		int b = 0;
+		boolean rolling = false;
+		boolean eof = false;
+
+		try (InputStream in = new FileInputStream(file)) {
+			while (true) {
+				if (start + blockSize > filled && !eof) {
+					// move the window to the front and refill
+					if (literal < start) {
+						writeCopy(out, copyBlock, copyCount);
+						copyCount = 0;
+						writeLiteral(out, buffer, literal, start);
+						literalBytes += start - literal;
+					}
+					System.arraycopy(buffer, start, buffer, 0, filled - start);
+					filled -= start;
+					literal = start = 0;
+					int n = in.readNBytes(buffer, filled, buffer.length - filled);
+					eof = filled + n < buffer.length;
+					crc.update(buffer, filled, n);
+					length += n;
+					filled += n;
+				}
+				if (start + blockSize > filled)
+					break; // less than a block left
+
+				if (!rolling) {
+					a = 0;
+					b = 0;
+					for (int i = 0; i < blockSize; i++) {
+						a += buffer[start + i] & 0xff;
+						b += (blockSize - i) * (buffer[start + i] & 0xff);
+					}
+					rolling = true;
+				}
+
+				int block = signatures.find((a & 0xffff) | b << 16, buffer, start, md5);
+				if (block >= 0) {
+					if (literal < start || (copyCount > 0 && copyBlock + copyCount != block)) {
+						writeCopy(out, copyBlock, copyCount);
+						copyCount = 0;
+						writeLiteral(out, buffer, literal, start);
+						literalBytes += start - literal;
+					}
+					if (copyCount == 0)
+						copyBlock = block;
+					copyCount++;
+					start += blockSize;
+					literal = start;
+					rolling = false;
+				} else if (start + blockSize < filled) {
+					int out0 = buffer[start] & 0xff;
+					int in0 = buffer[start + blockSize] & 0xff;
+					a += in0 - out0;
+					b += a - blockSize * out0;
+					start++;
+				} else {
+					start++; // the next byte is not read yet
+					rolling = false;
+				}
+			}
+		}
+
+		writeCopy(out, copyBlock, copyCount);
+		writeLiteral(out, buffer, literal, filled);
+		literalBytes += filled - literal;
+		out.writeByte(END);
+		out.writeLong(length);
+		out.writeInt((int) crc.getValue());
+		out.flush();
+		return literalBytes;
+	}
+
+	/**
+	 * Applies a delta to the basis.
+	 *
+	 * @param basis     The receiver's copy of the file
+	 * @param blockSize The block size of the signatures
+	 * @param delta     The delta
+	 * @param out       The new version of the file
+	 *
+	 * @throws IOException If an I/O error occurs, the delta is malformed or
+	 *                     does not reproduce the sender's file
+	 */
+	public static void apply(File basis, int blockSize, InputStream delta, OutputStream out) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(delta, 1 << 16));
+		CRC32C crc = new CRC32C();
+		long length = 0;
+		long blocks = basis.length() / blockSize;
+		byte[] buffer = new byte[Math.max(1 << 16, blockSize)];
+		try (RandomAccessFile base = new RandomAccessFile(basis, "r")) {
+			while (true) {
+				int op = in.readUnsignedByte();
+				if (op == END) {
+					if (in.readLong() != length || in.readInt() != (int) crc.getValue())
+						throw new IOException("Delta does not reproduce the file");
+					return;
+				}
+
+				long remaining;
+				if (op == COPY) {
+					int block = in.readInt();
+					int count = in.readInt();
+					if (block < 0 || count <= 0 || block + (long) count > blocks)
+						throw new IOException("Malformed delta");
+					base.seek((long) block * blockSize);
+					remaining = (long) count * blockSize;
+				} else if (op == LITERAL) {
+					remaining = in.readInt();
+					if (remaining < 0)
+						throw new IOException("Malformed delta");
+				} else {
+					throw new IOException("Malformed delta");
+				}
+
+				while (remaining > 0) {
+					int n = (int) Math.min(buffer.length, remaining);
+					if (op == COPY)
+						base.readFully(buffer, 0, n);
+					else
+						in.readFully(buffer, 0, n);
+					out.write(buffer, 0, n);
+					crc.update(buffer, 0, n);
+					length += n;
+					remaining -= n;
+				}
+			}
+		}
+	}
+
+	private static void writeCopy(DataOutputStream out, int block, int count) throws IOException {
+		if (count > 0) {
+			out.writeByte(COPY);
+			out.writeInt(block);
+			out.writeInt(count);
+		}
+	}
+
+	private static void writeLiteral(DataOutputStream out, byte[] bytes, int start, int end) throws IOException {
+		if (end > start) {
+			out.writeByte(LITERAL);
+			out.writeInt(end - start);
+			out.write(bytes, start, end - start);
+		}
+	}
+
+	// rsync's weak checksum of bytes[offset, offset + length)
+	private static int weakChecksum(byte[] bytes, int offset, int length) {
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < length; i++) {
+			a += bytes[offset + i] & 0xff;
+			b += (length - i) * (bytes[offset + i] & 0xff);
+		}
+		return (a & 0xffff) | b << 16;
+	}
+
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // required of every Java platform
+		}
+	}
+}
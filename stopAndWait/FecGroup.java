@@ -0,0 +1,145 @@
+/**
+ * FecGroup Class
+ *
+ * Forward error correction for StopWaitFtp with XOR parity.
+ *
+ * With FEC the file is sent in groups of up to K data segments, each
+ * group followed by one repair segment holding the XOR of its payloads,
+ * and the whole group is acknowledged at once. A receiver missing a
+ * single data segment of a group rebuilds it from the others and the
+ * repair segment instead of waiting for a retransmission; the sender
+ * retransmits the group only if more than one segment of it is lost.
+ *
+ * Data segments are full, except the last one of the file, so the
+ * receiver knows the length of every segment from the file length and
+ * repair segments carry no lengths. A repair segment is numbered with
+ * the sequence number of the first data segment of its group, with
+ * REPAIR_FLAG set.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.util.Arrays;
+
+public class FecGroup {
+
+	public static final int REPAIR_FLAG = 1 << 30;
+	public static final int MAX_SIZE = 64; // data segments per group
+
+	private final int firstSeqNum;
+	private final int[] lengths;
+	private final byte[][] payloads;
+	private byte[] parity;
+	private int missing;
+	private boolean repaired = false;
+
+	/**
+	 * Constructor of a group being received
+	 *
+	 * @param firstSeqNum Sequence number of the first data segment of the group
+	 * @param lengths     Payload lengths of the data segments of the group
+	 */
+	public FecGroup(int firstSeqNum, int[] lengths) {
+		this.firstSeqNum = firstSeqNum;
+		this.lengths = lengths;
+		this.payloads = new byte[lengths.length][];
+		this.missing = lengths.length;
+	}
+
+	/**
+	 * Returns true if the sequence number is that of a repair segment
+	 */
+	public static boolean isRepair(int seqNum) {
+		return (seqNum & REPAIR_FLAG) != 0;
+	}
+
+	/**
+	 * Builds the repair segment of a group.
+	 *
+	 * @param firstSeqNum Sequence number of the first data segment of the group
+	 * @param payloads    Payloads of the data segments
+	 * @param lengths     Lengths of the payloads
+	 * @param count       Number of data segments in the group
+	 * @return The repair segment
+	 */
+	public static FtpSegment repairSegment(int firstSeqNum, byte[][] payloads, int[] lengths, int count) {
+		byte[] parity = new byte[lengths[0]];
+		for (int i = 0; i < count; i++)
+			xor(parity, payloads[i], lengths[i]);
+		return new FtpSegment(firstSeqNum | REPAIR_FLAG, parity);
+	}
+
+	/**
+	 * Adds a received segment to the group.
+	 *
+	 * @param segment A data or repair segment
+	 * @return false if the segment does not belong to the group
+	 */
+	public boolean add(FtpSegment segment) {
+		int seqNum = segment.getSeqNum();
+		if (isRepair(seqNum)) {
+			if ((seqNum & ~REPAIR_FLAG) != firstSeqNum)
+				return false;
+			if (parity == null)
+				parity = segment.getPayload();
+			return true;
+		}
+		int i = seqNum - firstSeqNum;
+		if (i < 0 || i >= payloads.length)
+			return false;
+		if (payloads[i] == null && segment.getLength() == lengths[i]) {
+			payloads[i] = segment.getPayload();
+			missing--;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if all data segments are present, rebuilding a single
+	 * missing one from the repair segment if possible.
+	 */
+	public boolean isComplete() {
+		if (missing == 1 && parity != null) {
+			int lost = 0;
+			while (payloads[lost] != null)
+				lost++;
+			byte[] rebuilt = parity.clone();
+			for (int i = 0; i < payloads.length; i++)
+				if (i != lost)
+					xor(rebuilt, payloads[i], lengths[i]);
+			payloads[lost] = Arrays.copyOf(rebuilt, lengths[lost]);
+			missing = 0;
+			repaired = true;
+		}
+		return missing == 0;
+	}
+
+	/**
+	 * Returns true if a data segment of the group was rebuilt
+	 */
+	public boolean wasRepaired() {
+		return repaired;
+	}
+
+	/**
+	 * Returns the payload of the i-th data segment of the group, null if missing
+	 */
+	public byte[] getPayload(int i) {
+		return payloads[i];
+	}
+
+	/**
+	 * Returns the number of data segments in the group
+	 */
+	public int size() {
+		return payloads.length;
+	}
+
+	// target[0, length) ^= source[0, length)
+	private static void xor(byte[] target, byte[] source, int length) {
+		for (int i = 0; i < length; i++)
+			target[i] ^= source[i];
+	}
+}
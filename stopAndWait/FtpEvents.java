@@ -0,0 +1,140 @@
+/**
+ * FtpEvents Class
+ *
+ * JDK Flight Recorder events of StopWaitFtp: every segment sent, every
+ * retransmission on a time-out and every acknowledgment, with the time
+ * from sending the segment (or FEC group) to its acknowledgment as the
+ * event's duration. Recorded with e.g.
+ * -XX:StartFlightRecording=filename=ftp.jfr and summarized by WebServer's
+ * JfrSummary. A disabled event is not allocated, checking its event
+ * type is all it costs.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import jdk.jfr.*;
+
+final class FtpEvents {
+
+	// looked up once, so a disabled event is not even allocated
+	private static final EventType SEGMENT_SENT = EventType.getEventType(SegmentSent.class);
+	private static final EventType SEGMENT_RETRANSMITTED = EventType.getEventType(SegmentRetransmitted.class);
+	private static final EventType SEGMENT_ACKED = EventType.getEventType(SegmentAcked.class);
+
+	private FtpEvents() {
+	}
+
+	@Name("stopandwait.SegmentSent")
+	@Label("Segment Sent")
+	@Category({ "StopWaitFtp" })
+	@StackTrace(false)
+	static class SegmentSent extends Event {
+		@Label("Sequence Number")
+		@Description("Of the first segment of the group for a repair segment")
+		int seqNum;
+
+		@Label("Payload")
+		@DataAmount
+		int bytes;
+
+		@Label("Repair")
+		@Description("Parity segment of an FEC group")
+		boolean repair;
+	}
+
+	@Name("stopandwait.SegmentRetransmitted")
+	@Label("Segment Retransmitted")
+	@Category({ "StopWaitFtp" })
+	@StackTrace(false)
+	static class SegmentRetransmitted extends Event {
+		@Label("Segments")
+		@Description("Sequence number, or range of an FEC group")
+		String segments;
+
+		@Label("Packets")
+		int packets;
+	}
+
+	@Name("stopandwait.SegmentAcked")
+	@Label("Segment Acked")
+	@Category({ "StopWaitFtp" })
+	@Description("Acknowledgment received, from first sending the segment or group; the round-trip time unless retransmitted")
+	@StackTrace(false)
+	static class SegmentAcked extends Event {
+		@Label("Sequence Number")
+		@Description("Last segment acknowledged")
+		int seqNum;
+
+		@Label("Retransmitted")
+		boolean retransmitted;
+	}
+
+	/**
+	 * Commits a segment sent event, if enabled.
+	 *
+	 * @param seqNum The sequence number, of the first segment of the group for a repair segment
+	 * @param bytes  The payload length
+	 * @param repair true for an FEC parity segment
+	 */
+	static void segmentSent(int seqNum, int bytes, boolean repair) {
+		if (!SEGMENT_SENT.isEnabled())
+			return;
+		SegmentSent event = new SegmentSent();
+		if (event.shouldCommit()) {
+			event.seqNum = seqNum;
+			event.bytes = bytes;
+			event.repair = repair;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Commits a segment retransmitted event, if enabled.
+	 *
+	 * @param segments The sequence number, or range of an FEC group
+	 * @param packets  The number of packets sent again
+	 */
+	static void segmentRetransmitted(String segments, int packets) {
+		if (!SEGMENT_RETRANSMITTED.isEnabled())
+			return;
+		SegmentRetransmitted event = new SegmentRetransmitted();
+		if (event.shouldCommit()) {
+			event.segments = segments;
+			event.packets = packets;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Begins a segment acked event, when the segment is first sent.
+	 *
+	 * @return The event, or null if no recording has it enabled
+	 */
+	static SegmentAcked beginAck() {
+		if (!SEGMENT_ACKED.isEnabled())
+			return null;
+		SegmentAcked event = new SegmentAcked();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Commits a segment acked event, if enabled.
+	 *
+	 * @param event         The event, begun when the segment was first sent, or null
+	 * @param seqNum        The last segment acknowledged
+	 * @param retransmitted true if a time-out sent the segment again
+	 */
+	static void segmentAcked(SegmentAcked event, int seqNum, boolean retransmitted) {
+		if (event == null)
+			return;
+		event.end();
+		if (event.shouldCommit()) {
+			event.seqNum = seqNum;
+			event.retransmitted = retransmitted;
+			event.commit();
+		}
+	}
+}
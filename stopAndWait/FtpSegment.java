@@ -11,6 +11,9 @@
  *
  * The max size of the payload is given by MAX_PAYLOAD_SIZE
  * The max segment size is given by MAX_SEGMENT_SIZE 
+ *
+ * Checked segments carry a CRC32C checksum of the header and payload
+ * between the two, see toCheckedBytes() and fromCheckedPacket().
  * 
  * @author 	Majid Ghaderi
  * @version	2024
@@ -19,6 +22,7 @@
 
 
 import java.util.*;
+import java.util.zip.CRC32C;
 import java.net.*;
 
 
@@ -28,6 +32,8 @@ public class FtpSegment {
 	
 	public final static int MAX_PAYLOAD_SIZE = 1000; // bytes
 	public final static int MAX_SEGMENT_SIZE = HEADER_SIZE + MAX_PAYLOAD_SIZE; // bytes
+	public final static int CHECKSUM_SIZE = 4; // bytes
+	public final static int MAX_CHECKED_SEGMENT_SIZE = MAX_SEGMENT_SIZE + CHECKSUM_SIZE; // bytes
 	
 	// header fields
 	private short connId;	// connection ID, defined for future use
@@ -231,6 +237,70 @@ public class FtpSegment {
 	}
 	
 	
+    /**
+     * Returns the entire segment as a byte array with a checksum.
+     * The header is followed by the CRC32C of the header and the payload,
+     * then by the payload.
+     * 
+     * @return A byte array containing the entire checked segment
+     */
+	public byte[] toCheckedBytes() {
+		byte[] bytes = new byte[HEADER_SIZE + CHECKSUM_SIZE + payload.length];
+		
+		// store sequence number field 
+		bytes[0] = (byte) (seqNum);
+		bytes[1] = (byte) (seqNum >>> 8);
+		bytes[2] = (byte) (seqNum >>> 16);
+		bytes[3] = (byte) (seqNum >>> 24);
+		
+		// store the payload, then the checksum of both
+		System.arraycopy(payload, 0, bytes, HEADER_SIZE + CHECKSUM_SIZE, payload.length);
+		int crc = checksum(bytes, 0, bytes.length);
+		bytes[4] = (byte) (crc);
+		bytes[5] = (byte) (crc >>> 8);
+		bytes[6] = (byte) (crc >>> 16);
+		bytes[7] = (byte) (crc >>> 24);
+		
+		return bytes;
+	}
+
+	
+    /**
+     * Creates a segment from a DatagramPacket holding a checked segment.
+     * 
+     * @param packet	The packet, as sent with makeCheckedPacket()
+     * 
+     * @return 	The segment, null if the packet is too short or the checksum does not match
+     */
+	public static FtpSegment fromCheckedPacket(DatagramPacket packet) {
+		byte[] data = packet.getData();
+		int offset = packet.getOffset();
+		int length = packet.getLength();
+		if (length < HEADER_SIZE + CHECKSUM_SIZE || length > MAX_CHECKED_SEGMENT_SIZE)
+			return null;
+		
+		int crc = (data[offset + 4] & 0xFF) + ((data[offset + 5] & 0xFF) << 8) + ((data[offset + 6] & 0xFF) << 16)
+				+ ((data[offset + 7] & 0xFF) << 24);
+		if (crc != checksum(data, offset, length))
+			return null;
+		
+		FtpSegment seg = new FtpSegment();
+		seg.seqNum = (data[offset] & 0xFF) + ((data[offset + 1] & 0xFF) << 8) + ((data[offset + 2] & 0xFF) << 16)
+				+ ((data[offset + 3] & 0xFF) << 24);
+		seg.payload = Arrays.copyOfRange(data, offset + HEADER_SIZE + CHECKSUM_SIZE, offset + length);
+		return seg;
+	}
+	
+	
+	// CRC32C of the header and payload of a checked segment in bytes[offset, offset + length)
+	private static int checksum(byte[] bytes, int offset, int length) {
+		CRC32C crc = new CRC32C();
+		crc.update(bytes, offset, HEADER_SIZE);
+		crc.update(bytes, offset + HEADER_SIZE + CHECKSUM_SIZE, length - HEADER_SIZE - CHECKSUM_SIZE);
+		return (int) crc.getValue();
+	}
+	
+	
     /**
      * Constructs a DatagramPacket from a Segment for sending to a host 
      * 
@@ -246,6 +316,21 @@ public class FtpSegment {
 	}
 
 
+    /**
+     * Constructs a DatagramPacket from a checked Segment for sending to a host 
+     * 
+     * @param seg		The segment to be encapsulated
+     * @param ip		IP address of the remote receiver
+     * @param port		Port number of the remote receiver
+     * 
+     * @return 	The constructed datagram packet
+     */
+	public static DatagramPacket makeCheckedPacket(FtpSegment seg, InetAddress ip, int port) {
+		byte[] data = seg.toCheckedBytes();
+		return new DatagramPacket(data, data.length, ip, port);
+	}
+
+
     /**
      * Basic tests
 	 * to show how to use class FtpSegment
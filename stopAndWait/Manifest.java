@@ -0,0 +1,302 @@
+/**
+ * Manifest Class
+ *
+ * The files of a multi-file StopWaitFtp session. The sender lists every
+ * file with its path relative to the session and its length in the
+ * handshake, then sends the content of all files back to back as a
+ * single stream, so small files share segments and FEC groups and the
+ * link does not idle between files. The receiver cuts the stream into
+ * the files again by their lengths.
+ *
+ * Paths use '/' as separator and may not be absolute or contain "." or
+ * ".." components, so every file of a session stays inside the
+ * receiver's output directory.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class Manifest {
+
+	public static final int MAX_FILES = 1 << 20; // files per session
+
+	private final String name;
+	private final List<String> paths = new ArrayList<>();
+	private final List<Long> lengths = new ArrayList<>();
+	private final List<File> sources = new ArrayList<>(); // sender only
+	private long length = 0;
+
+	private Manifest(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Lists files to send. A directory is listed with all files below it,
+	 * in name order, under its own name.
+	 *
+	 * @param fileNames Names of files and directories
+	 * @return The manifest
+	 *
+	 * @throws IOException If a file does not exist, two files have the same
+	 *                     path or there is no file to send
+	 */
+	public static Manifest of(List<String> fileNames) throws IOException {
+		File first = normalize(new File(fileNames.get(0)));
+		Manifest manifest = new Manifest(fileNames.size() == 1 && first.isDirectory() ? first.getName() : "files");
+		Set<String> seen = new HashSet<>();
+		for (String fileName : fileNames) {
+			File file = normalize(new File(fileName));
+			if (!file.exists())
+				throw new FileNotFoundException(fileName);
+			manifest.addTree(file, file.getName(), seen);
+		}
+		if (manifest.size() == 0)
+			throw new IOException("No files to send");
+		return manifest;
+	}
+
+	// without "." and ".." components, so the name of "." is that of the current directory
+	private static File normalize(File file) {
+		return file.getAbsoluteFile().toPath().normalize().toFile();
+	}
+
+	private void addTree(File file, String path, Set<String> seen) throws IOException {
+		if (file.isDirectory()) {
+			String[] children = file.list();
+			if (children == null)
+				throw new IOException("Cannot list " + file);
+			Arrays.sort(children);
+			for (String child : children)
+				addTree(new File(file, child), path + "/" + child, seen);
+		} else if (file.isFile()) {
+			if (!isSafe(path))
+				throw new IOException("Cannot send " + path);
+			if (!seen.add(path))
+				throw new IOException("Duplicate file " + path);
+			if (size() == MAX_FILES)
+				throw new IOException("More than " + MAX_FILES + " files");
+			add(path, file.length());
+			sources.add(file);
+		}
+	}
+
+	private void add(String path, long fileLength) {
+		paths.add(path);
+		lengths.add(fileLength);
+		length += fileLength;
+	}
+
+	/**
+	 * Returns the name of the session, the directory name if a single
+	 * directory is sent
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the number of files
+	 */
+	public int size() {
+		return paths.size();
+	}
+
+	/**
+	 * Returns the total length of the files
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Writes the list of files: an (path, length) pair per file.
+	 *
+	 * @param out The control connection
+	 *
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		for (int i = 0; i < size(); i++) {
+			out.writeUTF(paths.get(i));
+			out.writeLong(lengths.get(i));
+		}
+	}
+
+	/**
+	 * Reads a list of files.
+	 *
+	 * @param in    The control connection
+	 * @param name  The name of the session
+	 * @param count The number of files
+	 * @return The manifest
+	 *
+	 * @throws IOException If an I/O error occurs or the list is malformed
+	 */
+	public static Manifest read(DataInputStream in, String name, int count) throws IOException {
+		if (count <= 0 || count > MAX_FILES)
+			throw new IOException("Invalid number of files " + count);
+		Manifest manifest = new Manifest(name);
+		Set<String> seen = new HashSet<>();
+		for (int i = 0; i < count; i++) {
+			String path = in.readUTF();
+			long fileLength = in.readLong();
+			if (!isSafe(path) || !seen.add(path) || fileLength < 0 || manifest.length + fileLength < 0)
+				throw new IOException("Malformed manifest entry " + path);
+			manifest.add(path, fileLength);
+		}
+		return manifest;
+	}
+
+	// a relative path without empty, "." or ".." components
+	private static boolean isSafe(String path) {
+		if (path.isEmpty() || path.indexOf('\\') >= 0 || path.indexOf(':') >= 0)
+			return false;
+		for (String component : path.split("/", -1))
+			if (component.isEmpty() || component.equals(".") || component.equals(".."))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Opens the content of the session: the files one after the other, each
+	 * cut to the length in the manifest. Files are opened as they are reached.
+	 *
+	 * @return The content
+	 */
+	public InputStream openContent() {
+		return new SequenceInputStream(new Enumeration<InputStream>() {
+			private int next = 0;
+
+			public boolean hasMoreElements() {
+				return next < size();
+			}
+
+			public InputStream nextElement() {
+				int i = next++;
+				return new EntryInputStream(sources.get(i), lengths.get(i));
+			}
+		});
+	}
+
+	// the first length bytes of a file, failing if it has become shorter
+	private static class EntryInputStream extends InputStream {
+		private final File file;
+		private InputStream in; // opened on the first read
+		private long remaining;
+
+		EntryInputStream(File file, long length) {
+			this.file = file;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0)
+				return -1;
+			if (in == null)
+				in = new FileInputStream(file);
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n == -1)
+				throw new EOFException(file + " changed while sending");
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null)
+				in.close();
+		}
+	}
+
+	/**
+	 * Output stream cutting the content of a session into its files.
+	 */
+	public class Writer extends OutputStream {
+		private final File outputDir;
+		private int next = 0; // index of the next file to open
+		private OutputStream out; // of the current file, null once all files are written
+		private long remaining; // bytes of the current file still to write
+
+		/**
+		 * Constructor, creates the files in the order of the manifest as
+		 * their content arrives.
+		 *
+		 * @param outputDir The directory the session is written to
+		 *
+		 * @throws IOException If the first file cannot be created
+		 */
+		public Writer(File outputDir) throws IOException {
+			this.outputDir = outputDir;
+			nextFile();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (out == null)
+					throw new IOException("Content longer than the manifest");
+				int n = (int) Math.min(len, remaining);
+				out.write(b, off, n);
+				off += n;
+				len -= n;
+				remaining -= n;
+				if (remaining == 0)
+					nextFile();
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (out != null)
+				out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (out != null)
+				out.close();
+			out = null;
+		}
+
+		// closes the current file and creates the next one, and any empty ones before it
+		private void nextFile() throws IOException {
+			close();
+			while (out == null && next < size()) {
+				File file = new File(outputDir, paths.get(next).replace('/', File.separatorChar));
+				file.getParentFile().mkdirs();
+				remaining = lengths.get(next);
+				out = new BufferedOutputStream(new FileOutputStream(file), (int) Math.min(1 << 16, Math.max(1, remaining)));
+				next++;
+				if (remaining == 0)
+					close();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the files of the session from a directory, e.g. after a
+	 * corrupted transfer.
+	 *
+	 * @param outputDir The directory the session was written to
+	 */
+	public void delete(File outputDir) {
+		for (String path : paths)
+			new File(outputDir, path.replace('/', File.separatorChar)).delete();
+	}
+}
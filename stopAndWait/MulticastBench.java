@@ -0,0 +1,222 @@
+/**
+ * MulticastBench Class
+ *
+ * Sends a file to several local StopWaitReceivers and compares the
+ * one-to-many transfer of MulticastFtp with StopWaitFtp sending the file
+ * to one receiver after the other. Every received copy is checked against
+ * the sent file; per run and as medians over all runs, the completion
+ * time, the datagrams the sender sent and, for MulticastFtp,
+ * the repairs and reported missing segments are reported as JSON.
+ *
+ * The modes (-m) are:
+ * 		multicast	MulticastFtp to a group on one interface, the loopback by default
+ * 		fanout		MulticastFtp to every receiver's UDP port
+ * 		unicast		StopWaitFtp to every receiver in turn
+ * In the fanout and unicast modes every receiver gets the datagrams
+ * through its own NetEmulator, so losses are independent per receiver.
+ * Multicast datagrams do not pass an emulator.
+ *
+ * Command line arguments (all optional):
+ * 		-i	file to be sent, default medium.txt
+ * 		-g	generate a random file of the given size instead, e.g. 16M
+ * 		-R	number of receivers, default 4
+ * 		-m	mode: multicast, fanout, unicast, default multicast
+ * 		-G	multicast group:port, default 239.255.41.1:2041
+ * 		-I	network interface of the group, default lo
+ * 		-w	window of MulticastFtp in segments, default 256
+ * 		-n	number of runs, default 3
+ * 		-T	time-out in milli-seconds, default 100
+ * 		-c	segment and file checksums: on, off, default off
+ * 		-o	output file for the JSON report, default standard output
+ * 	link impairments of every receiver's emulator, see NetEmulator:
+ * 		-d, -j, -L, -r, -D, -C, -b, -q
+ * 		-S	random seed, default 1, receiver i of run k uses seed + k * receivers + i
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.*;
+
+public class MulticastBench {
+
+	private static final Logger logger = Logger.getLogger("StopWaitFtp"); // global logger
+	private static final long RECEIVE_WAIT = 30000; // time to wait for the receivers after a transfer (milli-seconds)
+
+	public static void main(String[] args) throws Exception {
+		HashMap<String, String> params = new HashMap<String, String>();
+		for (int i = 0; (i + 1) < args.length; i += 2)
+			params.put(args[i], args[i + 1]);
+
+		int receiverCount = Integer.parseInt(params.getOrDefault("-R", "4"));
+		String mode = params.getOrDefault("-m", "multicast");
+		String[] group = params.getOrDefault("-G", "239.255.41.1:2041").split(":");
+		String interfaceName = params.getOrDefault("-I", "lo");
+		int window = Integer.parseInt(params.getOrDefault("-w", "256"));
+		int runs = Integer.parseInt(params.getOrDefault("-n", "3"));
+		int timeout = Integer.parseInt(params.getOrDefault("-T", "100"));
+		boolean checksums = params.getOrDefault("-c", "off").equals("on");
+		long seed = Long.parseLong(params.getOrDefault("-S", "1"));
+		String output = params.get("-o");
+		if (!mode.equals("multicast") && !mode.equals("fanout") && !mode.equals("unicast"))
+			throw new IllegalArgumentException("Unknown mode " + mode);
+		boolean multicast = mode.equals("multicast");
+		NetworkInterface networkInterface = NetworkInterface.getByName(interfaceName);
+		if (multicast && networkInterface == null)
+			throw new IllegalArgumentException("Unknown interface " + interfaceName);
+		logger.setLevel(Level.WARNING);
+
+		Path workDir = Files.createTempDirectory("multicastbench");
+		File file;
+		if (params.containsKey("-g")) {
+			file = workDir.resolve("generated.bin").toFile();
+			TransferBench.generate(file, TransferBench.parseSize(params.get("-g")));
+		} else {
+			file = new File(params.getOrDefault("-i", "medium.txt"));
+		}
+		byte[] digest = TransferBench.digest(file);
+
+		// the receivers tell senders to use their emulator's port
+		StopWaitReceiver[] receivers = new StopWaitReceiver[receiverCount];
+		File[] outputDirs = new File[receiverCount];
+		int[] udpPorts = new int[receiverCount];
+		for (int i = 0; i < receiverCount; i++) {
+			outputDirs[i] = Files.createDirectory(workDir.resolve("received" + i)).toFile();
+			try (DatagramSocket probe = new DatagramSocket()) {
+				udpPorts[i] = probe.getLocalPort();
+			}
+			receivers[i] = new StopWaitReceiver(0, udpPorts[i], outputDirs[i]);
+			receivers[i].setMulticastInterface(networkInterface);
+			receivers[i].setDaemon(true);
+			receivers[i].start();
+		}
+
+		StringBuilder sb = new StringBuilder("{\n");
+		sb.append("  \"file\": \"").append(file.getName()).append("\",\n");
+		sb.append("  \"bytes\": ").append(file.length()).append(",\n");
+		sb.append("  \"receivers\": ").append(receiverCount).append(",\n");
+		sb.append("  \"mode\": \"").append(mode).append("\",\n");
+		sb.append("  \"window\": ").append(window).append(",\n");
+		sb.append("  \"timeout_ms\": ").append(timeout).append(",\n");
+		sb.append("  \"checksums\": ").append(checksums).append(",\n");
+		sb.append("  \"impairments\": {");
+		String sep = "";
+		for (String option : new String[] { "-d", "-j", "-L", "-r", "-D", "-C", "-b", "-q" }) {
+			if (params.containsKey(option)) {
+				sb.append(sep).append("\"").append(option).append("\": ").append(params.get(option));
+				sep = ", ";
+			}
+		}
+		sb.append("},\n  \"runs\": [\n");
+		List<String> results = new ArrayList<>();
+
+		double[] seconds = new double[runs];
+		double[] packets = new double[runs];
+		boolean allVerified = true;
+		int done = 0;
+		PrintStream console = System.out;
+		for (int run = 0; run < runs; run++) {
+			NetEmulator[] emulators = new NetEmulator[receiverCount];
+			List<InetSocketAddress> servers = new ArrayList<>();
+			for (int i = 0; i < receiverCount; i++) {
+				if (!multicast) {
+					emulators[i] = new NetEmulator(0, new InetSocketAddress("localhost", udpPorts[i]),
+							seed + (long) run * receiverCount + i);
+					NetEmulator.configure(emulators[i].getForward(), params);
+					NetEmulator.configure(emulators[i].getReverse(), params);
+					emulators[i].start();
+					receivers[i].setAdvertisedUdpPort(emulators[i].getLocalPort());
+				}
+				servers.add(new InetSocketAddress("localhost", receivers[i].getLocalPort()));
+			}
+
+			boolean sent = true;
+			long segments = 0;
+			long repairs = 0;
+			long naks = 0;
+			long sentPackets = 0;
+			long start = System.nanoTime();
+			System.setOut(new PrintStream(OutputStream.nullOutputStream())); // the sender reports every segment
+			try {
+				if (mode.equals("unicast")) {
+					StopWaitFtp ftp = new StopWaitFtp(timeout);
+					ftp.setChecksums(checksums);
+					for (InetSocketAddress server : servers) {
+						sent &= ftp.send(server.getHostName(), server.getPort(), file.getPath());
+						segments += ftp.getSegmentsSent();
+						repairs += ftp.getRetransmissions();
+						sentPackets += ftp.getSegmentsSent() + ftp.getRetransmissions();
+					}
+				} else {
+					MulticastFtp ftp = new MulticastFtp(timeout);
+					ftp.setChecksums(checksums);
+					ftp.setWindow(window);
+					if (multicast)
+						ftp.setGroup(new InetSocketAddress(group[0], Integer.parseInt(group[1])), networkInterface);
+					sent = ftp.send(servers, file.getPath());
+					segments = ftp.getSegmentsSent();
+					repairs = ftp.getRepairsSent();
+					naks = ftp.getNaksReceived();
+					sentPackets = ftp.getPacketsSent();
+				}
+			} finally {
+				System.setOut(console);
+			}
+			boolean received = true;
+			for (StopWaitReceiver receiver : receivers)
+				received &= receiver.awaitCompleted(run + 1, RECEIVE_WAIT);
+			long elapsed = System.nanoTime() - start;
+
+			int verifiedCount = 0;
+			long lost = 0;
+			for (int i = 0; i < receiverCount; i++) {
+				File copy = new File(outputDirs[i], file.getName());
+				if (sent && received && Arrays.equals(digest, TransferBench.digest(copy)))
+					verifiedCount++;
+				copy.delete();
+				if (emulators[i] != null) {
+					emulators[i].shutdown();
+					lost += emulators[i].getForward().getLost();
+				}
+			}
+			boolean verified = verifiedCount == receiverCount;
+			allVerified &= verified;
+			seconds[run] = elapsed / 1e9;
+			packets[run] = sentPackets;
+
+			results.add(String.format(Locale.ROOT,
+					"    {\"run\": %d, \"verified\": %b, \"verified_receivers\": %d, \"seconds\": %.3f, \"goodput_mbps\": %.3f,\n"
+							+ "     \"segments\": %d, \"repairs\": %d, \"naks\": %d, \"packets_sent\": %d, \"lost\": %d}",
+					run, verified, verifiedCount, seconds[run], file.length() * 8.0 * receiverCount / 1e6 / seconds[run],
+					segments, repairs, naks, sentPackets, lost));
+			done++;
+			if (!received)
+				break; // a receiver is stuck on the failed transfer
+		}
+		for (StopWaitReceiver receiver : receivers)
+			receiver.shutdown();
+
+		sb.append(String.join(",\n", results)).append("\n  ],\n");
+		sb.append(String.format(Locale.ROOT, "  \"verified\": %b,\n  \"seconds_median\": %.3f,\n  \"packets_sent_median\": %.0f\n}\n",
+				allVerified, TransferBench.median(seconds, done), TransferBench.median(packets, done)));
+
+		if (params.containsKey("-g"))
+			file.delete();
+		for (File outputDir : outputDirs)
+			TransferBench.deleteTree(outputDir);
+		workDir.toFile().delete();
+
+		if (output != null)
+			Files.write(Paths.get(output), sb.toString().getBytes(StandardCharsets.UTF_8));
+		else
+			System.out.print(sb);
+		if (!allVerified)
+			System.exit(1);
+	}
+}
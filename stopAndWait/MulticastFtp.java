@@ -0,0 +1,391 @@
+/**
+ * MulticastFtp Class
+ *
+ * One-to-many variant of StopWaitFtp: sends a file to many receivers at
+ * once, each segment leaving the sender once for all of them.
+ *
+ * The sender opens a control connection to every receiver and asks for a
+ * NAK-repaired transfer in the handshake (see TransferOptions). Segments
+ * are then sent to a multicast group, or, for receivers that cannot join
+ * it or if no group is given, to each receiver's UDP port. Nothing is
+ * acknowledged per segment: every receiver reports over its control
+ * connection, every REPORT_INTERVAL or after a quarter of the window,
+ * how far it has received the file without gaps and which segments it
+ * misses. The sender merges the reports of all receivers and sends each
+ * missing segment once, to the group or to the receivers that miss it,
+ * and not again within the time-out interval. It never gets more than a
+ * window of segments ahead of the slowest receiver.
+ *
+ * Sequence numbers are segment indexes, starting at 0. A receiver whose
+ * control connection fails is dropped and the transfer goes on for the
+ * others. With checksums, every receiver verifies the CRC32C of the file
+ * at the end.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.logging.*;
+import java.util.zip.CRC32C;
+
+public class MulticastFtp {
+
+	private static final Logger logger = Logger.getLogger("StopWaitFtp"); // global logger
+	public static final int REPORT_INTERVAL = 10; // time between receiver reports while a transfer is incomplete (milli-seconds)
+	public static final int MAX_NAKS = 512; // missing segments per report
+	public static final int MAX_WINDOW = 1 << 14; // segments
+
+	private final int timeout;
+	private int window = 256; // segments sent ahead of the slowest receiver
+	private InetSocketAddress group; // null to send to every receiver's UDP port
+	private NetworkInterface networkInterface; // for the group, null for the default
+	private boolean useChecksums = false;
+
+	// state of the current transfer, guarded by this
+	private Receiver[] receivers;
+	private final TreeMap<Integer, BitSet> repairs = new TreeMap<>(); // segment -> receivers missing it
+	private long[] sentAt; // time segment i was last sent, at i % window
+	private int nextSeqNum; // next segment never sent
+	private int segments; // of the file
+
+	// transfer statistics
+	private long segmentsSent;
+	private long repairsSent;
+	private long packetsSent;
+	private long naksReceived;
+
+	// a receiver and its control connection
+	private class Receiver {
+		final int index;
+		final Socket socket;
+		final DataOutputStream out;
+		final DataInputStream in;
+		InetSocketAddress udpAddress; // null if it receives from the group
+		boolean checksums;
+		int next = 0; // segments received without gaps
+		volatile boolean failed = false;
+
+		Receiver(int index, InetSocketAddress address) throws IOException {
+			this.index = index;
+			socket = new Socket(address.getAddress(), address.getPort());
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Ok, ignore
+			}
+		}
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param timeout Minimum time between two repairs of the same segment,
+	 *                about a round-trip time, in milli-seconds
+	 */
+	public MulticastFtp(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Sends the segments to a multicast group, receivers that cannot join it
+	 * get them on their own UDP port.
+	 *
+	 * @param group            Address and port of the group, null to send to
+	 *                         every receiver's UDP port
+	 * @param networkInterface Interface to send and receive on, null for the default
+	 */
+	public void setGroup(InetSocketAddress group, NetworkInterface networkInterface) {
+		if (group != null && !(group.getAddress() instanceof Inet4Address && group.getAddress().isMulticastAddress()))
+			throw new IllegalArgumentException("Not an IPv4 multicast group: " + group);
+		this.group = group;
+		this.networkInterface = networkInterface;
+	}
+
+	/**
+	 * Sets the number of segments the sender may get ahead of the slowest
+	 * receiver, each receiver buffers as many.
+	 *
+	 * @param segments The window, in segments
+	 */
+	public void setWindow(int segments) {
+		if (segments < 4 || segments > MAX_WINDOW)
+			throw new IllegalArgumentException("Window out of range");
+		this.window = segments;
+	}
+
+	/**
+	 * Enables checksums: every segment carries a CRC32C and every receiver
+	 * verifies the CRC32C of the whole file at the end, see StopWaitFtp.
+	 *
+	 * @param on true to enable checksums
+	 */
+	public void setChecksums(boolean on) {
+		this.useChecksums = on;
+	}
+
+	/**
+	 * Returns the number of data segments sent in the last transfer, not
+	 * counting repairs
+	 */
+	public long getSegmentsSent() {
+		return segmentsSent;
+	}
+
+	/**
+	 * Returns the number of segments repaired in the last transfer
+	 */
+	public long getRepairsSent() {
+		return repairsSent;
+	}
+
+	/**
+	 * Returns the number of datagrams sent in the last transfer, a segment
+	 * sent to several receivers' UDP ports counting once per receiver
+	 */
+	public long getPacketsSent() {
+		return packetsSent;
+	}
+
+	/**
+	 * Returns the number of missing segments reported by the receivers in
+	 * the last transfer
+	 */
+	public long getNaksReceived() {
+		return naksReceived;
+	}
+
+	/**
+	 * Send the specified file to the specified receivers.
+	 *
+	 * @param servers  Control addresses of the receivers
+	 * @param fileName Name of the file to be transferred
+	 * @return true if every receiver got the file, false otherwise
+	 */
+	public boolean send(List<InetSocketAddress> servers, String fileName) {
+		segmentsSent = 0;
+		repairsSent = 0;
+		packetsSent = 0;
+		naksReceived = 0;
+		File file = new File(fileName);
+		receivers = new Receiver[servers.size()];
+		repairs.clear();
+		sentAt = new long[window];
+		nextSeqNum = 0;
+		long fileSegments = (file.length() + FtpSegment.MAX_PAYLOAD_SIZE - 1) / FtpSegment.MAX_PAYLOAD_SIZE;
+		if (fileSegments > Integer.MAX_VALUE - MAX_WINDOW) {
+			logger.warning("File too long");
+			return false;
+		}
+		segments = (int) fileSegments;
+
+		List<Thread> readers = new ArrayList<>();
+		try (MulticastSocket udpSocket = new MulticastSocket()) {
+			if (group != null) {
+				if (networkInterface != null)
+					udpSocket.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+				udpSocket.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+			}
+			for (int i = 0; i < receivers.length; i++) {
+				receivers[i] = new Receiver(i, servers.get(i));
+				handshake(receivers[i], file, udpSocket.getLocalPort());
+			}
+			for (Receiver receiver : receivers) {
+				Thread reader = new Thread(() -> readReports(receiver), "nak-reader-" + receiver.index);
+				reader.setDaemon(true);
+				reader.start();
+				readers.add(reader);
+			}
+
+			CRC32C fileChecksum = new CRC32C();
+			try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+				sendSegments(udpSocket, in, fileChecksum);
+			}
+			for (Thread reader : readers)
+				reader.join();
+			return verify(fileChecksum);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			for (Receiver receiver : receivers)
+				if (receiver != null)
+					receiver.close();
+		}
+	}
+
+	private void handshake(Receiver receiver, File file, int udpPort) throws IOException {
+		receiver.out.writeUTF(file.getName());
+		receiver.out.writeLong(file.length());
+
+		TransferOptions options = new TransferOptions();
+		options.set(TransferOptions.NAK_WINDOW, window);
+		options.set(TransferOptions.CHECKSUMS, useChecksums ? 1 : 0);
+		if (group != null) {
+			byte[] address = group.getAddress().getAddress();
+			options.set(TransferOptions.MULTICAST_GROUP, (address[0] & 0xff) << 24 | (address[1] & 0xff) << 16
+					| (address[2] & 0xff) << 8 | (address[3] & 0xff));
+			options.set(TransferOptions.MULTICAST_PORT, group.getPort());
+		}
+		receiver.out.writeInt(TransferOptions.portField(udpPort, options));
+		options.write(receiver.out);
+		receiver.out.flush();
+
+		int serverUdpPort = receiver.in.readInt();
+		receiver.in.readInt(); // initial sequence number, segments are numbered from 0 instead
+		TransferOptions accepted = TransferOptions.readAnswer(receiver.socket, receiver.in);
+		if (accepted == null)
+			throw new IOException("Receiver " + receiver.socket.getRemoteSocketAddress()
+					+ " does not answer the protocol options, it cannot receive one-to-many transfers");
+		if (accepted.get(TransferOptions.NAK_WINDOW) != window)
+			throw new IOException("Receiver " + receiver.socket.getRemoteSocketAddress() + " does not accept NAK transfers");
+		receiver.checksums = useChecksums && accepted.get(TransferOptions.CHECKSUMS) == 1;
+		if (receiver.checksums != useChecksums)
+			throw new IOException("Receiver " + receiver.socket.getRemoteSocketAddress() + " does not accept checksums");
+		if (group == null || accepted.get(TransferOptions.MULTICAST_GROUP) == 0)
+			receiver.udpAddress = new InetSocketAddress(receiver.socket.getInetAddress(), serverUdpPort);
+	}
+
+	// sends new segments within the window and the repairs asked for, until every receiver has the file or failed
+	private void sendSegments(DatagramSocket udpSocket, InputStream in, CRC32C fileChecksum) throws IOException,
+			InterruptedException {
+		byte[][] payloads = new byte[window][];
+		while (true) {
+			Map<Integer, BitSet> toRepair;
+			int end; // new segments may be sent up to here
+			synchronized (this) {
+				while (true) {
+					int slowest = slowest();
+					if (slowest >= segments)
+						return;
+					end = Math.min(segments, slowest + window);
+					if (!repairs.isEmpty() || nextSeqNum < end)
+						break;
+					wait(REPORT_INTERVAL);
+				}
+				toRepair = new TreeMap<>(repairs);
+				repairs.clear();
+			}
+
+			for (Map.Entry<Integer, BitSet> repair : toRepair.entrySet()) {
+				int seqNum = repair.getKey();
+				send(udpSocket, new FtpSegment(seqNum, payloads[seqNum % window]), repair.getValue());
+				repairsSent++;
+				System.out.println("repair <" + seqNum + ">");
+			}
+
+			// a batch of new segments, then look at the reports again
+			for (int n = 0; n < window / 4 && nextSeqNum < end; n++) {
+				byte[] payload = in.readNBytes(FtpSegment.MAX_PAYLOAD_SIZE);
+				if (payload.length == 0)
+					throw new EOFException("File changed while sending");
+				fileChecksum.update(payload);
+				payloads[nextSeqNum % window] = payload;
+				send(udpSocket, new FtpSegment(nextSeqNum, payload), null);
+				segmentsSent++;
+				synchronized (this) {
+					nextSeqNum++;
+				}
+			}
+		}
+	}
+
+	// sends a segment to the group and the receivers not in it, or to the given receivers only
+	private void send(DatagramSocket udpSocket, FtpSegment segment, BitSet to) throws IOException {
+		byte[] bytes = useChecksums ? segment.toCheckedBytes() : segment.toBytes();
+		synchronized (this) {
+			sentAt[segment.getSeqNum() % window] = System.currentTimeMillis();
+		}
+		boolean toGroup = false;
+		for (Receiver receiver : receivers) {
+			if (receiver.failed || (to != null && !to.get(receiver.index)))
+				continue;
+			if (receiver.udpAddress == null) {
+				toGroup = true;
+			} else {
+				udpSocket.send(new DatagramPacket(bytes, bytes.length, receiver.udpAddress));
+				packetsSent++;
+			}
+		}
+		if (toGroup) {
+			udpSocket.send(new DatagramPacket(bytes, bytes.length, group));
+			packetsSent++;
+		}
+	}
+
+	// segments received without gaps by the slowest receiver still in the transfer
+	private int slowest() {
+		int slowest = Integer.MAX_VALUE;
+		for (Receiver receiver : receivers)
+			if (!receiver.failed)
+				slowest = Math.min(slowest, receiver.next);
+		return slowest;
+	}
+
+	// reads the reports of a receiver until it has the whole file
+	private void readReports(Receiver receiver) {
+		try {
+			while (true) {
+				int next = receiver.in.readInt();
+				int count = receiver.in.readInt();
+				if (count < 0 || count > MAX_NAKS)
+					throw new IOException("Malformed report");
+				int[] missing = new int[count];
+				for (int i = 0; i < count; i++)
+					missing[i] = receiver.in.readInt();
+
+				synchronized (this) {
+					receiver.next = Math.max(receiver.next, Math.min(next, nextSeqNum));
+					long now = System.currentTimeMillis();
+					for (int seqNum : missing) {
+						// segments not sent yet will be, those repaired recently may still arrive
+						if (seqNum < receiver.next || seqNum >= nextSeqNum || now - sentAt[seqNum % window] < timeout)
+							continue;
+						repairs.computeIfAbsent(seqNum, s -> new BitSet()).set(receiver.index);
+						naksReceived++;
+					}
+					notifyAll();
+				}
+				if (next >= segments)
+					return;
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Receiver " + receiver.socket.getRemoteSocketAddress() + " failed", e);
+			synchronized (this) {
+				receiver.failed = true;
+				notifyAll();
+			}
+		}
+	}
+
+	// every receiver still in the transfer checks the file checksum, true if all got the file
+	private boolean verify(CRC32C fileChecksum) throws IOException {
+		boolean verified = true;
+		for (Receiver receiver : receivers) {
+			if (receiver.failed) {
+				verified = false;
+				continue;
+			}
+			if (receiver.checksums) {
+				receiver.out.writeInt((int) fileChecksum.getValue());
+				receiver.out.flush();
+				if (!receiver.in.readBoolean()) {
+					logger.warning("file checksum mismatch at " + receiver.socket.getRemoteSocketAddress());
+					verified = false;
+				}
+			}
+		}
+		return verified;
+	}
+}
@@ -0,0 +1,350 @@
+/**
+ * NetEmulator Class
+ *
+ * A UDP proxy that emulates a wide area link between a StopWaitFtp
+ * sender and a receiver on one machine. Datagrams arriving on the listen
+ * port are forwarded to the target and the replies are sent back to the
+ * last sender seen, each direction passing through its own emulated link.
+ *
+ * A link applies, in this order: random loss, a tail-drop queue in front
+ * of a bandwidth limit (serialization delay), a fixed propagation delay
+ * with uniform jitter, reordering (the packet is held back for an extra
+ * delay), duplication and corruption (a random bit of the datagram is
+ * flipped). All random decisions come from a seeded generator, so runs
+ * with the same seed drop the same packets.
+ *
+ * Command line arguments:
+ * 		-l	listen port, default 2026
+ * 		-t	target host:port, default localhost:2027
+ * 		-d	one-way delay in milli-seconds, default 0
+ * 		-j	jitter in milli-seconds, default 0
+ * 		-L	loss probability, default 0
+ * 		-r	reorder probability, default 0
+ * 		-D	duplication probability, default 0
+ * 		-C	corruption probability, default 0
+ * 		-b	bandwidth in kbit/s, default 0 (unlimited)
+ * 		-q	queue limit in packets, default 1000
+ * 		-S	random seed, default 1
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.IOException;
+import java.net.*;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.*;
+
+public class NetEmulator {
+
+	private static final Logger logger = Logger.getLogger("StopWaitFtp"); // global logger
+	private static final int REORDER_DELAY = 10; // extra hold-back of a reordered packet (milli-seconds)
+
+	/**
+	 * Impairments and statistics of one direction of the emulated link.
+	 * Settings may be changed while the emulator is running.
+	 */
+	public static class Link {
+		private volatile long delay = 0; // nano-seconds
+		private volatile long jitter = 0; // nano-seconds
+		private volatile double loss = 0;
+		private volatile double reorder = 0;
+		private volatile double duplicate = 0;
+		private volatile double corrupt = 0;
+		private volatile long bandwidth = 0; // bits per second, 0 for unlimited
+		private volatile int queueLimit = 1000; // packets
+
+		// state of the bandwidth limit, only used by the forwarding thread
+		private long linkFreeAt = 0;
+
+		private final AtomicLong received = new AtomicLong();
+		private final AtomicLong forwarded = new AtomicLong();
+		private final AtomicLong forwardedBytes = new AtomicLong();
+		private final AtomicLong lost = new AtomicLong();
+		private final AtomicLong queueDrops = new AtomicLong();
+		private final AtomicLong reordered = new AtomicLong();
+		private final AtomicLong duplicated = new AtomicLong();
+		private final AtomicLong corrupted = new AtomicLong();
+
+		public void setDelay(int millis) {
+			delay = TimeUnit.MILLISECONDS.toNanos(millis);
+		}
+
+		public void setJitter(int millis) {
+			jitter = TimeUnit.MILLISECONDS.toNanos(millis);
+		}
+
+		public void setLoss(double probability) {
+			loss = probability;
+		}
+
+		public void setReorder(double probability) {
+			reorder = probability;
+		}
+
+		public void setDuplicate(double probability) {
+			duplicate = probability;
+		}
+
+		public void setCorrupt(double probability) {
+			corrupt = probability;
+		}
+
+		public void setBandwidth(long bitsPerSecond) {
+			bandwidth = bitsPerSecond;
+		}
+
+		public void setQueueLimit(int packets) {
+			queueLimit = packets;
+		}
+
+		public long getReceived() {
+			return received.get();
+		}
+
+		public long getForwarded() {
+			return forwarded.get();
+		}
+
+		public long getForwardedBytes() {
+			return forwardedBytes.get();
+		}
+
+		public long getLost() {
+			return lost.get();
+		}
+
+		public long getQueueDrops() {
+			return queueDrops.get();
+		}
+
+		public long getReordered() {
+			return reordered.get();
+		}
+
+		public long getDuplicated() {
+			return duplicated.get();
+		}
+
+		public long getCorrupted() {
+			return corrupted.get();
+		}
+
+		/**
+		 * Returns the statistics as a JSON object
+		 */
+		public String toJson() {
+			return "{\"received\": " + getReceived() + ", \"forwarded\": " + getForwarded() + ", \"bytes\": " + getForwardedBytes()
+					+ ", \"lost\": " + getLost() + ", \"queue_drops\": " + getQueueDrops()
+					+ ", \"reordered\": " + getReordered() + ", \"duplicated\": " + getDuplicated()
+					+ ", \"corrupted\": " + getCorrupted() + "}";
+		}
+	}
+
+	private final DatagramSocket frontSocket; // faces the sender
+	private final DatagramSocket backSocket; // faces the target
+	private final InetSocketAddress target;
+	private volatile SocketAddress client; // last sender seen on the front socket
+	private volatile boolean shutdown = false;
+
+	private final Link forward = new Link();
+	private final Link reverse = new Link();
+	private final long seed;
+	private final ScheduledExecutorService scheduler;
+	private Thread forwardThread;
+	private Thread reverseThread;
+
+	/**
+	 * Constructor
+	 *
+	 * @param listenPort Port receiving the datagrams to be forwarded, 0 for any free port
+	 * @param target     Address the datagrams are forwarded to
+	 * @param seed       Seed of the random decisions
+	 *
+	 * @throws SocketException If a socket cannot be opened
+	 */
+	public NetEmulator(int listenPort, InetSocketAddress target, long seed) throws SocketException {
+		this.frontSocket = new DatagramSocket(listenPort);
+		this.backSocket = new DatagramSocket();
+		this.target = target;
+		this.seed = seed;
+		this.scheduler = Executors.newScheduledThreadPool(2, r -> {
+			Thread t = new Thread(r, "NetEmulator-link");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Returns the link from the sender to the target
+	 */
+	public Link getForward() {
+		return forward;
+	}
+
+	/**
+	 * Returns the link from the target back to the sender
+	 */
+	public Link getReverse() {
+		return reverse;
+	}
+
+	/**
+	 * Returns the port receiving the datagrams to be forwarded
+	 */
+	public int getLocalPort() {
+		return frontSocket.getLocalPort();
+	}
+
+	/**
+	 * Starts forwarding in both directions.
+	 */
+	public void start() {
+		forwardThread = new Thread(() -> pump(frontSocket, backSocket, forward, new Random(seed), true),
+				"NetEmulator-forward");
+		reverseThread = new Thread(() -> pump(backSocket, frontSocket, reverse, new Random(seed + 1), false),
+				"NetEmulator-reverse");
+		forwardThread.setDaemon(true);
+		reverseThread.setDaemon(true);
+		forwardThread.start();
+		reverseThread.start();
+	}
+
+	/**
+	 * Stops forwarding and closes the sockets. Packets still on the
+	 * emulated link are dropped.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		frontSocket.close();
+		backSocket.close();
+		scheduler.shutdownNow();
+	}
+
+	// receives on one socket and sends the impaired stream out of the other
+	private void pump(DatagramSocket in, DatagramSocket out, Link link, Random random, boolean toTarget) {
+		byte[] buffer = new byte[65535];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		try {
+			while (!shutdown) {
+				in.receive(packet);
+				link.received.incrementAndGet();
+
+				SocketAddress to;
+				if (toTarget) {
+					client = packet.getSocketAddress();
+					to = target;
+				} else {
+					to = client;
+					if (to == null)
+						continue; // nobody to reply to yet
+				}
+
+				if (random.nextDouble() < link.loss) {
+					link.lost.incrementAndGet();
+					continue;
+				}
+
+				// serialization delay of the bandwidth limit, packets leave the queue in order
+				long now = System.nanoTime();
+				long departure = now;
+				long bandwidth = link.bandwidth;
+				if (bandwidth > 0) {
+					long serialization = packet.getLength() * 8L * 1_000_000_000L / bandwidth;
+					long backlog = Math.max(0, link.linkFreeAt - now);
+					if (backlog > serialization * link.queueLimit) {
+						link.queueDrops.incrementAndGet(); // tail drop
+						continue;
+					}
+					link.linkFreeAt = now + backlog + serialization;
+					departure = link.linkFreeAt;
+				}
+
+				long arrival = departure + link.delay;
+				if (link.jitter > 0)
+					arrival += (long) ((random.nextDouble() * 2 - 1) * link.jitter);
+				if (random.nextDouble() < link.reorder) {
+					arrival += TimeUnit.MILLISECONDS.toNanos(REORDER_DELAY);
+					link.reordered.incrementAndGet();
+				}
+				boolean duplicate = random.nextDouble() < link.duplicate;
+
+				byte[] data = new byte[packet.getLength()];
+				System.arraycopy(packet.getData(), packet.getOffset(), data, 0, data.length);
+				if (link.corrupt > 0 && data.length > 0 && random.nextDouble() < link.corrupt) {
+					data[random.nextInt(data.length)] ^= 1 << random.nextInt(8);
+					link.corrupted.incrementAndGet();
+				}
+				DatagramPacket outgoing = new DatagramPacket(data, data.length, to);
+
+				scheduler.schedule(() -> {
+					deliver(out, outgoing, link);
+					if (duplicate) {
+						link.duplicated.incrementAndGet();
+						deliver(out, outgoing, link);
+					}
+				}, Math.max(0, arrival - now), TimeUnit.NANOSECONDS);
+			}
+		} catch (IOException e) {
+			if (!shutdown)
+				logger.log(Level.WARNING, "Forwarding stopped", e);
+		} catch (RejectedExecutionException e) {
+			// shutting down
+		}
+	}
+
+	private void deliver(DatagramSocket out, DatagramPacket packet, Link link) {
+		try {
+			out.send(packet);
+			link.forwarded.incrementAndGet();
+			link.forwardedBytes.addAndGet(packet.getLength());
+		} catch (IOException e) {
+			if (!shutdown)
+				logger.log(Level.WARNING, "Could not forward packet", e);
+		}
+	}
+
+	/**
+	 * Applies the impairment options of the command line to a link.
+	 *
+	 * @param link   The link to be configured
+	 * @param params Command line parameters, see the class description
+	 */
+	static void configure(Link link, HashMap<String, String> params) {
+		link.setDelay(Integer.parseInt(params.getOrDefault("-d", "0")));
+		link.setJitter(Integer.parseInt(params.getOrDefault("-j", "0")));
+		link.setLoss(Double.parseDouble(params.getOrDefault("-L", "0")));
+		link.setReorder(Double.parseDouble(params.getOrDefault("-r", "0")));
+		link.setDuplicate(Double.parseDouble(params.getOrDefault("-D", "0")));
+		link.setCorrupt(Double.parseDouble(params.getOrDefault("-C", "0")));
+		link.setBandwidth(Long.parseLong(params.getOrDefault("-b", "0")) * 1000);
+		link.setQueueLimit(Integer.parseInt(params.getOrDefault("-q", "1000")));
+	}
+
+	public static void main(String[] args) throws Exception {
+		HashMap<String, String> params = new HashMap<String, String>();
+		for (int i = 0; (i + 1) < args.length; i += 2)
+			params.put(args[i], args[i + 1]);
+
+		int listenPort = Integer.parseInt(params.getOrDefault("-l", "2026"));
+		String[] target = params.getOrDefault("-t", "localhost:2027").split(":");
+		long seed = Long.parseLong(params.getOrDefault("-S", "1"));
+
+		NetEmulator emulator = new NetEmulator(listenPort,
+				new InetSocketAddress(target[0], Integer.parseInt(target[1])), seed);
+		configure(emulator.getForward(), params);
+		configure(emulator.getReverse(), params);
+		emulator.start();
+		System.out.println("emulating link on port " + emulator.getLocalPort() + " to " + target[0] + ":" + target[1]);
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			System.out.println("forward " + emulator.getForward().toJson());
+			System.out.println("reverse " + emulator.getReverse().toJson());
+		}));
+		emulator.forwardThread.join();
+	}
+}
@@ -11,6 +11,7 @@
  */
 
 import java.io.*;
+import java.net.*;
 import java.util.*;
 import java.util.logging.*;
 
@@ -36,19 +37,64 @@ public class StopWaitDriver {
 		// if inputs do not have proper format/type/value
 		//
 		String fileName = params.getOrDefault("-i", args[0]); // name of the file to be sent to the server, required
-		String serverName = params.getOrDefault("-s", "localhost"); // server name
+		// several comma separated files, or a directory, are sent in one session
+		List<String> fileNames = Arrays.asList(fileName.split(","));
+		String serverName = params.getOrDefault("-s", "localhost"); // server name, or comma separated host[:port] list for one-to-many
 		int serverPort = Integer.parseInt( params.getOrDefault("-p", "2025") ); // server port number
+		String groupName = params.get("-m"); // multicast group:port of a one-to-many transfer
+		String interfaceName = params.get("-n"); // network interface for the multicast group, e.g. lo
+		int window = Integer.parseInt( params.getOrDefault("-w", "256") ); // segments of a one-to-many transfer ahead of the slowest server
 		int timeoutInterval = Integer.parseInt( params.getOrDefault("-t", "1000") ); // duraiton of retransmission tim-out interval in milli-seconds
+		int fecGroup = Integer.parseInt( params.getOrDefault("-f", "0") ); // data segments per FEC parity segment, 0 for no FEC
+		boolean checksums = params.getOrDefault("-c", "off").equals("on"); // segment and file checksums: on, off
+		boolean resume = params.getOrDefault("-r", "off").equals("on"); // resumable transfer: on, off
+		boolean delta = params.getOrDefault("-u", "off").equals("on"); // delta update of the server's copy: on, off
+		boolean compression = params.getOrDefault("-z", "off").equals("on"); // compressed content: on, off
 		Level logLevel = Level.parse( params.getOrDefault("-v", "all").toUpperCase() ); // log levels: all, info, off
 
 		// set log level
 		setLogLevel(logLevel);
 		
+		// several servers or a multicast group: one-to-many transfer
+		if (serverName.contains(",") || groupName != null) {
+			List<InetSocketAddress> servers = new ArrayList<>();
+			for (String server : serverName.split(","))
+				servers.add(parseAddress(server, serverPort));
+			MulticastFtp ftp = new MulticastFtp(timeoutInterval);
+			ftp.setChecksums(checksums);
+			ftp.setWindow(window);
+			if (groupName != null) {
+				NetworkInterface networkInterface = null;
+				if (interfaceName != null) {
+					try {
+						networkInterface = NetworkInterface.getByName(interfaceName);
+					} catch (SocketException e) {
+						throw new IllegalArgumentException("Unknown interface " + interfaceName, e);
+					}
+					if (networkInterface == null)
+						throw new IllegalArgumentException("Unknown interface " + interfaceName);
+				}
+				ftp.setGroup(parseAddress(groupName, 0), networkInterface);
+			}
+			System.out.printf("sending file \'%s\' to %d servers...\n", fileName, servers.size());
+			if (ftp.send(servers, fileName))
+				System.out.println("send completed successfully");
+			else
+				System.out.println("send aborted");
+			return;
+		}
+
 		// send the file
 		StopWaitFtp ftp = new StopWaitFtp(timeoutInterval);
+		ftp.setFecGroup(fecGroup);
+		ftp.setChecksums(checksums);
+		ftp.setResume(resume);
+		ftp.setDelta(delta);
+		ftp.setCompression(compression);
 		System.out.printf("sending file \'%s\' to the server...\n", fileName);
 		
-		if ( ftp.send(serverName, serverPort, fileName) )
+		boolean session = fileNames.size() > 1 || new File(fileName).isDirectory();
+		if ( session ? ftp.sendFiles(serverName, serverPort, fileNames) : ftp.send(serverName, serverPort, fileName) )
 			System.out.println("send completed successfully");
 		else 
 			System.out.println("send aborted");
@@ -68,6 +114,14 @@ public class StopWaitDriver {
 		return params;
 	}
 	
+	// host[:port], with a default port
+	private static InetSocketAddress parseAddress(String address, int defaultPort) {
+		int colon = address.lastIndexOf(':');
+		if (colon < 0)
+			return new InetSocketAddress(address, defaultPort);
+		return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+	}
+
 	// set the global log level and format
 	private static void setLogLevel(Level level) {
 		System.setProperty("java.util.logging.SimpleFormatter.format", "%5$s %n");
@@ -7,21 +7,30 @@
  */
 
 import java.util.logging.*;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
 
 public class StopWaitFtp {
 
 	private static final Logger logger = Logger.getLogger("StopWaitFtp"); // global logger
+	private static final int COMPRESSION_LEVEL = 1; // deflate level of compressed transfers
 	private int timeout;
 	private DatagramSocket udpSocket;
 	private Socket tcpSocket;
@@ -31,24 +40,54 @@ public class StopWaitFtp {
 	// Variables to be set during the TCP handshake
 	private int initialSeqNum;
 	private String serverName;
+	private InetAddress serverAddress; // resolved once per transfer
 	private int serverUdpPort;
 	private Timer timer;
+	private int fecGroup = 0; // data segments per FEC group requested, 0 for no FEC
+	private int groupSize; // data segments per FEC group accepted by the server, 0 for no FEC
+	private boolean useChecksums = false; // checked segments and file checksum requested
+	private boolean checksums; // checked segments and file checksum accepted by the server
+	private final CRC32C fileChecksum = new CRC32C(); // of the file content sent so far
+	private boolean resume = false; // resumable transfer requested
+	private long resumeOffset; // bytes of the file the server already has
+	private boolean useDelta = false; // delta transfer requested
+	private DeltaSync.Signatures signatures; // of the server's copy of the file, null unless a delta is sent
+	private long literalBytes; // file bytes in the delta
+	private long deltaBytes; // length of the delta
+	private boolean useCompression = false; // compressed transfer requested
+	private boolean compression; // compressed transfer accepted by the server
+	private long storedBlocks; // blocks of the content sent as is in a compressed transfer
+	private long deflatedBlocks; // blocks of the content sent deflated
+
+	// transfer statistics
+	private long segmentsSent;
+	private long repairSegmentsSent;
+	private final AtomicLong retransmissions = new AtomicLong();
 
 	class TimeoutHandler extends TimerTask {
-		private DatagramPacket packet;
-		private int seqNum;
+		private DatagramPacket[] packets;
+		private String label;
 
 		public TimeoutHandler(DatagramPacket packet, int seqNum) {
-			this.packet = packet;
-			this.seqNum = seqNum;
+			this(new DatagramPacket[] { packet }, String.valueOf(seqNum));
+		}
+
+		// all packets of an FEC group
+		public TimeoutHandler(DatagramPacket[] packets, String label) {
+			this.packets = packets;
+			this.label = label;
 		}
 
 		@Override
 		public void run() {
 			try {
 				System.out.println("timeout");
-				udpSocket.send(packet); // Resend the packet
-				System.out.println("retx <" + seqNum + ">");
+				for (DatagramPacket packet : packets) {
+					udpSocket.send(packet); // Resend the packet
+					retransmissions.incrementAndGet();
+				}
+				FtpEvents.segmentRetransmitted(label, packets.length);
+				System.out.println("retx <" + label + ">");
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -65,6 +104,136 @@ public class StopWaitFtp {
 		this.timeout = timeout;
 	}
 
+	/**
+	 * Enables forward error correction: the file is sent in groups of data
+	 * segments protected by a parity segment, see FecGroup. Used only if
+	 * the server accepts it in the handshake.
+	 *
+	 * @param groupSize Data segments per group, 0 to disable
+	 */
+	public void setFecGroup(int groupSize) {
+		if (groupSize < 0 || groupSize > FecGroup.MAX_SIZE)
+			throw new IllegalArgumentException("FEC group size out of range");
+		this.fecGroup = groupSize;
+	}
+
+	/**
+	 * Enables checksums: every segment carries a CRC32C and corrupted ones
+	 * are dropped, and a CRC32C of the whole file, computed while sending,
+	 * is verified by the server at the end. Used only if the server accepts
+	 * it in the handshake.
+	 *
+	 * @param on true to enable checksums
+	 */
+	public void setChecksums(boolean on) {
+		this.useChecksums = on;
+	}
+
+	/**
+	 * Makes transfers resumable: the server keeps what it received of a
+	 * failed transfer and the next transfer of the same file, same length
+	 * and modification time, only sends the rest. Used only if the server
+	 * accepts it in the handshake.
+	 *
+	 * @param on true for resumable transfers
+	 */
+	public void setResume(boolean on) {
+		this.resume = on;
+	}
+
+	/**
+	 * Returns the number of bytes of the file the server already had at the
+	 * start of the last transfer
+	 */
+	public long getResumedBytes() {
+		return resumeOffset;
+	}
+
+	/**
+	 * Enables delta transfers: if the server has a file of the same name,
+	 * only the differences to it are sent, see DeltaSync. Used only if the
+	 * server accepts it in the handshake; a delta transfer is not resumable.
+	 *
+	 * @param on true for delta transfers
+	 */
+	public void setDelta(boolean on) {
+		this.useDelta = on;
+	}
+
+	/**
+	 * Returns the size of the server's block signatures received for the
+	 * last transfer, 0 if no delta was sent
+	 */
+	public long getSignatureBytes() {
+		return signatures == null ? 0 : signatures.size();
+	}
+
+	/**
+	 * Returns the length of the delta sent in the last transfer, 0 if no
+	 * delta was sent
+	 */
+	public long getDeltaBytes() {
+		return deltaBytes;
+	}
+
+	/**
+	 * Returns the number of bytes of the file sent as literals in the delta
+	 * of the last transfer
+	 */
+	public long getLiteralBytes() {
+		return literalBytes;
+	}
+
+	/**
+	 * Enables compression: the content is sent deflated in blocks, except
+	 * blocks that do not compress, see Compression. Used only if the server
+	 * accepts it in the handshake.
+	 *
+	 * @param on true for compressed transfers
+	 */
+	public void setCompression(boolean on) {
+		this.useCompression = on;
+	}
+
+	/**
+	 * Returns the number of blocks of the content sent as is in the last
+	 * transfer, 0 if it was not compressed
+	 */
+	public long getStoredBlocks() {
+		return storedBlocks;
+	}
+
+	/**
+	 * Returns the number of blocks of the content sent deflated in the last
+	 * transfer, 0 if it was not compressed
+	 */
+	public long getDeflatedBlocks() {
+		return deflatedBlocks;
+	}
+
+	/**
+	 * Returns the number of data segments sent in the last transfer, not
+	 * counting retransmissions
+	 */
+	public long getSegmentsSent() {
+		return segmentsSent;
+	}
+
+	/**
+	 * Returns the number of FEC repair segments sent in the last transfer,
+	 * not counting retransmissions
+	 */
+	public long getRepairSegmentsSent() {
+		return repairSegmentsSent;
+	}
+
+	/**
+	 * Returns the number of segments retransmitted in the last transfer
+	 */
+	public long getRetransmissions() {
+		return retransmissions.get();
+	}
+
 	/**
 	 * Send the specified file to the specified remote server.
 	 * 
@@ -74,22 +243,94 @@ public class StopWaitFtp {
 	 * @return true if the file transfer completed successfully, false otherwise
 	 */
 	public boolean send(String serverName, int serverPort, String fileName) {
+		return transfer(serverName, serverPort, fileName, null);
+	}
+
+	/**
+	 * Send files and directory trees to the specified remote server in one
+	 * session, over one control connection and one UDP flow, see Manifest.
+	 * Sessions are neither resumable nor sent as deltas.
+	 *
+	 * @param serverName Name of the remote server
+	 * @param serverPort Port number of the remote server
+	 * @param fileNames  Names of the files and directories to be transferred
+	 * @return true if all files were transferred successfully, false otherwise
+	 */
+	public boolean sendFiles(String serverName, int serverPort, List<String> fileNames) {
+		Manifest manifest;
+		try {
+			manifest = Manifest.of(fileNames);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		return transfer(serverName, serverPort, manifest.getName(), manifest);
+	}
+
+	// sends a file, or the files of a manifest if not null
+	private boolean transfer(String serverName, int serverPort, String fileName, Manifest manifest) {
+		segmentsSent = 0;
+		repairSegmentsSent = 0;
+		retransmissions.set(0);
+		fileChecksum.reset();
+		literalBytes = 0;
+		deltaBytes = 0;
+		storedBlocks = 0;
+		deflatedBlocks = 0;
+		File deltaFile = null;
 		try {
 			// Initialize TCP and UDP sockets
 			initializeConnections(serverName, serverPort);
 
-			// Perform the TCP handshake
-			if (!tcpHandshake(fileName)) {
-				System.out.println("TCP Handshake failed");
-				return false;
+			// Perform the TCP handshake, again without options if the server does not know them
+			if (!tcpHandshake(fileName, manifest, true)) {
+				if (manifest != null) {
+					System.out.println("Server does not answer the protocol options, it cannot receive sessions");
+					return false;
+				}
+				System.out.println("Server does not answer the protocol options, sending without them");
+				closeConnections();
+				initializeConnections(serverName, serverPort);
+				if (!tcpHandshake(fileName, null, false)) {
+					System.out.println("TCP Handshake failed");
+					return false;
+				}
+			}
+
+			// with a delta, the delta is sent instead of the file
+			String content = fileName;
+			if (signatures != null) {
+				deltaFile = File.createTempFile("stopwait", ".delta");
+				try (FileOutputStream deltaOut = new FileOutputStream(deltaFile)) {
+					literalBytes = DeltaSync.encode(new File(fileName), signatures, deltaOut);
+				}
+				deltaBytes = deltaFile.length();
+				System.out.println("delta <" + deltaBytes + ">");
+				tcpOut.writeLong(deltaBytes);
+				tcpOut.flush();
+				content = deltaFile.getPath();
 			}
 
 			// Send file content over UDP using Stop-and-Wait protocol
-			return sendFileContent(fileName);
+			boolean sent;
+			try (InputStream in = openContent(manifest != null ? manifest.openContent() : new FileInputStream(content))) {
+				sent = groupSize > 0 ? sendFileContentFec(in) : sendFileContent(in);
+				if (in instanceof Compression.Encoder) {
+					storedBlocks = ((Compression.Encoder) in).getStoredBlocks();
+					deflatedBlocks = ((Compression.Encoder) in).getDeflatedBlocks();
+				}
+			}
+			if (!sent)
+				return false;
+			if (checksums)
+				return verifyFile();
+			return signatures == null || deltaApplied();
 		} catch (IOException e) {
 			e.printStackTrace();
 			return false;
 		} finally {
+			if (deltaFile != null)
+				deltaFile.delete();
 			// Close resources
 			closeConnections();
 		}
@@ -97,20 +338,38 @@ public class StopWaitFtp {
 
 	private void initializeConnections(String serverName, int serverPort) throws IOException {
 		// Initialize TCP connection
-		tcpSocket = new Socket(serverName, serverPort);
-		tcpOut = new DataOutputStream(tcpSocket.getOutputStream());
+		this.serverName = serverName;
+		serverAddress = InetAddress.getByName(serverName);
+		tcpSocket = new Socket(serverAddress, serverPort);
+		tcpOut = new DataOutputStream(new BufferedOutputStream(tcpSocket.getOutputStream()));
 		tcpIn = new DataInputStream(tcpSocket.getInputStream());
 
 		// Initialize UDP socket
 		udpSocket = new DatagramSocket();
 	}
 
-	private boolean tcpHandshake(String fileName) throws IOException {
+	// returns false if options were sent and the receiver did not answer them
+	private boolean tcpHandshake(String fileName, Manifest manifest, boolean extensions) throws IOException {
 		// Send file name, file length, and local UDP port
 		File file = new File(fileName);
 		tcpOut.writeUTF(file.getName());
-		tcpOut.writeLong(file.length());
-		tcpOut.writeInt(udpSocket.getLocalPort());
+		tcpOut.writeLong(manifest != null ? manifest.getLength() : file.length());
+
+		// protocol extensions, only sent if used and announced in the port field
+		TransferOptions options = new TransferOptions();
+		if (extensions) {
+			options.set(TransferOptions.FEC_GROUP, fecGroup);
+			options.set(TransferOptions.CHECKSUMS, useChecksums ? 1 : 0);
+			options.set(TransferOptions.RESUME, resume && manifest == null ? version(file) : 0);
+			options.set(TransferOptions.DELTA, useDelta && manifest == null ? 1 : 0);
+			options.set(TransferOptions.COMPRESSION, useCompression ? Compression.DEFLATE : 0);
+			options.set(TransferOptions.SESSION, manifest != null ? manifest.size() : 0);
+		}
+		tcpOut.writeInt(TransferOptions.portField(udpSocket.getLocalPort(), options));
+		if (!options.isEmpty())
+			options.write(tcpOut);
+		if (manifest != null)
+			manifest.write(tcpOut);
 		tcpOut.flush();
 
 		// Receive server UDP port and initial sequence number
@@ -120,47 +379,195 @@ public class StopWaitFtp {
 
 		initialSeqNum = tcpIn.readInt();
 
+		// the options accepted by the server
+		groupSize = 0;
+		checksums = false;
+		resumeOffset = 0;
+		signatures = null;
+		compression = false;
+		if (!options.isEmpty()) {
+			TransferOptions accepted = TransferOptions.readAnswer(tcpSocket, tcpIn);
+			if (accepted == null)
+				return false;
+			int size = accepted.get(TransferOptions.FEC_GROUP);
+			if (size > 1 && size <= fecGroup)
+				groupSize = size;
+			checksums = useChecksums && accepted.get(TransferOptions.CHECKSUMS) == 1;
+			if (resume && accepted.get(TransferOptions.RESUME) == 1)
+				resumeOffset = (long) accepted.get(TransferOptions.RESUME_OFFSET) * FtpSegment.MAX_PAYLOAD_SIZE;
+			if (resumeOffset < 0 || resumeOffset > file.length())
+				throw new IOException("Invalid resume offset " + resumeOffset);
+			if (resumeOffset > 0)
+				System.out.println("resume <" + resumeOffset + ">");
+			if (useDelta && accepted.get(TransferOptions.DELTA) > 0)
+				signatures = DeltaSync.readSignatures(tcpIn, accepted.get(TransferOptions.DELTA));
+			compression = useCompression && accepted.get(TransferOptions.COMPRESSION) == Compression.DEFLATE;
+			if (manifest != null && accepted.get(TransferOptions.SESSION) != 1)
+				throw new IOException("Server does not accept multi-file sessions");
+		}
+
 		// need to store serverUdpPort and initialSeqNum for later use?
 		return true; // Return true if handshake is successful
 	}
 
-	private boolean sendFileContent(String fileName) throws IOException {
-		FileInputStream fileInputStream = new FileInputStream(fileName);
+	// the content to send: the file after the part the server already has,
+	// added to the file checksum as it is read and compressed if accepted
+	private InputStream openContent(InputStream in) throws IOException {
+		try {
+			skipResumed(in);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		if (checksums)
+			in = new CheckedInputStream(in, fileChecksum);
+		if (compression) // with FEC, the receiver expects whole groups of full segments
+			in = new Compression.Encoder(in, COMPRESSION_LEVEL, FtpSegment.MAX_PAYLOAD_SIZE * Math.max(1, groupSize));
+		return in;
+	}
+
+	private boolean sendFileContent(InputStream in) throws IOException {
 		byte[] buffer = new byte[FtpSegment.MAX_PAYLOAD_SIZE];
 		int bytesRead;
 		int seqNum = initialSeqNum;
 		// System.out.println("sendFileContent: server UDP port = " + serverUdpPort);
-		while ((bytesRead = fileInputStream.read(buffer)) != -1) {
+		while ((bytesRead = in.readNBytes(buffer, 0, buffer.length)) > 0) {
 			FtpSegment segment = new FtpSegment(seqNum, buffer, bytesRead);
-			DatagramPacket packet = FtpSegment.makePacket(segment, InetAddress.getByName(serverName), serverUdpPort);
+			DatagramPacket packet = makePacket(segment);
 			udpSocket.send(packet);
+			segmentsSent++;
+			FtpEvents.segmentSent(seqNum, bytesRead, false);
+			FtpEvents.SegmentAcked acked = FtpEvents.beginAck();
+			long retransmitted = retransmissions.get();
 			System.out.println("send <" + seqNum + ">");
 
 			// Start the timer for retransmission
-			if (timer != null) {
-				timer.cancel(); // Cancel the previous timer
-			}
-			timer = new Timer();
-			timer.scheduleAtFixedRate(new TimeoutHandler(packet, seqNum), timeout, timeout);
+			startTimer(new TimeoutHandler(packet, seqNum));
 
 			if (!waitForAck(seqNum)) {
 				return false; // Failed to receive ACK
 			}
+			FtpEvents.segmentAcked(acked, seqNum, retransmissions.get() > retransmitted);
 
 			seqNum++; // Increment sequence number for the next segment
 		}
 
-		fileInputStream.close();
 		return true; // File transfer completed successfully
 	}
 
+	// sends the file in FEC groups, each group followed by its repair segment
+	// and acknowledged as a whole
+	private boolean sendFileContentFec(InputStream in) throws IOException {
+		byte[][] payloads = new byte[groupSize][FtpSegment.MAX_PAYLOAD_SIZE];
+		int[] lengths = new int[groupSize];
+		int seqNum = initialSeqNum;
+		while (true) {
+			// full segments only, the receiver derives their lengths from the file length
+			int count = 0;
+			int bytesRead;
+			while (count < groupSize
+					&& (bytesRead = in.readNBytes(payloads[count], 0, FtpSegment.MAX_PAYLOAD_SIZE)) > 0)
+				lengths[count++] = bytesRead;
+			if (count == 0)
+				break;
+
+			DatagramPacket[] packets = new DatagramPacket[count + 1];
+			for (int i = 0; i < count; i++)
+				packets[i] = makePacket(new FtpSegment(seqNum + i, payloads[i], lengths[i]));
+			packets[count] = makePacket(FecGroup.repairSegment(seqNum, payloads, lengths, count));
+			for (DatagramPacket packet : packets)
+				udpSocket.send(packet);
+			segmentsSent += count;
+			repairSegmentsSent++;
+			for (int i = 0; i < count; i++)
+				FtpEvents.segmentSent(seqNum + i, lengths[i], false);
+			FtpEvents.segmentSent(seqNum, lengths[0], true);
+			FtpEvents.SegmentAcked acked = FtpEvents.beginAck();
+			long retransmitted = retransmissions.get();
+			String label = seqNum + ".." + (seqNum + count - 1);
+			System.out.println("send <" + label + ">");
+
+			startTimer(new TimeoutHandler(packets, label));
+
+			if (!waitForAck(seqNum + count - 1)) {
+				return false; // Failed to receive ACK
+			}
+			FtpEvents.segmentAcked(acked, seqNum + count - 1, retransmissions.get() > retransmitted);
+
+			seqNum += count;
+		}
+		return true;
+	}
+
+	// skips the part of the file the server already has, it still counts toward the file checksum
+	private void skipResumed(InputStream in) throws IOException {
+		if (!checksums) {
+			in.skipNBytes(resumeOffset);
+			return;
+		}
+		byte[] buffer = new byte[1 << 16];
+		long remaining = resumeOffset;
+		while (remaining > 0) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (n == -1)
+				throw new EOFException();
+			fileChecksum.update(buffer, 0, n);
+			remaining -= n;
+		}
+	}
+
+	// identifies the content of a file for resumption, never 0
+	private static int version(File file) {
+		int version = Long.hashCode(file.lastModified() * 31 + file.length());
+		return version == 0 ? 1 : version;
+	}
+
+	// sends the checksum of the file over the control connection, true if the server's copy matches
+	private boolean verifyFile() throws IOException {
+		tcpOut.writeInt((int) fileChecksum.getValue());
+		tcpOut.flush();
+		if (tcpIn.readBoolean())
+			return true;
+		logger.warning(signatures != null ? "file checksum mismatch or delta not applied at the server"
+				: "file checksum mismatch at the server");
+		return false;
+	}
+
+	// the server's answer to a delta sent without checksums, once it has applied the delta
+	private boolean deltaApplied() throws IOException {
+		tcpOut.writeByte(0); // the last ACK has arrived, the server can stop answering retransmissions
+		tcpOut.flush();
+		if (tcpIn.readBoolean())
+			return true;
+		logger.warning("delta not applied at the server");
+		return false;
+	}
+
+	private DatagramPacket makePacket(FtpSegment segment) {
+		return checksums ? FtpSegment.makeCheckedPacket(segment, serverAddress, serverUdpPort)
+				: FtpSegment.makePacket(segment, serverAddress, serverUdpPort);
+	}
+
+	// (re)starts the retransmission timer
+	private void startTimer(TimerTask task) {
+		if (timer != null) {
+			timer.cancel(); // Cancel the previous timer
+		}
+		timer = new Timer();
+		timer.scheduleAtFixedRate(task, timeout, timeout);
+	}
+
 	private boolean waitForAck(int expectedSeqNum) throws IOException {
-		byte[] ackBuffer = new byte[FtpSegment.MAX_SEGMENT_SIZE];
+		byte[] ackBuffer = new byte[FtpSegment.MAX_CHECKED_SEGMENT_SIZE];
 		DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
 
 		while (true) {
 			udpSocket.receive(ackPacket);
-			FtpSegment ackSegment = new FtpSegment(ackPacket);
+			FtpSegment ackSegment = checksums ? FtpSegment.fromCheckedPacket(ackPacket) : new FtpSegment(ackPacket);
+			if (ackSegment == null) {
+				System.out.println("corrupt ack");
+				continue;
+			}
 			int ackNum = ackSegment.getSeqNum();
 			System.out.println("ack <" + ackNum + ">");
 
@@ -0,0 +1,635 @@
+/**
+ * StopWaitReceiver Class
+ *
+ * Receiving end of the StopWaitFtp protocol, used to run transfers
+ * locally (for example through NetEmulator) without the course server.
+ *
+ * For every TCP connection the receiver reads the handshake (file name,
+ * file length, sender UDP port), answers with its UDP port and initial
+ * sequence number, then receives the file over UDP, acknowledging each
+ * segment with the next expected sequence number. Received files are
+ * written to the output directory.
+ *
+ * Senders may ask for forward error correction in the handshake (see
+ * TransferOptions); the file then arrives in groups of segments with a
+ * parity segment each, and every group is acknowledged once complete.
+ * With checksums, segments carrying a wrong CRC32C are dropped and the
+ * CRC32C of the received file is compared with the sender's over the
+ * control connection; a file that does not match is deleted.
+ *
+ * Senders may also ask for a resumable transfer: the file is then
+ * received into a part file with a persistent checkpoint (see Checkpoint)
+ * and a new transfer of the same file continues where the last one
+ * stopped. A transfer stops when the sender closes the control
+ * connection before the file is complete.
+ *
+ * With delta transfers, the receiver sends the block signatures of its
+ * copy of the file and receives a delta from the sender, which it applies
+ * to its copy once complete (see DeltaSync).
+ *
+ * Compressed transfers carry the content in frames, packed into full
+ * segments (see Compression); the receiver decodes them as they arrive
+ * and knows it has the whole content once the decoded bytes reach its
+ * length.
+ *
+ * A sender may send many files in one session, listing them in the
+ * handshake (see Manifest); their content arrives as one stream that the
+ * receiver cuts into the files, written below the output directory.
+ *
+ * One-to-many transfers (see MulticastFtp) arrive on the receiver's UDP
+ * port or on a multicast group it joins. Segments are not acknowledged;
+ * the receiver buffers a window of them in any order and reports over the
+ * control connection how far it has the file and which segments it
+ * misses, until it has the whole file.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+import java.util.logging.*;
+
+public class StopWaitReceiver extends Thread {
+
+	private static final Logger logger = Logger.getLogger("StopWaitFtp"); // global logger
+	private static final int LINGER_TIME = 2000; // keep answering retransmissions after the last segment (milli-seconds)
+	private static final int LINGER_POLL = 50; // how often the control connection is checked while lingering (milli-seconds)
+	private static final int RECEIVE_POLL = 1000; // how often the control connection is checked while receiving (milli-seconds)
+	private static final long CHECKPOINT_INTERVAL = 4 << 20; // bytes received between checkpoints
+
+	private int udpPort;
+	private int advertisedUdpPort;
+	private NetworkInterface multicastInterface; // null for the default
+	private File outputDir;
+	private volatile boolean shutdown = false;
+	private ServerSocket serverSocket;
+	private int completed = 0; // number of transfers received
+	private final AtomicLong repaired = new AtomicLong(); // data segments rebuilt by FEC
+	private final AtomicLong corrupted = new AtomicLong(); // segments dropped for a wrong checksum
+
+	// state of the current transfer
+	private PushbackInputStream control;
+	private DatagramSocket udpSocket;
+	private FileOutputStream partOut;
+	private OutputStream fileOut;
+	private Compression.Decoder decoder; // null unless compressed
+	private boolean checksums;
+	private final CRC32C fileChecksum = new CRC32C();
+	private Checkpoint checkpoint; // null unless resumable
+	private long written; // contiguous bytes of the file written
+	private long checkpointed; // bytes recorded in the checkpoint
+
+	/**
+	 * Constructor
+	 *
+	 * @param tcpPort   Port for the TCP control connection, 0 for any free port
+	 * @param udpPort   Port of the UDP socket receiving segments, 0 for any free port
+	 * @param outputDir Directory the received files are written to
+	 *
+	 * @throws IOException If the control port cannot be opened
+	 */
+	public StopWaitReceiver(int tcpPort, int udpPort, File outputDir) throws IOException {
+		this.serverSocket = new ServerSocket(tcpPort);
+		this.udpPort = udpPort;
+		this.advertisedUdpPort = 0;
+		this.outputDir = outputDir;
+	}
+
+	/**
+	 * Makes the receiver tell senders to send segments to the given port
+	 * instead of its own UDP port, e.g. the port of a NetEmulator in front of it.
+	 *
+	 * @param port The UDP port announced in the handshake, 0 for the receiver's own port
+	 */
+	public void setAdvertisedUdpPort(int port) {
+		this.advertisedUdpPort = port;
+	}
+
+	/**
+	 * Sets the interface multicast groups are joined on.
+	 *
+	 * @param networkInterface The interface, null for the default
+	 */
+	public void setMulticastInterface(NetworkInterface networkInterface) {
+		this.multicastInterface = networkInterface;
+	}
+
+	/**
+	 * Returns the port of the TCP control connection
+	 */
+	public int getLocalPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Returns the number of data segments rebuilt from FEC repair segments
+	 * since the receiver started
+	 */
+	public long getRepairedSegments() {
+		return repaired.get();
+	}
+
+	/**
+	 * Returns the number of segments dropped for a wrong checksum since the
+	 * receiver started
+	 */
+	public long getCorruptedSegments() {
+		return corrupted.get();
+	}
+
+	/**
+	 * Waits until the given number of transfers have been received.
+	 *
+	 * @param count   Number of transfers to wait for, counted since the receiver started
+	 * @param timeout Maximum time to wait, in milli-seconds
+	 * @return true if the transfers have been received, false on time-out
+	 *
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public synchronized boolean awaitCompleted(int count, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (completed < count) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return false;
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Accepts control connections, one transfer at a time, until shut down.
+	 */
+	public void run() {
+		while (!shutdown) {
+			try (Socket socket = serverSocket.accept()) {
+				receive(socket);
+				synchronized (this) {
+					completed++;
+					notifyAll();
+				}
+			} catch (IOException e) {
+				if (!shutdown)
+					logger.log(Level.WARNING, "Transfer failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting transfers.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// Ok, ignore
+		}
+	}
+
+	// one transfer over an accepted control connection
+	private void receive(Socket socket) throws IOException {
+		control = new PushbackInputStream(socket.getInputStream());
+		DataInputStream tcpIn = new DataInputStream(control);
+		DataOutputStream tcpOut = new DataOutputStream(socket.getOutputStream());
+
+		String fileName = new File(tcpIn.readUTF()).getName(); // no paths from the sender
+		long fileLength = tcpIn.readLong();
+		int portField = tcpIn.readInt(); // sender UDP port, ACKs go to the source of the segments instead
+		TransferOptions requested = TransferOptions.readIfPresent(tcpIn, portField);
+		TransferOptions accepted = new TransferOptions();
+		accepted.set(TransferOptions.CHECKSUMS, requested.get(TransferOptions.CHECKSUMS) == 1 ? 1 : 0);
+		checksums = accepted.get(TransferOptions.CHECKSUMS) == 1;
+
+		// one-to-many transfers come with checksums only
+		int nakWindow = requested.get(TransferOptions.NAK_WINDOW);
+		if (nakWindow < 0 || nakWindow > MulticastFtp.MAX_WINDOW)
+			throw new IOException("Invalid NAK window " + nakWindow);
+		boolean nak = nakWindow > 0;
+		accepted.set(TransferOptions.NAK_WINDOW, nakWindow);
+
+		int groupSize = nak ? 0 : Math.min(requested.get(TransferOptions.FEC_GROUP), FecGroup.MAX_SIZE);
+		accepted.set(TransferOptions.FEC_GROUP, groupSize > 1 ? groupSize : 0);
+		Manifest manifest = null;
+		if (requested.get(TransferOptions.SESSION) > 0 && !nak) {
+			manifest = Manifest.read(tcpIn, fileName, requested.get(TransferOptions.SESSION));
+			if (manifest.getLength() != fileLength)
+				throw new IOException("Manifest does not match the session length");
+			accepted.set(TransferOptions.SESSION, 1);
+		}
+		if (requested.get(TransferOptions.COMPRESSION) == Compression.DEFLATE && !nak)
+			accepted.set(TransferOptions.COMPRESSION, Compression.DEFLATE);
+		fileChecksum.reset();
+
+		// a delta needs a copy of the file to apply it to
+		File file = new File(outputDir, fileName);
+		File target = file;
+		File deltaFile = null;
+		int blockSize = 0;
+		if (requested.get(TransferOptions.DELTA) == 1 && manifest == null && !nak && file.isFile() && file.length() > 0) {
+			blockSize = DeltaSync.blockSize(file.length());
+			deltaFile = new File(outputDir, fileName + ".delta");
+			target = deltaFile;
+			accepted.set(TransferOptions.DELTA, blockSize);
+		}
+
+		// a resumable transfer continues after the bytes of the part file
+		checkpoint = null;
+		written = 0;
+		if (requested.get(TransferOptions.RESUME) != 0 && deltaFile == null && manifest == null && !nak) {
+			checkpoint = new Checkpoint(file, fileLength, requested.get(TransferOptions.RESUME));
+			written = checkpoint.resume();
+			target = checkpoint.getPartFile();
+			accepted.set(TransferOptions.RESUME, 1);
+			accepted.set(TransferOptions.RESUME_OFFSET, (int) (written / FtpSegment.MAX_PAYLOAD_SIZE));
+			if (checksums && written > 0)
+				updateChecksum(target, written);
+			if (written > 0)
+				logger.info("resuming " + fileName + " after " + written + " bytes");
+		}
+		checkpointed = written;
+
+		boolean verified = true;
+		boolean done = false;
+		try {
+			udpSocket = nak ? joinGroup(requested) : null;
+			if (udpSocket != null)
+				accepted.set(TransferOptions.MULTICAST_GROUP, requested.get(TransferOptions.MULTICAST_GROUP));
+			else
+				udpSocket = new DatagramSocket(udpPort);
+			if (manifest != null) {
+				fileOut = manifest.new Writer(outputDir);
+			} else {
+				partOut = new FileOutputStream(target, checkpoint != null);
+				fileOut = new BufferedOutputStream(partOut, 1 << 16);
+			}
+			if (accepted.get(TransferOptions.COMPRESSION) == Compression.DEFLATE) {
+				decoder = new Compression.Decoder(new OutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						write(new byte[] { (byte) b }, 0, 1);
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						store(b, off, len);
+					}
+				});
+			}
+
+			int initialSeqNum = ThreadLocalRandom.current().nextInt(1 << 16);
+			tcpOut.writeInt(advertisedUdpPort > 0 ? advertisedUdpPort : udpSocket.getLocalPort());
+			tcpOut.writeInt(initialSeqNum);
+			if (!requested.isEmpty())
+				accepted.write(tcpOut);
+			tcpOut.flush();
+
+			// the length of the delta follows the signatures
+			long contentLength = fileLength;
+			if (deltaFile != null) {
+				DeltaSync.writeSignatures(file, blockSize, tcpOut);
+				tcpOut.flush();
+				contentLength = tcpIn.readLong();
+				if (contentLength < 0)
+					throw new IOException("Invalid delta length " + contentLength);
+			}
+
+			int expected = initialSeqNum;
+			byte[] buffer = new byte[FtpSegment.MAX_CHECKED_SEGMENT_SIZE];
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			udpSocket.setSoTimeout(RECEIVE_POLL);
+			socket.setSoTimeout(1);
+
+			groupSize = accepted.get(TransferOptions.FEC_GROUP);
+			if (nak)
+				receiveWindow(packet, tcpOut, contentLength, nakWindow);
+			else if (groupSize > 0)
+				expected = receiveGroups(packet, initialSeqNum, contentLength, groupSize);
+			while (written < contentLength) {
+				receivePacket(packet);
+				FtpSegment segment = parse(packet);
+				if (segment == null)
+					continue; // corrupted, the sender retransmits it
+				if (segment.getSeqNum() == expected) {
+					write(segment.getPayload());
+					expected++;
+				}
+				sendAck(expected, packet.getSocketAddress());
+			}
+			fileOut.flush();
+
+			// the last ACK may be lost, answer retransmissions until the sender
+			// sends the file checksum, closes the control connection or goes quiet
+			udpSocket.setSoTimeout(LINGER_POLL);
+			long lastPacket = System.currentTimeMillis();
+			while (!nak && System.currentTimeMillis() - lastPacket < LINGER_TIME && !isReady(control)) {
+				try {
+					udpSocket.receive(packet);
+					sendAck(expected, packet.getSocketAddress());
+					lastPacket = System.currentTimeMillis();
+				} catch (SocketTimeoutException e) {
+					// nothing retransmitted
+				}
+			}
+
+			if (checksums) {
+				// a one-to-many sender sends the file checksum once all receivers are done
+				socket.setSoTimeout(nak ? 0 : LINGER_TIME);
+				verified = tcpIn.readInt() == (int) fileChecksum.getValue();
+			} else if (deltaFile != null) {
+				// without checksums, the sender of a delta asks for the answer once it has the last ACK
+				socket.setSoTimeout(LINGER_TIME);
+				tcpIn.readByte();
+			}
+			// a delta is applied before the answer, so the sender learns whether the file was updated
+			IOException deltaError = null;
+			if (verified && deltaFile != null) {
+				try {
+					applyDelta(file, blockSize, deltaFile);
+				} catch (IOException e) {
+					deltaError = e;
+				}
+			}
+			if (checksums || deltaFile != null) {
+				tcpOut.writeBoolean(verified && deltaError == null);
+				tcpOut.flush();
+			}
+			if (deltaError != null)
+				throw deltaError;
+			if (manifest != null)
+				logger.info("received " + fileName + " (" + manifest.size() + " files, " + written + " bytes)");
+			else
+				logger.info("received " + fileName + " (" + written + " bytes)");
+			done = true;
+		} catch (IOException e) {
+			// keep what has been received for the next transfer
+			if (checkpoint != null && fileOut != null) {
+				try {
+					fileOut.flush();
+					checkpoint.save(partOut, written);
+				} catch (IOException checkpointError) {
+					e.addSuppressed(checkpointError);
+				}
+			}
+			throw e;
+		} finally {
+			if (fileOut != null)
+				fileOut.close();
+			else if (partOut != null)
+				partOut.close();
+			if (udpSocket != null)
+				udpSocket.close();
+			if (decoder != null)
+				decoder.close();
+			decoder = null;
+			fileOut = null;
+			partOut = null;
+			udpSocket = null;
+			if (!done && deltaFile != null)
+				deltaFile.delete(); // a delta transfer cannot be resumed
+		}
+
+		if (!verified) {
+			if (checkpoint != null)
+				checkpoint.discard();
+			else if (manifest != null)
+				manifest.delete(outputDir);
+			else
+				target.delete();
+			throw new IOException("File checksum mismatch, " + fileName + " deleted");
+		}
+		if (checkpoint != null)
+			checkpoint.complete();
+	}
+
+	// replaces a file with the result of applying a delta to it
+	private static void applyDelta(File file, int blockSize, File deltaFile) throws IOException {
+		File updated = new File(file.getPath() + ".new");
+		try {
+			try (InputStream in = new FileInputStream(deltaFile);
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(updated), 1 << 16)) {
+				DeltaSync.apply(file, blockSize, in, out);
+			}
+			Files.move(updated.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			logger.info("updated " + file.getName() + " from a delta of " + deltaFile.length() + " bytes");
+		} finally {
+			updated.delete();
+			deltaFile.delete();
+		}
+	}
+
+	// receives the remaining bytes of the content in FEC groups, acknowledging
+	// each group once complete, and returns the next expected sequence number
+	private int receiveGroups(DatagramPacket packet, int initialSeqNum, long contentLength, int groupSize)
+			throws IOException {
+		long length = contentLength - written;
+		long segments = (length + FtpSegment.MAX_PAYLOAD_SIZE - 1) / FtpSegment.MAX_PAYLOAD_SIZE;
+		int expected = initialSeqNum;
+		for (long first = 0; written < contentLength; first += groupSize) {
+			int[] lengths;
+			if (decoder != null) {
+				// compressed content comes in whole groups of full segments
+				lengths = new int[groupSize];
+				Arrays.fill(lengths, FtpSegment.MAX_PAYLOAD_SIZE);
+			} else {
+				lengths = new int[(int) Math.min(groupSize, segments - first)];
+				for (int i = 0; i < lengths.length; i++)
+					lengths[i] = (int) Math.min(FtpSegment.MAX_PAYLOAD_SIZE, length - (first + i) * FtpSegment.MAX_PAYLOAD_SIZE);
+			}
+
+			FecGroup group = new FecGroup(expected, lengths);
+			do {
+				receivePacket(packet);
+				FtpSegment segment = parse(packet);
+				if (segment != null && !group.add(segment))
+					sendAck(expected, packet.getSocketAddress()); // an earlier group, its ACK was lost
+			} while (!group.isComplete());
+
+			for (int i = 0; i < group.size(); i++)
+				write(group.getPayload(i));
+			if (group.wasRepaired())
+				repaired.incrementAndGet();
+			expected += group.size();
+			sendAck(expected, packet.getSocketAddress());
+		}
+		return expected;
+	}
+
+	// joins the multicast group of a one-to-many transfer, null if none was given or it cannot be joined
+	private MulticastSocket joinGroup(TransferOptions requested) {
+		int address = requested.get(TransferOptions.MULTICAST_GROUP);
+		int port = requested.get(TransferOptions.MULTICAST_PORT);
+		if (address == 0 || port <= 0 || port > 0xffff)
+			return null;
+		MulticastSocket socket = null;
+		try {
+			InetAddress group = InetAddress.getByAddress(
+					new byte[] { (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address });
+			if (!group.isMulticastAddress())
+				return null;
+			socket = new MulticastSocket(port);
+			socket.joinGroup(new InetSocketAddress(group, 0), multicastInterface);
+			return socket;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot join the multicast group, receiving on the UDP port", e);
+			if (socket != null)
+				socket.close();
+			return null;
+		}
+	}
+
+	// receives the segments of a one-to-many transfer in any order within the
+	// window, reporting progress and missing segments on the control connection
+	private void receiveWindow(DatagramPacket packet, DataOutputStream tcpOut, long contentLength, int window)
+			throws IOException {
+		int segments = (int) ((contentLength + FtpSegment.MAX_PAYLOAD_SIZE - 1) / FtpSegment.MAX_PAYLOAD_SIZE);
+		byte[][] buffered = new byte[window][];
+		int next = 0; // segments written
+		int highest = -1; // highest segment received
+		int reported = -1; // next at the last report
+		long lastReport = 0;
+		boolean quiet = false; // nothing arrived for a report interval
+		udpSocket.setReceiveBufferSize(window * FtpSegment.MAX_CHECKED_SEGMENT_SIZE);
+		udpSocket.setSoTimeout(MulticastFtp.REPORT_INTERVAL);
+		while (true) {
+			long now = System.currentTimeMillis();
+			if (next == segments || quiet || now - lastReport >= MulticastFtp.REPORT_INTERVAL || next - reported >= window / 4) {
+				// gaps below the highest segment received; after a quiet interval, the tail of the window as well
+				int end = quiet ? Math.min(segments, next + window) : highest + 1;
+				sendReport(tcpOut, next, buffered, end);
+				lastReport = now;
+				reported = next;
+				if (next == segments)
+					return;
+			}
+
+			quiet = false;
+			try {
+				udpSocket.receive(packet);
+			} catch (SocketTimeoutException e) {
+				if (isReady(control))
+					throw new EOFException("Sender ended the transfer");
+				quiet = true;
+				continue;
+			}
+			FtpSegment segment = parse(packet);
+			if (segment == null)
+				continue; // corrupted, reported missing
+			int seqNum = segment.getSeqNum();
+			long expectedLength = Math.min(FtpSegment.MAX_PAYLOAD_SIZE, contentLength - (long) seqNum * FtpSegment.MAX_PAYLOAD_SIZE);
+			if (seqNum < next || seqNum >= next + window || seqNum >= segments || segment.getLength() != expectedLength)
+				continue; // a duplicate or a stray datagram
+			if (buffered[seqNum % window] == null) {
+				buffered[seqNum % window] = segment.getPayload();
+				highest = Math.max(highest, seqNum);
+			}
+			while (next < segments && buffered[next % window] != null) {
+				write(buffered[next % window]);
+				buffered[next % window] = null;
+				next++;
+			}
+		}
+	}
+
+	// reports the segments received without gaps and the missing ones below end
+	private static void sendReport(DataOutputStream tcpOut, int next, byte[][] buffered, int end) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream report = new DataOutputStream(bytes);
+		int count = 0;
+		for (int seqNum = next; seqNum < end && count < MulticastFtp.MAX_NAKS; seqNum++)
+			if (buffered[seqNum % buffered.length] == null)
+				count++;
+		report.writeInt(next);
+		report.writeInt(count);
+		for (int seqNum = next; count > 0; seqNum++) {
+			if (buffered[seqNum % buffered.length] == null) {
+				report.writeInt(seqNum);
+				count--;
+			}
+		}
+		tcpOut.write(bytes.toByteArray());
+		tcpOut.flush();
+	}
+
+	// receives the next packet, failing if the sender ends the transfer on the control connection
+	private void receivePacket(DatagramPacket packet) throws IOException {
+		while (true) {
+			try {
+				udpSocket.receive(packet);
+				return;
+			} catch (SocketTimeoutException e) {
+				if (isReady(control))
+					throw new EOFException("Sender ended the transfer");
+			}
+		}
+	}
+
+	// true if the peer has sent more on the control connection or closed it
+	private static boolean isReady(PushbackInputStream control) throws IOException {
+		try {
+			int b = control.read();
+			if (b != -1)
+				control.unread(b);
+			return true;
+		} catch (SocketTimeoutException e) {
+			return false;
+		}
+	}
+
+	// the segment in a packet, null if its checksum is wrong
+	private FtpSegment parse(DatagramPacket packet) {
+		if (!checksums)
+			return new FtpSegment(packet);
+		FtpSegment segment = FtpSegment.fromCheckedPacket(packet);
+		if (segment == null)
+			corrupted.incrementAndGet();
+		return segment;
+	}
+
+	// takes the payload of the next segment, decoding it if compressed
+	private void write(byte[] payload) throws IOException {
+		if (decoder != null)
+			decoder.write(payload);
+		else
+			store(payload, 0, payload.length);
+	}
+
+	// appends to the file, checkpointing a resumable transfer now and then
+	private void store(byte[] b, int off, int len) throws IOException {
+		fileOut.write(b, off, len);
+		fileChecksum.update(b, off, len);
+		written += len;
+		if (checkpoint != null && written - checkpointed >= CHECKPOINT_INTERVAL) {
+			fileOut.flush();
+			checkpoint.save(partOut, written);
+			checkpointed = written;
+		}
+	}
+
+	// adds the first length bytes of a file to the file checksum
+	private void updateChecksum(File file, long length) throws IOException {
+		byte[] buffer = new byte[1 << 16];
+		try (InputStream in = new FileInputStream(file)) {
+			while (length > 0) {
+				int n = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+				if (n == -1)
+					throw new EOFException();
+				fileChecksum.update(buffer, 0, n);
+				length -= n;
+			}
+		}
+	}
+
+	private void sendAck(int ackNum, SocketAddress to) throws IOException {
+		FtpSegment ack = new FtpSegment(ackNum);
+		byte[] bytes = checksums ? ack.toCheckedBytes() : ack.toBytes();
+		udpSocket.send(new DatagramPacket(bytes, bytes.length, to));
+	}
+}
@@ -0,0 +1,395 @@
+/**
+ * TransferBench Class
+ *
+ * Runs StopWaitFtp transfers through a NetEmulator to a local
+ * StopWaitReceiver, checks that every received file is identical to the
+ * sent one and reports, per run and as medians over all runs, the
+ * completion time, goodput and retransmission ratio as JSON.
+ * The completion time ends when the receiver has stored the file.
+ * A directory of many small files (-F) is sent in one session or, for
+ * comparison, one file at a time as separate transfers.
+ *
+ * To measure delta transfers, -M gives the fraction of the file to be
+ * changed: the receiver starts every run with the file and the sender
+ * sends a modified copy, in full or, with -u on, as a delta. The bytes
+ * on the wire count the datagrams in both directions and the block
+ * signatures sent over the control connection.
+ *
+ * Command line arguments (all optional):
+ * 		-i	file to be sent, default medium.txt
+ * 		-g	generate a file of the given size instead, e.g. 64M or 2G
+ * 		-k	content of a generated file: random (incompressible), text, default random
+ * 		-F	generate a directory of this many files of the size of -g in total instead
+ * 		-m	how a directory is sent: session (all files in one session), each (one transfer per file),
+ * 			default session
+ * 		-n	number of runs, default 3
+ * 		-T	retransmission time-out in milli-seconds, default 100
+ * 		-f	FEC group size, data segments per parity segment, default 0 (off)
+ * 		-c	segment and file checksums: on, off, default off
+ * 		-M	fraction of the file changed before sending, default 0 (receiver starts without the file)
+ * 		-u	delta transfers: on, off, default off
+ * 		-z	compression: on, off, default off
+ * 		-o	output file for the JSON report, default standard output
+ * 	link impairments, applied in both directions (see NetEmulator):
+ * 		-d	one-way delay in milli-seconds, default 0
+ * 		-j	jitter in milli-seconds, default 0
+ * 		-L	loss probability, default 0
+ * 		-r	reorder probability, default 0
+ * 		-D	duplication probability, default 0
+ * 		-C	corruption probability, default 0
+ * 		-b	bandwidth in kbit/s, default 0 (unlimited)
+ * 		-q	queue limit in packets, default 1000
+ * 		-S	random seed, default 1, run k uses seed + k
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.logging.*;
+
+public class TransferBench {
+
+	private static final Logger logger = Logger.getLogger("StopWaitFtp"); // global logger
+	private static final long RECEIVE_WAIT = 30000; // time to wait for the receiver after a transfer (milli-seconds)
+	private static final int CHANGE_RUN = 4096; // bytes changed together by -M
+	private static final int INSERTION = 100; // bytes inserted in the middle by -M
+	private static final int WORDS = 8192; // vocabulary of generated text
+	private static final int LINE_LENGTH = 72; // characters of generated text per line
+
+	public static void main(String[] args) throws Exception {
+		HashMap<String, String> params = new HashMap<String, String>();
+		for (int i = 0; (i + 1) < args.length; i += 2)
+			params.put(args[i], args[i + 1]);
+
+		int runs = Integer.parseInt(params.getOrDefault("-n", "3"));
+		int timeout = Integer.parseInt(params.getOrDefault("-T", "100"));
+		int fecGroup = Integer.parseInt(params.getOrDefault("-f", "0"));
+		boolean checksums = params.getOrDefault("-c", "off").equals("on");
+		double modified = Double.parseDouble(params.getOrDefault("-M", "0"));
+		boolean delta = params.getOrDefault("-u", "off").equals("on");
+		boolean compression = params.getOrDefault("-z", "off").equals("on");
+		int fileCount = Integer.parseInt(params.getOrDefault("-F", "0"));
+		boolean session = params.getOrDefault("-m", "session").equals("session");
+		long seed = Long.parseLong(params.getOrDefault("-S", "1"));
+		String output = params.get("-o");
+		logger.setLevel(Level.WARNING);
+
+		Path workDir = Files.createTempDirectory("transferbench");
+		File outputDir = Files.createDirectory(workDir.resolve("received")).toFile();
+		File file;
+		boolean text = params.getOrDefault("-k", "random").equals("text");
+		if (fileCount > 0) {
+			if (modified > 0)
+				throw new IllegalArgumentException("-M does not apply to -F");
+			file = workDir.resolve("files").toFile();
+			generateFiles(file, parseSize(params.getOrDefault("-g", "4M")), fileCount, text);
+		} else if (params.containsKey("-g")) {
+			file = workDir.resolve(text ? "generated.txt" : "generated.bin").toFile();
+			if (text)
+				generateText(file, parseSize(params.get("-g")));
+			else
+				generate(file, parseSize(params.get("-g")));
+		} else {
+			file = new File(params.getOrDefault("-i", "medium.txt"));
+		}
+
+		// the receiver gets the file, the sender a modified copy of the same name
+		File basis = null;
+		if (modified > 0) {
+			basis = file;
+			file = Files.createDirectory(workDir.resolve("modified")).resolve(basis.getName()).toFile();
+			modify(basis, file, modified, seed);
+		}
+		byte[] digest = digest(file);
+		File[] sources = file.isDirectory() ? file.listFiles() : new File[] { file };
+		Arrays.sort(sources);
+		long bytes = 0;
+		for (File source : sources)
+			bytes += source.length();
+
+		// the receiver tells senders to use the emulator's port
+		int receiverUdpPort;
+		try (DatagramSocket probe = new DatagramSocket()) {
+			receiverUdpPort = probe.getLocalPort();
+		}
+		StopWaitReceiver receiver = new StopWaitReceiver(0, receiverUdpPort, outputDir);
+		receiver.setDaemon(true);
+		receiver.start();
+
+		StringBuilder sb = new StringBuilder("{\n");
+		sb.append("  \"file\": \"").append(file.getName()).append("\",\n");
+		sb.append("  \"bytes\": ").append(bytes).append(",\n");
+		sb.append("  \"files\": ").append(sources.length).append(",\n");
+		sb.append("  \"session\": ").append(file.isDirectory() && session).append(",\n");
+		sb.append("  \"timeout_ms\": ").append(timeout).append(",\n");
+		sb.append("  \"fec_group\": ").append(fecGroup).append(",\n");
+		sb.append("  \"checksums\": ").append(checksums).append(",\n");
+		sb.append("  \"modified\": ").append(modified).append(",\n");
+		sb.append("  \"delta\": ").append(delta).append(",\n");
+		sb.append("  \"compression\": ").append(compression).append(",\n");
+		sb.append("  \"impairments\": {");
+		String sep = "";
+		for (String option : new String[] { "-d", "-j", "-L", "-r", "-D", "-C", "-b", "-q" }) {
+			if (params.containsKey(option)) {
+				sb.append(sep).append("\"").append(option).append("\": ").append(params.get(option));
+				sep = ", ";
+			}
+		}
+		sb.append("},\n  \"runs\": [\n");
+		List<String> results = new ArrayList<>();
+
+		double[] seconds = new double[runs];
+		double[] goodput = new double[runs];
+		double[] retxRatio = new double[runs];
+		boolean allVerified = true;
+		int done = 0;
+		int transfers = 0; // received since the receiver started
+		PrintStream console = System.out;
+		for (int run = 0; run < runs; run++) {
+			NetEmulator emulator = new NetEmulator(0, new InetSocketAddress("localhost", receiverUdpPort), seed + run);
+			NetEmulator.configure(emulator.getForward(), params);
+			NetEmulator.configure(emulator.getReverse(), params);
+			emulator.start();
+			receiver.setAdvertisedUdpPort(emulator.getLocalPort());
+
+			StopWaitFtp ftp = new StopWaitFtp(timeout);
+			ftp.setFecGroup(fecGroup);
+			ftp.setChecksums(checksums);
+			ftp.setDelta(delta);
+			ftp.setCompression(compression);
+			if (basis != null)
+				Files.copy(basis.toPath(), new File(outputDir, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			long repairedBefore = receiver.getRepairedSegments();
+			long corruptedBefore = receiver.getCorruptedSegments();
+			boolean sent = true;
+			long segments = 0;
+			long retransmissions = 0;
+			long repairSegments = 0;
+			long deflatedBlocks = 0;
+			long storedBlocks = 0;
+			long start = System.nanoTime();
+			System.setOut(new PrintStream(OutputStream.nullOutputStream())); // the sender reports every segment
+			try {
+				boolean sendSession = file.isDirectory() && session;
+				for (int i = 0; i < (sendSession ? 1 : sources.length) && sent; i++) {
+					if (sendSession)
+						sent = ftp.sendFiles("localhost", receiver.getLocalPort(), List.of(file.getPath()));
+					else
+						sent = ftp.send("localhost", receiver.getLocalPort(), sources[i].getPath());
+					transfers++;
+					segments += ftp.getSegmentsSent();
+					retransmissions += ftp.getRetransmissions();
+					repairSegments += ftp.getRepairSegmentsSent();
+					deflatedBlocks += ftp.getDeflatedBlocks();
+					storedBlocks += ftp.getStoredBlocks();
+				}
+			} finally {
+				System.setOut(console);
+			}
+			boolean received = sent && receiver.awaitCompleted(transfers, RECEIVE_WAIT);
+			long elapsed = System.nanoTime() - start;
+			emulator.shutdown();
+			File copy = file.isDirectory() && !session ? outputDir : new File(outputDir, file.getName());
+			boolean verified = received && Arrays.equals(digest, digest(copy));
+			deleteTree(copy);
+			outputDir.mkdir();
+			allVerified &= verified;
+
+			seconds[run] = elapsed / 1e9;
+			goodput[run] = bytes * 8 / 1e6 / seconds[run];
+			retxRatio[run] = segments == 0 ? 0 : (double) retransmissions / segments;
+
+			StringBuilder result = new StringBuilder(String.format(Locale.ROOT,
+					"    {\"run\": %d, \"verified\": %b, \"seconds\": %.3f, \"goodput_mbps\": %.3f, \"segments\": %d, \"retransmissions\": %d, \"retx_ratio\": %.4f,\n"
+							+ "     \"repair_segments\": %d, \"rebuilt\": %d, \"dropped_corrupt\": %d,\n"
+							+ "     \"wire_bytes\": %d, \"signature_bytes\": %d, \"delta_bytes\": %d, \"literal_bytes\": %d,\n"
+							+ "     \"deflated_blocks\": %d, \"stored_blocks\": %d,\n",
+					run, verified, seconds[run], goodput[run], segments, retransmissions, retxRatio[run],
+					repairSegments, receiver.getRepairedSegments() - repairedBefore,
+					receiver.getCorruptedSegments() - corruptedBefore,
+					emulator.getForward().getForwardedBytes() + emulator.getReverse().getForwardedBytes() + ftp.getSignatureBytes(),
+					ftp.getSignatureBytes(), ftp.getDeltaBytes(), ftp.getLiteralBytes(),
+					deflatedBlocks, storedBlocks));
+			result.append("     \"forward\": ").append(emulator.getForward().toJson());
+			result.append(",\n     \"reverse\": ").append(emulator.getReverse().toJson()).append("}");
+			results.add(result.toString());
+			done++;
+			if (!received)
+				break; // the receiver is stuck on the failed transfer
+		}
+		receiver.shutdown();
+
+		sb.append(String.join(",\n", results)).append("\n  ],\n");
+		sb.append(String.format(Locale.ROOT,
+				"  \"verified\": %b,\n  \"seconds_median\": %.3f,\n  \"goodput_mbps_median\": %.3f,\n  \"retx_ratio_median\": %.4f\n}\n",
+				allVerified, median(seconds, done), median(goodput, done), median(retxRatio, done)));
+
+		if (params.containsKey("-g") || fileCount > 0)
+			deleteTree(basis != null ? basis : file);
+		if (basis != null) {
+			file.delete();
+			file.getParentFile().delete();
+		}
+		outputDir.delete();
+		workDir.toFile().delete();
+
+		if (output != null)
+			Files.write(Paths.get(output), sb.toString().getBytes(StandardCharsets.UTF_8));
+		else
+			System.out.print(sb);
+		if (!allVerified)
+			System.exit(1);
+	}
+
+	// size with an optional K, M or G suffix (powers of 1024)
+	static long parseSize(String size) {
+		char unit = Character.toUpperCase(size.charAt(size.length() - 1));
+		int shift = unit == 'K' ? 10 : unit == 'M' ? 20 : unit == 'G' ? 30 : 0;
+		String digits = shift == 0 ? size : size.substring(0, size.length() - 1);
+		return Long.parseLong(digits) << shift;
+	}
+
+	// copies a file, replacing about the given fraction of its bytes in runs of
+	// CHANGE_RUN bytes at random offsets and inserting INSERTION bytes in the middle
+	private static void modify(File from, File to, double fraction, long seed) throws IOException {
+		long size = from.length();
+		Random random = new Random(seed);
+		long[] offsets = new long[(int) (size * fraction / CHANGE_RUN)];
+		for (int i = 0; i < offsets.length; i++)
+			offsets[i] = (long) (random.nextDouble() * size);
+		Arrays.sort(offsets);
+
+		byte[] buffer = new byte[1 << 16];
+		byte[] run = new byte[CHANGE_RUN];
+		try (InputStream in = new BufferedInputStream(new FileInputStream(from), 1 << 20);
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(to), 1 << 20)) {
+			long position = 0;
+			int next = 0;
+			boolean inserted = false;
+			while (position < size) {
+				if (!inserted && position >= size / 2) {
+					random.nextBytes(run);
+					out.write(run, 0, INSERTION);
+					inserted = true;
+				}
+				if (next < offsets.length && offsets[next] <= position) {
+					int n = (int) Math.min(CHANGE_RUN, size - position);
+					in.skipNBytes(n);
+					random.nextBytes(run);
+					out.write(run, 0, n);
+					position += n;
+					while (next < offsets.length && offsets[next] < position)
+						next++; // overlapping runs
+					continue;
+				}
+				long limit = Math.min(next < offsets.length ? offsets[next] : size, size / 2 > position ? size / 2 : size);
+				int n = (int) Math.min(buffer.length, limit - position);
+				in.readNBytes(buffer, 0, n);
+				out.write(buffer, 0, n);
+				position += n;
+			}
+		}
+	}
+
+	// writes pseudo-random, incompressible content
+	static void generate(File file, long size) throws IOException {
+		Random random = new Random(size);
+		byte[] block = new byte[1 << 16];
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20)) {
+			for (long written = 0; written < size; written += block.length) {
+				random.nextBytes(block);
+				out.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		}
+	}
+
+	// writes lines of pseudo-random words, a few frequent and many rare ones, compressible like prose
+	private static void generateText(File file, long size) throws IOException {
+		Random random = new Random(size);
+		byte[][] words = new byte[WORDS][];
+		for (int i = 0; i < WORDS; i++) {
+			words[i] = new byte[2 + random.nextInt(9)];
+			for (int j = 0; j < words[i].length; j++)
+				words[i][j] = (byte) ('a' + random.nextInt(26));
+		}
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20)) {
+			long written = 0;
+			int column = 0;
+			while (written < size) {
+				byte[] word = words[(int) Math.pow(WORDS, random.nextDouble()) - 1];
+				int n = (int) Math.min(word.length, size - written);
+				out.write(word, 0, n);
+				written += n;
+				column += n;
+				if (written < size) {
+					out.write(column >= LINE_LENGTH ? '\n' : ' ');
+					written++;
+					column = column >= LINE_LENGTH ? 0 : column + 1;
+				}
+			}
+		}
+	}
+
+	// writes count files of about size / count bytes each, between half and one and a half times that
+	private static void generateFiles(File dir, long size, int count, boolean text) throws IOException {
+		dir.mkdir();
+		Random random = new Random(count);
+		long average = size / count;
+		for (int i = 0; i < count; i++) {
+			File file = new File(dir, String.format("f%06d%s", i, text ? ".txt" : ".bin"));
+			long length = average / 2 + (long) (random.nextDouble() * average);
+			if (text)
+				generateText(file, length);
+			else
+				generate(file, length);
+		}
+	}
+
+	// SHA-256 of a file, or of the names and contents of the files in a directory tree
+	static byte[] digest(File file) throws Exception {
+		MessageDigest sha = MessageDigest.getInstance("SHA-256");
+		if (!file.exists())
+			return new byte[0];
+		update(sha, file, "");
+		return sha.digest();
+	}
+
+	private static void update(MessageDigest sha, File file, String path) throws IOException {
+		if (file.isDirectory()) {
+			String[] children = file.list();
+			Arrays.sort(children);
+			for (String child : children)
+				update(sha, new File(file, child), path + "/" + child);
+			return;
+		}
+		sha.update(path.getBytes(StandardCharsets.UTF_8));
+		byte[] buffer = new byte[1 << 16];
+		try (InputStream in = new FileInputStream(file)) {
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				sha.update(buffer, 0, n);
+		}
+	}
+
+	static void deleteTree(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				deleteTree(child);
+		file.delete();
+	}
+
+	// median of the first count values
+	static double median(double[] values, int count) {
+		double[] sorted = Arrays.copyOf(values, count);
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+}
@@ -0,0 +1,174 @@
+/**
+ * TransferOptions Class
+ *
+ * Protocol extensions of StopWaitFtp, negotiated in the TCP handshake.
+ *
+ * A sender that wants an extension appends an options block to its
+ * handshake, after its UDP port: a magic number, the number of options
+ * and an (id, value) pair per option. The block is announced by PRESENT
+ * in the high half of the UDP port field, so a receiver knows from the
+ * field alone whether one follows, however slow the link. The receiver
+ * answers, after the initial sequence number, with a block of the options
+ * it accepted, a value of 0 meaning declined. Senders using no extension
+ * send no block and a plain port, so their handshake is unchanged and
+ * works with any receiver.
+ *
+ * A receiver that predates the options answers with its port and initial
+ * sequence number only. The answer block is written in the same flush as
+ * these, so a sender waits at most BLOCK_WAIT for it once they have
+ * arrived. Without a block, readAnswer() returns null: StopWaitFtp then
+ * reconnects and sends the file without options, and transfers that
+ * cannot do without them (multi-file sessions, MulticastFtp) fail.
+ *
+ * @author 	Quenten Welch
+ * @version	2024
+ *
+ */
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class TransferOptions {
+
+	public static final int MAGIC = 0x53574f50; // "SWOP"
+	public static final int PRESENT = 0x53570000; // "SW" in the high half of the sender's UDP port field: a block follows
+	public static final int BLOCK_WAIT = 5000; // time a sender waits for the answer block after the sequence number (milli-seconds)
+	private static final int MAX_OPTIONS = 64;
+
+	// option ids
+	public static final int FEC_GROUP = 1; // data segments protected by one parity segment, see FecGroup
+	public static final int CHECKSUMS = 2; // 1 for checked segments and a whole-file checksum trailer
+	public static final int RESUME = 3; // version of the sender's file for a resumable transfer, 1 in the answer
+	public static final int RESUME_OFFSET = 4; // answer only, segments of the file the receiver already has
+	public static final int DELTA = 5; // 1 for a delta transfer, the block size in the answer, see DeltaSync
+	public static final int COMPRESSION = 6; // codec of a compressed transfer, see Compression
+	public static final int SESSION = 7; // number of files of a session, the manifest follows the block, 1 in the answer
+	public static final int NAK_WINDOW = 8; // window of a one-to-many transfer repaired by NAKs, see MulticastFtp
+	public static final int MULTICAST_GROUP = 9; // IPv4 address of the group, 0 in the answer if not joined
+	public static final int MULTICAST_PORT = 10; // UDP port of the group
+
+	private final TreeMap<Integer, Integer> values = new TreeMap<>();
+
+	/**
+	 * Sets an option
+	 *
+	 * @param id    The option id
+	 * @param value The value, 0 to remove the option
+	 */
+	public void set(int id, int value) {
+		if (value == 0)
+			values.remove(id);
+		else
+			values.put(id, value);
+	}
+
+	/**
+	 * Returns the value of an option, 0 if not set
+	 */
+	public int get(int id) {
+		return values.getOrDefault(id, 0);
+	}
+
+	/**
+	 * Returns true if no option is set
+	 */
+	public boolean isEmpty() {
+		return values.isEmpty();
+	}
+
+	/**
+	 * Writes the options block
+	 *
+	 * @param out The control connection
+	 *
+	 * @throws IOException If an I/O error occurs
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(values.size());
+		for (Map.Entry<Integer, Integer> e : values.entrySet()) {
+			out.writeInt(e.getKey());
+			out.writeInt(e.getValue());
+		}
+	}
+
+	/**
+	 * Reads an options block
+	 *
+	 * @param in The control connection
+	 * @return The options
+	 *
+	 * @throws IOException If an I/O error occurs or the block is malformed
+	 */
+	public static TransferOptions read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC)
+			throw new IOException("Malformed options block");
+		return readOptions(in);
+	}
+
+	/**
+	 * Returns the UDP port field of a sender's handshake, announcing the
+	 * options block if one is sent.
+	 *
+	 * @param udpPort The sender's UDP port
+	 * @param options The options, no block is sent if empty
+	 */
+	public static int portField(int udpPort, TransferOptions options) {
+		return options.isEmpty() ? udpPort : PRESENT | udpPort;
+	}
+
+	/**
+	 * Reads the options block of a sender's handshake, if its UDP port
+	 * field announces one.
+	 *
+	 * @param in        Input stream of the control connection
+	 * @param portField The UDP port field of the handshake
+	 * @return The options, empty if the sender sent none
+	 *
+	 * @throws IOException If an I/O error occurs or the block is malformed
+	 */
+	public static TransferOptions readIfPresent(DataInputStream in, int portField) throws IOException {
+		if ((portField & 0xffff0000) == 0)
+			return new TransferOptions();
+		if ((portField & 0xffff0000) != PRESENT)
+			throw new IOException("Malformed UDP port " + portField);
+		return read(in);
+	}
+
+	/**
+	 * Reads the receiver's answer block, once its port and initial
+	 * sequence number have been read, waiting at most BLOCK_WAIT for it.
+	 *
+	 * @param socket The control connection
+	 * @param in     Input stream of the control connection
+	 * @return The accepted options, null if the receiver sent no block
+	 *
+	 * @throws IOException If an I/O error occurs or the block is malformed
+	 */
+	public static TransferOptions readAnswer(Socket socket, DataInputStream in) throws IOException {
+		int timeout = socket.getSoTimeout();
+		socket.setSoTimeout(BLOCK_WAIT);
+		try {
+			return read(in);
+		} catch (SocketTimeoutException e) {
+			return null; // a receiver without the options
+		} finally {
+			socket.setSoTimeout(timeout);
+		}
+	}
+
+	private static TransferOptions readOptions(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > MAX_OPTIONS)
+			throw new IOException("Malformed options block");
+		TransferOptions options = new TransferOptions();
+		for (int i = 0; i < count; i++) {
+			int id = in.readInt();
+			options.set(id, in.readInt());
+		}
+		return options;
+	}
+}